@@ -0,0 +1,226 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk storage behind an {@link H2CacheImpl}.
+ * <p>
+ * Stores, removals and access time updates are buffered in memory and
+ * coalesced by key, then handed to the implementation in batches by
+ * {@link #flush()}. Readers see buffered operations before the data on disk.
+ */
+abstract class DiskStore<K, V> {
+  final long flushInterval;
+  private final int bufferLimit;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong flushCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong overflowCount = new AtomicLong();
+  private final AtomicLong failedFlushCount = new AtomicLong();
+
+  /** Operations waiting to be written; guarded by itself. */
+  private final Map<K, Pending<V>> pending;
+
+  /** Batch currently being written, still visible to readers. */
+  private volatile Map<K, Pending<V>> flushing;
+
+  /** Serializes flushes so batches are written in the order they were taken. */
+  private final Object flushLock = new Object();
+
+  DiskStore(int bufferLimit, long flushInterval) {
+    this.bufferLimit = Math.max(bufferLimit, 1);
+    this.flushInterval = Math.max(flushInterval, 1);
+    this.pending = new LinkedHashMap<K, Pending<V>>();
+  }
+
+  /** Prepare the store for use; called on the store's background thread. */
+  abstract void open();
+
+  void close() {
+    flush();
+  }
+
+  /** @return false only if the key is definitely not stored on disk. */
+  abstract boolean mightContain(K key);
+
+  /** @return the stored value, marked clean; null if not stored. */
+  abstract ValueHolder<V> read(K key);
+
+  /**
+   * Write a batch of operations.
+   *
+   * @return true if the batch was stored; false if it was dropped, in which
+   *         case the implementation has already logged the reason.
+   */
+  abstract boolean write(Map<K, Pending<V>> batch);
+
+  /** Remove every entry from disk. */
+  abstract void removeAll();
+
+  /** Shrink the store to its size limit, keeping entries held by mem. */
+  abstract void pruneStore(Cache<K, ?> mem);
+
+  /** Fill in the number of entries and bytes used on disk. */
+  abstract void fillStats(DiskStats d);
+
+  ValueHolder<V> getIfPresent(K key) {
+    Pending<V> p = buffered(key);
+    if (p != null && p.op != Op.TOUCH) {
+      if (p.op == Op.DELETE) {
+        missCount.incrementAndGet();
+        return null;
+      }
+      hitCount.incrementAndGet();
+      return p.holder;
+    }
+
+    ValueHolder<V> h = read(key);
+    if (h == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    enqueue(key, new Pending<V>(Op.TOUCH, null));
+    return h;
+  }
+
+  void put(K key, ValueHolder<V> holder) {
+    if (!holder.clean) {
+      enqueue(key, new Pending<V>(Op.PUT, holder));
+    }
+  }
+
+  void invalidate(K key) {
+    enqueue(key, new Pending<V>(Op.DELETE, null));
+  }
+
+  void invalidateAll() {
+    synchronized (pending) {
+      pending.clear();
+    }
+    flush();
+    removeAll();
+  }
+
+  void prune(Cache<K, ?> mem) {
+    flush();
+    pruneStore(mem);
+  }
+
+  /** Write all buffered operations as one batch. */
+  void flush() {
+    synchronized (flushLock) {
+      Map<K, Pending<V>> batch;
+      synchronized (pending) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = new LinkedHashMap<K, Pending<V>>(pending);
+        flushing = batch;
+        pending.clear();
+      }
+
+      try {
+        if (write(batch)) {
+          flushCount.incrementAndGet();
+          writeCount.addAndGet(batch.size());
+          for (Pending<V> p : batch.values()) {
+            if (p.op == Op.PUT) {
+              p.holder.clean = true;
+            }
+          }
+        } else {
+          failedFlushCount.incrementAndGet();
+        }
+      } finally {
+        flushing = null;
+      }
+    }
+  }
+
+  DiskStats diskStats() {
+    DiskStats d = new DiskStats();
+    d.hitCount = hitCount.get();
+    d.missCount = missCount.get();
+    synchronized (pending) {
+      d.pendingCount = pending.size();
+    }
+    d.flushCount = flushCount.get();
+    d.writeCount = writeCount.get();
+    d.coalescedCount = coalescedCount.get();
+    d.overflowCount = overflowCount.get();
+    d.failedFlushCount = failedFlushCount.get();
+    fillStats(d);
+    return d;
+  }
+
+  private Pending<V> buffered(K key) {
+    Pending<V> p;
+    synchronized (pending) {
+      p = pending.get(key);
+    }
+    if (p == null) {
+      Map<K, Pending<V>> f = flushing;
+      if (f != null) {
+        p = f.get(key);
+      }
+    }
+    return p;
+  }
+
+  private void enqueue(K key, Pending<V> p) {
+    boolean full;
+    synchronized (pending) {
+      Pending<V> old = pending.get(key);
+      if (old != null) {
+        coalescedCount.incrementAndGet();
+        if (p.op == Op.TOUCH) {
+          // A buffered put or delete also takes care of the access time.
+          return;
+        }
+      }
+      pending.put(key, p);
+      full = pending.size() >= bufferLimit;
+    }
+    if (full) {
+      overflowCount.incrementAndGet();
+      flush();
+    }
+  }
+
+  static enum Op {
+    PUT, TOUCH, DELETE
+  }
+
+  static class Pending<V> {
+    final Op op;
+    final ValueHolder<V> holder;
+
+    Pending(Op op, ValueHolder<V> holder) {
+      this.op = op;
+      this.holder = holder;
+    }
+  }
+}
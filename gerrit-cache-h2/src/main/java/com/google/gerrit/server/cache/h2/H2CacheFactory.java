@@ -25,6 +25,7 @@ import com.google.gerrit.server.cache.CacheBinding;
 import com.google.gerrit.server.cache.PersistentCacheFactory;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.inject.Inject;
@@ -37,7 +38,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -50,7 +50,7 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
   private final Config config;
    private final File cacheDir;
   private final List<H2CacheImpl<?, ?>> caches;
-  private final ExecutorService executor;
+  private final ScheduledExecutorService executor;
   private final ScheduledExecutorService cleanup;
   private volatile boolean started;
 
@@ -81,7 +81,7 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
     caches = Lists.newLinkedList();
 
     if (cacheDir != null) {
-      executor = Executors.newFixedThreadPool(
+      executor = Executors.newScheduledThreadPool(
           1,
           new ThreadFactoryBuilder()
             .setNameFormat("DiskCache-Store-%d")
@@ -110,6 +110,13 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
           }
         });
 
+        executor.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            cache.flush();
+          }
+        }, cache.flushInterval(), cache.flushInterval(), TimeUnit.MILLISECONDS);
+
         cleanup.schedule(new Runnable() {
           @Override
           public void run() {
@@ -126,15 +133,10 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       try {
         cleanup.shutdownNow();
 
-        List<Runnable> pending = executor.shutdownNow();
-        if (executor.awaitTermination(15, TimeUnit.MINUTES)) {
-          if (pending != null && !pending.isEmpty()) {
-            log.info(String.format("Finishing %d disk cache updates", pending.size()));
-            for (Runnable update : pending) {
-              update.run();
-            }
-          }
-        } else {
+        // Queued tasks only open or periodically flush the caches. They
+        // need not run, each cache flushes its write buffer as it stops.
+        executor.shutdownNow();
+        if (!executor.awaitTermination(15, TimeUnit.MINUTES)) {
           log.info("Timeout waiting for disk cache to close");
         }
       } catch (InterruptedException e) {
@@ -156,9 +158,9 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       return defaultFactory.build(def);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit);
+    DiskStore<K, V> store = newStore(def.name(), def.keyType(), limit);
     H2CacheImpl<K, V> cache = new H2CacheImpl<K, V>(
-        executor, store, def.keyType(),
+        store, def.keyType(),
         (Cache<K, ValueHolder<V>>) defaultFactory.create(def, true).build());
     caches.add(cache);
     return cache;
@@ -176,23 +178,41 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
       return defaultFactory.build(def, loader);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit);
+    DiskStore<K, V> store = newStore(def.name(), def.keyType(), limit);
     Cache<K, ValueHolder<V>> mem = (Cache<K, ValueHolder<V>>)
         defaultFactory.create(def, true)
         .build((CacheLoader<K, V>) new H2CacheImpl.Loader<K, V>(
-              executor, store, loader));
+              store, loader));
     H2CacheImpl<K, V> cache = new H2CacheImpl<K, V>(
-        executor, store, def.keyType(), mem);
+        store, def.keyType(), mem);
     caches.add(cache);
     return cache;
   }
 
-  private <V, K> SqlStore<K, V> newSqlStore(
+  private <V, K> DiskStore<K, V> newStore(
       String name,
       TypeLiteral<K> keyType,
       long maxSize) {
     File db = new File(cacheDir, name).getAbsoluteFile();
-    String url = "jdbc:h2:" + db.toURI().toString();
-    return new SqlStore<K, V>(url, keyType, maxSize);
+    int bufferLimit = config.getInt("cache", name, "diskBufferLimit", 1024);
+    long flushInterval = ConfigUtil.getTimeUnit(config,
+        "cache", name, "diskFlushInterval",
+        TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
+    switch (ConfigUtil.getEnum(config, "cache", name, "backend",
+        Backend.values(), Backend.H2)) {
+      case MMAP:
+        return new MappedStore<K, V>(new File(db.getPath() + ".mmap"),
+            maxSize, bufferLimit, flushInterval);
+
+      case H2:
+      default:
+        String url = "jdbc:h2:" + db.toURI().toString();
+        return new SqlStore<K, V>(url, keyType, maxSize, bufferLimit,
+            flushInterval);
+    }
+  }
+
+  static enum Backend {
+    H2, MMAP
   }
 }
@@ -11,6 +11,7 @@ import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.PrimitiveSink;
+import com.google.gerrit.server.cache.h2.DiskStore.Pending;
 import com.google.inject.TypeLiteral;
 
 import org.slf4j.Logger;
@@ -30,10 +31,8 @@ import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Hybrid in-memory and database backed cache built on H2.
@@ -45,9 +44,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * mostly useful for CacheLoaders that are computationally intensive, such as
  * the PatchListCache.
  * <p>
- * Cache stores and invalidations are performed on a background thread, hiding
- * the latency associated with serializing the key and value pairs and writing
- * them to the database log.
+ * Cache stores, invalidations and access time updates are buffered in memory
+ * and written on a background thread, hiding the latency associated with
+ * serializing the key and value pairs and writing them to the database log.
+ * Buffered operations are coalesced by key and written in batches, one
+ * transaction per flush. If the buffer fills up faster than the background
+ * thread drains it, the caller adding to the full buffer performs the flush.
  * <p>
  * A BloomFilter is used around the database to reduce the number of SELECTs
  * issued against the database for new cache items that have not been seen
@@ -62,16 +64,13 @@ import java.util.concurrent.atomic.AtomicLong;
 public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   private static final Logger log = LoggerFactory.getLogger(H2CacheImpl.class);
 
-  private final Executor executor;
-  private final SqlStore<K, V> store;
+  private final DiskStore<K, V> store;
   private final TypeLiteral<K> keyType;
   private final Cache<K, ValueHolder<V>> mem;
 
-  H2CacheImpl(Executor executor,
-      SqlStore<K, V> store,
+  H2CacheImpl(DiskStore<K, V> store,
       TypeLiteral<K> keyType,
       Cache<K, ValueHolder<V>> mem) {
-    this.executor = executor;
     this.store = store;
     this.keyType = keyType;
     this.mem = mem;
@@ -110,28 +109,18 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   }
 
   @Override
-  public void put(final K key, V val) {
-    final ValueHolder<V> h = new ValueHolder<V>(val);
+  public void put(K key, V val) {
+    ValueHolder<V> h = new ValueHolder<V>(val);
     h.created = System.currentTimeMillis();
     mem.put(key, h);
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        store.put(key, h);
-      }
-    });
+    store.put(key, h);
   }
 
   @SuppressWarnings("unchecked")
   @Override
-  public void invalidate(final Object key) {
+  public void invalidate(Object key) {
     if (keyType.getRawType().isInstance(key) && store.mightContain((K) key)) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          store.invalidate((K) key);
-        }
-      });
+      store.invalidate((K) key);
     }
     mem.invalidate(key);
   }
@@ -160,6 +149,14 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     store.open();
   }
 
+  void flush() {
+    store.flush();
+  }
+
+  long flushInterval() {
+    return store.flushInterval;
+  }
+
   void stop() {
     for (Map.Entry<K, ValueHolder<V>> e : mem.asMap().entrySet()) {
       ValueHolder<V> h = e.getValue();
@@ -194,6 +191,12 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     long space;
     long hitCount;
     long missCount;
+    long pendingCount;
+    long flushCount;
+    long writeCount;
+    long coalescedCount;
+    long overflowCount;
+    long failedFlushCount;
 
     public long size() {
       return size;
@@ -210,6 +213,36 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     public long requestCount() {
       return hitCount + missCount;
     }
+
+    /** Number of buffered operations not yet written to disk. */
+    public long pendingCount() {
+      return pendingCount;
+    }
+
+    /** Number of batches written to disk. */
+    public long flushCount() {
+      return flushCount;
+    }
+
+    /** Number of rows stored, deleted or touched by all batches. */
+    public long writeCount() {
+      return writeCount;
+    }
+
+    /** Number of operations replaced by a later operation on the same key. */
+    public long coalescedCount() {
+      return coalescedCount;
+    }
+
+    /** Number of times a caller had to flush a full buffer itself. */
+    public long overflowCount() {
+      return overflowCount;
+    }
+
+    /** Number of batches that could not be written and were dropped. */
+    public long failedFlushCount() {
+      return failedFlushCount;
+    }
   }
 
   static class ValueHolder<V> {
@@ -223,18 +256,16 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
   }
 
   static class Loader<K, V> extends CacheLoader<K, ValueHolder<V>> {
-    private final Executor executor;
-    private final SqlStore<K, V> store;
+    private final DiskStore<K, V> store;
     private final CacheLoader<K, V> loader;
 
-    Loader(Executor executor, SqlStore<K, V> store, CacheLoader<K, V> loader) {
-      this.executor = executor;
+    Loader(DiskStore<K, V> store, CacheLoader<K, V> loader) {
       this.store = store;
       this.loader = loader;
     }
 
     @Override
-    public ValueHolder<V> load(final K key) throws Exception {
+    public ValueHolder<V> load(K key) throws Exception {
       if (store.mightContain(key)) {
         ValueHolder<V> h = store.getIfPresent(key);
         if (h != null) {
@@ -242,14 +273,9 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
         }
       }
 
-      final ValueHolder<V> h = new ValueHolder<V>(loader.load(key));
+      ValueHolder<V> h = new ValueHolder<V>(loader.load(key));
       h.created = System.currentTimeMillis();
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          store.put(key, h);
-        }
-      });
+      store.put(key, h);
       return h;
     }
   }
@@ -321,17 +347,17 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
     };
   }
 
-  static class SqlStore<K, V> {
+  static class SqlStore<K, V> extends DiskStore<K, V> {
     private final String url;
     private final KeyType<K> keyType;
     private final long maxSize;
     private final BlockingQueue<SqlHandle> handles;
-    private final AtomicLong hitCount = new AtomicLong();
-    private final AtomicLong missCount = new AtomicLong();
     private volatile BloomFilter<K> bloomFilter;
     private int estimatedSize;
 
-    SqlStore(String jdbcUrl, TypeLiteral<K> keyType, long maxSize) {
+    SqlStore(String jdbcUrl, TypeLiteral<K> keyType, long maxSize,
+        int bufferLimit, long flushInterval) {
+      super(bufferLimit, flushInterval);
       this.url = jdbcUrl;
       this.keyType = KeyType.create(keyType);
       this.maxSize = maxSize;
@@ -341,19 +367,24 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       this.handles = new ArrayBlockingQueue<SqlHandle>(keep);
     }
 
+    @Override
     synchronized void open() {
       if (bloomFilter == null) {
         bloomFilter = buildBloomFilter();
       }
     }
 
+    @Override
     void close() {
+      super.close();
+
       SqlHandle h;
       while ((h = handles.poll()) != null) {
         h.close();
       }
     }
 
+    @Override
     boolean mightContain(K key) {
       BloomFilter<K> b = bloomFilter;
       if (b == null) {
@@ -406,7 +437,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    ValueHolder<V> getIfPresent(K key) {
+    @Override
+    ValueHolder<V> read(K key) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -417,7 +449,6 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
         ResultSet r = c.get.executeQuery();
         try {
           if (!r.next()) {
-            missCount.incrementAndGet();
             return null;
           }
 
@@ -425,8 +456,6 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
           V val = (V) r.getObject(1);
           ValueHolder<V> h = new ValueHolder<V>(val);
           h.clean = true;
-          hitCount.incrementAndGet();
-          touch(c, key);
           return h;
         } finally {
           r.close();
@@ -454,51 +483,100 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
+    @Override
     void put(K key, ValueHolder<V> holder) {
-      if (holder.clean) {
-        return;
-      }
-
-      BloomFilter<K> b = bloomFilter;
-      if (b != null) {
-        b.put(key);
-        bloomFilter = b;
+      if (!holder.clean) {
+        BloomFilter<K> b = bloomFilter;
+        if (b != null) {
+          b.put(key);
+          bloomFilter = b;
+        }
       }
+      super.put(key, holder);
+    }
 
+    @Override
+    boolean write(Map<K, Pending<V>> batch) {
       SqlHandle c = null;
       try {
         c = acquire();
-        if (c.put == null) {
-          c.put = c.conn.prepareStatement("MERGE INTO data VALUES(?,?,?,?)");
-        }
-        try {
-          keyType.set(c.put, 1, key);
-          c.put.setObject(2, holder.value);
-          c.put.setTimestamp(3, new Timestamp(holder.created));
-          c.put.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
-          c.put.executeUpdate();
-          holder.clean = true;
-        } finally {
-          c.put.clearParameters();
-        }
+        write(c, batch);
+        return true;
       } catch (SQLException e) {
-        log.warn("Cannot put into cache " + url, e);
+        log.warn("Cannot write " + batch.size() + " entries to cache " + url,
+            e);
         c = close(c);
+        return false;
       } finally {
         release(c);
       }
     }
 
-    void invalidate(K key) {
-      SqlHandle c = null;
+    private void write(SqlHandle c, Map<K, Pending<V>> batch)
+        throws SQLException {
+      if (c.put == null) {
+        c.put = c.conn.prepareStatement("MERGE INTO data VALUES(?,?,?,?)");
+      }
+      if (c.touch == null) {
+        c.touch = c.conn.prepareStatement("UPDATE data SET accessed=? WHERE k=?");
+      }
+      if (c.invalidate == null) {
+        c.invalidate = c.conn.prepareStatement("DELETE FROM data WHERE k=?");
+      }
+
+      Timestamp now = new Timestamp(System.currentTimeMillis());
+      int puts = 0, touches = 0, deletes = 0;
+      c.conn.setAutoCommit(false);
       try {
-        c = acquire();
-        invalidate(c, key);
+        for (Map.Entry<K, Pending<V>> e : batch.entrySet()) {
+          K key = e.getKey();
+          Pending<V> p = e.getValue();
+          switch (p.op) {
+            case PUT:
+              keyType.set(c.put, 1, key);
+              c.put.setObject(2, p.holder.value);
+              c.put.setTimestamp(3, new Timestamp(p.holder.created));
+              c.put.setTimestamp(4, now);
+              c.put.addBatch();
+              puts++;
+              break;
+
+            case TOUCH:
+              c.touch.setTimestamp(1, now);
+              keyType.set(c.touch, 2, key);
+              c.touch.addBatch();
+              touches++;
+              break;
+
+            case DELETE:
+              keyType.set(c.invalidate, 1, key);
+              c.invalidate.addBatch();
+              deletes++;
+              break;
+          }
+        }
+        if (puts > 0) {
+          c.put.executeBatch();
+        }
+        if (touches > 0) {
+          c.touch.executeBatch();
+        }
+        if (deletes > 0) {
+          c.invalidate.executeBatch();
+        }
+        c.conn.commit();
       } catch (SQLException e) {
-        log.warn("Cannot invalidate cache " + url, e);
-        c = close(c);
+        try {
+          c.conn.rollback();
+        } catch (SQLException err) {
+          log.warn("Cannot rollback write to cache " + url, err);
+        }
+        throw e;
       } finally {
-        release(c);
+        c.put.clearBatch();
+        c.touch.clearBatch();
+        c.invalidate.clearBatch();
+        c.conn.setAutoCommit(true);
       }
     }
 
@@ -514,7 +592,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    void invalidateAll() {
+    @Override
+    void removeAll() {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -533,7 +612,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    void prune(Cache<K, ?> mem) {
+    @Override
+    void pruneStore(Cache<K, ?> mem) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -581,10 +661,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       }
     }
 
-    DiskStats diskStats() {
-      DiskStats d = new DiskStats();
-      d.hitCount = hitCount.get();
-      d.missCount = missCount.get();
+    @Override
+    void fillStats(DiskStats d) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -611,7 +689,6 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> {
       } finally {
         release(c);
       }
-      return d;
     }
 
     private SqlHandle acquire() throws SQLException {
@@ -0,0 +1,969 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured disk store built on memory mapped segment files.
+ * <p>
+ * Records are appended to the newest segment file and read back through a
+ * read-only mapping of the segment, avoiding SQL parsing and connection
+ * handling on every disk hit. An in-memory hash index maps each key to the
+ * location of its newest record. A removal appends a tombstone, so the entry
+ * stays removed after a restart; an access appends a touch record carrying
+ * the access time.
+ * <p>
+ * Once a segment is full, and for every segment when the store is closed, a
+ * hint file listing the key and location of each record is written next to
+ * it. Opening the store rebuilds the index from the hint files, and only
+ * reads and checks the records past the end of a segment's hint, which exist
+ * after an unclean stop. The store is recovered without holding its monitor:
+ * readers see an empty store until the index is complete, writers wait.
+ * <p>
+ * Space held by replaced and removed records is reclaimed by retiring the
+ * oldest segment, copying its live records to the newest segment. Segments are
+ * only ever retired oldest first, so the tombstones of a retired segment can
+ * never be needed again. Pruning removes the least recently accessed entries
+ * not held by the in-memory cache, like the H2 store does, and then retires
+ * the oldest segments the same way. Records are copied a chunk at a time, so
+ * readers and writers never wait for a whole segment.
+ * <p>
+ * Segment files grow in chunks ahead of the records written, so the mapping
+ * is only replaced when a chunk is added. Closing the store trims the unused
+ * space again.
+ */
+class MappedStore<K, V> extends DiskStore<K, V> {
+  private static final Logger log = LoggerFactory.getLogger(MappedStore.class);
+
+  private static final String SUFFIX = ".seg";
+  private static final String HINT_SUFFIX = ".hint";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final long SEGMENT_SIZE = 64 << 20;
+
+  /** Smallest growth of a segment file, in bytes. */
+  private static final long MIN_GROWTH = 1 << 20;
+
+  /** Most bytes copied by a retiring segment while holding the lock. */
+  private static final int COPY_CHUNK = 256 << 10;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte TOUCH = 3;
+
+  /** Record length, type, created time, key length; CRC-32 at the end. */
+  private static final int HEADER = 4 + 1 + 8 + 4;
+  private static final int TRAILER = 4;
+
+  /** Magic and bytes of the segment covered; CRC-32 at the end. */
+  private static final int HINT_MAGIC = 0x47524831;
+  private static final int HINT_HEADER = 4 + 8;
+
+  private final File dir;
+  private final long maxSize;
+  private final long segmentSize;
+
+  /** Serializes recovery; taken before {@link #retireLock}. */
+  private final Object openLock = new Object();
+  private boolean opened;
+
+  /** Serializes retiring segments; taken before the store's monitor. */
+  private final Object retireLock = new Object();
+  private final Map<K, Entry> index = Maps.newHashMap();
+  private final TreeMap<Integer, Segment> segments =
+      new TreeMap<Integer, Segment>();
+  private Segment active;
+  private long totalBytes;
+  private long liveBytes;
+
+  MappedStore(File dir, long maxSize, int bufferLimit, long flushInterval) {
+    this(dir, maxSize, bufferLimit, flushInterval, SEGMENT_SIZE);
+  }
+
+  MappedStore(File dir, long maxSize, int bufferLimit, long flushInterval,
+      long segmentSize) {
+    super(bufferLimit, flushInterval);
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.segmentSize = segmentSize;
+  }
+
+  @Override
+  void open() {
+    synchronized (openLock) {
+      if (opened) {
+        return;
+      }
+      opened = true;
+
+      Map<K, Entry> idx = Maps.newHashMap();
+      TreeMap<Integer, Segment> segs = new TreeMap<Integer, Segment>();
+      recover(idx, segs);
+
+      synchronized (this) {
+        for (Segment seg : segs.values()) {
+          segments.put(seg.id, seg);
+          totalBytes += seg.size;
+          active = seg;
+        }
+        for (Map.Entry<K, Entry> e : idx.entrySet()) {
+          replace(e.getKey(), e.getValue());
+        }
+      }
+    }
+  }
+
+  @Override
+  void close() {
+    super.close();
+
+    synchronized (retireLock) {
+      writeHints(true);
+      synchronized (this) {
+        for (Segment seg : segments.values()) {
+          seg.close();
+        }
+      }
+    }
+  }
+
+  @Override
+  synchronized boolean mightContain(K key) {
+    return index.containsKey(key);
+  }
+
+  @Override
+  ValueHolder<V> read(K key) {
+    Entry e;
+    ByteBuffer b;
+    synchronized (this) {
+      e = index.get(key);
+      if (e == null) {
+        return null;
+      }
+      try {
+        b = e.segment.buffer(e.offset + e.length);
+      } catch (IOException err) {
+        log.warn("Cannot map disk cache segment " + e.segment.file, err);
+        return null;
+      }
+    }
+
+    // The mapping stays valid even if the segment is retired concurrently.
+    byte[] rec = new byte[e.length];
+    b.position(e.offset);
+    b.get(rec);
+
+    int valOff = HEADER + e.keyLen;
+    try {
+      @SuppressWarnings("unchecked")
+      V val = (V) deserialize(rec, valOff, rec.length - valOff - TRAILER);
+      ValueHolder<V> h = new ValueHolder<V>(val);
+      h.created = e.created;
+      h.clean = true;
+      return h;
+    } catch (IOException err) {
+      log.warn("Cannot read disk cache " + dir + " for " + key, err);
+      return null;
+    } catch (ClassNotFoundException err) {
+      log.warn("Cannot read disk cache " + dir + " for " + key, err);
+      return null;
+    }
+  }
+
+  @Override
+  boolean write(Map<K, Pending<V>> batch) {
+    open();
+
+    // Serialize outside of the lock, readers should not wait for it.
+    long now = System.currentTimeMillis();
+    List<K> keys = Lists.newArrayListWithCapacity(batch.size());
+    List<byte[]> records = Lists.newArrayListWithCapacity(batch.size());
+    for (Map.Entry<K, Pending<V>> e : batch.entrySet()) {
+      Pending<V> p = e.getValue();
+      try {
+        switch (p.op) {
+          case PUT:
+            records.add(record(PUT, p.holder.created,
+                serialize(e.getKey()), serialize(p.holder.value)));
+            keys.add(e.getKey());
+            break;
+
+          case DELETE:
+            records.add(record(DELETE, 0, serialize(e.getKey()), null));
+            keys.add(e.getKey());
+            break;
+
+          case TOUCH:
+            records.add(record(TOUCH, now, serialize(e.getKey()), null));
+            keys.add(e.getKey());
+            break;
+        }
+      } catch (IOException err) {
+        log.warn("Cannot serialize " + e.getKey() + " for disk cache " + dir,
+            err);
+      }
+    }
+
+    synchronized (this) {
+      try {
+        for (int i = 0; i < keys.size(); i++) {
+          K key = keys.get(i);
+          byte[] rec = records.get(i);
+          if (rec[4] == PUT) {
+            Segment seg = prepareAppend(rec.length);
+            int offset = append(seg, rec);
+            long created = ByteBuffer.wrap(rec, 5, 8).getLong();
+            replace(key, new Entry(seg, offset, rec.length, keyLength(rec),
+                created, created));
+          } else if (index.containsKey(key)) {
+            append(prepareAppend(rec.length), rec);
+            if (rec[4] == DELETE) {
+              remove(key);
+            } else {
+              index.get(key).accessed = now;
+            }
+          }
+        }
+      } catch (IOException err) {
+        log.warn("Cannot write " + keys.size() + " entries to disk cache "
+            + dir, err);
+        return false;
+      }
+    }
+
+    // Reclaim space once most of the store is garbage.
+    synchronized (retireLock) {
+      try {
+        for (int n = segmentCount() - 1; 0 < n && mostlyGarbage(); n--) {
+          if (retire() <= 0) {
+            break;
+          }
+        }
+      } catch (IOException err) {
+        log.warn("Cannot compact disk cache " + dir, err);
+      }
+      writeHints(false);
+    }
+    return true;
+  }
+
+  private synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  private synchronized boolean mostlyGarbage() {
+    return liveBytes < totalBytes - liveBytes;
+  }
+
+  private synchronized boolean overLimit() {
+    return maxSize < totalBytes;
+  }
+
+  /** @return true if retiring the older segments would free any space. */
+  private synchronized boolean reclaimable() {
+    for (Segment seg : segments.values()) {
+      if (seg != active && seg.live < seg.size) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  void removeAll() {
+    open();
+    synchronized (retireLock) {
+      synchronized (this) {
+        for (Segment seg : segments.values()) {
+          seg.close();
+          delete(seg.hintFile);
+          if (!seg.file.delete()) {
+            log.warn("Cannot delete disk cache segment " + seg.file);
+          }
+        }
+        segments.clear();
+        index.clear();
+        active = null;
+        totalBytes = 0;
+        liveBytes = 0;
+      }
+    }
+  }
+
+  @Override
+  void pruneStore(Cache<K, ?> mem) {
+    open();
+    synchronized (retireLock) {
+      List<K> keys = Lists.newArrayList();
+      List<Entry> entries = Lists.newArrayList();
+      int n;
+      synchronized (this) {
+        if (totalBytes <= maxSize) {
+          return;
+        }
+        n = segments.size() - 1;
+
+        // Drop the least recently accessed entries not held in memory until
+        // what remains once the older segments are retired fits: the live
+        // records with their access times, the tombstones written for the
+        // dropped entries and the garbage left in the active segment.
+        long used = active != null ? active.size - active.live : 0;
+        for (Entry e : index.values()) {
+          used += e.length + moved(e);
+        }
+        List<Map.Entry<K, Entry>> lru = Lists.newArrayList(index.entrySet());
+        Collections.sort(lru, new Comparator<Map.Entry<K, Entry>>() {
+          @Override
+          public int compare(Map.Entry<K, Entry> a, Map.Entry<K, Entry> b) {
+            return a.getValue().compareTo(b.getValue());
+          }
+        });
+        for (Map.Entry<K, Entry> ent : lru) {
+          if (used <= maxSize) {
+            break;
+          }
+          if (mem.getIfPresent(ent.getKey()) == null) {
+            Entry e = ent.getValue();
+            keys.add(ent.getKey());
+            entries.add(e);
+            used += e.markerLength() - e.length - moved(e);
+          }
+        }
+      }
+
+      try {
+        drop(keys, entries);
+        for (; 0 < n && overLimit() && reclaimable(); n--) {
+          retire();
+        }
+      } catch (IOException err) {
+        log.warn("Cannot prune disk cache " + dir, err);
+      }
+      writeHints(false);
+    }
+  }
+
+  /** @return bytes of the touch record appended when e is moved. */
+  private int moved(Entry e) {
+    return e.segment != active && e.created < e.accessed ? e.markerLength() : 0;
+  }
+
+  @Override
+  synchronized void fillStats(DiskStats d) {
+    d.size = index.size();
+    d.space = totalBytes;
+  }
+
+  /**
+   * Open the segments and rebuild the index into the given maps.
+   * <p>
+   * Runs without the store's monitor; the caller installs the result.
+   */
+  private void recover(Map<K, Entry> idx, TreeMap<Integer, Segment> segs) {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.warn("Cannot create disk cache " + dir);
+      return;
+    }
+
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    TreeMap<Integer, File> byId = new TreeMap<Integer, File>();
+    for (File f : files) {
+      String n = f.getName();
+      if (n.endsWith(SUFFIX)) {
+        try {
+          byId.put(Integer.parseInt(segmentName(n, SUFFIX)), f);
+        } catch (NumberFormatException notSegment) {
+          continue;
+        }
+      }
+    }
+    for (File f : files) {
+      // Hints of segments retired just before a crash, or half written.
+      String n = f.getName();
+      if (n.endsWith(HINT_SUFFIX + TMP_SUFFIX) || (n.endsWith(HINT_SUFFIX)
+          && !new File(dir, segmentName(n, HINT_SUFFIX) + SUFFIX).exists())) {
+        delete(f);
+      }
+    }
+
+    for (Map.Entry<Integer, File> e : byId.entrySet()) {
+      try {
+        Segment seg = new Segment(e.getKey(), e.getValue(),
+            hintFile(e.getKey()));
+        segs.put(seg.id, seg);
+        scan(seg, readHint(seg, idx), idx);
+      } catch (IOException err) {
+        log.warn("Cannot read disk cache segment " + e.getValue(), err);
+      }
+    }
+  }
+
+  /**
+   * Apply the hint file of a segment to the index.
+   *
+   * @return bytes of the segment covered by the hint; 0 if there is none.
+   */
+  private long readHint(Segment seg, Map<K, Entry> idx) {
+    if (!seg.hintFile.exists()) {
+      return 0;
+    }
+    byte[] buf;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(seg.hintFile, "r");
+      try {
+        buf = new byte[(int) raf.length()];
+        raf.readFully(buf);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException err) {
+      log.warn("Cannot read disk cache hint " + seg.hintFile, err);
+      return 0;
+    }
+
+    ByteBuffer b = ByteBuffer.wrap(buf);
+    if (buf.length < HINT_HEADER + TRAILER || b.getInt(0) != HINT_MAGIC
+        || !checksumMatches(buf, 0) || seg.size < b.getLong(4)) {
+      log.warn("Ignoring damaged disk cache hint " + seg.hintFile);
+      return 0;
+    }
+
+    b.position(HINT_HEADER);
+    b.limit(buf.length - TRAILER);
+    while (b.hasRemaining()) {
+      byte type = b.get();
+      int offset = b.getInt();
+      int length = b.getInt();
+      long time = b.getLong();
+      int keyLen = b.getInt();
+      int keyOff = b.position();
+      b.position(keyOff + keyLen);
+      apply(idx, seg, type, offset, length, time, buf, keyOff, keyLen);
+    }
+    seg.hinted = b.getLong(4);
+    return seg.hinted;
+  }
+
+  /** Apply the records of a segment after start, checking each one. */
+  private void scan(Segment seg, long start, Map<K, Entry> idx)
+      throws IOException {
+    if (seg.size <= start) {
+      return;
+    }
+    ByteBuffer b = seg.buffer(seg.size);
+    int pos = (int) start;
+    while (pos + HEADER + TRAILER <= seg.size) {
+      int len = b.getInt(pos);
+      if (len < HEADER - 4 + TRAILER || seg.size < (long) pos + 4 + len) {
+        break;
+      }
+
+      byte[] rec = new byte[4 + len];
+      b.position(pos);
+      b.get(rec);
+      if (!checksumMatches(rec, 4)) {
+        break;
+      }
+
+      long time = ByteBuffer.wrap(rec, 5, 8).getLong();
+      apply(idx, seg, rec[4], pos, rec.length, time, rec, HEADER,
+          keyLength(rec));
+      pos += rec.length;
+    }
+
+    if (pos < seg.size) {
+      if (pos + 4 <= seg.size && b.getInt(pos) == 0) {
+        // Space allocated ahead of the records, left by an unclean stop.
+        log.debug("Trimming disk cache segment " + seg.file
+            + " from " + seg.size + " to " + pos + " bytes");
+      } else {
+        // Most likely a write interrupted by a crash. Everything after the
+        // last complete record is discarded.
+        log.warn("Truncating disk cache segment " + seg.file
+            + " from " + seg.size + " to " + pos + " bytes");
+      }
+      seg.truncate(pos);
+    }
+  }
+
+  private void apply(Map<K, Entry> idx, Segment seg, byte type, int offset,
+      int length, long time, byte[] buf, int keyOff, int keyLen) {
+    K key;
+    try {
+      @SuppressWarnings("unchecked")
+      K k = (K) deserialize(buf, keyOff, keyLen);
+      key = k;
+    } catch (ClassNotFoundException err) {
+      log.debug("Skipping unreadable key in " + seg.file, err);
+      return;
+    } catch (IOException err) {
+      log.debug("Skipping unreadable key in " + seg.file, err);
+      return;
+    }
+
+    switch (type) {
+      case PUT:
+        idx.put(key, new Entry(seg, offset, length, keyLen, time, time));
+        break;
+
+      case DELETE:
+        idx.remove(key);
+        break;
+
+      case TOUCH:
+        Entry e = idx.get(key);
+        if (e != null) {
+          e.accessed = Math.max(e.accessed, time);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Write hint files for segments whose records are not all covered yet.
+   * <p>
+   * The caller must hold {@link #retireLock}, so the segments stay open.
+   *
+   * @param all if false, only segments no longer appended to are hinted.
+   */
+  private void writeHints(boolean all) {
+    List<Segment> stale = Lists.newArrayList();
+    synchronized (this) {
+      for (Segment seg : segments.values()) {
+        if ((all || seg != active) && seg.hinted != seg.size) {
+          stale.add(seg);
+        }
+      }
+    }
+    for (Segment seg : stale) {
+      try {
+        writeHint(seg);
+      } catch (IOException err) {
+        log.warn("Cannot write disk cache hint " + seg.hintFile, err);
+      }
+    }
+  }
+
+  private void writeHint(Segment seg) throws IOException {
+    long size;
+    synchronized (this) {
+      size = seg.size;
+    }
+
+    ByteBuffer b = seg.buffer(size);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(HINT_MAGIC);
+    out.writeLong(size);
+    for (int pos = 0; pos < size;) {
+      int length = 4 + b.getInt(pos);
+      if (length < HEADER + TRAILER) {
+        throw new IOException("Bad record at " + pos + " in " + seg.file);
+      }
+      int keyLen = b.getInt(pos + HEADER - 4);
+      byte[] key = new byte[keyLen];
+      b.position(pos + HEADER);
+      b.get(key);
+
+      out.writeByte(b.get(pos + 4));
+      out.writeInt(pos);
+      out.writeInt(length);
+      out.writeLong(b.getLong(pos + 5));
+      out.writeInt(keyLen);
+      out.write(key);
+      pos += length;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buf.toByteArray());
+    out.writeInt((int) crc.getValue());
+    out.close();
+
+    // The records must be on disk before a hint claims them.
+    seg.channel.force(false);
+    File tmp = new File(dir, seg.hintFile.getName() + TMP_SUFFIX);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      buf.writeTo(fos);
+      fos.getChannel().force(false);
+    } finally {
+      fos.close();
+    }
+    if (!tmp.renameTo(seg.hintFile)
+        && !(seg.hintFile.delete() && tmp.renameTo(seg.hintFile))) {
+      delete(tmp);
+      throw new IOException("Cannot rename " + tmp + " to " + seg.hintFile);
+    }
+    seg.hinted = size;
+  }
+
+  private Segment prepareAppend(int len) throws IOException {
+    if (active == null
+        || (0 < active.size && segmentSize < active.size + len)) {
+      int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+      active = new Segment(id, segmentFile(id), hintFile(id));
+      segments.put(id, active);
+    }
+    return active;
+  }
+
+  private int append(Segment seg, byte[] rec) throws IOException {
+    int offset = (int) seg.size;
+    seg.allocate(seg.size + rec.length, segmentSize);
+    ByteBuffer src = ByteBuffer.wrap(rec);
+    while (src.hasRemaining()) {
+      seg.channel.write(src, offset + src.position());
+    }
+    seg.size += rec.length;
+    totalBytes += rec.length;
+    return offset;
+  }
+
+  private void replace(K key, Entry e) {
+    remove(key);
+    index.put(key, e);
+    e.segment.live += e.length;
+    liveBytes += e.length;
+  }
+
+  private void remove(K key) {
+    Entry old = index.remove(key);
+    if (old != null) {
+      old.segment.live -= old.length;
+      liveBytes -= old.length;
+    }
+  }
+
+  /**
+   * Remove entries from the index, appending tombstones for them.
+   * <p>
+   * Entries replaced or removed since they were picked are left alone.
+   */
+  private void drop(List<K> keys, List<Entry> entries) throws IOException {
+    int n = 0;
+    while (n < keys.size()) {
+      int first = n;
+      List<byte[]> records = Lists.newArrayList();
+      for (int bytes = 0; n < keys.size() && bytes < COPY_CHUNK; n++) {
+        byte[] rec = record(DELETE, 0, serialize(keys.get(n)), null);
+        records.add(rec);
+        bytes += rec.length;
+      }
+
+      synchronized (this) {
+        for (int j = first; j < n; j++) {
+          K key = keys.get(j);
+          if (index.get(key) != entries.get(j)) {
+            continue;
+          }
+          byte[] rec = records.get(j - first);
+          append(prepareAppend(rec.length), rec);
+          remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete the oldest segment after moving its live records to the newest.
+   * <p>
+   * The caller must hold {@link #retireLock} but not the store's monitor,
+   * which is only taken while copying each chunk of records.
+   *
+   * @return bytes freed on disk; 0 if nothing was retired.
+   */
+  private long retire() throws IOException {
+    Segment seg;
+    List<K> keys = Lists.newArrayList();
+    List<Entry> entries = Lists.newArrayList();
+    synchronized (this) {
+      if (segments.size() < 2) {
+        return 0;
+      }
+      seg = segments.firstEntry().getValue();
+      if (seg == active) {
+        active = null;
+      }
+
+      for (Map.Entry<K, Entry> ent : index.entrySet()) {
+        if (ent.getValue().segment == seg) {
+          keys.add(ent.getKey());
+          entries.add(ent.getValue());
+        }
+      }
+    }
+
+    // New records only go to the active segment, so the records of this
+    // one can be read without the lock. Each is moved only if it is still
+    // current once the lock is taken again.
+    ByteBuffer b = seg.buffer(seg.size);
+    long copied = 0;
+    int n = 0;
+    while (n < keys.size()) {
+      int first = n;
+      List<byte[]> records = Lists.newArrayList();
+      for (int bytes = 0; n < keys.size() && bytes < COPY_CHUNK; n++) {
+        Entry e = entries.get(n);
+        byte[] rec = new byte[e.length];
+        b.position(e.offset);
+        b.get(rec);
+        records.add(rec);
+        bytes += rec.length;
+      }
+
+      synchronized (this) {
+        for (int j = first; j < n; j++) {
+          K key = keys.get(j);
+          Entry e = entries.get(j);
+          if (index.get(key) != e) {
+            continue;
+          }
+          byte[] rec = records.get(j - first);
+          Segment dst = prepareAppend(rec.length);
+          int offset = append(dst, rec);
+          replace(key, new Entry(dst, offset, rec.length, e.keyLen,
+              e.created, e.accessed));
+          copied += rec.length;
+
+          if (e.created < e.accessed) {
+            // The touch record may be in this segment, keep the access time.
+            byte[] touch = record(TOUCH, e.accessed,
+                Arrays.copyOfRange(rec, HEADER, HEADER + e.keyLen), null);
+            append(prepareAppend(touch.length), touch);
+            copied += touch.length;
+          }
+        }
+      }
+    }
+
+    synchronized (this) {
+      if (segments.get(seg.id) != seg) {
+        return 0; // Removed by removeAll() in the meantime.
+      }
+      segments.remove(seg.id);
+      totalBytes -= seg.size;
+    }
+    seg.close();
+    delete(seg.hintFile);
+    if (!seg.file.delete()) {
+      log.warn("Cannot delete disk cache segment " + seg.file);
+    }
+    return seg.size - copied;
+  }
+
+  private File segmentFile(int id) {
+    return new File(dir, String.format("%010d", id) + SUFFIX);
+  }
+
+  private File hintFile(int id) {
+    return new File(dir, String.format("%010d", id) + HINT_SUFFIX);
+  }
+
+  private static String segmentName(String name, String suffix) {
+    return name.substring(0, name.length() - suffix.length());
+  }
+
+  private static void delete(File f) {
+    if (f.exists() && !f.delete()) {
+      log.warn("Cannot delete disk cache file " + f);
+    }
+  }
+
+  private static byte[] record(byte type, long time, byte[] key,
+      byte[] val) {
+    int valLen = val != null ? val.length : 0;
+    ByteBuffer b = ByteBuffer.allocate(HEADER + key.length + valLen + TRAILER);
+    b.putInt(b.capacity() - 4);
+    b.put(type);
+    b.putLong(time);
+    b.putInt(key.length);
+    b.put(key);
+    if (val != null) {
+      b.put(val);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(b.array(), 4, b.position() - 4);
+    b.putInt((int) crc.getValue());
+    return b.array();
+  }
+
+  private static int keyLength(byte[] rec) {
+    return ByteBuffer.wrap(rec, HEADER - 4, 4).getInt();
+  }
+
+  /** @return true if the CRC-32 trailer matches the bytes from off on. */
+  private static boolean checksumMatches(byte[] buf, int off) {
+    CRC32 crc = new CRC32();
+    crc.update(buf, off, buf.length - off - TRAILER);
+    return (int) crc.getValue()
+        == ByteBuffer.wrap(buf, buf.length - TRAILER, TRAILER).getInt();
+  }
+
+  private static byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(buf);
+    out.writeObject(obj);
+    out.close();
+    return buf.toByteArray();
+  }
+
+  private static Object deserialize(byte[] buf, int off, int len)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(buf, off, len));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    final Segment segment;
+    final int offset;
+    final int length;
+    final int keyLen;
+    final long created;
+
+    /** Time of the last access, or created; guarded by the store. */
+    long accessed;
+
+    Entry(Segment segment, int offset, int length, int keyLen, long created,
+        long accessed) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.keyLen = keyLen;
+      this.created = created;
+      this.accessed = accessed;
+    }
+
+    /** @return length of a tombstone or touch record for the key. */
+    int markerLength() {
+      return HEADER + keyLen + TRAILER;
+    }
+
+    /** Least recently accessed first, then in the order written. */
+    @Override
+    public int compareTo(Entry o) {
+      if (accessed != o.accessed) {
+        return accessed < o.accessed ? -1 : 1;
+      }
+      if (segment.id != o.segment.id) {
+        return segment.id < o.segment.id ? -1 : 1;
+      }
+      return offset < o.offset ? -1 : (offset == o.offset ? 0 : 1);
+    }
+  }
+
+  private static class Segment {
+    final int id;
+    final File file;
+    final File hintFile;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+
+    /** Bytes of records in the segment. */
+    long size;
+    long live;
+
+    /** Bytes of records listed by the hint file on disk. */
+    volatile long hinted;
+
+    /** Length of the file, including space allocated ahead of size. */
+    private long capacity;
+    private MappedByteBuffer map;
+
+    Segment(int id, File file, File hintFile) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.hintFile = hintFile;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+      this.size = channel.size();
+      this.capacity = size;
+    }
+
+    /** Grow the file to hold at least end bytes, doubling up to limit. */
+    synchronized void allocate(long end, long limit) throws IOException {
+      if (capacity < end) {
+        long n = Math.min(Math.max(MIN_GROWTH, 2 * capacity), limit);
+        capacity = Math.max(n, end);
+        raf.setLength(capacity);
+      }
+    }
+
+    /** @return a private view of the segment covering at least end bytes. */
+    synchronized ByteBuffer buffer(long end) throws IOException {
+      if (map == null || map.capacity() < end) {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+      }
+      return map.duplicate();
+    }
+
+    synchronized void truncate(long newSize) throws IOException {
+      channel.truncate(newSize);
+      size = newSize;
+      capacity = newSize;
+      map = null;
+    }
+
+    synchronized void close() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      map = null;
+      try {
+        if (size < capacity) {
+          channel.truncate(size);
+        }
+        channel.force(false);
+        raf.close();
+      } catch (IOException err) {
+        log.warn("Cannot close disk cache segment " + file, err);
+      }
+    }
+  }
+}
@@ -0,0 +1,282 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class MappedStoreTest {
+  private static final long SEGMENT_SIZE = 4096;
+
+  private File dir;
+  private MappedStore<String, String> store;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("mapped_store_", ".test");
+    assertTrue(dir.delete());
+    store = open(1 << 20);
+  }
+
+  @After
+  public void tearDown() {
+    store.close();
+    delete(dir);
+  }
+
+  @Test
+  public void testAppendAndRead() {
+    put("a", "1");
+    put("b", "2");
+    store.flush();
+
+    assertTrue(store.mightContain("a"));
+    assertFalse(store.mightContain("c"));
+    assertEquals("1", read("a"));
+    assertEquals("2", read("b"));
+    assertNull(read("c"));
+
+    put("a", "3");
+    store.flush();
+    assertEquals("3", read("a"));
+    assertEquals(2, stats().size());
+  }
+
+  @Test
+  public void testReopen() {
+    put("a", "1");
+    put("b", "2");
+    put("c", "3");
+    store.flush();
+    store.invalidate("b");
+    put("c", "4");
+    store.close();
+
+    store = open(1 << 20);
+    assertEquals("1", read("a"));
+    assertNull(read("b"));
+    assertEquals("4", read("c"));
+    assertEquals(2, stats().size());
+  }
+
+  @Test
+  public void testReopenAfterUncleanStop() throws IOException {
+    put("a", "1");
+    put("b", "2");
+    store.flush();
+
+    // Without close() the space allocated ahead of the records remains.
+    MappedStore<String, String> next = open(1 << 20);
+    assertEquals("1", next.read("a").value);
+    assertEquals("2", next.read("b").value);
+    next.close();
+
+    // A torn record at the end is dropped, earlier ones are kept.
+    RandomAccessFile raf = new RandomAccessFile(segment(1), "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    next = open(1 << 20);
+    assertEquals("1", next.read("a").value);
+    assertNull(next.read("b"));
+    next.close();
+  }
+
+  @Test
+  public void testReopenTrustsHints() throws IOException {
+    put("a", "1");
+    put("b", "2");
+    store.close();
+
+    // Records covered by the hint written on close are not checked again.
+    RandomAccessFile raf = new RandomAccessFile(segment(1), "rw");
+    try {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    } finally {
+      raf.close();
+    }
+    store = open(1 << 20);
+    assertEquals("1", read("a"));
+    assertEquals("2", read("b"));
+  }
+
+  @Test
+  public void testReopenScansPastHint() {
+    put("a", "1");
+    store.close();
+    store = open(1 << 20);
+    put("b", "2");
+    store.invalidate("a");
+    store.flush();
+
+    // Without close() the hint only covers the first record.
+    MappedStore<String, String> next = open(1 << 20);
+    assertNull(next.read("a"));
+    assertEquals("2", next.read("b").value);
+    next.close();
+  }
+
+  @Test
+  public void testCompaction() {
+    for (int i = 0; i < 200; i++) {
+      put("a", "value " + i);
+      put("b", "other " + i);
+      store.flush();
+    }
+
+    // Replaced records are reclaimed as segments are retired.
+    assertTrue(stats().space() < 4 * SEGMENT_SIZE);
+    assertEquals("value 199", read("a"));
+    assertEquals("other 199", read("b"));
+
+    store.close();
+    store = open(1 << 20);
+    assertEquals("value 199", read("a"));
+    assertEquals("other 199", read("b"));
+    assertEquals(2, stats().size());
+  }
+
+  @Test(timeout = 10000)
+  public void testPruneKeepsEntriesInMemory() {
+    store.close();
+    store = open(2 * SEGMENT_SIZE);
+
+    Cache<String, Boolean> mem = CacheBuilder.newBuilder().build();
+    for (int i = 0; i < 100; i++) {
+      put("key " + i, value(i));
+      mem.put("key " + i, true);
+    }
+    store.flush();
+    assertTrue(2 * SEGMENT_SIZE < stats().space());
+
+    // Nothing can be dropped; pruning must give up rather than copy the
+    // live records around forever.
+    store.prune(mem);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(value(i), read("key " + i));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testPruneDropsEntriesNotInMemory() {
+    store.close();
+    store = open(2 * SEGMENT_SIZE);
+
+    Cache<String, Boolean> mem = CacheBuilder.newBuilder().build();
+    for (int i = 0; i < 100; i++) {
+      put("key " + i, value(i));
+      if (90 <= i) {
+        mem.put("key " + i, true);
+      }
+    }
+    store.flush();
+    assertTrue(2 * SEGMENT_SIZE < stats().space());
+
+    store.prune(mem);
+    assertTrue(stats().space() <= 2 * SEGMENT_SIZE);
+    for (int i = 90; i < 100; i++) {
+      assertEquals(value(i), read("key " + i));
+    }
+    assertNull(read("key 0"));
+  }
+
+  @Test(timeout = 10000)
+  public void testPruneDropsLeastRecentlyAccessed() {
+    store.close();
+    store = open(2 * SEGMENT_SIZE);
+
+    for (int i = 0; i < 100; i++) {
+      put("key " + i, value(i));
+    }
+    store.flush();
+    for (int i = 0; i < 10; i++) {
+      assertEquals(value(i), read("key " + i));
+    }
+    store.flush();
+
+    // Access times survive a restart and decide what is dropped.
+    store.close();
+    store = open(2 * SEGMENT_SIZE);
+    store.prune(CacheBuilder.newBuilder().<String, Boolean> build());
+    assertTrue(stats().space() <= 2 * SEGMENT_SIZE);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(value(i), read("key " + i));
+    }
+    assertNull(read("key 10"));
+  }
+
+  private static String value(int i) {
+    return "value " + i + " of a test entry long enough to fill segments";
+  }
+
+  private MappedStore<String, String> open(long maxSize) {
+    MappedStore<String, String> s = new MappedStore<String, String>(
+        dir, maxSize, 1000, 1000, SEGMENT_SIZE);
+    s.open();
+    return s;
+  }
+
+  private void put(String key, String value) {
+    store.put(key, new ValueHolder<String>(value));
+  }
+
+  private String read(String key) {
+    ValueHolder<String> h = store.getIfPresent(key);
+    if (h == null) {
+      return null;
+    }
+    assertNotNull(h.value);
+    return h.value;
+  }
+
+  private File segment(int id) {
+    return new File(dir, String.format("%010d.seg", id));
+  }
+
+  private DiskStats stats() {
+    return store.diskStats();
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File c : files) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+}
@@ -53,6 +53,7 @@ public class PatchScript {
   protected boolean hugeFile;
   protected boolean intralineDifference;
   protected boolean intralineFailure;
+  protected String intralineFailureReason;
 
   public PatchScript(final Change.Key ck, final ChangeType ct, final String on,
       final String nn, final FileMode om, final FileMode nm,
@@ -60,7 +61,7 @@ public class PatchScript {
       final SparseFileContent ca, final SparseFileContent cb,
       final List<Edit> e, final DisplayMethod ma, final DisplayMethod mb,
       final CommentDetail cd, final List<Patch> hist, final boolean hf,
-      final boolean id, final boolean idf) {
+      final boolean id, final boolean idf, final String idfr) {
     changeId = ck;
     changeType = ct;
     oldName = on;
@@ -79,6 +80,7 @@ public class PatchScript {
     hugeFile = hf;
     intralineDifference = id;
     intralineFailure = idf;
+    intralineFailureReason = idfr;
   }
 
   protected PatchScript() {
@@ -152,6 +154,11 @@ public class PatchScript {
     return intralineFailure;
   }
 
+  /** @return why the intraline difference failed; null if not known. */
+  public String getIntralineFailureReason() {
+    return intralineFailureReason;
+  }
+
   public boolean isExpandAllComments() {
     return diffPrefs.isExpandAllComments();
   }
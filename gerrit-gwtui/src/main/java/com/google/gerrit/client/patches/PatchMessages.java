@@ -22,4 +22,5 @@ public interface PatchMessages extends Messages {
   String expandBefore(int cnt);
   String expandAfter(int cnt);
   String draftSaved(Date when);
+  String intralineFailureReason(String reason);
 }
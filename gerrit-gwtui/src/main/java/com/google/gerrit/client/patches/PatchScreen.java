@@ -136,6 +136,7 @@ public abstract class PatchScreen extends Screen implements
   private HandlerRegistration regNavigation;
   private HandlerRegistration regAction;
   private boolean intralineFailure;
+  private String intralineFailureReason;
 
   /**
    * How this patch should be displayed in the patch screen.
@@ -555,6 +556,7 @@ public abstract class PatchScreen extends Screen implements
     }
 
     intralineFailure = isFirst && script.hasIntralineFailure();
+    intralineFailureReason = script.getIntralineFailureReason();
   }
 
   @Override
@@ -562,7 +564,9 @@ public abstract class PatchScreen extends Screen implements
     super.onShowView();
     if (intralineFailure) {
       intralineFailure = false;
-      new ErrorDialog(PatchUtil.C.intralineFailure()).show();
+      new ErrorDialog(intralineFailureReason != null
+          ? PatchUtil.M.intralineFailureReason(intralineFailureReason)
+          : PatchUtil.C.intralineFailure()).show();
     }
     if (topView != null && prefs.get().isRetainHeader()) {
       setTopView(topView);
@@ -27,6 +27,7 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.ReceiveCommits;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.ProjectControl;
@@ -198,11 +199,14 @@ public class GitOverHttpServlet extends GitServlet {
   static class UploadFilter implements Filter {
     private final Provider<ReviewDb> db;
     private final TagCache tagCache;
+    private final VisibleChangesCache changeCache;
 
     @Inject
-    UploadFilter(Provider<ReviewDb> db, TagCache tagCache) {
+    UploadFilter(Provider<ReviewDb> db, TagCache tagCache,
+        VisibleChangesCache changeCache) {
       this.db = db;
       this.tagCache = tagCache;
+      this.changeCache = changeCache;
     }
 
     @Override
@@ -221,7 +225,8 @@ public class GitOverHttpServlet extends GitServlet {
       }
 
       if (!pc.allRefsAreVisible()) {
-        up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, repo, pc, db.get(), true));
+        up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeCache,
+            repo, pc, db.get(), true));
       }
 
       next.doFilter(request, response);
@@ -19,6 +19,7 @@ import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.OutputFormat;
 import com.google.gerrit.server.query.QueryParseException;
 import com.google.gerrit.server.query.change.ListChanges;
+import com.google.gwtjsonrpc.server.RPCServletUtils;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -28,10 +29,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -59,12 +61,9 @@ public class ListChangesServlet extends RestApiServlet {
       impl.setFormat(OutputFormat.JSON_COMPACT);
     }
     if (paramParser.parse(impl, req, res)) {
-      ByteArrayOutputStream buf = new ByteArrayOutputStream();
-      if (impl.getFormat().isJson()) {
-        buf.write(JSON_MAGIC);
-      }
-
-      Writer out = new BufferedWriter(new OutputStreamWriter(buf, "UTF-8"));
+      ResponseStream stream =
+          new ResponseStream(req, res, impl.getFormat().isJson());
+      Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
       try {
         impl.query(out);
       } catch (QueryParseException e) {
@@ -73,14 +72,76 @@ public class ListChangesServlet extends RestApiServlet {
         return;
       } catch (OrmException e) {
         log.error("Error querying /changes/", e);
-        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        if (!stream.isOpen()) {
+          res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        // Otherwise the client sees the output end early.
         return;
       }
-      out.flush();
+      out.close();
+    }
+  }
+
+  /**
+   * Response body opened when the first byte is written.
+   * <p>
+   * Results are streamed to the client as they are formatted. Queries are
+   * run before any output is written, so errors in the query string can
+   * still be reported with a proper status code.
+   */
+  private static class ResponseStream extends OutputStream {
+    private final HttpServletRequest req;
+    private final HttpServletResponse res;
+    private final boolean json;
+    private OutputStream out;
 
-      res.setContentType(impl.getFormat().isJson() ? JSON_TYPE : "text/plain");
-      res.setCharacterEncoding("UTF-8");
-      send(req, res, buf.toByteArray());
+    ResponseStream(HttpServletRequest req, HttpServletResponse res,
+        boolean json) {
+      this.req = req;
+      this.res = res;
+      this.json = json;
+    }
+
+    boolean isOpen() {
+      return out != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      open().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      open().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      open().close();
+    }
+
+    private OutputStream open() throws IOException {
+      if (out == null) {
+        res.setContentType(json ? JSON_TYPE : "text/plain");
+        res.setCharacterEncoding("UTF-8");
+        out = res.getOutputStream();
+        if (RPCServletUtils.acceptsGzipEncoding(req)) {
+          res.setHeader("Content-Encoding", "gzip");
+          out = new GZIPOutputStream(out);
+        }
+        if (json) {
+          out.write(JSON_MAGIC);
+        }
+      }
+      return out;
     }
   }
 }
@@ -21,6 +21,7 @@ import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gwtjsonrpc.common.VoidResult;
@@ -39,6 +40,7 @@ class DeleteDraftChange extends Handler<VoidResult> {
   private final ReviewDb db;
   private final GitRepositoryManager gitManager;
   private final GitReferenceUpdated replication;
+  private final ChangeIndexer changeIndexer;
 
   private final PatchSet.Id patchSetId;
 
@@ -47,11 +49,13 @@ class DeleteDraftChange extends Handler<VoidResult> {
       final ChangeControl.Factory changeControlFactory,
       final GitRepositoryManager gitManager,
       final GitReferenceUpdated replication,
+      final ChangeIndexer changeIndexer,
       @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.gitManager = gitManager;
     this.replication = replication;
+    this.changeIndexer = changeIndexer;
 
     this.patchSetId = patchSetId;
   }
@@ -66,6 +70,7 @@ class DeleteDraftChange extends Handler<VoidResult> {
     }
 
     ChangeUtil.deleteDraftChange(patchSetId, gitManager, replication, db);
+    changeIndexer.indexAsync(control.getChange());
     return VoidResult.INSTANCE;
   }
 }
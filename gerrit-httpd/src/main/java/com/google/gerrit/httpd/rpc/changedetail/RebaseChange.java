@@ -26,6 +26,7 @@ import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.RebasedPatchSetSender;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
@@ -33,6 +34,7 @@ import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -67,6 +69,9 @@ class RebaseChange extends Handler<ChangeDetail> {
 
   private final ApprovalsUtil approvalsUtil;
 
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
+
   @Inject
   RebaseChange(final ChangeControl.Factory changeControlFactory,
       final ReviewDb db, final IdentifiedUser currentUser,
@@ -77,7 +82,9 @@ class RebaseChange extends Handler<ChangeDetail> {
       final PatchSetInfoFactory patchSetInfoFactory,
       final GitReferenceUpdated replication,
       @GerritPersonIdent final PersonIdent myIdent,
-      final ApprovalsUtil approvalsUtil) {
+      final ApprovalsUtil approvalsUtil,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.currentUser = currentUser;
@@ -93,6 +100,8 @@ class RebaseChange extends Handler<ChangeDetail> {
     this.myIdent = myIdent;
 
     this.approvalsUtil = approvalsUtil;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
   }
 
   @Override
@@ -103,7 +112,8 @@ class RebaseChange extends Handler<ChangeDetail> {
 
     ChangeUtil.rebaseChange(patchSetId, currentUser, db,
         rebasedPatchSetSenderFactory, hooks, gitManager, patchSetInfoFactory,
-        replication, myIdent, changeControlFactory, approvalsUtil);
+        replication, myIdent, changeControlFactory, approvalsUtil,
+        changeStatistics, changeIndexer);
 
     return changeDetailFactory.create(patchSetId.getParentKey()).call();
   }
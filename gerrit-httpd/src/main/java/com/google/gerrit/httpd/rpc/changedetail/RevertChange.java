@@ -26,12 +26,14 @@ import com.google.gerrit.server.GerritPersonIdent;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.RevertedSender;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -67,6 +69,9 @@ class RevertChange extends Handler<ChangeDetail> {
 
   private final PersonIdent myIdent;
 
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
+
   @Inject
   RevertChange(final ChangeControl.Factory changeControlFactory,
       final ReviewDb db, final IdentifiedUser currentUser,
@@ -77,7 +82,9 @@ class RevertChange extends Handler<ChangeDetail> {
       final GitRepositoryManager gitManager,
       final PatchSetInfoFactory patchSetInfoFactory,
       final GitReferenceUpdated replication,
-      @GerritPersonIdent final PersonIdent myIdent) {
+      @GerritPersonIdent final PersonIdent myIdent,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.currentUser = currentUser;
@@ -92,6 +99,8 @@ class RevertChange extends Handler<ChangeDetail> {
     this.patchSetInfoFactory = patchSetInfoFactory;
     this.replication = replication;
     this.myIdent = myIdent;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
   }
 
   @Override
@@ -107,7 +116,7 @@ class RevertChange extends Handler<ChangeDetail> {
 
     Change.Id revertedChangeId = ChangeUtil.revert(patchSetId, currentUser, message, db,
         revertedSenderFactory, hooks, gitManager, patchSetInfoFactory,
-        replication, myIdent);
+        replication, myIdent, changeStatistics, changeIndexer);
 
     return changeDetailFactory.create(revertedChangeId).call();
   }
@@ -133,6 +133,7 @@ class PatchScriptBuilder {
       throws IOException {
     boolean intralineDifferenceIsPossible = true;
     boolean intralineFailure = false;
+    String intralineFailureReason = null;
 
     a.path = oldName(content);
     b.path = newName(content);
@@ -162,6 +163,7 @@ class PatchScriptBuilder {
           case TIMEOUT:
             intralineDifferenceIsPossible = false;
             intralineFailure = true;
+            intralineFailureReason = d.getReason();
             break;
         }
       } else {
@@ -211,7 +213,8 @@ class PatchScriptBuilder {
         content.getOldName(), content.getNewName(), a.fileMode, b.fileMode,
         content.getHeaderLines(), diffPrefs, a.dst, b.dst, edits,
         a.displayMethod, b.displayMethod, comments, history, hugeFile,
-        intralineDifferenceIsPossible, intralineFailure);
+        intralineDifferenceIsPossible, intralineFailure,
+        intralineFailureReason);
   }
 
   private static boolean isModify(PatchListEntry content) {
@@ -30,9 +30,11 @@ import com.google.gerrit.server.account.GroupBackend;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MetaDataUpdate;
 import com.google.gerrit.server.git.ProjectConfig;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.patch.AddReviewer;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -59,6 +61,8 @@ public class ReviewProjectAccess extends ProjectAccessHandler<Change.Id> {
   private final IdentifiedUser user;
   private final PatchSetInfoFactory patchSetInfoFactory;
   private final AddReviewer.Factory addReviewerFactory;
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
 
   @Inject
   ReviewProjectAccess(final ProjectControl.Factory projectControlFactory,
@@ -66,6 +70,8 @@ public class ReviewProjectAccess extends ProjectAccessHandler<Change.Id> {
       final MetaDataUpdate.User metaDataUpdateFactory, final ReviewDb db,
       final IdentifiedUser user, final PatchSetInfoFactory patchSetInfoFactory,
       final AddReviewer.Factory addReviewerFactory,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer,
 
       @Assisted final Project.NameKey projectName,
       @Nullable @Assisted final ObjectId base,
@@ -77,6 +83,8 @@ public class ReviewProjectAccess extends ProjectAccessHandler<Change.Id> {
     this.user = user;
     this.patchSetInfoFactory = patchSetInfoFactory;
     this.addReviewerFactory = addReviewerFactory;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
   }
 
   @Override
@@ -116,6 +124,8 @@ public class ReviewProjectAccess extends ProjectAccessHandler<Change.Id> {
     } finally {
       db.rollback();
     }
+    changeStatistics.onChangeCreated(change);
+    changeIndexer.indexAsync(change);
     return changeId;
   }
 
@@ -17,15 +17,8 @@ package com.google.gerrit.pgm.http.jetty;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.util.AccessLogWriter;
 
-import org.apache.log4j.Appender;
-import org.apache.log4j.AsyncAppender;
-import org.apache.log4j.DailyRollingFileAppender;
-import org.apache.log4j.Layout;
-import org.apache.log4j.Level;
-import org.apache.log4j.Logger;
-import org.apache.log4j.spi.ErrorHandler;
-import org.apache.log4j.spi.LoggingEvent;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.server.Response;
@@ -40,40 +33,27 @@ import java.util.TimeZone;
 
 /** Writes the {@code httpd_log} file with per-request data. */
 class HttpLog extends AbstractLifeCycle implements RequestLog {
-  private static final Logger log = Logger.getLogger(HttpLog.class);
   private static final String LOG_NAME = "httpd_log";
 
-  private static final String P_HOST = "Host";
-  private static final String P_USER = "User";
-  private static final String P_METHOD = "Method";
-  private static final String P_RESOURCE = "Resource";
-  private static final String P_PROTOCOL = "Version";
-  private static final String P_STATUS = "Status";
-  private static final String P_CONTENT_LENGTH = "Content-Length";
-  private static final String P_REFERER = "Referer";
-  private static final String P_USER_AGENT = "User-Agent";
+  // Positions of the values in an entry.
+  private static final int P_HOST = 0;
+  private static final int P_USER = 1;
+  private static final int P_METHOD = 2;
+  private static final int P_RESOURCE = 3;
+  private static final int P_PROTOCOL = 4;
+  private static final int P_STATUS = 5;
+  private static final int P_CONTENT_LENGTH = 6;
+  private static final int P_REFERER = 7;
+  private static final int P_USER_AGENT = 8;
+  private static final int FIELDS = 9;
 
-  private final AsyncAppender async;
+  private final AccessLogWriter writer;
 
   HttpLog(final SitePaths site, final Config config) {
-    final DailyRollingFileAppender dst = new DailyRollingFileAppender();
-    dst.setName(LOG_NAME);
-    dst.setLayout(new MyLayout());
-    dst.setEncoding("UTF-8");
-    dst.setFile(new File(resolve(site.logs_dir), LOG_NAME).getPath());
-    dst.setImmediateFlush(true);
-    dst.setAppend(true);
-    dst.setThreshold(Level.INFO);
-    dst.setErrorHandler(new DieErrorHandler());
-    dst.activateOptions();
-    dst.setErrorHandler(new LogLogHandler());
-
-    async = new AsyncAppender();
-    async.setBlocking(true);
-    async.setBufferSize(config.getInt("core", "asyncLoggingBufferSize", 64));
-    async.setLocationInfo(false);
-    async.addAppender(dst);
-    async.activateOptions();
+    writer = new AccessLogWriter(
+        new File(resolve(site.logs_dir), LOG_NAME),
+        new MyLayout(),
+        config.getInt("core", "asyncLoggingBufferSize", 8192));
   }
 
   @Override
@@ -82,7 +62,7 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
 
   @Override
   protected void doStop() throws Exception {
-    async.close();
+    writer.close();
   }
 
   @Override
@@ -92,18 +72,7 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
   }
 
   private void doLog(Request req, Response rsp, CurrentUser user) {
-    final LoggingEvent event = new LoggingEvent( //
-        Logger.class.getName(), // fqnOfCategoryClass
-        log, // logger
-        System.currentTimeMillis(), // when
-        Level.INFO, // level
-        "", // message text
-        "HTTPD", // thread name
-        null, // exception information
-        null, // current NDC string
-        null, // caller location
-        null // MDC properties
-        );
+    final String[] event = new String[FIELDS];
 
     String uri = req.getRequestURI();
     String qs = req.getQueryString();
@@ -114,9 +83,9 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
     if (user instanceof IdentifiedUser) {
       IdentifiedUser who = (IdentifiedUser) user;
       if (who.getUserName() != null && !who.getUserName().isEmpty()) {
-        event.setProperty(P_USER, who.getUserName());
+        event[P_USER] = who.getUserName();
       } else {
-        event.setProperty(P_USER, "a/" + who.getAccountId());
+        event[P_USER] = "a/" + who.getAccountId();
       }
     }
 
@@ -129,18 +98,18 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
     set(event, P_REFERER, req.getHeader("Referer"));
     set(event, P_USER_AGENT, req.getHeader("User-Agent"));
 
-    async.append(event);
+    writer.append(System.currentTimeMillis(), event);
   }
 
-  private static void set(LoggingEvent event, String key, String val) {
+  private static void set(String[] event, int key, String val) {
     if (val != null && !val.isEmpty()) {
-      event.setProperty(key, val);
+      event[key] = val;
     }
   }
 
-  private static void set(LoggingEvent event, String key, long val) {
+  private static void set(String[] event, int key, long val) {
     if (0 < val) {
-      event.setProperty(key, String.valueOf(val));
+      event[key] = String.valueOf(val);
     }
   }
 
@@ -152,7 +121,8 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
     }
   }
 
-  private static final class MyLayout extends Layout {
+  /** Formats entries; only used by the writer thread, so needs no locking. */
+  private static final class MyLayout implements AccessLogWriter.Layout {
     private final SimpleDateFormat dateFormat;
     private long lastTimeMillis;
     private String lastTimeString;
@@ -167,9 +137,7 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
     }
 
     @Override
-    public String format(LoggingEvent event) {
-      final StringBuilder buf = new StringBuilder(128);
-
+    public void format(long when, String[] event, StringBuilder buf) {
       opt(buf, event, P_HOST);
 
       buf.append(' ');
@@ -180,20 +148,20 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
 
       buf.append(' ');
       buf.append('[');
-      formatDate(event.getTimeStamp(), buf);
+      formatDate(when, buf);
       buf.append(']');
 
       buf.append(' ');
       buf.append('"');
-      buf.append(event.getMDC(P_METHOD));
+      buf.append(event[P_METHOD]);
       buf.append(' ');
-      buf.append(event.getMDC(P_RESOURCE));
+      buf.append(event[P_RESOURCE]);
       buf.append(' ');
-      buf.append(event.getMDC(P_PROTOCOL));
+      buf.append(event[P_PROTOCOL]);
       buf.append('"');
 
       buf.append(' ');
-      buf.append(event.getMDC(P_STATUS));
+      buf.append(event[P_STATUS]);
 
       buf.append(' ');
       opt(buf, event, P_CONTENT_LENGTH);
@@ -205,11 +173,10 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
       dq_opt(buf, event, P_USER_AGENT);
 
       buf.append('\n');
-      return buf.toString();
     }
 
-    private void opt(StringBuilder buf, LoggingEvent event, String key) {
-      String val = (String) event.getMDC(key);
+    private void opt(StringBuilder buf, String[] event, int key) {
+      String val = event[key];
       if (val == null) {
         buf.append('-');
       } else {
@@ -217,8 +184,8 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
       }
     }
 
-    private void dq_opt(StringBuilder buf, LoggingEvent event, String key) {
-      String val = (String) event.getMDC(key);
+    private void dq_opt(StringBuilder buf, String[] event, int key) {
+      String val = event[key];
       if (val == null) {
         buf.append('-');
       } else {
@@ -231,91 +198,10 @@ class HttpLog extends AbstractLifeCycle implements RequestLog {
     private void formatDate(final long now, final StringBuilder sbuf) {
       final long rounded = now - (int) (now % 1000);
       if (rounded != lastTimeMillis) {
-        synchronized (dateFormat) {
-          lastTimeMillis = rounded;
-          lastTimeString = dateFormat.format(new Date(lastTimeMillis));
-          sbuf.append(lastTimeString);
-        }
-      } else {
-        sbuf.append(lastTimeString);
+        lastTimeMillis = rounded;
+        lastTimeString = dateFormat.format(new Date(lastTimeMillis));
       }
-    }
-
-    @Override
-    public boolean ignoresThrowable() {
-      return true;
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-  }
-
-  private static final class DieErrorHandler implements ErrorHandler {
-    @Override
-    public void error(String message, Exception e, int errorCode,
-        LoggingEvent event) {
-      error(e != null ? e.getMessage() : message);
-    }
-
-    @Override
-    public void error(String message, Exception e, int errorCode) {
-      error(e != null ? e.getMessage() : message);
-    }
-
-    @Override
-    public void error(String message) {
-      throw new RuntimeException("Cannot open log file: " + message);
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-
-    @Override
-    public void setAppender(Appender appender) {
-    }
-
-    @Override
-    public void setBackupAppender(Appender appender) {
-    }
-
-    @Override
-    public void setLogger(Logger logger) {
-    }
-  }
-
-  private static final class LogLogHandler implements ErrorHandler {
-    @Override
-    public void error(String message, Exception e, int errorCode,
-        LoggingEvent event) {
-      log.error(message, e);
-    }
-
-    @Override
-    public void error(String message, Exception e, int errorCode) {
-      log.error(message, e);
-    }
-
-    @Override
-    public void error(String message) {
-      log.error(message);
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-
-    @Override
-    public void setAppender(Appender appender) {
-    }
-
-    @Override
-    public void setBackupAppender(Appender appender) {
-    }
-
-    @Override
-    public void setLogger(Logger logger) {
+      sbuf.append(lastTimeString);
     }
   }
 }
@@ -17,6 +17,8 @@ package com.google.gerrit.common;
 import com.google.gerrit.common.data.ApprovalType;
 import com.google.gerrit.common.data.ApprovalTypes;
 import com.google.gerrit.common.data.ContributorAgreement;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.ApprovalCategory;
 import com.google.gerrit.reviewdb.client.ApprovalCategoryValue;
@@ -29,6 +31,7 @@ import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.account.AccountState;
 import com.google.gerrit.server.config.AnonymousCowardName;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.events.ApprovalAttribute;
@@ -44,10 +47,9 @@ import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.project.ProjectCache;
-import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gwtorm.server.OrmException;
-import com.google.inject.AbstractModule;
+import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -63,10 +65,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /** Spawns local executables when a hook action occurs. */
 @Singleton
@@ -74,11 +78,33 @@ public class ChangeHookRunner implements ChangeHooks {
     /** A logger for this class. */
     private static final Logger log = LoggerFactory.getLogger(ChangeHookRunner.class);
 
-    public static class Module extends AbstractModule {
+    public static class Module extends LifecycleModule {
       @Override
       protected void configure() {
         bind(ChangeHookRunner.class);
         bind(ChangeHooks.class).to(ChangeHookRunner.class);
+        listener().to(Lifecycle.class);
+      }
+    }
+
+    /** Stops the workers of persistent hooks with the server. */
+    static class Lifecycle implements LifecycleListener {
+      private final ChangeHookRunner hooks;
+
+      @Inject
+      Lifecycle(ChangeHookRunner hooks) {
+        this.hooks = hooks;
+      }
+
+      @Override
+      public void start() {
+      }
+
+      @Override
+      public void stop() {
+        for (PersistentHook p : hooks.persistentHooks.values()) {
+          p.stop();
+        }
       }
     }
 
@@ -96,6 +122,19 @@ public class ChangeHookRunner implements ChangeHooks {
     private final Map<ChangeListener, ChangeListenerHolder> listeners =
       new ConcurrentHashMap<ChangeListener, ChangeListenerHolder>();
 
+    /** Listeners waiting for missed events; guarded by itself. */
+    private final Map<ChangeListener, ChangeListenerHolder> pending =
+      new HashMap<ChangeListener, ChangeListenerHolder>();
+
+    /** Recently dispatched events, by sequence number modulo the length. */
+    private final EventTask[] recent;
+
+    /** Sequence number of the first event dispatched by this server. */
+    private final long firstSequence;
+
+    /** Sequence number of the last dispatched event; used by eventQueue. */
+    private long lastSequence;
+
     /** Filename of the new patchset hook. */
     private final File patchsetCreatedHook;
 
@@ -128,6 +167,14 @@ public class ChangeHookRunner implements ChangeHooks {
     /** Queue of hooks that need to run. */
     private final WorkQueue.Executor hookQueue;
 
+    /** Hooks configured to run as persistent workers, by executable. */
+    private final Map<File, PersistentHook> persistentHooks;
+
+    /** Queue of events that need to be delivered to listeners. */
+    private final WorkQueue.Executor eventQueue;
+
+    private final SchemaFactory<ReviewDb> schema;
+
     private final ProjectCache projectCache;
 
     private final AccountCache accountCache;
@@ -146,6 +193,7 @@ public class ChangeHookRunner implements ChangeHooks {
      * @param config Config file to use.
      * @param sitePath The sitepath of this gerrit install.
      * @param projectCache the project cache instance for the server.
+     * @param schema database used to check visibility of events.
      */
     @Inject
     public ChangeHookRunner(final WorkQueue queue,
@@ -154,16 +202,26 @@ public class ChangeHookRunner implements ChangeHooks {
       final @AnonymousCowardName String anonymousCowardName,
       final SitePaths sitePath, final ProjectCache projectCache,
       final AccountCache accountCache, final ApprovalTypes approvalTypes,
-      final EventFactory eventFactory, final SitePaths sitePaths) {
+      final EventFactory eventFactory, final SitePaths sitePaths,
+      final SchemaFactory<ReviewDb> schema) {
         this.anonymousCowardName = anonymousCowardName;
         this.repoManager = repoManager;
         this.hookQueue = queue.createQueue(1, "hook");
+        this.eventQueue = queue.createQueue(1, "EventDispatch");
+        this.schema = schema;
         this.projectCache = projectCache;
         this.accountCache = accountCache;
         this.approvalTypes = approvalTypes;
         this.eventFactory = eventFactory;
         this.sitePaths = sitePath;
 
+        // Start from the clock so sequence numbers also increase across
+        // restarts, unless the server fired a million events per second.
+        this.lastSequence = System.currentTimeMillis() * 1000;
+        this.firstSequence = lastSequence + 1;
+        this.recent = new EventTask[Math.max(0,
+            config.getInt("sshd", "streamReplayLimit", 1024))];
+
         final File hooksPath = sitePath.resolve(getValue(config, "hooks", "path", sitePath.hooks_dir.getAbsolutePath()));
 
         patchsetCreatedHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "patchsetCreatedHook", "patchset-created")).getPath());
@@ -174,14 +232,64 @@ public class ChangeHookRunner implements ChangeHooks {
         changeRestoredHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "changeRestoredHook", "change-restored")).getPath());
         refUpdatedHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "refUpdatedHook", "ref-updated")).getPath());
         claSignedHook = sitePath.resolve(new File(hooksPath, getValue(config, "hooks", "claSignedHook", "cla-signed")).getPath());
+
+        persistentHooks = new HashMap<File, PersistentHook>();
+        for (File hook : new File[] {patchsetCreatedHook, draftPublishedHook,
+            commentAddedHook, changeMergedHook, changeAbandonedHook,
+            changeRestoredHook, refUpdatedHook, claSignedHook}) {
+          String name = hook.getName();
+          int workers = config.getInt("hooks", name, "workers", 0);
+          if (0 < workers) {
+            long timeout = ConfigUtil.getTimeUnit(config, "hooks", name,
+                "timeout", TimeUnit.MINUTES.toMillis(5), TimeUnit.MILLISECONDS);
+            persistentHooks.put(hook, new PersistentHook(hook,
+                sitePath.site_path, workers, timeout, repoManager, queue));
+          }
+        }
     }
 
     public void addChangeListener(ChangeListener listener, IdentifiedUser user) {
         listeners.put(listener, new ChangeListenerHolder(listener, user));
     }
 
+    public void addChangeListener(final SequencedChangeListener listener,
+        IdentifiedUser user, final long resumeAfter) {
+        final ChangeListenerHolder holder =
+            new ChangeListenerHolder(listener, user);
+        synchronized (pending) {
+            pending.put(listener, holder);
+        }
+
+        // Replay on the dispatch thread, so no event is fired between the
+        // replayed ones and the listener being added.
+        eventQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pending) {
+                    if (!pending.containsKey(listener)) {
+                        return;
+                    }
+                }
+                replay(holder, resumeAfter);
+                synchronized (pending) {
+                    if (pending.remove(listener) != null) {
+                        listeners.put(listener, holder);
+                    }
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "replay events";
+            }
+        });
+    }
+
     public void removeChangeListener(ChangeListener listener) {
-        listeners.remove(listener);
+        synchronized (pending) {
+            pending.remove(listener);
+            listeners.remove(listener);
+        }
     }
 
     /**
@@ -228,7 +336,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
         event.uploader = eventFactory.asAccountAttribute(uploader.getAccount());
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -250,7 +358,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
         event.uploader = eventFactory.asAccountAttribute(uploader.getAccount());
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -282,7 +390,7 @@ public class ChangeHookRunner implements ChangeHooks {
             }
         }
 
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -306,7 +414,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.submitter = eventFactory.asAccountAttribute(account);
         event.patchSet = eventFactory.asPatchSetAttribute(patchSet);
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -326,7 +434,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.abandoner = eventFactory.asAccountAttribute(account);
         event.reason = reason;
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -346,7 +454,7 @@ public class ChangeHookRunner implements ChangeHooks {
         event.change = eventFactory.asChangeAttribute(change);
         event.restorer = eventFactory.asAccountAttribute(account);
         event.reason = reason;
-        fireEvent(change, event, db);
+        fireEvent(change, event);
 
         final List<String> args = new ArrayList<String>();
         addArg(args, "--change", event.change.id);
@@ -395,38 +503,70 @@ public class ChangeHookRunner implements ChangeHooks {
       }
     }
 
-    private void fireEvent(final Change change, final ChangeEvent event, final ReviewDb db) throws OrmException {
-      for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(change, holder.user, db)) {
-              holder.listener.onChangeEvent(event);
-          }
+    private void fireEvent(final Change change, final ChangeEvent event) {
+      if (!listeners.isEmpty() || recent.length > 0) {
+        eventQueue.execute(new ChangeEventTask(change, event));
       }
     }
 
     private void fireEvent(Branch.NameKey branchName, final ChangeEvent event) {
-      for (ChangeListenerHolder holder : listeners.values()) {
-          if (isVisibleTo(branchName, holder.user)) {
-              holder.listener.onChangeEvent(event);
-          }
+      if (!listeners.isEmpty() || recent.length > 0) {
+        eventQueue.execute(new RefEventTask(branchName, event));
       }
     }
 
-    private boolean isVisibleTo(Change change, IdentifiedUser user, ReviewDb db) throws OrmException {
-        final ProjectState pe = projectCache.get(change.getProject());
-        if (pe == null) {
-          return false;
+    /** Deliver the events after resumeAfter the listener is allowed to see. */
+    private void replay(ChangeListenerHolder holder, long resumeAfter) {
+      SequencedChangeListener l = (SequencedChangeListener) holder.listener;
+      long next = replayFrom(firstSequence, lastSequence, recent.length,
+          resumeAfter);
+      if (next != resumeAfter + 1) {
+        l.onEventsLost();
+      }
+      for (; next <= lastSequence; next++) {
+        EventTask task = recent[(int) (next % recent.length)];
+        try {
+          if (task.check(holder.user)) {
+            deliver(l, next, task.event);
+          }
+        } finally {
+          task.close();
         }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlFor(change).isVisible(db);
+      }
     }
 
-    private boolean isVisibleTo(Branch.NameKey branchName, IdentifiedUser user) {
-        final ProjectState pe = projectCache.get(branchName.getParentKey());
-        if (pe == null) {
-          return false;
+    /**
+     * Find the first event to replay to a listener.
+     *
+     * @param first sequence number of the first event fired by this server.
+     * @param last sequence number of the last dispatched event.
+     * @param kept number of recent events kept for replaying.
+     * @param resumeAfter last event the listener received.
+     * @return resumeAfter + 1 if all later events are kept; otherwise the
+     *         oldest kept event, as some events were lost. A value after
+     *         last means there is nothing to replay.
+     */
+    static long replayFrom(long first, long last, int kept, long resumeAfter) {
+      long oldest = Math.max(first, last - kept + 1);
+      long next = resumeAfter + 1;
+      if (next < oldest || last < resumeAfter) {
+        return oldest;
+      }
+      return next;
+    }
+
+    private static void deliver(ChangeListener l, long sequence,
+        ChangeEvent event) {
+      try {
+        if (l instanceof SequencedChangeListener) {
+          ((SequencedChangeListener) l).onChangeEvent(sequence, event);
+        } else {
+          l.onChangeEvent(event);
         }
-        final ProjectControl pc = pe.controlFor(user);
-        return pc.controlForRef(branchName).isVisible();
+      } catch (RuntimeException e) {
+        log.error("Cannot deliver event " + event.getClass().getSimpleName(),
+            e);
+      }
     }
 
     /**
@@ -471,16 +611,163 @@ public class ChangeHookRunner implements ChangeHooks {
    * @param hook the hook to execute.
    * @param args Arguments to use to run the hook.
    */
-  private synchronized void runHook(Project.NameKey project, File hook,
+  private void runHook(Project.NameKey project, File hook,
       List<String> args) {
     if (project != null && hook.exists()) {
-      hookQueue.execute(new HookTask(project, hook, args));
+      PersistentHook p = persistentHooks.get(hook);
+      if (p != null) {
+        p.run(project, args);
+      } else {
+        hookQueue.execute(new HookTask(project, hook, args));
+      }
     }
   }
 
-  private synchronized void runHook(File hook, List<String> args) {
+  private void runHook(File hook, List<String> args) {
     if (hook.exists()) {
-      hookQueue.execute(new HookTask(null, hook, args));
+      PersistentHook p = persistentHooks.get(hook);
+      if (p != null) {
+        p.run(null, args);
+      } else {
+        hookQueue.execute(new HookTask(null, hook, args));
+      }
+    }
+  }
+
+  /**
+   * Delivers one event to all listeners allowed to see it.
+   * <p>
+   * Runs on {@link #eventQueue}, so the code firing the event does not wait
+   * for the project lookup or the permission checks. Listeners of the same account see the same
+   * changes, so visibility is checked once per account rather than once per
+   * listener. Each listener queues the event for its own delivery.
+   * <p>
+   * The task is numbered when it runs, and kept in {@link #recent} to replay
+   * the event to listeners resuming a stream.
+   */
+  private abstract class EventTask implements Runnable {
+    protected final ChangeEvent event;
+    private long sequence;
+
+    EventTask(ChangeEvent event) {
+      this.event = event;
+    }
+
+    /** @return true if the user may see the event. */
+    abstract boolean isVisibleTo(IdentifiedUser user) throws OrmException;
+
+    /**
+     * Release resources used to check visibility.
+     * <p>
+     * Called after the event was dispatched, and after each replay, so a
+     * replayed event is checked against the current project settings.
+     */
+    void close() {
+    }
+
+    @Override
+    public void run() {
+      sequence = ++lastSequence;
+      if (recent.length > 0) {
+        recent[(int) (sequence % recent.length)] = this;
+      }
+
+      Map<Account.Id, Boolean> visible = new HashMap<Account.Id, Boolean>();
+      try {
+        for (ChangeListenerHolder holder : listeners.values()) {
+          Account.Id id = holder.user.getAccountId();
+          Boolean v = visible.get(id);
+          if (v == null) {
+            v = check(holder.user);
+            visible.put(id, v);
+          }
+          if (v) {
+            deliver(holder.listener, sequence, event);
+          }
+        }
+      } finally {
+        close();
+      }
+    }
+
+    private boolean check(IdentifiedUser user) {
+      try {
+        return isVisibleTo(user);
+      } catch (OrmException e) {
+        log.error("Cannot check visibility of " + this, e);
+      } catch (RuntimeException e) {
+        log.error("Cannot check visibility of " + this, e);
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "event " + event.getClass().getSimpleName();
+    }
+  }
+
+  private final class ChangeEventTask extends EventTask {
+    private final Change change;
+    private ProjectState project;
+    private ReviewDb db;
+
+    ChangeEventTask(Change change, ChangeEvent event) {
+      super(event);
+      // The caller may keep updating its change, e.g. MergeOp after the
+      // merge, so copy the fields the visibility check uses.
+      this.change = new Change(change.getKey(), change.getId(),
+          change.getOwner(), change.getDest());
+      this.change.setStatus(change.getStatus());
+    }
+
+    @Override
+    boolean isVisibleTo(IdentifiedUser user) throws OrmException {
+      if (project == null) {
+        project = projectCache.get(change.getProject());
+        if (project == null) {
+          return false;
+        }
+      }
+      if (db == null) {
+        db = schema.open();
+      }
+      return project.controlFor(user).controlFor(change).isVisible(db);
+    }
+
+    @Override
+    void close() {
+      project = null;
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  private final class RefEventTask extends EventTask {
+    private final Branch.NameKey branchName;
+    private ProjectState project;
+
+    RefEventTask(Branch.NameKey branchName, ChangeEvent event) {
+      super(event);
+      this.branchName = branchName;
+    }
+
+    @Override
+    boolean isVisibleTo(IdentifiedUser user) {
+      if (project == null) {
+        project = projectCache.get(branchName.getParentKey());
+        if (project == null) {
+          return false;
+        }
+      }
+      return project.controlFor(user).controlForRef(branchName).isVisible();
+    }
+
+    @Override
+    void close() {
+      project = null;
     }
   }
 
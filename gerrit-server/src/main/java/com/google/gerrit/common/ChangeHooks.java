@@ -34,6 +34,18 @@ import java.util.Map;
 public interface ChangeHooks {
   public void addChangeListener(ChangeListener listener, IdentifiedUser user);
 
+  /**
+   * Add a listener, first replaying the events it has missed.
+   *
+   * @param listener the listener.
+   * @param user user the listener acts for; only events visible to the user
+   *        are delivered.
+   * @param resumeAfter sequence number of the last event the listener has
+   *        received.
+   */
+  public void addChangeListener(SequencedChangeListener listener,
+      IdentifiedUser user, long resumeAfter);
+
   public void removeChangeListener(ChangeListener listener);
 
   /**
@@ -35,6 +35,11 @@ public final class DisabledChangeHooks implements ChangeHooks {
   public void addChangeListener(ChangeListener listener, IdentifiedUser user) {
   }
 
+  @Override
+  public void addChangeListener(SequencedChangeListener listener,
+      IdentifiedUser user, long resumeAfter) {
+  }
+
   @Override
   public void doChangeAbandonedHook(Change change, Account account,
       String reason, ReviewDb db) {
@@ -0,0 +1,367 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.common;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a hook as long-lived worker processes.
+ * <p>
+ * Instead of starting the hook for each event, up to a fixed number of
+ * processes are kept running, and each event is written to the standard
+ * input of an idle one as a record of NUL terminated fields: the directory of
+ * the repository (empty if there is none), then the arguments the hook would
+ * get on its command line, then an empty field ending the record.
+ * <p>
+ * The worker writes a line holding a single NUL character once it has handled
+ * the record; any other output is logged. A worker taking longer than the
+ * timeout is killed, and started again for the next event. A worker found
+ * to have exited while idle is started again, and gets the record once more.
+ * Workers should exit when their input is closed, which happens when the
+ * server stops; they are killed if they have not exited a few seconds later.
+ * <p>
+ * Each worker handles events in the order they happened, but with more than
+ * one worker an event may be handled before an earlier one, by another
+ * worker, is done.
+ */
+class PersistentHook {
+  private static final Logger log =
+      LoggerFactory.getLogger(PersistentHook.class);
+
+  /** Line written by a worker when it is done with a record. */
+  private static final String DONE = "\0";
+
+  /** Milliseconds workers are given to exit once their input is closed. */
+  private static final long STOP_GRACE = 5000;
+
+  private final File hook;
+  private final File sitePath;
+  private final long timeout;
+  private final GitRepositoryManager repoManager;
+  private final WorkQueue.Executor queue;
+  private final WorkQueue.Executor killer;
+  private final BlockingQueue<Worker> idle;
+  private final List<Worker> workers;
+  private volatile boolean stopped;
+
+  /**
+   * @param hook executable of the hook.
+   * @param sitePath site directory, passed in {@code GERRIT_SITE}.
+   * @param workers number of processes to run at most.
+   * @param timeout milliseconds a worker may take for a record; 0 for no
+   *        limit.
+   * @param repoManager opens repositories to find their directory.
+   * @param workQueue creates the queue of the hook's events.
+   */
+  PersistentHook(File hook, File sitePath, int workers, long timeout,
+      GitRepositoryManager repoManager, WorkQueue workQueue) {
+    this.hook = hook;
+    this.sitePath = sitePath;
+    this.timeout = timeout;
+    this.repoManager = repoManager;
+    this.queue = workQueue.createQueue(workers, "hook-" + hook.getName());
+    this.killer = workQueue.getDefaultQueue();
+    this.idle = new LinkedBlockingQueue<Worker>();
+    this.workers = new CopyOnWriteArrayList<Worker>();
+    for (int i = 0; i < workers; i++) {
+      Worker w = new Worker();
+      this.workers.add(w);
+      idle.add(w);
+    }
+  }
+
+  /** Queue an event for the next idle worker. */
+  void run(Project.NameKey project, List<String> args) {
+    queue.execute(new Task(project, args));
+  }
+
+  /**
+   * Close the input of all idle workers, and kill those which have not
+   * exited after {@link #STOP_GRACE} milliseconds; run no more events.
+   */
+  void stop() {
+    stopped = true;
+    long deadline = System.currentTimeMillis() + STOP_GRACE;
+    List<Worker> closing = new ArrayList<Worker>();
+    Worker w;
+    while ((w = idle.poll()) != null) {
+      w.closeInput();
+      closing.add(w);
+    }
+    for (Worker c : closing) {
+      c.awaitExit(deadline);
+    }
+
+    // Workers still busy with a record are killed; they see their output
+    // end, and are not put back into the idle queue.
+    for (Worker b : workers) {
+      b.kill();
+    }
+  }
+
+  private static boolean exited(Process p) {
+    try {
+      p.exitValue();
+      return true;
+    } catch (IllegalThreadStateException notYet) {
+      return false;
+    }
+  }
+
+  private class Task implements Runnable {
+    private final Project.NameKey project;
+    private final List<String> args;
+
+    Task(Project.NameKey project, List<String> args) {
+      this.project = project;
+      this.args = args;
+    }
+
+    @Override
+    public void run() {
+      if (stopped) {
+        return;
+      }
+
+      // The queue runs no more tasks than there are workers, so one is idle.
+      Worker w = idle.poll();
+      if (w == null) {
+        w = new Worker();
+        workers.add(w);
+      }
+      try {
+        w.process(gitDir(), args);
+      } finally {
+        if (stopped) {
+          w.closeInput();
+          w.awaitExit(System.currentTimeMillis() + STOP_GRACE);
+        } else {
+          idle.add(w);
+        }
+      }
+    }
+
+    private String gitDir() {
+      if (project == null) {
+        return "";
+      }
+      try {
+        Repository repo = repoManager.openRepository(project);
+        try {
+          return repo.getDirectory().getAbsolutePath();
+        } finally {
+          repo.close();
+        }
+      } catch (IOException err) {
+        log.warn("Cannot open repository " + project.get(), err);
+        return "";
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "hook " + hook.getName();
+    }
+  }
+
+  private class Worker {
+    private volatile Process process;
+    private Writer in;
+    private BufferedReader out;
+
+    void process(String gitDir, List<String> args) {
+      try {
+        if (process == null) {
+          start();
+          write(gitDir, args);
+        } else {
+          try {
+            write(gitDir, args);
+          } catch (IOException err) {
+            // The worker exited while it was idle; the record was not
+            // handled, so start it again and send the record once more.
+            log.warn("hook[" + hook.getName() + "] exited, restarting");
+            stop();
+            start();
+            write(gitDir, args);
+          }
+        }
+      } catch (IOException err) {
+        if (!stopped) {
+          log.error("Error running hook " + hook.getAbsolutePath(), err);
+        }
+        stop();
+        return;
+      }
+
+      // Set by whichever comes first of the end of the record and the
+      // timeout, so a worker finishing just in time is not killed.
+      final AtomicBoolean finished = new AtomicBoolean();
+      ScheduledFuture<?> kill = null;
+      if (0 < timeout) {
+        final Process p = process;
+        kill = killer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (finished.compareAndSet(false, true)) {
+              p.destroy();
+            }
+          }
+
+          @Override
+          public String toString() {
+            return "kill hook " + hook.getName();
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+      }
+
+      boolean done = false;
+      IOException error = null;
+      try {
+        done = awaitDone();
+      } catch (IOException err) {
+        error = err;
+      } finally {
+        if (kill != null) {
+          kill.cancel(false);
+        }
+      }
+
+      if (finished.compareAndSet(false, true)) {
+        if (done) {
+          return;
+        }
+        if (error != null && !stopped) {
+          log.error("Error running hook " + hook.getAbsolutePath(), error);
+        } else if (!stopped) {
+          log.warn("hook[" + hook.getName() + "] exited");
+        }
+      } else if (!done) {
+        log.warn("hook[" + hook.getName() + "] killed after " + timeout
+            + " ms");
+      }
+      stop();
+    }
+
+    private void write(String gitDir, List<String> args) throws IOException {
+      in.write(gitDir);
+      in.write('\0');
+      for (String a : args) {
+        in.write(a);
+        in.write('\0');
+      }
+      in.write('\0');
+      in.flush();
+    }
+
+    /** @return true once the worker is done; false if its output ended. */
+    private boolean awaitDone() throws IOException {
+      String line;
+      while ((line = out.readLine()) != null) {
+        if (DONE.equals(line)) {
+          return true;
+        }
+        log.info("hook[" + hook.getName() + "] output: " + line);
+      }
+      return false;
+    }
+
+    private void start() throws IOException {
+      ProcessBuilder pb = new ProcessBuilder(hook.getAbsolutePath());
+      pb.redirectErrorStream(true);
+      pb.environment().put("GERRIT_SITE", sitePath.getAbsolutePath());
+
+      process = pb.start();
+      in = new BufferedWriter(
+          new OutputStreamWriter(process.getOutputStream(), "UTF-8"));
+      out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      if (stopped) {
+        kill();
+      }
+    }
+
+    /** Kill the process from another thread; its output then ends. */
+    void kill() {
+      Process p = process;
+      if (p != null) {
+        p.destroy();
+      }
+    }
+
+    /** Close the input of the worker, asking it to exit. */
+    void closeInput() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+
+    /** Wait until the process exited or the deadline passed, then stop. */
+    void awaitExit(long deadline) {
+      Process p = process;
+      while (p != null && !exited(p)
+          && System.currentTimeMillis() < deadline) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      stop();
+    }
+
+    void stop() {
+      if (process != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+        process.destroy();
+        try {
+          out.close();
+        } catch (IOException e) {
+        }
+        process = null;
+        in = null;
+        out = null;
+      }
+    }
+  }
+}
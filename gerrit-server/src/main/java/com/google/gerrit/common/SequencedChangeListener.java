@@ -0,0 +1,36 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.common;
+
+import com.google.gerrit.server.events.ChangeEvent;
+
+/**
+ * Listener that is also told the position of each event in the server's
+ * stream of events, so it can resume after reconnecting.
+ */
+public interface SequencedChangeListener extends ChangeListener {
+  /**
+   * @param sequence number of the event; increases with each event fired by
+   *        the server, also across restarts.
+   * @param event the event.
+   */
+  public void onChangeEvent(long sequence, ChangeEvent event);
+
+  /**
+   * Called before replaying events if some of the events to be replayed are
+   * no longer available.
+   */
+  public void onEventsLost();
+}
@@ -16,12 +16,17 @@ package com.google.gerrit.rules;
 
 import static com.googlecode.prolog_cafe.lang.PrologMachineCopy.save;
 
+import com.google.common.cache.Cache;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Module;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.googlecode.prolog_cafe.compiler.CompileException;
 import com.googlecode.prolog_cafe.lang.BufferingPrologControl;
@@ -39,20 +44,24 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PushbackReader;
 import java.io.StringReader;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.tools.ToolProvider;
 
 /**
  * Manages a cache of compiled Prolog rules.
@@ -60,9 +69,16 @@ import java.util.Map;
  * Rules are loaded from the {@code site_path/cache/rules/rules-SHA1.jar}, where
  * {@code SHA1} is the SHA1 of the Prolog {@code rules.pl} in a project's
  * {@link GitRepositoryManager#REF_CONFIG} branch.
+ * <p>
+ * Rules without a JAR are consulted into a new interpreter, and compiled into
+ * a JAR in the background, so later loads use the faster bytecode.
  */
 @Singleton
 public class RulesCache {
+  private static final Logger log = LoggerFactory.getLogger(RulesCache.class);
+
+  private static final String CACHE_NAME = "prolog_rules";
+
   /** Maximum size of a dynamic Prolog script, in bytes. */
   private static final int SRC_LIMIT = 128 * 1024;
 
@@ -74,36 +90,51 @@ public class RulesCache {
       "gerrit",
     };
 
-  private final Map<ObjectId, MachineRef> machineCache =
-      new HashMap<ObjectId, MachineRef>();
-
-  private final ReferenceQueue<PrologMachineCopy> dead =
-      new ReferenceQueue<PrologMachineCopy>();
-
-  private static final class MachineRef extends WeakReference<PrologMachineCopy> {
-    final ObjectId key;
-
-    MachineRef(ObjectId key, PrologMachineCopy pcm,
-        ReferenceQueue<PrologMachineCopy> queue) {
-      super(pcm, queue);
-      this.key = key;
-    }
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, ObjectId.class, PrologMachineCopy.class);
+        bind(RulesCache.class);
+      }
+    };
   }
 
+  private final Cache<ObjectId, PrologMachineCopy> machineCache;
   private final boolean enableProjectRules;
-  private final File cacheDir;
+  private final boolean compileRules;
   private final File rulesDir;
+  private final Config config;
+  private final SitePaths site;
   private final GitRepositoryManager gitMgr;
+  private final WorkQueue.Executor compileQueue;
+  private final Set<ObjectId> compiling;
   private final ClassLoader systemLoader;
   private final PrologMachineCopy defaultMachine;
 
   @Inject
   protected RulesCache(@GerritServerConfig Config config, SitePaths site,
-      GitRepositoryManager gm) {
+      GitRepositoryManager gm, WorkQueue queue,
+      @Named(CACHE_NAME) Cache<ObjectId, PrologMachineCopy> machineCache) {
+    this.machineCache = machineCache;
     enableProjectRules = config.getBoolean("rules", null, "enable", true);
-    cacheDir = site.resolve(config.getString("cache", null, "directory"));
+    File cacheDir = site.resolve(config.getString("cache", null, "directory"));
     rulesDir = cacheDir != null ? new File(cacheDir, "rules") : null;
+    boolean compile = rulesDir != null
+        && config.getBoolean("rules", null, "compile", true);
+    if (compile && ToolProvider.getSystemJavaCompiler() == null) {
+      // Running on a JRE: every compile would fail, so only consult.
+      log.info("No Java compiler available, rules will not be compiled");
+      compile = false;
+    }
+    compileRules = compile;
+    this.config = config;
+    this.site = site;
     gitMgr = gm;
+    compileQueue = compileRules ? queue.createQueue(1, "RulesCompiler") : null;
+    compiling = compileRules
+        ? Collections.newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>())
+        : null;
 
     systemLoader = getClass().getClassLoader();
     defaultMachine = save(newEmptyMachine(systemLoader));
@@ -115,40 +146,30 @@ public class RulesCache {
    * @return a Prolog machine, after loading the specified rules.
    * @throws CompileException the machine cannot be created.
    */
-  public synchronized PrologMachineCopy loadMachine(
-      Project.NameKey project,
-      ObjectId rulesId)
+  public PrologMachineCopy loadMachine(
+      final Project.NameKey project,
+      final ObjectId rulesId)
       throws CompileException {
     if (!enableProjectRules || project == null || rulesId == null) {
       return defaultMachine;
     }
 
-    Reference<? extends PrologMachineCopy> ref = machineCache.get(rulesId);
-    if (ref != null) {
-      PrologMachineCopy pmc = ref.get();
-      if (pmc != null) {
-        return pmc;
-      }
-
-      machineCache.remove(rulesId);
-      ref.enqueue();
-    }
-
-    gc();
-
-    PrologMachineCopy pcm = createMachine(project, rulesId);
-    MachineRef newRef = new MachineRef(rulesId, pcm, dead);
-    machineCache.put(rulesId, newRef);
-    return pcm;
-  }
-
-  private void gc() {
-    Reference<?> ref;
-    while ((ref = dead.poll()) != null) {
-      ObjectId key = ((MachineRef) ref).key;
-      if (machineCache.get(key) == ref) {
-        machineCache.remove(key);
+    // Only the thread loading a rulesId waits for it; loads of other
+    // rules, and hits on loaded ones, proceed concurrently.
+    try {
+      return machineCache.get(rulesId, new Callable<PrologMachineCopy>() {
+        @Override
+        public PrologMachineCopy call() throws CompileException {
+          return createMachine(project, rulesId);
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CompileException) {
+        throw (CompileException) e.getCause();
       }
+      throw new CompileException("Cannot load rules of " + project, e);
+    } catch (RuntimeException e) {
+      throw new CompileException("Cannot load rules of " + project, e);
     }
   }
 
@@ -158,7 +179,7 @@ public class RulesCache {
     // that over dynamic consult as the bytecode will be faster.
     //
     if (rulesDir != null) {
-      File jarFile = new File(rulesDir, "rules-" + rulesId.getName() + ".jar");
+      File jarFile = jarFile(rulesId);
       if (jarFile.isFile()) {
         URL[] cp = new URL[] {toURL(jarFile)};
         return save(newEmptyMachine(new URLClassLoader(cp, systemLoader)));
@@ -179,9 +200,51 @@ public class RulesCache {
         new JavaObjectTerm(in))) {
       throw new CompileException("Cannot consult rules of " + project);
     }
+    compile(project, rulesId);
     return save(ctl);
   }
 
+  /** Compile the rules into a JAR in the background, if enabled. */
+  private void compile(final Project.NameKey project, final ObjectId rulesId) {
+    if (!compileRules || !compiling.add(rulesId)) {
+      return;
+    }
+    compileQueue.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Repository git = gitMgr.openRepository(project);
+          try {
+            // The compiler reads the current rules.pl, which may be newer
+            // than rulesId; either way the JAR is named by its own blob.
+            new PrologCompiler(config, site, git).call();
+          } finally {
+            git.close();
+          }
+          if (jarFile(rulesId).isFile()) {
+            // Load the JAR instead of the consulted rules on next use.
+            machineCache.invalidate(rulesId);
+          }
+        } catch (CompileException e) {
+          log.warn("Cannot compile rules of " + project, e);
+        } catch (IOException e) {
+          log.warn("Cannot compile rules of " + project, e);
+        } finally {
+          compiling.remove(rulesId);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "compile rules of " + project.get();
+      }
+    });
+  }
+
+  private File jarFile(ObjectId rulesId) {
+    return new File(rulesDir, "rules-" + rulesId.getName() + ".jar");
+  }
+
   private String read(Project.NameKey project, ObjectId rulesId)
       throws CompileException {
     Repository git;
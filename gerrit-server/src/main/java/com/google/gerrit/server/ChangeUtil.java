@@ -33,6 +33,7 @@ import com.google.gerrit.server.config.TrackingFooters;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeOp;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.RebasedPatchSetSender;
 import com.google.gerrit.server.mail.ReplacePatchSetSender;
@@ -42,6 +43,7 @@ import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmConcurrencyException;
 import com.google.gwtorm.server.OrmException;
@@ -265,7 +267,9 @@ public class ChangeUtil {
       final PatchSetInfoFactory patchSetInfoFactory,
       final GitReferenceUpdated replication, PersonIdent myIdent,
       final ChangeControl.Factory changeControlFactory,
-      final ApprovalsUtil approvalsUtil) throws NoSuchChangeException,
+      final ApprovalsUtil approvalsUtil,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) throws NoSuchChangeException,
       EmailException, OrmException, MissingObjectException,
       IncorrectObjectTypeException, IOException,
       InvalidChangeOperationException {
@@ -370,6 +374,7 @@ public class ChangeUtil {
 
         final Set<Account.Id> oldReviewers = Sets.newHashSet();
         final Set<Account.Id> oldCC = Sets.newHashSet();
+        final Change.Status[] oldStatus = new Change.Status[1];
         db.changes().beginTransaction(change.getId());
         try {
           Change updatedChange;
@@ -405,6 +410,7 @@ public class ChangeUtil {
                   if (!change.currentPatchSetId().equals(patchSetId)) {
                     return null;
                   }
+                  oldStatus[0] = change.getStatus();
                   if (change.getStatus() != Change.Status.DRAFT) {
                     change.setStatus(Change.Status.NEW);
                   }
@@ -438,6 +444,9 @@ public class ChangeUtil {
         } finally {
           db.rollback();
         }
+        changeStatistics.onStatusChanged(change.getProject(), oldStatus[0],
+            change.getStatus());
+        changeIndexer.indexAsync(change);
 
         final ReplacePatchSetSender cm =
             rebasedPatchSetSenderFactory.create(change);
@@ -461,7 +470,9 @@ public class ChangeUtil {
       final RevertedSender.Factory revertedSenderFactory,
       final ChangeHooks hooks, GitRepositoryManager gitManager,
       final PatchSetInfoFactory patchSetInfoFactory,
-      final GitReferenceUpdated replication, PersonIdent myIdent)
+      final GitReferenceUpdated replication, PersonIdent myIdent,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer)
       throws NoSuchChangeException, EmailException, OrmException,
       MissingObjectException, IncorrectObjectTypeException, IOException {
     final Change.Id changeId = patchSetId.getParentKey();
@@ -544,6 +555,8 @@ public class ChangeUtil {
       } finally {
         db.rollback();
       }
+      changeStatistics.onChangeCreated(change);
+      changeIndexer.indexAsync(change);
 
       final ChangeMessage cmsg =
           new ChangeMessage(new ChangeMessage.Key(changeId,
@@ -23,11 +23,13 @@ import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.AbandonedSender;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -44,6 +46,8 @@ public class AbandonChange implements Callable<ReviewResult> {
   private final ReviewDb db;
   private final IdentifiedUser currentUser;
   private final ChangeHooks hooks;
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
 
   @Argument(index = 0, required = true, multiValued = false, usage = "change to abandon")
   private Change.Id changeId;
@@ -63,12 +67,16 @@ public class AbandonChange implements Callable<ReviewResult> {
   @Inject
   AbandonChange(final AbandonedSender.Factory abandonedSenderFactory,
       final ChangeControl.Factory changeControlFactory, final ReviewDb db,
-      final IdentifiedUser currentUser, final ChangeHooks hooks) {
+      final IdentifiedUser currentUser, final ChangeHooks hooks,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) {
     this.abandonedSenderFactory = abandonedSenderFactory;
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.currentUser = currentUser;
     this.hooks = hooks;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
 
     changeId = null;
     message = null;
@@ -108,11 +116,13 @@ public class AbandonChange implements Callable<ReviewResult> {
       cmsg.setMessage(msgBuf.toString());
 
       // Abandon the change
+      final Change.Status[] oldStatus = new Change.Status[1];
       final Change updatedChange = db.changes().atomicUpdate(changeId,
           new AtomicUpdate<Change>() {
         @Override
         public Change update(Change change) {
           if (change.getStatus().isOpen()) {
+            oldStatus[0] = change.getStatus();
             change.setStatus(Change.Status.ABANDONED);
             ChangeUtil.updated(change);
             return change;
@@ -127,6 +137,9 @@ public class AbandonChange implements Callable<ReviewResult> {
             ReviewResult.Error.Type.CHANGE_IS_CLOSED));
         return result;
       }
+      changeStatistics.onStatusChanged(updatedChange.getProject(),
+          oldStatus[0], Change.Status.ABANDONED);
+      changeIndexer.indexAsync(updatedChange);
 
       ChangeUtil.updatedChange(db, currentUser, updatedChange, cmsg,
                                abandonedSenderFactory);
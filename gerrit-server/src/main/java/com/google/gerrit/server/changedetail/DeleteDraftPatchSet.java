@@ -22,6 +22,7 @@ import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
@@ -46,6 +47,7 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
   private final GitRepositoryManager gitManager;
   private final GitReferenceUpdated replication;
   private final PatchSetInfoFactory patchSetInfoFactory;
+  private final ChangeIndexer changeIndexer;
 
   private final PatchSet.Id patchSetId;
 
@@ -53,12 +55,13 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
   DeleteDraftPatchSet(ChangeControl.Factory changeControlFactory,
       ReviewDb db, GitRepositoryManager gitManager,
       GitReferenceUpdated replication, PatchSetInfoFactory patchSetInfoFactory,
-      @Assisted final PatchSet.Id patchSetId) {
+      ChangeIndexer changeIndexer, @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.gitManager = gitManager;
     this.replication = replication;
     this.patchSetInfoFactory = patchSetInfoFactory;
+    this.changeIndexer = changeIndexer;
 
     this.patchSetId = patchSetId;
   }
@@ -120,6 +123,7 @@ public class DeleteDraftPatchSet implements Callable<ReviewResult> {
         db.changes().update(Collections.singleton(change));
       }
     }
+    changeIndexer.indexAsync(change);
     return result;
   }
 }
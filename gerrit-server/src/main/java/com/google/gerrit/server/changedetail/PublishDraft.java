@@ -21,8 +21,10 @@ import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -39,16 +41,21 @@ public class PublishDraft implements Callable<ReviewResult> {
   private final ChangeControl.Factory changeControlFactory;
   private final ReviewDb db;
   private final ChangeHooks hooks;
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
 
   private final PatchSet.Id patchSetId;
 
   @Inject
   PublishDraft(ChangeControl.Factory changeControlFactory,
       ReviewDb db, @Assisted final PatchSet.Id patchSetId,
-      final ChangeHooks hooks) {
+      final ChangeHooks hooks, final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) {
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.hooks = hooks;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
 
     this.patchSetId = patchSetId;
   }
@@ -109,11 +116,14 @@ public class PublishDraft implements Callable<ReviewResult> {
 
         if ((updatedChange != null) &&
             (updatedChange.getStatus() == Change.Status.NEW)) {
+          changeStatistics.onStatusChanged(updatedChange.getProject(),
+              Change.Status.DRAFT, Change.Status.NEW);
           published = true;
         }
       }
 
       if (published) {
+        changeIndexer.indexAsync(change);
         hooks.doDraftPublishedHook(change, patch, db);
       }
     }
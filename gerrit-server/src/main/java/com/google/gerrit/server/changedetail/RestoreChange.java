@@ -26,11 +26,13 @@ import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.ProjectUtil;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.EmailException;
 import com.google.gerrit.server.mail.RestoredSender;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -51,6 +53,8 @@ public class RestoreChange implements Callable<ReviewResult> {
   private final GitRepositoryManager repoManager;
   private final IdentifiedUser currentUser;
   private final ChangeHooks hooks;
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
 
   @Argument(index = 0, required = true, multiValued = false,
             usage = "change to restore", metaVar = "CHANGE")
@@ -70,13 +74,16 @@ public class RestoreChange implements Callable<ReviewResult> {
   RestoreChange(final RestoredSender.Factory restoredSenderFactory,
       final ChangeControl.Factory changeControlFactory, final ReviewDb db,
       final GitRepositoryManager repoManager, final IdentifiedUser currentUser,
-      final ChangeHooks hooks) {
+      final ChangeHooks hooks, final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer) {
     this.restoredSenderFactory = restoredSenderFactory;
     this.changeControlFactory = changeControlFactory;
     this.db = db;
     this.repoManager = repoManager;
     this.currentUser = currentUser;
     this.hooks = hooks;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
 
     changeId = null;
     message = null;
@@ -146,6 +153,9 @@ public class RestoreChange implements Callable<ReviewResult> {
           ReviewResult.Error.Type.CHANGE_NOT_ABANDONED));
       return result;
     }
+    changeStatistics.onStatusChanged(updatedChange.getProject(),
+        Change.Status.ABANDONED, Change.Status.NEW);
+    changeIndexer.indexAsync(updatedChange);
 
     ChangeUtil.updatedChange(db, currentUser, updatedChange, cmsg,
                              restoredSenderFactory);
@@ -28,9 +28,11 @@ import com.google.gerrit.server.ProjectUtil;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeOp;
 import com.google.gerrit.server.git.MergeQueue;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gwtorm.server.AtomicUpdate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -54,6 +56,8 @@ public class Submit implements Callable<ReviewResult> {
   private final ReviewDb db;
   private final GitRepositoryManager repoManager;
   private final IdentifiedUser currentUser;
+  private final ChangeStatistics changeStatistics;
+  private final ChangeIndexer changeIndexer;
 
   private final PatchSet.Id patchSetId;
 
@@ -61,13 +65,18 @@ public class Submit implements Callable<ReviewResult> {
   Submit(final ChangeControl.Factory changeControlFactory,
       final MergeOp.Factory opFactory, final MergeQueue merger,
       final ReviewDb db, final GitRepositoryManager repoManager,
-      final IdentifiedUser currentUser, @Assisted final PatchSet.Id patchSetId) {
+      final IdentifiedUser currentUser,
+      final ChangeStatistics changeStatistics,
+      final ChangeIndexer changeIndexer,
+      @Assisted final PatchSet.Id patchSetId) {
     this.changeControlFactory = changeControlFactory;
     this.opFactory = opFactory;
     this.merger = merger;
     this.db = db;
     this.repoManager = repoManager;
     this.currentUser = currentUser;
+    this.changeStatistics = changeStatistics;
+    this.changeIndexer = changeIndexer;
 
     this.patchSetId = patchSetId;
   }
@@ -186,11 +195,13 @@ public class Submit implements Callable<ReviewResult> {
       }
       db.patchSetApprovals().upsert(Collections.singleton(approval));
 
+      final boolean[] submitted = new boolean[1];
       final Change updatedChange = db.changes().atomicUpdate(changeId,
           new AtomicUpdate<Change>() {
         @Override
         public Change update(Change change) {
-          if (change.getStatus() == Change.Status.NEW) {
+          submitted[0] = change.getStatus() == Change.Status.NEW;
+          if (submitted[0]) {
             change.setStatus(Change.Status.SUBMITTED);
             ChangeUtil.updated(change);
           }
@@ -198,6 +209,11 @@ public class Submit implements Callable<ReviewResult> {
         }
       });
 
+      if (submitted[0]) {
+        changeStatistics.onStatusChanged(updatedChange.getProject(),
+            Change.Status.NEW, Change.Status.SUBMITTED);
+        changeIndexer.indexAsync(updatedChange);
+      }
       if (updatedChange.getStatus() == Change.Status.SUBMITTED) {
         merger.merge(opFactory, updatedChange.getDest());
       }
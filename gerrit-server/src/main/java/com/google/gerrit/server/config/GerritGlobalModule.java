@@ -53,11 +53,14 @@ import com.google.gerrit.server.cache.CacheRemovalListener;
 import com.google.gerrit.server.events.EventFactory;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.ChangeMergeQueue;
+import com.google.gerrit.server.git.ChangeRefIndex;
 import com.google.gerrit.server.git.GitModule;
 import com.google.gerrit.server.git.MergeQueue;
 import com.google.gerrit.server.git.ReloadSubmitQueueOp;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleChangesCache;
+import com.google.gerrit.server.index.IndexModule;
 import com.google.gerrit.server.mail.FromAddressGenerator;
 import com.google.gerrit.server.mail.FromAddressGeneratorProvider;
 import com.google.gerrit.server.mail.VelocityRuntimeProvider;
@@ -71,6 +74,8 @@ import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectNode;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.project.SectionSortCache;
+import com.google.gerrit.server.query.change.ChangeDataLoader;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gerrit.server.tools.ToolsCatalog;
 import com.google.gerrit.server.util.IdGenerator;
 import com.google.gerrit.server.util.ThreadLocalRequestContext;
@@ -116,7 +121,7 @@ public class GerritGlobalModule extends FactoryModule {
         SINGLETON);
 
     bind(IdGenerator.class);
-    bind(RulesCache.class);
+    install(RulesCache.module());
     install(AccountByEmailCacheImpl.module());
     install(AccountCacheImpl.module());
     install(GroupCacheImpl.module());
@@ -125,6 +130,11 @@ public class GerritGlobalModule extends FactoryModule {
     install(ProjectCacheImpl.module());
     install(SectionSortCache.module());
     install(TagCache.module());
+    install(VisibleChangesCache.module());
+    install(ChangeRefIndex.module());
+    install(new IndexModule());
+    install(ChangeDataLoader.module());
+    install(ChangeStatistics.module());
     install(new AccessControlModule());
     install(new GitModule());
     install(new PrologModule());
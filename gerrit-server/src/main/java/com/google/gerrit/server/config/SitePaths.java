@@ -35,6 +35,7 @@ public final class SitePaths {
   public final File mail_dir;
   public final File hooks_dir;
   public final File static_dir;
+  public final File index_dir;
 
   public final File gerrit_sh;
   public final File gerrit_war;
@@ -71,6 +72,7 @@ public final class SitePaths {
     mail_dir = new File(etc_dir, "mail");
     hooks_dir = new File(site_path, "hooks");
     static_dir = new File(site_path, "static");
+    index_dir = new File(site_path, "index");
 
     gerrit_sh = new File(bin_dir, "gerrit.sh");
     gerrit_war = new File(bin_dir, "gerrit.war");
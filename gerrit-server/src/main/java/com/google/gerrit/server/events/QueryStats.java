@@ -18,4 +18,7 @@ public class QueryStats {
   public final String type = "stats";
   public int rowCount;
   public long runTimeMilliseconds;
+  public long queryTimeMilliseconds;
+  public long loadTimeMilliseconds;
+  public long prefetchTimeMilliseconds;
 }
@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.git;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -21,7 +22,9 @@ import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.RemotePeer;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritRequestModule;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.ssh.SshInfo;
 import com.google.gerrit.server.util.RequestContext;
 import com.google.gerrit.server.util.RequestScopePropagator;
@@ -36,34 +39,69 @@ import com.google.inject.servlet.RequestScoped;
 
 import com.jcraft.jsch.HostKey;
 
+import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Serializes merges per destination branch, running different branches in
+ * parallel.
+ * <p>
+ * Merges run on a dedicated queue sized by {@code changeMerge.threadPoolSize}.
+ * Branches waiting for a thread are taken in turn from each project, so a
+ * project with many busy branches cannot starve the others.
+ * <p>
+ * If {@code changeMerge.batchWindow} is set, merges wait that long before
+ * starting, so changes submitted to a branch in quick succession are merged
+ * together by a single {@link MergeOp}.
+ */
 @Singleton
 public class ChangeMergeQueue implements MergeQueue {
   private static final Logger log =
       LoggerFactory.getLogger(ChangeMergeQueue.class);
 
-  private final Map<Branch.NameKey, MergeEntry> active =
-      new HashMap<Branch.NameKey, MergeEntry>();
+  /** Statistics of a branch are dropped once it had no merge this long. */
+  private static final long STATS_MAX_IDLE = MILLISECONDS.convert(1, DAYS);
+
+  private final ConcurrentMap<Branch.NameKey, MergeEntry> active =
+      new ConcurrentHashMap<Branch.NameKey, MergeEntry>();
   private final Map<Branch.NameKey, RecheckJob> recheck =
       new HashMap<Branch.NameKey, RecheckJob>();
 
-  private final WorkQueue workQueue;
+  /** Branches waiting for a merge thread, by project; guarded by itself. */
+  private final LinkedHashMap<Project.NameKey, Queue<MergeEntry>> ready =
+      new LinkedHashMap<Project.NameKey, Queue<MergeEntry>>();
+
+  private final ConcurrentMap<Branch.NameKey, BranchStats> stats =
+      new ConcurrentHashMap<Branch.NameKey, BranchStats>();
+
+  private final WorkQueue.Executor executor;
+  private final long batchWindow;
   private final Provider<MergeOp.Factory> bgFactory;
   private final PerThreadRequestScope.Scoper threadScoper;
 
   @Inject
-  ChangeMergeQueue(final WorkQueue wq, Injector parent) {
-    workQueue = wq;
+  ChangeMergeQueue(final WorkQueue wq, @GerritServerConfig Config cfg,
+      Injector parent) {
+    int poolSize = cfg.getInt("changeMerge", null, "threadPoolSize",
+        Runtime.getRuntime().availableProcessors());
+    executor = wq.createQueue(Math.max(poolSize, 1), "MergeQueue");
+    batchWindow = ConfigUtil.getTimeUnit(cfg, "changeMerge", null,
+        "batchWindow", 0, MILLISECONDS);
 
     Injector child = parent.createChildInjector(new AbstractModule() {
       @Override
@@ -112,68 +150,100 @@ public class ChangeMergeQueue implements MergeQueue {
 
   @Override
   public void merge(MergeOp.Factory mof, Branch.NameKey branch) {
-    if (start(branch)) {
+    if (0 < batchWindow) {
+      schedule(branch);
+    } else if (start(branch)) {
       mergeImpl(mof, branch);
     }
   }
 
-  private synchronized boolean start(final Branch.NameKey branch) {
-    final MergeEntry e = active.get(branch);
-    if (e == null) {
-      // Let the caller attempt this merge, its the only one interested
-      // in processing this branch right now.
-      //
-      active.put(branch, new MergeEntry(branch));
-      return true;
-    } else {
-      // Request that the job queue handle this merge later.
-      //
-      e.needMerge = true;
-      return false;
+  /** @return merge statistics of every branch merged within the last day. */
+  public Map<Branch.NameKey, BranchStats> getBranchStats() {
+    pruneStats();
+    return Collections.unmodifiableMap(stats);
+  }
+
+  private boolean start(final Branch.NameKey branch) {
+    for (;;) {
+      final MergeEntry e = entry(branch);
+      synchronized (e) {
+        if (e.removed) {
+          continue;
+        }
+        if (!e.running && !e.jobScheduled) {
+          // Let the caller attempt this merge, its the only one interested
+          // in processing this branch right now.
+          //
+          e.running = true;
+          return true;
+        } else {
+          // Request that the job queue handle this merge later.
+          //
+          e.needMerge = true;
+          return false;
+        }
+      }
     }
   }
 
   @Override
-  public synchronized void schedule(final Branch.NameKey branch) {
-    MergeEntry e = active.get(branch);
-    if (e == null) {
-      e = new MergeEntry(branch);
-      active.put(branch, e);
+  public void schedule(final Branch.NameKey branch) {
+    for (;;) {
+      final MergeEntry e = entry(branch);
+      synchronized (e) {
+        if (e.removed) {
+          continue;
+        }
+        e.needMerge = true;
+        if (!e.running) {
+          scheduleJob(e);
+        }
+        return;
+      }
     }
-    e.needMerge = true;
-    scheduleJob(e);
   }
 
   @Override
-  public synchronized void recheckAfter(final Branch.NameKey branch,
+  public void recheckAfter(final Branch.NameKey branch,
       final long delay, final TimeUnit delayUnit) {
     final long now = System.currentTimeMillis();
     final long at = now + MILLISECONDS.convert(delay, delayUnit);
-    RecheckJob e = recheck.get(branch);
-    if (e == null) {
-      e = new RecheckJob(branch);
-      workQueue.getDefaultQueue().schedule(e, now - at, MILLISECONDS);
-      recheck.put(branch, e);
+    synchronized (recheck) {
+      RecheckJob e = recheck.get(branch);
+      if (e == null) {
+        e = new RecheckJob(branch);
+        executor.schedule(e, at - now, MILLISECONDS);
+        recheck.put(branch, e);
+      }
+      e.recheckAt = Math.max(at, e.recheckAt);
     }
-    e.recheckAt = Math.max(at, e.recheckAt);
   }
 
-  private synchronized void finish(final Branch.NameKey branch) {
-    final MergeEntry e = active.get(branch);
+  private MergeEntry entry(final Branch.NameKey branch) {
+    MergeEntry e = active.get(branch);
     if (e == null) {
-      // Not registered? Shouldn't happen but ignore it.
-      //
-      return;
+      e = new MergeEntry(branch);
+      MergeEntry old = active.putIfAbsent(branch, e);
+      if (old != null) {
+        e = old;
+      }
     }
+    return e;
+  }
 
-    if (!e.needMerge) {
-      // No additional merges are in progress, we can delete it.
-      //
-      active.remove(branch);
-      return;
-    }
+  private void finish(final MergeEntry e) {
+    synchronized (e) {
+      e.running = false;
+      if (!e.needMerge) {
+        // No additional merges are in progress, we can delete it.
+        //
+        e.removed = true;
+        active.remove(e.dest, e);
+        return;
+      }
 
-    scheduleJob(e);
+      scheduleJob(e);
+    }
   }
 
   private void scheduleJob(final MergeEntry e) {
@@ -182,26 +252,99 @@ public class ChangeMergeQueue implements MergeQueue {
       // to run a merge again.
       //
       e.jobScheduled = true;
-      workQueue.getDefaultQueue().schedule(e, 0, TimeUnit.SECONDS);
+      e.readyAt = System.currentTimeMillis();
+      if (0 < batchWindow) {
+        executor.schedule(new BatchJob(e), batchWindow, MILLISECONDS);
+      } else {
+        enqueue(e);
+        executor.execute(new MergeJob(e));
+      }
+    }
+  }
+
+  private void enqueue(final MergeEntry e) {
+    synchronized (ready) {
+      final Project.NameKey project = e.dest.getParentKey();
+      Queue<MergeEntry> q = ready.get(project);
+      if (q == null) {
+        q = new LinkedList<MergeEntry>();
+        ready.put(project, q);
+      }
+      q.add(e);
+    }
+  }
+
+  /** @return the next branch to merge, rotating through the projects. */
+  private MergeEntry nextReady() {
+    synchronized (ready) {
+      final Iterator<Map.Entry<Project.NameKey, Queue<MergeEntry>>> i =
+          ready.entrySet().iterator();
+      if (!i.hasNext()) {
+        return null;
+      }
+      final Map.Entry<Project.NameKey, Queue<MergeEntry>> next = i.next();
+      final Queue<MergeEntry> q = next.getValue();
+      final MergeEntry e = q.remove();
+      i.remove();
+      if (!q.isEmpty()) {
+        // Move the project behind the others waiting for a thread.
+        ready.put(next.getKey(), q);
+      }
+      return e;
+    }
+  }
+
+  private void runJob(final MergeEntry e) {
+    final long wait;
+    synchronized (e) {
+      wait = System.currentTimeMillis() - e.readyAt;
+      e.jobScheduled = false;
+      e.needMerge = false;
+      e.running = true;
+    }
+    stats(e.dest).waitTime.record(wait);
+    mergeImpl(e);
+  }
+
+  private BranchStats stats(final Branch.NameKey branch) {
+    BranchStats s = stats.get(branch);
+    if (s == null) {
+      pruneStats();
+      s = new BranchStats();
+      BranchStats old = stats.putIfAbsent(branch, s);
+      if (old != null) {
+        s = old;
+      }
     }
+    s.lastUsed = System.currentTimeMillis();
+    return s;
   }
 
-  private synchronized void unschedule(final MergeEntry e) {
-    e.jobScheduled = false;
-    e.needMerge = false;
+  private void pruneStats() {
+    final long oldest = System.currentTimeMillis() - STATS_MAX_IDLE;
+    final Iterator<BranchStats> i = stats.values().iterator();
+    while (i.hasNext()) {
+      if (i.next().lastUsed < oldest) {
+        i.remove();
+      }
+    }
   }
 
   private void mergeImpl(MergeOp.Factory opFactory, Branch.NameKey branch) {
+    final long start = System.currentTimeMillis();
     try {
       opFactory.create(branch).merge();
     } catch (Throwable e) {
       log.error("Merge attempt for " + branch + " failed", e);
     } finally {
-      finish(branch);
+      stats(branch).mergeTime.record(System.currentTimeMillis() - start);
+      finish(active.get(branch));
     }
   }
 
-  private void mergeImpl(final Branch.NameKey branch) {
+  private void mergeImpl(final MergeEntry entry) {
+    final Branch.NameKey branch = entry.dest;
+    final long start = System.currentTimeMillis();
     try {
       threadScoper.scope(new Callable<Void>(){
         @Override
@@ -213,45 +356,100 @@ public class ChangeMergeQueue implements MergeQueue {
     } catch (Throwable e) {
       log.error("Merge attempt for " + branch + " failed", e);
     } finally {
-      finish(branch);
+      stats(branch).mergeTime.record(System.currentTimeMillis() - start);
+      finish(entry);
     }
   }
 
-  private synchronized void recheck(final RecheckJob e) {
-    final long remainingDelay = e.recheckAt - System.currentTimeMillis();
-    if (MILLISECONDS.convert(10, SECONDS) < remainingDelay) {
-      // Woke up too early, the job deadline was pushed back.
-      // Reschedule for the new deadline. We allow for a small
-      // amount of fuzz due to multiple reschedule attempts in
-      // a short period of time being caused by MergeOp.
-      //
-      workQueue.getDefaultQueue().schedule(e, remainingDelay, MILLISECONDS);
-    } else {
-      // Schedule a merge attempt on this branch to see if we can
-      // actually complete it this time.
-      //
-      schedule(e.dest);
+  private void recheck(final RecheckJob e) {
+    synchronized (recheck) {
+      final long remainingDelay = e.recheckAt - System.currentTimeMillis();
+      if (MILLISECONDS.convert(10, SECONDS) < remainingDelay) {
+        // Woke up too early, the job deadline was pushed back.
+        // Reschedule for the new deadline. We allow for a small
+        // amount of fuzz due to multiple reschedule attempts in
+        // a short period of time being caused by MergeOp.
+        //
+        executor.schedule(e, remainingDelay, MILLISECONDS);
+        return;
+      }
+      recheck.remove(e.dest);
     }
+
+    // Schedule a merge attempt on this branch to see if we can
+    // actually complete it this time.
+    //
+    schedule(e.dest);
   }
 
-  private class MergeEntry implements Runnable {
+  /** Time merges of a branch waited for a thread, and took to run. */
+  public static class BranchStats {
+    private final WorkQueue.Histogram waitTime = new WorkQueue.Histogram();
+    private final WorkQueue.Histogram mergeTime = new WorkQueue.Histogram();
+    private volatile long lastUsed;
+
+    public WorkQueue.Histogram getWaitTime() {
+      return waitTime;
+    }
+
+    public WorkQueue.Histogram getMergeTime() {
+      return mergeTime;
+    }
+  }
+
+  private class MergeEntry {
     final Branch.NameKey dest;
     boolean needMerge;
     boolean jobScheduled;
+    boolean running;
+    boolean removed;
+    long readyAt;
 
     MergeEntry(final Branch.NameKey d) {
       dest = d;
     }
+  }
+
+  /**
+   * Merges whichever branch is next in turn once a thread is available.
+   * <p>
+   * One job is queued per waiting branch, so while the job may merge another
+   * branch first, the jobs listed by show-queue name the waiting branches.
+   */
+  private class MergeJob implements Runnable {
+    final MergeEntry entry;
+
+    MergeJob(final MergeEntry e) {
+      entry = e;
+    }
 
     public void run() {
-      unschedule(this);
-      mergeImpl(dest);
+      final MergeEntry e = nextReady();
+      if (e != null) {
+        runJob(e);
+      }
     }
 
     @Override
     public String toString() {
-      final Project.NameKey project = dest.getParentKey();
-      return "submit " + project.get() + " " + dest.getShortName();
+      final Project.NameKey project = entry.dest.getParentKey();
+      return "submit " + project.get() + " " + entry.dest.getShortName();
+    }
+  }
+
+  /** Queues a branch once its batch window has passed. */
+  private class BatchJob extends MergeJob {
+    BatchJob(final MergeEntry e) {
+      super(e);
+    }
+
+    @Override
+    public void run() {
+      synchronized (entry) {
+        entry.readyAt = System.currentTimeMillis();
+      }
+      enqueue(entry);
+      super.run();
     }
   }
 
@@ -0,0 +1,262 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the patch set references of each project, by commit.
+ * <p>
+ * Projects can have hundreds of thousands of {@code refs/changes/}, while a
+ * push only touches a handful of commits. The index is loaded once per
+ * project and then kept current from the reference update events Gerrit fires
+ * when it creates or deletes patch set references, so {@link ReceiveCommits}
+ * can look commits up without listing every reference on each push.
+ * <p>
+ * Events that arrive while a project is being loaded are applied to the
+ * entry under construction, so a reference created or deleted during the
+ * listing is not lost. References modified outside of Gerrit are picked up
+ * when the entry expires and is loaded again.
+ * <p>
+ * Change keys are not indexed here: references do not name the Change-Id of
+ * their change, so such an index could not be kept current from reference
+ * updates. {@link ReceiveCommits} reads the open changes of the destination
+ * branch from the database instead, whose cost depends on the number of
+ * open changes of the branch rather than on the number of references.
+ */
+@Singleton
+public class ChangeRefIndex implements GitReferenceUpdatedListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeRefIndex.class);
+
+  private static final String CACHE_NAME = "change_refs";
+  private static final String REFS_CHANGES = "refs/changes/";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Project.NameKey.class, ChangeRefs.class)
+          .expireAfterWrite(10, TimeUnit.MINUTES)
+          .loader(Loader.class);
+        bind(ChangeRefIndex.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+          .to(ChangeRefIndex.class);
+      }
+    };
+  }
+
+  private final LoadingCache<Project.NameKey, ChangeRefs> cache;
+  private final Loader loader;
+  private final GitRepositoryManager repoManager;
+
+  @Inject
+  ChangeRefIndex(
+      @Named(CACHE_NAME) LoadingCache<Project.NameKey, ChangeRefs> cache,
+      Loader loader,
+      GitRepositoryManager repoManager) {
+    this.cache = cache;
+    this.loader = loader;
+    this.repoManager = repoManager;
+  }
+
+  /** @return patch set references of the project. */
+  ChangeRefs get(Project.NameKey name) throws IOException {
+    try {
+      ChangeRefs refs = cache.get(name);
+      // The entry is now visible through the cache, so later events no
+      // longer need the loader to find it.
+      loader.loading.remove(name, refs);
+      return refs;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Cannot list patch sets of " + name, e);
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    Project.NameKey name = new Project.NameKey(event.getProjectName());
+    ChangeRefs refs = cache.getIfPresent(name);
+    if (refs == null) {
+      refs = loader.loading.get(name);
+      if (refs == null) {
+        return;
+      }
+    }
+
+    Repository repo = null;
+    try {
+      for (Update u : event.getUpdates()) {
+        String refName = u.getRefName();
+        if (!refName.startsWith(REFS_CHANGES) || !PatchSet.isRef(refName)) {
+          continue;
+        }
+        if (repo == null) {
+          repo = repoManager.openRepository(name);
+        }
+        Ref ref = repo.getRefDatabase().getRef(refName);
+        if (ref != null && ref.getObjectId() != null) {
+          refs.update(refName, ref.getObjectId());
+        } else {
+          refs.update(refName, null);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Cannot update patch set index of " + name, e);
+      cache.invalidate(name);
+    } finally {
+      if (repo != null) {
+        repo.close();
+      }
+    }
+  }
+
+  /** Patch set references of a single project. */
+  static class ChangeRefs {
+    // A commit may be the patch set of several changes, for example when
+    // it was uploaded for more than one branch.
+    private final SetMultimap<ObjectId, String> byCommit =
+        HashMultimap.create();
+    private final Map<String, ObjectId> byName = Maps.newHashMap();
+
+    /** References updated by events while the listing is still running. */
+    private Set<String> updatedDuringLoad = Sets.newHashSet();
+
+    /** @return a patch set reference pointing at id; null if there is none. */
+    synchronized String get(AnyObjectId id) {
+      if (!byCommit.containsKey(id)) {
+        return null;
+      }
+      return Iterables.getFirst(byCommit.get(id.copy()), null);
+    }
+
+    synchronized boolean contains(AnyObjectId id) {
+      return byCommit.containsKey(id);
+    }
+
+    /** @return commits of all patch sets, copied. */
+    synchronized List<ObjectId> commits() {
+      return Lists.newArrayList(byCommit.keySet());
+    }
+
+    /** Apply an event; a null id means the reference was deleted. */
+    synchronized void update(String refName, ObjectId id) {
+      if (updatedDuringLoad != null) {
+        updatedDuringLoad.add(refName);
+      }
+      if (id != null) {
+        put(refName, id);
+      } else {
+        remove(refName);
+      }
+    }
+
+    /** Add a listed reference, unless an event already updated it. */
+    synchronized void load(String refName, ObjectId id) {
+      if (!updatedDuringLoad.contains(refName)) {
+        put(refName, id);
+      }
+    }
+
+    synchronized void loaded() {
+      updatedDuringLoad = null;
+    }
+
+    private void put(String refName, ObjectId id) {
+      remove(refName);
+      byName.put(refName, id);
+      byCommit.put(id, refName);
+    }
+
+    private void remove(String refName) {
+      ObjectId old = byName.remove(refName);
+      if (old != null) {
+        byCommit.remove(old, refName);
+      }
+    }
+  }
+
+  @Singleton
+  static class Loader extends CacheLoader<Project.NameKey, ChangeRefs> {
+    /** Entries being loaded, until {@link ChangeRefIndex#get} returns them. */
+    final ConcurrentMap<Project.NameKey, ChangeRefs> loading =
+        Maps.newConcurrentMap();
+
+    private final GitRepositoryManager repoManager;
+
+    @Inject
+    Loader(GitRepositoryManager repoManager) {
+      this.repoManager = repoManager;
+    }
+
+    @Override
+    public ChangeRefs load(Project.NameKey name) throws Exception {
+      ChangeRefs r = new ChangeRefs();
+      loading.put(name, r);
+      try {
+        Repository repo = repoManager.openRepository(name);
+        try {
+          for (Ref ref
+              : repo.getRefDatabase().getRefs(REFS_CHANGES).values()) {
+            if (PatchSet.isRef(ref.getName()) && ref.getObjectId() != null) {
+              r.load(ref.getName(), ref.getObjectId());
+            }
+          }
+        } finally {
+          repo.close();
+        }
+      } catch (Exception e) {
+        loading.remove(name, r);
+        throw e;
+      }
+      r.loaded();
+      return r;
+    }
+  }
+}
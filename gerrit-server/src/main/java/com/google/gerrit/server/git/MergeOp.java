@@ -38,14 +38,17 @@ import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.MergeFailSender;
 import com.google.gerrit.server.mail.MergedSender;
+import com.google.gerrit.server.patch.DiffPrefetcher;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.patch.PatchSetInfoNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gerrit.server.util.RequestScopePropagator;
 import com.google.gerrit.server.workflow.CategoryFunction;
 import com.google.gerrit.server.workflow.FunctionState;
@@ -91,6 +94,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -161,12 +165,22 @@ public class MergeOp {
   private RefUpdate branchUpdate;
   private ObjectInserter inserter;
 
+  /** Writes of {@link #setMerged}, stored together by {@link #storeMerged}. */
+  private final List<PatchSetApproval> mergedApprovals =
+      new ArrayList<PatchSetApproval>();
+  private final List<ChangeMessage> mergedMessages =
+      new ArrayList<ChangeMessage>();
+  private final List<MergedChange> mergedChanges = new ArrayList<MergedChange>();
+
   private final ChangeHooks hooks;
   private final AccountCache accountCache;
   private final TagCache tagCache;
   private final CreateCodeReviewNotes.Factory codeReviewNotesFactory;
   private final SubmoduleOp.Factory subOpFactory;
   private final WorkQueue workQueue;
+  private final ChangeIndexer changeIndexer;
+  private final DiffPrefetcher diffPrefetcher;
+  private final ChangeStatistics changeStatistics;
   private final RequestScopePropagator requestScopePropagator;
 
   @Inject
@@ -183,7 +197,9 @@ public class MergeOp {
       final ChangeHooks hooks, final AccountCache accountCache,
       final TagCache tagCache, final CreateCodeReviewNotes.Factory crnf,
       final SubmoduleOp.Factory subOpFactory,
-      final WorkQueue workQueue,
+      final WorkQueue workQueue, final ChangeIndexer changeIndexer,
+      final DiffPrefetcher diffPrefetcher,
+      final ChangeStatistics changeStatistics,
       final RequestScopePropagator requestScopePropagator) {
     repoManager = grm;
     schemaFactory = sf;
@@ -204,6 +220,9 @@ public class MergeOp {
     codeReviewNotesFactory = crnf;
     this.subOpFactory = subOpFactory;
     this.workQueue = workQueue;
+    this.changeIndexer = changeIndexer;
+    this.diffPrefetcher = diffPrefetcher;
+    this.changeStatistics = changeStatistics;
     this.requestScopePropagator = requestScopePropagator;
     this.myIdent = myIdent;
     destBranch = branch;
@@ -955,6 +974,17 @@ public class MergeOp {
     insertAncestors(ps.getId(), newCommit);
     db.patchSets().insert(Collections.singleton(ps));
 
+    final RefUpdate ru = repo.updateRef(ps.getRefName());
+    ru.setExpectedOldObjectId(ObjectId.zeroId());
+    ru.setNewObjectId(newCommit);
+    ru.disableRefLog();
+    if (ru.update(rw) != RefUpdate.Result.NEW) {
+      throw new IOException(String.format(
+          "Failed to create ref %s in %s: %s", ps.getRefName(),
+          n.change.getProject().get(), ru.getResult()));
+    }
+    replication.fire(n.change.getProject(), ru.getName());
+
     n.change =
         db.changes().atomicUpdate(n.change.getId(),
             new AtomicUpdate<Change>() {
@@ -975,6 +1005,8 @@ public class MergeOp {
             Collections.singleton(new PatchSetApproval(ps.getId(), a)));
       }
     }
+    changeIndexer.indexAsync(n.change);
+    diffPrefetcher.prefetch(n.change.getProject(), newCommit, n);
 
     newCommit.copyFrom(n);
     newCommit.statusCode = CommitMergeStatus.CLEAN_PICK;
@@ -1152,6 +1184,7 @@ public class MergeOp {
           break;
       }
     }
+    storeMerged();
 
     CreateCodeReviewNotes codeReviewNotes =
         codeReviewNotesFactory.create(db, repo);
@@ -1359,9 +1392,11 @@ public class MergeOp {
     final PatchSet.Id merged = commit.change.currentPatchSetId();
 
     try {
+      final Change.Status[] oldStatus = new Change.Status[1];
       db.changes().atomicUpdate(changeId, new AtomicUpdate<Change>() {
         @Override
         public Change update(Change c) {
+          oldStatus[0] = c.getStatus();
           c.setStatus(Change.Status.MERGED);
           // It could be possible that the change being merged
           // has never had its mergeability tested. So we insure
@@ -1381,6 +1416,8 @@ public class MergeOp {
           return c;
         }
       });
+      changeStatistics.onStatusChanged(c.getProject(), oldStatus[0],
+          Change.Status.MERGED);
     } catch (OrmConcurrencyException err) {
     } catch (OrmException err) {
       log.warn("Cannot update change status", err);
@@ -1416,7 +1453,7 @@ public class MergeOp {
         }
         a.cache(c);
       }
-      db.patchSetApprovals().update(approvals);
+      mergedApprovals.addAll(approvals);
     } catch (NoSuchChangeException err) {
       log.warn("Cannot normalize approvals for change " + changeId, err);
     } catch (OrmException err) {
@@ -1427,14 +1464,82 @@ public class MergeOp {
       if (submitter != null && msg.getAuthor() == null) {
         msg.setAuthor(submitter.getAccountId());
       }
+      mergedMessages.add(msg);
+    }
+    mergedChanges.add(new MergedChange(c, submitter));
+  }
+
+  /**
+   * Store the approvals and messages of all changes merged by this run with
+   * one batch per table, then notify users and hooks of each change.
+   * <p>
+   * If a batch fails the rows are written again one change at a time, so a
+   * single bad row only loses the writes of its own change.
+   */
+  private void storeMerged() {
+    if (!mergedApprovals.isEmpty()) {
       try {
-        db.changeMessages().insert(Collections.singleton(msg));
-      } catch (OrmException err) {
-        log.warn("Cannot store message on change", err);
+        db.patchSetApprovals().update(mergedApprovals);
+      } catch (OrmException batchErr) {
+        log.warn("Cannot store normalized approvals of "
+            + mergedChanges.size() + " merged changes, retrying per change",
+            batchErr);
+        for (Map.Entry<Change.Id, List<PatchSetApproval>> e
+            : byChange(mergedApprovals).entrySet()) {
+          try {
+            db.patchSetApprovals().update(e.getValue());
+          } catch (OrmException err) {
+            log.warn("Cannot normalize approvals for change " + e.getKey(),
+                err);
+          }
+        }
+      }
+    }
+    if (!mergedMessages.isEmpty()) {
+      try {
+        db.changeMessages().insert(mergedMessages);
+      } catch (OrmException batchErr) {
+        log.warn("Cannot store messages of "
+            + mergedChanges.size() + " merged changes, retrying per change",
+            batchErr);
+        for (ChangeMessage msg : mergedMessages) {
+          try {
+            db.changeMessages().insert(Collections.singleton(msg));
+          } catch (OrmException err) {
+            log.warn("Cannot store message on change "
+                + msg.getKey().getParentKey(), err);
+          }
+        }
+      }
+    }
+
+    for (MergedChange m : mergedChanges) {
+      // Index once the normalized approvals are stored.
+      changeIndexer.indexAsync(m.change);
+      sendMerged(m.change, m.submitter);
+    }
+    mergedApprovals.clear();
+    mergedMessages.clear();
+    mergedChanges.clear();
+  }
+
+  private static Map<Change.Id, List<PatchSetApproval>> byChange(
+      List<PatchSetApproval> approvals) {
+    Map<Change.Id, List<PatchSetApproval>> r =
+        new LinkedHashMap<Change.Id, List<PatchSetApproval>>();
+    for (PatchSetApproval a : approvals) {
+      Change.Id id = a.getPatchSetId().getParentKey();
+      List<PatchSetApproval> l = r.get(id);
+      if (l == null) {
+        l = new ArrayList<PatchSetApproval>();
+        r.put(id, l);
       }
+      l.add(a);
     }
+    return r;
+  }
 
-    final PatchSetApproval from = submitter;
+  private void sendMerged(final Change c, final PatchSetApproval from) {
     workQueue.getDefaultQueue()
         .submit(requestScopePropagator.wrap(new Runnable() {
       @Override
@@ -1473,7 +1578,7 @@ public class MergeOp {
 
     try {
       hooks.doChangeMergedHook(c, //
-          accountCache.get(submitter.getAccountId()).getAccount(), //
+          accountCache.get(from.getAccountId()).getAccount(), //
           db.patchSets().get(c.currentPatchSetId()), db);
     } catch (OrmException ex) {
       log.error("Cannot run hook for submitted patch set " + c.getId(), ex);
@@ -1494,9 +1599,11 @@ public class MergeOp {
 
     if (makeNew) {
       try {
+        final Change.Status[] oldStatus = new Change.Status[1];
         db.changes().atomicUpdate(c.getId(), new AtomicUpdate<Change>() {
           @Override
           public Change update(Change c) {
+            oldStatus[0] = c.getStatus();
             if (c.getStatus().isOpen()) {
               c.setStatus(Change.Status.NEW);
               ChangeUtil.updated(c);
@@ -1504,6 +1611,11 @@ public class MergeOp {
             return c;
           }
         });
+        if (oldStatus[0].isOpen()) {
+          changeStatistics.onStatusChanged(c.getProject(), oldStatus[0],
+              Change.Status.NEW);
+          changeIndexer.indexAsync(c);
+        }
       } catch (OrmConcurrencyException err) {
       } catch (OrmException err) {
         log.warn("Cannot update change status", err);
@@ -1554,4 +1666,14 @@ public class MergeOp {
       }
     }));
   }
+
+  private static class MergedChange {
+    final Change change;
+    final PatchSetApproval submitter;
+
+    MergedChange(Change change, PatchSetApproval submitter) {
+      this.change = change;
+      this.submitter = submitter;
+    }
+  }
 }
@@ -14,6 +14,7 @@
 
 package com.google.gerrit.server.git;
 
+import static org.eclipse.jgit.lib.Constants.OBJ_COMMIT;
 import static org.eclipse.jgit.lib.Constants.R_HEADS;
 import static com.google.gerrit.server.git.MultiProgressMonitor.UNKNOWN;
 import static org.eclipse.jgit.transport.ReceiveCommand.Result.NOT_ATTEMPTED;
@@ -24,12 +25,12 @@ import static org.eclipse.jgit.transport.ReceiveCommand.Result.REJECTED_OTHER_RE
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.CheckedFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -59,15 +60,18 @@ import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.config.TrackingFooters;
 import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
 import com.google.gerrit.server.git.MultiProgressMonitor.Task;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.CreateChangeSender;
 import com.google.gerrit.server.mail.MergedSender;
 import com.google.gerrit.server.mail.ReplacePatchSetSender;
+import com.google.gerrit.server.patch.DiffPrefetcher;
 import com.google.gerrit.server.patch.PatchSetInfoFactory;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.gerrit.server.project.RefControl;
+import com.google.gerrit.server.query.change.ChangeStatistics;
 import com.google.gerrit.server.util.MagicBranch;
 import com.google.gerrit.server.util.RequestScopePropagator;
 import com.google.gwtorm.server.AtomicUpdate;
@@ -86,6 +90,7 @@ import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.notes.NoteMap;
 import org.eclipse.jgit.revwalk.FooterKey;
@@ -114,6 +119,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -131,6 +137,12 @@ public class ReceiveCommits {
   private static final FooterKey TESTED_BY = new FooterKey("Tested-by");
   private static final FooterKey CHANGE_ID = new FooterKey("Change-Id");
 
+  /** Number of commits checked by one validation task. */
+  private static final int VALIDATE_CHUNK = 32;
+
+  /** Number of validation tasks a single push may have outstanding. */
+  private static final int VALIDATE_WINDOW = 8;
+
   private static final String COMMAND_REJECTION_MESSAGE_FOOTER =
       "Please read the documentation and contact an administrator\n"
           + "if you feel the configuration is incorrect";
@@ -249,6 +261,7 @@ public class ReceiveCommits {
   private final TagCache tagCache;
   private final WorkQueue workQueue;
   private final ListeningExecutorService changeUpdateExector;
+  private final ListeningExecutorService commitValidationExecutor;
   private final RequestScopePropagator requestScopePropagator;
 
   private final ProjectControl projectControl;
@@ -267,7 +280,11 @@ public class ReceiveCommits {
       new HashMap<RevCommit, ReplaceRequest>();
 
   private Collection<ObjectId> existingObjects;
-  private Map<ObjectId, Ref> refsById;
+  private final ChangeRefIndex changeRefIndex;
+  private ChangeRefIndex.ChangeRefs changeRefs;
+  private final ChangeIndexer changeIndexer;
+  private final DiffPrefetcher diffPrefetcher;
+  private final ChangeStatistics changeStatistics;
 
   private String destTopicName;
 
@@ -279,6 +296,7 @@ public class ReceiveCommits {
   private Task replaceProgress;
   private Task closeProgress;
   private Task commandProgress;
+  private Task validateProgress;
   private MessageSender messageSender;
   private BatchRefUpdate batch;
 
@@ -296,11 +314,18 @@ public class ReceiveCommits {
       final ProjectCache projectCache,
       final GitRepositoryManager repoManager,
       final TagCache tagCache,
+      final VisibleChangesCache changeCache,
+      final ChangeRefIndex changeRefIndex,
+      final ChangeIndexer changeIndexer,
+      final DiffPrefetcher diffPrefetcher,
+      final ChangeStatistics changeStatistics,
       @CanonicalWebUrl @Nullable final String canonicalWebUrl,
       @GerritPersonIdent final PersonIdent gerritIdent,
       final TrackingFooters trackingFooters,
       final WorkQueue workQueue,
       @ChangeUpdateExecutor ListeningExecutorService changeUpdateExector,
+      @CommitValidationExecutor
+      ListeningExecutorService commitValidationExecutor,
       final RequestScopePropagator requestScopePropagator,
 
       @Assisted final ProjectControl projectControl,
@@ -323,8 +348,13 @@ public class ReceiveCommits {
     this.gerritIdent = gerritIdent;
     this.trackingFooters = trackingFooters;
     this.tagCache = tagCache;
+    this.changeRefIndex = changeRefIndex;
+    this.changeIndexer = changeIndexer;
+    this.diffPrefetcher = diffPrefetcher;
+    this.changeStatistics = changeStatistics;
     this.workQueue = workQueue;
     this.changeUpdateExector = changeUpdateExector;
+    this.commitValidationExecutor = commitValidationExecutor;
     this.requestScopePropagator = requestScopePropagator;
 
     this.projectControl = projectControl;
@@ -344,7 +374,8 @@ public class ReceiveCommits {
 
     if (!projectControl.allRefsAreVisible()) {
       rp.setCheckReferencedObjectsAreReachable(true);
-      rp.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, repo, projectControl, db, false));
+      rp.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeCache,
+          repo, projectControl, db, false));
     }
     List<AdvertiseRefsHook> advHooks = new ArrayList<AdvertiseRefsHook>(2);
     advHooks.add(rp.getAdvertiseRefsHook());
@@ -491,6 +522,7 @@ public class ReceiveCommits {
     replaceProgress = progress.beginSubTask("updated", UNKNOWN);
     closeProgress = progress.beginSubTask("closed", UNKNOWN);
     commandProgress = progress.beginSubTask("refs", UNKNOWN);
+    validateProgress = progress.beginSubTask("validated", UNKNOWN);
 
     batch = repo.getRefDatabase().newBatchUpdate();
     batch.setRefLogIdent(rp.getRefLogIdent());
@@ -578,6 +610,7 @@ public class ReceiveCommits {
     }
     closeProgress.end();
     commandProgress.end();
+    validateProgress.end();
     progress.end();
 
     Iterable<CreateRequest> created =
@@ -1118,22 +1151,26 @@ public class ReceiveCommits {
     walk.sort(RevSort.TOPO);
     walk.sort(RevSort.REVERSE, true);
     try {
-      Set<ObjectId> existing = Sets.newHashSet();
+      ChangeRefIndex.ChangeRefs existing = changeRefs();
       walk.markStart(walk.parseCommit(newChange.getNewId()));
-      for (Ref ref : repo.getAllRefs().values()) {
+      List<Ref> accepted = Lists.newArrayList(
+          repo.getRefDatabase().getRefs(R_HEADS).values());
+      if (!destBranchCtl.getRefName().startsWith(R_HEADS)) {
+        Ref dest = repo.getRefDatabase().getRef(destBranchCtl.getRefName());
+        if (dest != null) {
+          accepted.add(dest);
+        }
+      }
+      for (Ref ref : accepted) {
         if (ref.getObjectId() == null) {
           continue;
-        } else if (ref.getName().startsWith("refs/changes/")) {
-          existing.add(ref.getObjectId());
-        } else if (ref.getName().startsWith(R_HEADS)
-            || ref.getName().equals(destBranchCtl.getRefName())) {
-          try {
-            walk.markUninteresting(walk.parseCommit(ref.getObjectId()));
-          } catch (IOException e) {
-            log.warn(String.format("Invalid ref %s in %s",
-                ref.getName(), project.getName()), e);
-            continue;
-          }
+        }
+        try {
+          walk.markUninteresting(walk.parseCommit(ref.getObjectId()));
+        } catch (IOException e) {
+          log.warn(String.format("Invalid ref %s in %s",
+              ref.getName(), project.getName()), e);
+          continue;
         }
       }
 
@@ -1348,8 +1385,11 @@ public class ReceiveCommits {
       }
 
       created = true;
+      changeStatistics.onChangeCreated(change);
       replication.fire(project.getNameKey(), ps.getRefName());
       hooks.doPatchsetCreatedHook(change, ps, db);
+      changeIndexer.indexAsync(change);
+      diffPrefetcher.prefetch(project.getNameKey(), commit, null);
       workQueue.getDefaultQueue()
           .submit(requestScopePropagator.wrap(new Runnable() {
         @Override
@@ -1465,7 +1505,9 @@ public class ReceiveCommits {
     PatchSetInfo info;
     ChangeMessage msg;
     String mergedIntoRef;
+    Change.Status oldStatus;
     private PatchSet.Id priorPatchSet;
+    private ObjectId priorCommit;
 
     ReplaceRequest(final Change.Id toChange, final RevCommit newCommit,
         final ReceiveCommand cmd, final boolean checkMergedInto) {
@@ -1521,6 +1563,9 @@ public class ReceiveCommits {
 
         try {
           final RevCommit prior = rp.getRevWalk().parseCommit(commitId);
+          if (priorPatchSet.equals(ps.getId())) {
+            priorCommit = prior;
+          }
 
           // Don't allow a change to directly depend upon itself. This is a
           // very common error due to users making a new commit rather than
@@ -1710,6 +1755,7 @@ public class ReceiveCommits {
               db.changes().atomicUpdate(change.getId(), new AtomicUpdate<Change>() {
                 @Override
                 public Change update(Change change) {
+                  oldStatus = null;
                   if (change.getStatus().isClosed()) {
                     return null;
                   }
@@ -1718,6 +1764,7 @@ public class ReceiveCommits {
                     return change;
                   }
 
+                  oldStatus = change.getStatus();
                   if (destTopicName != null) {
                     change.setTopic(destTopicName);
                   }
@@ -1744,6 +1791,10 @@ public class ReceiveCommits {
       } finally {
         db.rollback();
       }
+      if (oldStatus != null) {
+        changeStatistics.onStatusChanged(project.getNameKey(), oldStatus,
+            change.getStatus());
+      }
 
       if (mergedIntoRef != null) {
         // Change was already submitted to a branch, close it.
@@ -1753,6 +1804,8 @@ public class ReceiveCommits {
 
       replication.fire(project.getNameKey(), newPatchSet.getRefName());
       hooks.doPatchsetCreatedHook(change, newPatchSet, db);
+      changeIndexer.indexAsync(change);
+      diffPrefetcher.prefetch(project.getNameKey(), newCommit, priorCommit);
       if (mergedIntoRef != null) {
         hooks.doChangeMergedHook(
             change, currentUser.getAccount(), newPatchSet, db);
@@ -1827,16 +1880,13 @@ public class ReceiveCommits {
 
   private Ref findMergedInto(final String first, final RevCommit commit) {
     try {
-      final Map<String, Ref> all = repo.getAllRefs();
-      Ref firstRef = all.get(first);
+      Ref firstRef = repo.getRefDatabase().getRef(first);
       if (firstRef != null && isMergedInto(commit, firstRef)) {
         return firstRef;
       }
-      for (Ref ref : all.values()) {
-        if (isHead(ref)) {
-          if (isMergedInto(commit, ref)) {
-            return ref;
-          }
+      for (Ref ref : repo.getRefDatabase().getRefs(R_HEADS).values()) {
+        if (isMergedInto(commit, ref)) {
+          return ref;
         }
       }
       return null;
@@ -1865,9 +1915,13 @@ public class ReceiveCommits {
       return;
     }
 
-    final RevWalk walk = rp.getRevWalk();
-    walk.reset();
+    // Use a private walk that does not retain commit bodies. Bodies are read
+    // as raw buffers and parsed by the validation tasks, so only the commits
+    // within the validation window are held in memory.
+    final RevWalk walk = new RevWalk(repo);
+    walk.setRetainBody(false);
     walk.sort(RevSort.NONE);
+    final CommitStream stream = new CommitStream(new CommitCheck(ctl, cmd), cmd);
     try {
       walk.markStart(walk.parseCommit(cmd.getNewId()));
       for (ObjectId id : existingObjects()) {
@@ -1877,116 +1931,149 @@ public class ReceiveCommits {
           continue;
         }
       }
+      // Patch sets were validated when they were uploaded, and so was their
+      // history; stop the walk at them as at any other reference.
+      for (ObjectId id : changeRefs().commits()) {
+        try {
+          walk.markUninteresting(walk.parseCommit(id));
+        } catch (IOException e) {
+          continue;
+        }
+      }
 
+      ObjectReader reader = walk.getObjectReader();
+      boolean any = false;
       RevCommit c;
       while ((c = walk.next()) != null) {
-        if (!validCommit(ctl, cmd, c)) {
-          break;
+        // Check for banned commits to prevent them from entering the tree
+        // again, after reporting problems found in earlier commits.
+        if (rejectCommits.contains(c)) {
+          if (stream.finish()) {
+            reject(cmd, "contains banned commit " + c.getName());
+          }
+          return;
+        }
+
+        any = true;
+        if (!stream.add(reader.open(c, OBJ_COMMIT).getCachedBytes())) {
+          return;
         }
       }
+      if (stream.finish() && any) {
+        validProjectConfig(ctl, cmd);
+      }
     } catch (IOException err) {
       cmd.setResult(REJECTED_MISSING_OBJECT);
       log.error("Invalid pack upload; one or more objects weren't sent", err);
+    } finally {
+      stream.cancel();
+      walk.release();
     }
   }
 
-  private Collection<ObjectId> existingObjects() {
-    if (existingObjects == null) {
-      Map<String, Ref> refs = repo.getAllRefs();
-      existingObjects = new ArrayList<ObjectId>(refs.size());
-      for (Ref r : refs.values()) {
-        existingObjects.add(r.getObjectId());
-      }
-    }
-    return existingObjects;
-  }
+  /**
+   * Checks a stream of raw commits on the validation executor.
+   * <p>
+   * Commits are parsed and checked in chunks of {@link #VALIDATE_CHUNK}. Once
+   * {@link #VALIDATE_WINDOW} chunks are outstanding the oldest one is waited
+   * for, bounding memory use regardless of the number of commits pushed.
+   * Results are reported in the order the commits were added, so the first
+   * bad commit is the one the command is rejected for.
+   */
+  private class CommitStream {
+    private final CommitCheck check;
+    private final ReceiveCommand cmd;
+    private final List<ListenableFuture<ChunkResult>> pending =
+        Lists.newLinkedList();
+    private List<byte[]> chunk = Lists.newArrayListWithCapacity(VALIDATE_CHUNK);
 
-  private boolean validCommit(final RefControl ctl, final ReceiveCommand cmd,
-      final RevCommit c) throws MissingObjectException, IOException {
-    rp.getRevWalk().parseBody(c);
-    final PersonIdent committer = c.getCommitterIdent();
-    final PersonIdent author = c.getAuthorIdent();
+    CommitStream(CommitCheck check, ReceiveCommand cmd) {
+      this.check = check;
+      this.cmd = cmd;
+    }
 
-    // Require permission to upload merges.
-    if (c.getParentCount() > 1 && !ctl.canUploadMerges()) {
-      reject(cmd, "you are not allowed to upload merges");
-      return false;
+    /** @return false if the command was rejected. */
+    boolean add(byte[] raw) {
+      chunk.add(raw);
+      if (chunk.size() < VALIDATE_CHUNK) {
+        return true;
+      }
+      submit();
+      return pending.size() < VALIDATE_WINDOW || checkOldest();
     }
 
-    // Don't allow the user to amend a merge created by Gerrit Code Review.
-    // This seems to happen all too often, due to users not paying any
-    // attention to what they are doing.
-    //
-    if (c.getParentCount() > 1
-        && author.getName().equals(gerritIdent.getName())
-        && author.getEmailAddress().equals(gerritIdent.getEmailAddress())
-        && !ctl.canForgeGerritServerIdentity()) {
-      reject(cmd, "do not amend merges not made by you");
-      return false;
+    /** @return false if the command was rejected. */
+    boolean finish() {
+      submit();
+      while (!pending.isEmpty()) {
+        if (!checkOldest()) {
+          return false;
+        }
+      }
+      return true;
     }
 
-    // Require that author matches the uploader.
-    //
-    if (!currentUser.getEmailAddresses().contains(author.getEmailAddress())
-        && !ctl.canForgeAuthor()) {
-      sendInvalidEmailError(c, "author", author);
-      reject(cmd, "invalid author");
-      return false;
+    void cancel() {
+      for (ListenableFuture<ChunkResult> f : pending) {
+        f.cancel(false);
+      }
+      pending.clear();
     }
 
-    // Require that committer matches the uploader.
-    //
-    if (!currentUser.getEmailAddresses().contains(committer.getEmailAddress())
-        && !ctl.canForgeCommitter()) {
-      sendInvalidEmailError(c, "committer", committer);
-      reject(cmd, "invalid committer");
-      return false;
+    private void submit() {
+      if (!chunk.isEmpty()) {
+        pending.add(commitValidationExecutor.submit(check.task(chunk)));
+        chunk = Lists.newArrayListWithCapacity(VALIDATE_CHUNK);
+      }
     }
 
-    if (project.isUseSignedOffBy()) {
-      // If the project wants Signed-off-by / Acked-by lines, verify we
-      // have them for the blamable parties involved on this change.
-      //
-      boolean sboAuthor = false, sboCommitter = false, sboMe = false;
-      for (final FooterLine footer : c.getFooterLines()) {
-        if (footer.matches(FooterKey.SIGNED_OFF_BY)) {
-          final String e = footer.getEmailAddress();
-          if (e != null) {
-            sboAuthor |= author.getEmailAddress().equals(e);
-            sboCommitter |= committer.getEmailAddress().equals(e);
-            sboMe |= currentUser.getEmailAddresses().contains(e);
-          }
-        }
+    private boolean checkOldest() {
+      ChunkResult r;
+      try {
+        r = pending.remove(0).get();
+      } catch (InterruptedException e) {
+        reject(cmd, "interrupted");
+        return false;
+      } catch (ExecutionException e) {
+        log.error("Cannot validate commits pushed to " + cmd.getRefName(), e);
+        reject(cmd, "internal server error");
+        return false;
       }
-      if (!sboAuthor && !sboCommitter && !sboMe && !ctl.canForgeCommitter()) {
-        reject(cmd, "not Signed-off-by author/committer/uploader");
+      validateProgress.update(r.checked);
+      if (r.problem != null) {
+        reject(cmd, r.commit, r.problem);
         return false;
       }
+      return true;
     }
+  }
 
-    final List<String> idList = c.getFooterLines(CHANGE_ID);
-    if (MagicBranch.isMagicBranch(cmd.getRefName()) || NEW_PATCHSET.matcher(cmd.getRefName()).matches()) {
-      if (idList.isEmpty()) {
-        if (project.isRequireChangeID()) {
-          String errMsg = "missing Change-Id in commit message";
-          reject(cmd, errMsg);
-          addMessage(getFixedCommitMsgWithChangeId(errMsg, c));
-          return false;
-        }
-      } else if (idList.size() > 1) {
-        reject(cmd, "multiple Change-Id lines in commit message");
-        return false;
-      } else {
-        final String v = idList.get(idList.size() - 1).trim();
-        if (!v.matches("^I[0-9a-f]{8,}.*$")) {
-          final String errMsg =
-              "missing or invalid Change-Id line format in commit message";
-          reject(cmd, errMsg);
-          addMessage(getFixedCommitMsgWithChangeId(errMsg, c));
-          return false;
+  /**
+   * @return tips of all references that are not patch sets, including user
+   *         and sandbox branches. Commits of patch sets are found with
+   *         {@link #changeRefs()} instead.
+   */
+  private Collection<ObjectId> existingObjects() throws IOException {
+    if (existingObjects == null) {
+      Map<String, Ref> refs = repo.getRefDatabase().getRefs(RefDatabase.ALL);
+      existingObjects = new ArrayList<ObjectId>();
+      for (Ref r : refs.values()) {
+        if (!r.getName().startsWith("refs/changes/")) {
+          existingObjects.add(r.getObjectId());
         }
       }
     }
+    return existingObjects;
+  }
+
+  private boolean validCommit(final RefControl ctl, final ReceiveCommand cmd,
+      final RevCommit c) throws MissingObjectException, IOException {
+    rp.getRevWalk().parseBody(c);
+    CommitProblem problem = new CommitCheck(ctl, cmd).check(c);
+    if (problem != null) {
+      reject(cmd, c, problem);
+      return false;
+    }
 
     // Check for banned commits to prevent them from entering the tree again.
     if (rejectCommits.contains(c)) {
@@ -1994,7 +2081,11 @@ public class ReceiveCommits {
       return false;
     }
 
-    // If this is the special project configuration branch, validate the config.
+    return validProjectConfig(ctl, cmd);
+  }
+
+  /** If this is the special project configuration branch, validate the config. */
+  private boolean validProjectConfig(RefControl ctl, ReceiveCommand cmd) {
     if (GitRepositoryManager.REF_CONFIG.equals(ctl.getRefName())) {
       try {
         ProjectConfig cfg = new ProjectConfig(project.getNameKey());
@@ -2018,10 +2109,173 @@ public class ReceiveCommits {
         return false;
       }
     }
-
     return true;
   }
 
+  private void reject(ReceiveCommand cmd, RevCommit c, CommitProblem problem) {
+    switch (problem) {
+      case INVALID_AUTHOR:
+        sendInvalidEmailError(c, "author", c.getAuthorIdent());
+        break;
+      case INVALID_COMMITTER:
+        sendInvalidEmailError(c, "committer", c.getCommitterIdent());
+        break;
+      case MISSING_CHANGE_ID:
+      case INVALID_CHANGE_ID:
+        addMessage(getFixedCommitMsgWithChangeId(problem.message, c));
+        break;
+      default:
+        break;
+    }
+    reject(cmd, problem.message);
+  }
+
+  private static enum CommitProblem {
+    MERGE_NOT_PERMITTED("you are not allowed to upload merges"),
+    AMENDED_MERGE("do not amend merges not made by you"),
+    INVALID_AUTHOR("invalid author"),
+    INVALID_COMMITTER("invalid committer"),
+    MISSING_SIGNED_OFF_BY("not Signed-off-by author/committer/uploader"),
+    MISSING_CHANGE_ID("missing Change-Id in commit message"),
+    MULTIPLE_CHANGE_IDS("multiple Change-Id lines in commit message"),
+    INVALID_CHANGE_ID(
+        "missing or invalid Change-Id line format in commit message");
+
+    final String message;
+
+    CommitProblem(String message) {
+      this.message = message;
+    }
+  }
+
+  private static class ChunkResult {
+    int checked;
+    RevCommit commit;
+    CommitProblem problem;
+  }
+
+  /**
+   * Checks of a commit's identities and footers.
+   * <p>
+   * Permissions and user details are read when the check is created, so
+   * {@link #check(RevCommit)} can run on any thread once the commit body has
+   * been parsed.
+   */
+  private class CommitCheck {
+    private final Set<String> emails;
+    private final boolean canUploadMerges;
+    private final boolean canForgeAuthor;
+    private final boolean canForgeCommitter;
+    private final boolean canForgeGerritServerIdentity;
+    private final boolean useSignedOffBy;
+    private final boolean checkChangeId;
+    private final boolean requireChangeId;
+
+    CommitCheck(RefControl ctl, ReceiveCommand cmd) {
+      emails = ImmutableSet.copyOf(currentUser.getEmailAddresses());
+      canUploadMerges = ctl.canUploadMerges();
+      canForgeAuthor = ctl.canForgeAuthor();
+      canForgeCommitter = ctl.canForgeCommitter();
+      canForgeGerritServerIdentity = ctl.canForgeGerritServerIdentity();
+      useSignedOffBy = project.isUseSignedOffBy();
+      checkChangeId = MagicBranch.isMagicBranch(cmd.getRefName())
+          || NEW_PATCHSET.matcher(cmd.getRefName()).matches();
+      requireChangeId = project.isRequireChangeID();
+    }
+
+    /** @return task parsing and checking raw commits, up to the first problem. */
+    Callable<ChunkResult> task(final List<byte[]> commits) {
+      return new Callable<ChunkResult>() {
+        @Override
+        public ChunkResult call() {
+          RevWalk rw = new RevWalk((ObjectReader) null);
+          ChunkResult r = new ChunkResult();
+          for (byte[] raw : commits) {
+            RevCommit c = RevCommit.parse(rw, raw);
+            r.checked++;
+            r.problem = check(c);
+            if (r.problem != null) {
+              r.commit = c;
+              break;
+            }
+          }
+          return r;
+        }
+      };
+    }
+
+    /** @return the first problem found in the commit; null if it is valid. */
+    CommitProblem check(RevCommit c) {
+      final PersonIdent committer = c.getCommitterIdent();
+      final PersonIdent author = c.getAuthorIdent();
+
+      // Require permission to upload merges.
+      if (c.getParentCount() > 1 && !canUploadMerges) {
+        return CommitProblem.MERGE_NOT_PERMITTED;
+      }
+
+      // Don't allow the user to amend a merge created by Gerrit Code Review.
+      // This seems to happen all too often, due to users not paying any
+      // attention to what they are doing.
+      //
+      if (c.getParentCount() > 1
+          && author.getName().equals(gerritIdent.getName())
+          && author.getEmailAddress().equals(gerritIdent.getEmailAddress())
+          && !canForgeGerritServerIdentity) {
+        return CommitProblem.AMENDED_MERGE;
+      }
+
+      // Require that author matches the uploader.
+      //
+      if (!emails.contains(author.getEmailAddress()) && !canForgeAuthor) {
+        return CommitProblem.INVALID_AUTHOR;
+      }
+
+      // Require that committer matches the uploader.
+      //
+      if (!emails.contains(committer.getEmailAddress()) && !canForgeCommitter) {
+        return CommitProblem.INVALID_COMMITTER;
+      }
+
+      if (useSignedOffBy) {
+        // If the project wants Signed-off-by / Acked-by lines, verify we
+        // have them for the blamable parties involved on this change.
+        //
+        boolean sboAuthor = false, sboCommitter = false, sboMe = false;
+        for (final FooterLine footer : c.getFooterLines()) {
+          if (footer.matches(FooterKey.SIGNED_OFF_BY)) {
+            final String e = footer.getEmailAddress();
+            if (e != null) {
+              sboAuthor |= author.getEmailAddress().equals(e);
+              sboCommitter |= committer.getEmailAddress().equals(e);
+              sboMe |= emails.contains(e);
+            }
+          }
+        }
+        if (!sboAuthor && !sboCommitter && !sboMe && !canForgeCommitter) {
+          return CommitProblem.MISSING_SIGNED_OFF_BY;
+        }
+      }
+
+      if (checkChangeId) {
+        final List<String> idList = c.getFooterLines(CHANGE_ID);
+        if (idList.isEmpty()) {
+          if (requireChangeId) {
+            return CommitProblem.MISSING_CHANGE_ID;
+          }
+        } else if (idList.size() > 1) {
+          return CommitProblem.MULTIPLE_CHANGE_IDS;
+        } else {
+          final String v = idList.get(idList.size() - 1).trim();
+          if (!v.matches("^I[0-9a-f]{8,}.*$")) {
+            return CommitProblem.INVALID_CHANGE_ID;
+          }
+        }
+      }
+      return null;
+    }
+  }
+
   private String getFixedCommitMsgWithChangeId(String errMsg, RevCommit c) {
     // We handle 3 cases:
     // 1. No change id in the commit message at all.
@@ -2128,17 +2382,17 @@ public class ReceiveCommits {
         rw.markUninteresting(rw.parseCommit(cmd.getOldId()));
       }
 
-      final Map<ObjectId, Ref> byCommit = changeRefsById();
+      final ChangeRefIndex.ChangeRefs byCommit = changeRefs();
       final Map<Change.Key, Change.Id> byKey = openChangesByKey(
           new Branch.NameKey(project.getNameKey(), cmd.getRefName()));
       final List<ReplaceRequest> toClose = new ArrayList<ReplaceRequest>();
       RevCommit c;
       while ((c = rw.next()) != null) {
-        final Ref ref = byCommit.get(c.copy());
+        final String ref = byCommit.get(c);
         if (ref != null) {
           rw.parseBody(c);
           Change.Key closedChange =
-              closeChange(cmd, PatchSet.Id.fromRef(ref.getName()), c);
+              closeChange(cmd, PatchSet.Id.fromRef(ref), c);
           closeProgress.update(1);
           if (closedChange != null) {
             byKey.remove(closedChange);
@@ -2218,16 +2472,11 @@ public class ReceiveCommits {
     return change.getKey();
   }
 
-  private Map<ObjectId, Ref> changeRefsById() throws IOException {
-    if (refsById == null) {
-      refsById = new HashMap<ObjectId, Ref>();
-      for (Ref r : repo.getRefDatabase().getRefs("refs/changes/").values()) {
-        if (PatchSet.isRef(r.getName())) {
-          refsById.put(r.getObjectId(), r);
-        }
-      }
+  private ChangeRefIndex.ChangeRefs changeRefs() throws IOException {
+    if (changeRefs == null) {
+      changeRefs = changeRefIndex.get(project.getNameKey());
     }
-    return refsById;
+    return changeRefs;
   }
 
   private Map<Change.Key, Change.Id> openChangesByKey(Branch.NameKey branch)
@@ -2269,9 +2518,11 @@ public class ReceiveCommits {
 
     db.changeMessages().insert(Collections.singleton(msg));
 
+    final Change.Status[] oldStatus = new Change.Status[1];
     db.changes().atomicUpdate(change.getId(), new AtomicUpdate<Change>() {
       @Override
       public Change update(Change change) {
+        oldStatus[0] = change.getStatus();
         if (change.getStatus().isOpen()) {
           change.setCurrentPatchSet(result.info);
           change.setStatus(Change.Status.MERGED);
@@ -2280,6 +2531,11 @@ public class ReceiveCommits {
         return change;
       }
     });
+    if (oldStatus[0].isOpen()) {
+      changeStatistics.onStatusChanged(project.getNameKey(), oldStatus[0],
+          Change.Status.MERGED);
+      changeIndexer.indexAsync(change);
+    }
   }
 
   private void sendMergedEmail(final ReplaceRequest result) {
@@ -2332,10 +2588,6 @@ public class ReceiveCommits {
     commandProgress.update(1);
   }
 
-  private static boolean isHead(final Ref ref) {
-    return ref.getName().startsWith(Constants.R_HEADS);
-  }
-
   private static boolean isHead(final ReceiveCommand cmd) {
     return cmd.getRefName().startsWith(Constants.R_HEADS);
   }
@@ -64,4 +64,25 @@ public class ReceiveCommitsExecutorModule extends AbstractModule {
                 .build(),
               new ThreadPoolExecutor.CallerRunsPolicy())));
   }
+
+  @Provides
+  @Singleton
+  @CommitValidationExecutor
+  public ListeningExecutorService createCommitValidationExecutor(
+      @GerritServerConfig Config config) {
+    int poolSize = config.getInt("receive", null, "validationThreads", 1);
+    if (poolSize <= 1) {
+      return MoreExecutors.sameThreadExecutor();
+    }
+    return MoreExecutors.listeningDecorator(
+        MoreExecutors.getExitingExecutorService(
+          new ThreadPoolExecutor(1, poolSize,
+              10, TimeUnit.MINUTES,
+              new ArrayBlockingQueue<Runnable>(poolSize),
+              new ThreadFactoryBuilder()
+                .setNameFormat("CommitValidation-%d")
+                .setDaemon(true)
+                .build(),
+              new ThreadPoolExecutor.CallerRunsPolicy())));
+  }
 }
@@ -107,7 +107,7 @@ public class TagCache {
   }
 
   static class EntryVal implements Serializable {
-    static final long serialVersionUID = 1L;
+    static final long serialVersionUID = 3L;
 
     transient TagSetHolder holder;
 
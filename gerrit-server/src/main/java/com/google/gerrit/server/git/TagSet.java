@@ -28,6 +28,7 @@ import org.eclipse.jgit.lib.ObjectIdOwnerMap;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.slf4j.Logger;
@@ -36,22 +37,44 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 class TagSet {
   private static final Logger log = LoggerFactory.getLogger(TagSet.class);
 
+  /**
+   * Most new tags to place by walking only the history above them. Beyond
+   * this a single walk of the complete history is cheaper.
+   */
+  private static final int MAX_INCREMENTAL_TAGS = 16;
+
+  /**
+   * Most commits to walk placing new tags. Each tag walks the history not
+   * reaching it, which can be nearly all of it for an old commit; beyond this
+   * the complete history is walked once instead.
+   */
+  private static final int MAX_INCREMENTAL_COMMITS = 10000;
+
   private final Project.NameKey projectName;
   private final Map<String, CachedRef> refs;
   private final ObjectIdOwnerMap<Tag> tags;
 
+  /** Annotated tag objects whose target is already in {@link #tags}. */
+  private final Set<ObjectId> peeledTags;
+
   TagSet(Project.NameKey projectName) {
     this.projectName = projectName;
     this.refs = new HashMap<String, CachedRef>();
     this.tags = new ObjectIdOwnerMap<Tag>();
+    this.peeledTags = new HashSet<ObjectId>();
   }
 
   Tag lookupTag(AnyObjectId id) {
@@ -152,10 +175,15 @@ class TagSet {
   }
 
   void build(Repository git, TagSet old, TagMatcher m) {
-    if (old != null && m != null && refresh(old, m)) {
+    if (old != null && m != null && refresh(git, old, m)) {
       return;
     }
 
+    // A failed refresh may have left a partial copy behind.
+    refs.clear();
+    tags.clear();
+    peeledTags.clear();
+
     TagWalk rw = new TagWalk(git);
     rw.setRetainBody(false);
     try {
@@ -165,7 +193,11 @@ class TagSet {
 
         } else if (isTag(ref)) {
           // For a tag, remember where it points to.
-          addTag(rw, git.peel(ref));
+          ObjectId id = peel(git, ref);
+          if (!id.equals(ref.getObjectId())) {
+            peeledTags.add(ref.getObjectId());
+          }
+          addTag(rw, ref.getName(), id);
 
         } else {
           // New reference to include in the set.
@@ -202,11 +234,23 @@ class TagSet {
       refs.put(name, new CachedRef(flag, id));
     }
 
+    // Tags reachable from the same branches share one flag set, so
+    // each distinct set is stored once and referenced by index.
+    int setCnt = readVarInt(in);
+    BitSet[] sets = new BitSet[setCnt];
+    for (int i = 0; i < setCnt; i++) {
+      sets[i] = readFlags(in);
+    }
+
     int tagCnt = in.readInt();
     for (int i = 0; i < tagCnt; i++) {
       ObjectId id = readNotNull(in);
-      BitSet flags = (BitSet) in.readObject();
-      tags.add(new Tag(id, flags));
+      tags.add(new Tag(id, sets[readVarInt(in)]));
+    }
+
+    int peeledCnt = readVarInt(in);
+    for (int i = 0; i < peeledCnt; i++) {
+      peeledTags.add(readNotNull(in));
     }
   }
 
@@ -218,87 +262,287 @@ class TagSet {
       writeNotNull(out, e.getValue().get());
     }
 
+    Map<BitSet, Integer> setIdx = new HashMap<BitSet, Integer>();
+    List<BitSet> sets = new ArrayList<BitSet>();
+    for (Tag tag : tags) {
+      if (!setIdx.containsKey(tag.refFlags)) {
+        setIdx.put(tag.refFlags, sets.size());
+        sets.add(tag.refFlags);
+      }
+    }
+    writeVarInt(out, sets.size());
+    for (BitSet flags : sets) {
+      writeFlags(out, flags);
+    }
+
     out.writeInt(tags.size());
     for (Tag tag : tags) {
       writeNotNull(out, tag);
-      out.writeObject(tag.refFlags);
+      writeVarInt(out, setIdx.get(tag.refFlags));
     }
-  }
 
-  private boolean refresh(TagSet old, TagMatcher m) {
-    if (m.newRefs.isEmpty()) {
-      // No new references is a simple update. Copy from the old set.
-      copy(old, m);
-      return true;
+    writeVarInt(out, peeledTags.size());
+    for (ObjectId id : peeledTags) {
+      writeNotNull(out, id);
     }
+  }
 
-    // Only permit a refresh if all new references start from the tip of
-    // an existing references. This happens some of the time within a
-    // Gerrit Code Review server, perhaps about 50% of new references.
-    // Since a complete rebuild is so costly, try this approach first.
+  private boolean refresh(Repository git, TagSet old, TagMatcher m) {
+    copy(old, m);
+    try {
+      return addNewRefs(git, m.newRefs) && addNewTags(git);
+    } catch (IOException e) {
+      log.warn("Cannot refresh tags of " + projectName, e);
+      return false;
+    }
+  }
 
+  private boolean addNewRefs(Repository git, List<Ref> newRefs)
+      throws IOException {
     Map<ObjectId, Integer> byObj = new HashMap<ObjectId, Integer>();
-    for (CachedRef r : old.refs.values()) {
+    for (CachedRef r : refs.values()) {
       ObjectId id = r.get();
       if (!byObj.containsKey(id)) {
         byObj.put(id, r.flag);
       }
     }
 
-    for (Ref newRef : m.newRefs) {
+    // A new reference starting from the tip of an existing reference
+    // reaches the same tags. This happens some of the time within a
+    // Gerrit Code Review server, perhaps about 50% of new references.
+    List<Ref> toWalk = new ArrayList<Ref>();
+    for (Ref newRef : newRefs) {
       ObjectId id = newRef.getObjectId();
       if (id == null || refs.containsKey(newRef.getName())) {
         continue;
-      } else if (!byObj.containsKey(id)) {
-        return false;
       }
-    }
-
-    copy(old, m);
 
-    for (Ref newRef : m.newRefs) {
-      ObjectId id = newRef.getObjectId();
-      if (id == null || refs.containsKey(newRef.getName())) {
+      Integer srcFlag = byObj.get(id);
+      if (srcFlag == null) {
+        toWalk.add(newRef);
         continue;
       }
 
-      int srcFlag = byObj.get(id);
       int newFlag = refs.size();
       refs.put(newRef.getName(), new CachedRef(newRef, newFlag));
+      BitSet add = new BitSet();
+      add.set(newFlag);
+      addFlags(srcFlag, add);
+    }
+    if (toWalk.isEmpty()) {
+      return true;
+    }
+
+    // Otherwise walk only the commits the new references introduce. The
+    // walk must stop exactly at tips of known references, whose tags are
+    // already recorded; any other boundary needs a complete rebuild.
+    TagWalk rw = new TagWalk(git);
+    rw.setRetainBody(false);
+    try {
+      for (ObjectId id : byObj.keySet()) {
+        try {
+          rw.markUninteresting(rw.parseCommit(id));
+        } catch (IncorrectObjectTypeException notCommit) {
+          continue;
+        }
+      }
+
+      List<TagCommit> starts = new ArrayList<TagCommit>(toWalk.size());
+      for (Ref newRef : toWalk) {
+        int newFlag = refs.size();
+        refs.put(newRef.getName(), new CachedRef(newRef, newFlag));
+        try {
+          TagCommit c = (TagCommit) rw.parseCommit(newRef.getObjectId());
+          c.refFlags.set(newFlag);
+          rw.markStart(c);
+          starts.add(c);
+        } catch (IncorrectObjectTypeException notCommit) {
+          // Reaches no tags.
+        }
+      }
+      Map<Integer, BitSet> inherit = new HashMap<Integer, BitSet>();
+      rw.sort(RevSort.TOPO, true);
+      TagCommit c;
+      while ((c = (TagCommit) rw.next()) != null) {
+        Tag tag = tags.get(c);
+        if (tag != null) {
+          BitSet flags = new BitSet();
+          flags.or(tag.refFlags);
+          flags.or(c.refFlags);
+          tag.refFlags = flags;
+        }
+
+        int pCnt = c.getParentCount();
+        for (int pIdx = 0; pIdx < pCnt; pIdx++) {
+          TagCommit p = (TagCommit) c.getParent(pIdx);
+          if (!p.has(RevFlag.UNINTERESTING)) {
+            p.refFlags.or(c.refFlags);
+            continue;
+          }
+
+          Integer srcFlag = byObj.get(p);
+          if (srcFlag == null) {
+            return false;
+          }
+          BitSet flags = inherit.get(srcFlag);
+          if (flags == null) {
+            flags = new BitSet();
+            inherit.put(srcFlag, flags);
+          }
+          flags.or(c.refFlags);
+        }
+      }
+      for (TagCommit start : starts) {
+        if (start.has(RevFlag.UNINTERESTING)) {
+          // Starts within the known history, but not at a known tip.
+          return false;
+        }
+      }
+
+      // Everything reachable from a boundary tip is reachable from the new
+      // references that descend from it.
+      for (Map.Entry<Integer, BitSet> e : inherit.entrySet()) {
+        addFlags(e.getKey(), e.getValue());
+      }
+      return true;
+    } finally {
+      rw.release();
+    }
+  }
 
-      for (Tag tag : tags) {
-        if (tag.refFlags.get(srcFlag)) {
-          tag.refFlags.set(newFlag);
+  /** Add flags to every tag reachable from srcFlag, replacing its set. */
+  private void addFlags(int srcFlag, BitSet add) {
+    IdentityHashMap<BitSet, BitSet> updated =
+        new IdentityHashMap<BitSet, BitSet>();
+    for (Tag tag : tags) {
+      if (tag.refFlags.get(srcFlag)) {
+        BitSet flags = updated.get(tag.refFlags);
+        if (flags == null) {
+          flags = new BitSet();
+          flags.or(tag.refFlags);
+          flags.or(add);
+          updated.put(tag.refFlags, flags);
         }
+        tag.refFlags = flags;
       }
     }
+  }
 
+  private boolean addNewTags(Repository git) throws IOException {
+    List<ObjectId> newTags = new ArrayList<ObjectId>();
+    Set<ObjectId> seen = new HashSet<ObjectId>();
+    for (Ref ref : git.getRefDatabase().getRefs(Constants.R_TAGS).values()) {
+      if (skip(ref)) {
+        continue;
+      }
+
+      // Only peel tags not seen before; most tags are old.
+      ObjectId obj = ref.getObjectId();
+      if (tags.contains(obj) || peeledTags.contains(obj)) {
+        continue;
+      }
+      ObjectId id = peel(git, ref);
+      if (!id.equals(obj)) {
+        peeledTags.add(obj);
+      }
+      if (!tags.contains(id) && seen.add(id)) {
+        newTags.add(id);
+      }
+    }
+    if (newTags.size() > MAX_INCREMENTAL_TAGS) {
+      return false;
+    }
+
+    int budget = MAX_INCREMENTAL_COMMITS;
+    for (ObjectId id : newTags) {
+      BitSet flags = new BitSet();
+      int walked = reachingRefs(git, id, flags, budget);
+      if (walked < 0) {
+        return false;
+      }
+      budget -= walked;
+      tags.add(new Tag(id, flags));
+    }
     return true;
   }
 
+  /**
+   * Compute the flags of references reaching a commit.
+   * <p>
+   * Only commits not already reachable from {@code id} are walked, which is
+   * usually a small part of the history for a recently created tag.
+   *
+   * @param flags receives the flags of references reaching {@code id}.
+   * @param limit most commits to walk.
+   * @return number of commits walked; -1 if more than {@code limit} were
+   *         needed.
+   */
+  private int reachingRefs(Repository git, ObjectId id, BitSet flags,
+      int limit) throws IOException {
+    TagWalk rw = new TagWalk(git);
+    rw.setRetainBody(false);
+    try {
+      TagCommit tagged;
+      try {
+        tagged = (TagCommit) rw.parseCommit(id);
+      } catch (IncorrectObjectTypeException notCommit) {
+        return 0;
+      }
+
+      for (CachedRef r : refs.values()) {
+        try {
+          TagCommit c = (TagCommit) rw.parseCommit(r.get());
+          c.refFlags.set(r.flag);
+          rw.markStart(c);
+        } catch (IncorrectObjectTypeException notCommit) {
+          continue;
+        }
+      }
+      rw.markUninteresting(tagged);
+
+      // Walk by commit time like build(), so the limit also bounds the
+      // work done before the first commit is returned.
+      int walked = 0;
+      TagCommit c;
+      while ((c = (TagCommit) rw.next()) != null) {
+        if (++walked > limit) {
+          return -1;
+        }
+        BitSet mine = c.refFlags;
+        int pCnt = c.getParentCount();
+        for (int pIdx = 0; pIdx < pCnt; pIdx++) {
+          ((TagCommit) c.getParent(pIdx)).refFlags.or(mine);
+        }
+      }
+      flags.or(tagged.refFlags);
+      return walked;
+    } finally {
+      rw.release();
+    }
+  }
+
   private void copy(TagSet old, TagMatcher m) {
     refs.putAll(old.refs);
+    peeledTags.addAll(old.peeledTags);
 
+    // Flag sets are never modified once built, so they can be shared
+    // with the old set still in use by other threads.
     for (Tag srcTag : old.tags) {
-      BitSet mine = new BitSet();
-      mine.or(srcTag.refFlags);
-      tags.add(new Tag(srcTag, mine));
+      tags.add(new Tag(srcTag, srcTag.refFlags));
     }
 
     for (TagMatcher.LostRef lost : m.lostRefs) {
       Tag mine = tags.get(lost.tag);
       if (mine != null) {
-        mine.refFlags.clear(lost.flag);
+        BitSet flags = new BitSet();
+        flags.or(mine.refFlags);
+        flags.clear(lost.flag);
+        mine.refFlags = flags;
       }
     }
   }
 
-  private void addTag(TagWalk rw, Ref ref) {
-    ObjectId id = ref.getPeeledObjectId();
-    if (id == null) {
-      id = ref.getObjectId();
-    }
-
+  private void addTag(TagWalk rw, String name, ObjectId id) {
     if (!tags.contains(id)) {
       BitSet flags;
       try {
@@ -306,7 +550,7 @@ class TagSet {
       } catch (IncorrectObjectTypeException notCommit) {
         flags = new BitSet();
       } catch (IOException e) {
-        log.warn("Error on " + ref.getName() + " of " + projectName, e);
+        log.warn("Error on " + name + " of " + projectName, e);
         flags = new BitSet();
       }
       tags.add(new Tag(id, flags));
@@ -331,6 +575,56 @@ class TagSet {
     }
   }
 
+  private static BitSet readFlags(ObjectInputStream in) throws IOException {
+    BitSet flags = new BitSet();
+    int cnt = readVarInt(in);
+    int bit = -1;
+    for (int i = 0; i < cnt; i++) {
+      bit += readVarInt(in) + 1;
+      flags.set(bit);
+    }
+    return flags;
+  }
+
+  private static void writeFlags(ObjectOutputStream out, BitSet flags)
+      throws IOException {
+    writeVarInt(out, flags.cardinality());
+    int last = -1;
+    for (int bit = flags.nextSetBit(0); bit >= 0;
+        bit = flags.nextSetBit(bit + 1)) {
+      writeVarInt(out, bit - last - 1);
+      last = bit;
+    }
+  }
+
+  private static int readVarInt(ObjectInputStream in) throws IOException {
+    int r = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = in.readUnsignedByte();
+      r |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return r;
+      }
+    }
+  }
+
+  private static void writeVarInt(ObjectOutputStream out, int v)
+      throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static ObjectId peel(Repository git, Ref ref) {
+    if (!ref.isPeeled()) {
+      ref = git.peel(ref);
+    }
+    ObjectId id = ref.getPeeledObjectId();
+    return id != null ? id : ref.getObjectId();
+  }
+
   private static boolean skip(Ref ref) {
     return ref.isSymbolic() || ref.getObjectId() == null
         || PatchSet.isRef(ref.getName());
@@ -341,7 +635,11 @@ class TagSet {
   }
 
   static final class Tag extends ObjectIdOwnerMap.Entry {
-    private final BitSet refFlags;
+    /**
+     * May be shared with other tags, and with older copies of the set still
+     * in use; replace rather than modify.
+     */
+    private BitSet refFlags;
 
     Tag(AnyObjectId id, BitSet flags) {
       super(id);
@@ -60,7 +60,7 @@ class TagSetHolder {
   }
 
   void rebuildForNewTags(TagCache cache, TagMatcher m) {
-    m.tags = rebuild(cache, m.db, m.tags, null);
+    m.tags = rebuild(cache, m.db, m.tags, m);
     m.mask.clear();
     m.newRefs.clear();
     m.lostRefs.clear();
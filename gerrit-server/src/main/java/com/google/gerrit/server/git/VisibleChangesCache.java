@@ -0,0 +1,196 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the changes of a project, grouped by destination branch.
+ * <p>
+ * {@link VisibleRefFilter} uses the cached grouping to decide visibility of
+ * {@code refs/changes/} once per destination branch, rather than scanning the
+ * changes table and building a {@code ChangeControl} for every change on each
+ * advertisement. Entries are brought up to date incrementally by the filter:
+ * change refs not yet known to the entry are loaded by id, and draft changes
+ * are re-read so publications and deletions are noticed.
+ */
+@Singleton
+public class VisibleChangesCache {
+  private static final String CACHE_NAME = "changes_by_branch";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Project.NameKey.class, ProjectChanges.class)
+          .loader(Loader.class);
+        bind(VisibleChangesCache.class);
+      }
+    };
+  }
+
+  private final LoadingCache<Project.NameKey, ProjectChanges> cache;
+
+  @Inject
+  VisibleChangesCache(
+      @Named(CACHE_NAME) LoadingCache<Project.NameKey, ProjectChanges> cache) {
+    this.cache = cache;
+  }
+
+  ProjectChanges get(Project.NameKey name) throws OrmException {
+    try {
+      return cache.get(name);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof OrmException) {
+        throw (OrmException) e.getCause();
+      }
+      throw new OrmException("Cannot load changes of " + name, e);
+    }
+  }
+
+  /** Discard the cached changes of a project, forcing a reload on next use. */
+  public void evict(Project.NameKey name) {
+    if (name != null) {
+      cache.invalidate(name);
+    }
+  }
+
+  /** Changes of a single project, grouped by destination branch. */
+  static class ProjectChanges {
+    private static final int[] EMPTY = {};
+
+    /** Every change id this entry accounts for, drafts included. */
+    private final BitSet known = new BitSet();
+
+    /** Non-draft changes; arrays are replaced, never modified in place. */
+    private Map<String, int[]> byBranch = ImmutableMap.of();
+
+    /** Draft changes, whose visibility depends on the current user. */
+    private final Map<Change.Id, Change> drafts = Maps.newHashMap();
+
+    /** @return ids present in {@code ids} but unknown to this entry. */
+    synchronized BitSet unknown(BitSet ids) {
+      BitSet r = (BitSet) ids.clone();
+      r.andNot(known);
+      return r;
+    }
+
+    synchronized void addAll(Iterable<Change> changes) {
+      Map<String, List<Change.Id>> added = Maps.newHashMap();
+      for (Change c : changes) {
+        int id = c.getId().get();
+        if (known.get(id)) {
+          continue;
+        }
+        known.set(id);
+        if (c.getStatus() == Change.Status.DRAFT) {
+          drafts.put(c.getId(), c);
+        } else {
+          String branch = c.getDest().get();
+          List<Change.Id> ids = added.get(branch);
+          if (ids == null) {
+            ids = Lists.newArrayList();
+            added.put(branch, ids);
+          }
+          ids.add(c.getId());
+        }
+      }
+      if (added.isEmpty()) {
+        return;
+      }
+
+      Map<String, int[]> n = Maps.newHashMap(byBranch);
+      for (Map.Entry<String, List<Change.Id>> e : added.entrySet()) {
+        int[] old = n.get(e.getKey());
+        if (old == null) {
+          old = EMPTY;
+        }
+        int[] ids = Arrays.copyOf(old, old.length + e.getValue().size());
+        int i = old.length;
+        for (Change.Id id : e.getValue()) {
+          ids[i++] = id.get();
+        }
+        n.put(e.getKey(), ids);
+      }
+      byBranch = ImmutableMap.copyOf(n);
+    }
+
+    synchronized Map<String, int[]> byBranch() {
+      return byBranch;
+    }
+
+    synchronized List<Change.Id> draftIds() {
+      return Lists.newArrayList(drafts.keySet());
+    }
+
+    /**
+     * Replace the cached drafts with their current state.
+     *
+     * @param ids drafts that were re-read, from {@link #draftIds()}.
+     * @param current the changes found for {@code ids}. Changes that are no
+     *        longer drafts move to their branch; ids without a row were
+     *        deleted and are forgotten.
+     */
+    synchronized void updateDrafts(List<Change.Id> ids,
+        Iterable<Change> current) {
+      for (Change.Id id : ids) {
+        drafts.remove(id);
+        known.clear(id.get());
+      }
+      addAll(current);
+    }
+  }
+
+  static class Loader extends CacheLoader<Project.NameKey, ProjectChanges> {
+    private final SchemaFactory<ReviewDb> schema;
+
+    @Inject
+    Loader(SchemaFactory<ReviewDb> schema) {
+      this.schema = schema;
+    }
+
+    @Override
+    public ProjectChanges load(Project.NameKey name) throws Exception {
+      final ReviewDb db = schema.open();
+      try {
+        ProjectChanges r = new ProjectChanges();
+        r.addAll(db.changes().byProject(name));
+        return r;
+      } finally {
+        db.close();
+      }
+    }
+  }
+}
@@ -32,28 +32,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
   private static final Logger log =
       LoggerFactory.getLogger(VisibleRefFilter.class);
 
   private final TagCache tagCache;
+  private final VisibleChangesCache changeCache;
   private final Repository db;
   private final Project.NameKey projectName;
   private final ProjectControl projectCtl;
   private final ReviewDb reviewDb;
   private final boolean showChanges;
 
-  public VisibleRefFilter(final TagCache tagCache, final Repository db,
+  public VisibleRefFilter(final TagCache tagCache,
+      final VisibleChangesCache changeCache, final Repository db,
       final ProjectControl projectControl, final ReviewDb reviewDb,
       final boolean showChanges) {
     this.tagCache = tagCache;
+    this.changeCache = changeCache;
     this.db = db;
     this.projectName = projectControl.getProject().getNameKey();
     this.projectCtl = projectControl;
@@ -69,7 +70,7 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
       return r;
     }
 
-    final Set<Change.Id> visibleChanges = visibleChanges();
+    final BitSet visibleChanges = visibleChanges(refs);
     final Map<String, Ref> result = new HashMap<String, Ref>();
     final List<Ref> deferredTags = new ArrayList<Ref>();
 
@@ -77,7 +78,7 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
       if (PatchSet.isRef(ref.getName())) {
         // Reference to a patch set is visible if the change is visible.
         //
-        if (visibleChanges.contains(Change.Id.fromRef(ref.getName()))) {
+        if (visibleChanges.get(Change.Id.fromRef(ref.getName()).get())) {
           result.put(ref.getName(), ref);
         }
 
@@ -125,25 +126,72 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
     return filter(refs, false);
   }
 
-  private Set<Change.Id> visibleChanges() {
+  private BitSet visibleChanges(Map<String, Ref> refs) {
+    final BitSet visibleChanges = new BitSet();
     if (!showChanges) {
-      return Collections.emptySet();
+      return visibleChanges;
     }
 
     final Project project = projectCtl.getProject();
     try {
-      final Set<Change.Id> visibleChanges = new HashSet<Change.Id>();
-      for (Change change : reviewDb.changes().byProject(project.getNameKey())) {
-        if (projectCtl.controlFor(change).isVisible(reviewDb)) {
-          visibleChanges.add(change.getId());
+      final VisibleChangesCache.ProjectChanges changes =
+          changeCache.get(project.getNameKey());
+
+      // Changes created since the cache entry was loaded only show up
+      // as new references. Load just those rows, by primary key.
+      //
+      BitSet unknown = changes.unknown(changeIds(refs));
+      if (!unknown.isEmpty()) {
+        List<Change.Id> ids = new ArrayList<Change.Id>(unknown.cardinality());
+        for (int i = unknown.nextSetBit(0); i >= 0;
+            i = unknown.nextSetBit(i + 1)) {
+          ids.add(new Change.Id(i));
+        }
+        changes.addAll(reviewDb.changes().get(ids));
+      }
+
+      // Drafts may have been published or deleted, and their visibility
+      // depends on the user being the owner or a reviewer. Re-read them
+      // before checking each one individually.
+      //
+      List<Change.Id> draftIds = changes.draftIds();
+      List<Change> drafts = new ArrayList<Change>(draftIds.size());
+      if (!draftIds.isEmpty()) {
+        for (Change c : reviewDb.changes().get(draftIds)) {
+          drafts.add(c);
+        }
+        changes.updateDrafts(draftIds, drafts);
+      }
+
+      for (Map.Entry<String, int[]> e : changes.byBranch().entrySet()) {
+        if (projectCtl.controlForRef(e.getKey()).isVisible()) {
+          for (int id : e.getValue()) {
+            visibleChanges.set(id);
+          }
+        }
+      }
+      for (Change change : drafts) {
+        if (change.getStatus() == Change.Status.DRAFT
+            && projectCtl.controlFor(change).isVisible(reviewDb)) {
+          visibleChanges.set(change.getId().get());
         }
       }
       return visibleChanges;
     } catch (OrmException e) {
       log.error("Cannot load changes for project " + project.getName()
           + ", assuming no changes are visible", e);
-      return Collections.emptySet();
+      return new BitSet();
+    }
+  }
+
+  private static BitSet changeIds(Map<String, Ref> refs) {
+    BitSet ids = new BitSet();
+    for (String name : refs.keySet()) {
+      if (PatchSet.isRef(name)) {
+        ids.set(Change.Id.fromRef(name).get());
+      }
     }
+    return ids;
   }
 
   private static boolean isTag(Ref ref) {
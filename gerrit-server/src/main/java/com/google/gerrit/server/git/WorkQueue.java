@@ -17,10 +17,13 @@ package com.google.gerrit.server.git;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.lifecycle.LifecycleModule;
 import com.google.gerrit.reviewdb.client.Project.NameKey;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.util.IdGenerator;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,13 +36,18 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /** Delayed execution of tasks using a background thread pool. */
 @Singleton
@@ -79,13 +87,25 @@ public class WorkQueue {
         }
       };
 
+  /** What to do with a task submitted to a queue that is already full. */
+  public static enum RejectPolicy {
+    /** Throw {@link RejectedExecutionException} to the submitter. */
+    ABORT,
+
+    /** Run the task immediately in the submitting thread. */
+    CALLER_RUNS;
+  }
+
   private Executor defaultQueue;
   private final IdGenerator idGenerator;
+  private final Config config;
   private final CopyOnWriteArrayList<Executor> queues;
 
   @Inject
-  WorkQueue(final IdGenerator idGenerator) {
+  WorkQueue(final IdGenerator idGenerator,
+      @GerritServerConfig final Config config) {
     this.idGenerator = idGenerator;
+    this.config = config;
     this.queues = new CopyOnWriteArrayList<Executor>();
   }
 
@@ -97,15 +117,39 @@ public class WorkQueue {
     return defaultQueue;
   }
 
-  /** Create a new executor queue with one thread. */
+  /**
+   * Create a new executor queue.
+   * <p>
+   * The queue admits at most {@code queue.<prefix>.maxDepth} waiting tasks,
+   * handling any excess according to {@code queue.<prefix>.rejectPolicy}.
+   */
   public Executor createQueue(final int poolsize, final String prefix) {
-    final Executor r = new Executor(poolsize, prefix);
+    return createQueue(poolsize, prefix, Thread.NORM_PRIORITY);
+  }
+
+  /**
+   * Create a new executor queue whose threads run at the given priority.
+   *
+   * @see #createQueue(int, String)
+   */
+  public Executor createQueue(final int poolsize, final String prefix,
+      final int threadPriority) {
+    final int maxDepth = config.getInt("queue", prefix, "maxDepth", 0);
+    final RejectPolicy policy = ConfigUtil.getEnum(config,
+        "queue", prefix, "rejectPolicy", RejectPolicy.ABORT);
+    final Executor r = new Executor(poolsize, prefix, maxDepth, policy,
+        threadPriority);
     r.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
     r.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
     queues.add(r);
     return r;
   }
 
+  /** Get all of the queues, in creation order. */
+  public List<Executor> getQueues() {
+    return new ArrayList<Executor>(queues);
+  }
+
   /** Get all of the tasks currently scheduled in any work queue. */
   public List<Task<?>> getTasks() {
     final List<Task<?>> r = new ArrayList<Task<?>>();
@@ -150,8 +194,17 @@ public class WorkQueue {
   /** An isolated queue. */
   public class Executor extends ScheduledThreadPoolExecutor {
     private final ConcurrentHashMap<Integer, Task<?>> all;
-
-    Executor(final int corePoolSize, final String prefix) {
+    private final String name;
+    private final int maxDepth;
+    private final RejectPolicy rejectPolicy;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final Histogram waitTime = new Histogram();
+    private final Histogram runTime = new Histogram();
+
+    Executor(final int corePoolSize, final String prefix, final int maxDepth,
+        final RejectPolicy rejectPolicy, final int threadPriority) {
       super(corePoolSize, new ThreadFactory() {
         private final ThreadFactory parent = Executors.defaultThreadFactory();
         private final AtomicInteger tid = new AtomicInteger(1);
@@ -160,6 +213,7 @@ public class WorkQueue {
         public Thread newThread(final Runnable task) {
           final Thread t = parent.newThread(task);
           t.setName(prefix + "-" + tid.getAndIncrement());
+          t.setPriority(threadPriority);
           t.setUncaughtExceptionHandler(LOG_UNCAUGHT_EXCEPTION);
           return t;
         }
@@ -170,6 +224,119 @@ public class WorkQueue {
           0.75f, // load factor
           corePoolSize + 4 // concurrency level
           );
+      this.name = prefix;
+      this.maxDepth = maxDepth;
+      this.rejectPolicy = rejectPolicy;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** @return maximum number of waiting tasks; 0 if unlimited. */
+    public int getMaxDepth() {
+      return maxDepth;
+    }
+
+    public RejectPolicy getRejectPolicy() {
+      return rejectPolicy;
+    }
+
+    /** @return tasks waiting in the queue, including sleeping ones. */
+    public int getDepth() {
+      return getQueue().size();
+    }
+
+    /** @return the largest depth the queue has reached. */
+    public int getHighWaterMark() {
+      return highWaterMark.get();
+    }
+
+    public long getSubmittedCount() {
+      return submitted.get();
+    }
+
+    public long getRejectedCount() {
+      return rejected.get();
+    }
+
+    /** @return time from when tasks were due to run until they started. */
+    public Histogram getWaitTime() {
+      return waitTime;
+    }
+
+    /** @return time tasks spent running. */
+    public Histogram getRunTime() {
+      return runTime;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command,
+        final long delay, final TimeUnit unit) {
+      // execute() and submit(Runnable) also end up here.
+      if (isFull()) {
+        if (rejectPolicy == RejectPolicy.CALLER_RUNS && !isShutdown()) {
+          RanByCaller<Object> f = new RanByCaller<Object>(command, null);
+          f.run();
+          return f;
+        }
+        throw rejectedExecution();
+      }
+      return admitted(super.schedule(command, delay, unit));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable,
+        final long delay, final TimeUnit unit) {
+      // submit(Callable) ends up here.
+      if (isFull()) {
+        if (rejectPolicy == RejectPolicy.CALLER_RUNS && !isShutdown()) {
+          RanByCaller<V> f = new RanByCaller<V>(callable);
+          f.run();
+          return f;
+        }
+        throw rejectedExecution();
+      }
+      return admitted(super.schedule(callable, delay, unit));
+    }
+
+    /** @return true, counting a rejection, if no task can be admitted. */
+    private boolean isFull() {
+      if (0 < maxDepth && maxDepth <= getQueue().size()) {
+        rejected.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+
+    private RejectedExecutionException rejectedExecution() {
+      return new RejectedExecutionException("Queue " + name + " is full ("
+          + maxDepth + " tasks)");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command,
+        final long initialDelay, final long period, final TimeUnit unit) {
+      return admitted(
+          super.scheduleAtFixedRate(command, initialDelay, period, unit));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command,
+        final long initialDelay, final long delay, final TimeUnit unit) {
+      return admitted(
+          super.scheduleWithFixedDelay(command, initialDelay, delay, unit));
+    }
+
+    private <V> ScheduledFuture<V> admitted(ScheduledFuture<V> f) {
+      submitted.incrementAndGet();
+      int depth = getQueue().size();
+      for (;;) {
+        int max = highWaterMark.get();
+        if (depth <= max || highWaterMark.compareAndSet(max, depth)) {
+          return f;
+        }
+      }
     }
 
     public void unregisterWorkQueue() {
@@ -199,8 +366,25 @@ public class WorkQueue {
 
     @Override
     protected <V> RunnableScheduledFuture<V> decorateTask(
-        final Callable<V> callable, final RunnableScheduledFuture<V> task) {
-      throw new UnsupportedOperationException("Callable not implemented");
+        final Callable<V> callable, RunnableScheduledFuture<V> r) {
+      r = super.decorateTask(callable, r);
+      final Runnable named = new Runnable() {
+        @Override
+        public void run() {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+          return callable.toString();
+        }
+      };
+      for (;;) {
+        Task<V> task = new Task<V>(named, r, this, idGenerator.next());
+        if (all.putIfAbsent(task.getTaskId(), task) == null) {
+          return task;
+        }
+      }
     }
 
     void remove(final Task<?> task) {
@@ -222,7 +406,7 @@ public class WorkQueue {
     public void cancel();
   }
 
-  /** A wrapper around a scheduled Runnable, as maintained in the queue. */
+  /** A wrapper around a scheduled task, as maintained in the queue. */
   public static class Task<V> implements RunnableScheduledFuture<V> {
     /**
      * Summarized status of a single task.
@@ -333,9 +517,13 @@ public class WorkQueue {
 
     public void run() {
       if (running.compareAndSet(false, true)) {
+        executor.waitTime.record(-task.getDelay(TimeUnit.MILLISECONDS));
+        final long start = System.nanoTime();
         try {
           task.run();
         } finally {
+          executor.runTime.record(TimeUnit.NANOSECONDS.toMillis(
+              System.nanoTime() - start));
           if (isPeriodic()) {
             running.set(false);
           } else {
@@ -351,6 +539,92 @@ public class WorkQueue {
     }
   }
 
+  /** A rejected task that was run by the submitting thread. */
+  private static class RanByCaller<V> extends FutureTask<V> implements
+      ScheduledFuture<V> {
+    RanByCaller(Runnable runnable, V result) {
+      super(runnable, result);
+    }
+
+    RanByCaller(Callable<V> callable) {
+      super(callable);
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return 0;
+    }
+
+    public int compareTo(Delayed o) {
+      long d = o.getDelay(TimeUnit.NANOSECONDS);
+      return d < 0 ? 1 : (d == 0 ? 0 : -1);
+    }
+  }
+
+  /**
+   * Distribution of durations in milliseconds.
+   * <p>
+   * Durations are counted in buckets whose bounds are powers of two, so
+   * percentiles are approximate, but recording is cheap and lock free.
+   */
+  public static class Histogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long millis) {
+      if (millis < 0) {
+        millis = 0;
+      }
+      int b = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+      buckets.incrementAndGet(b);
+      count.incrementAndGet();
+      total.addAndGet(millis);
+      for (;;) {
+        long m = max.get();
+        if (millis <= m || max.compareAndSet(m, millis)) {
+          break;
+        }
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMean() {
+      long n = count.get();
+      return 0 < n ? total.get() / n : 0;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @param p percentile to report, between 0 and 100.
+     * @return upper bound of the bucket holding the percentile, in
+     *         milliseconds; never more than {@link #getMax()}.
+     */
+    public long getPercentile(double p) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(n * p / 100);
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+        seen += buckets.get(b);
+        if (rank <= seen) {
+          return Math.min(b == 0 ? 0 : (1L << b) - 1, max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
   /** Same as Task class, but with a reference to ProjectRunnable, used to retrieve
    *  the project name from the operation queued
    **/
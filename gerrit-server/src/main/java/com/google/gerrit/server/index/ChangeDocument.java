@@ -0,0 +1,59 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.reviewdb.client.Change;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Terms of a single change, as stored in the {@link ChangeIndex}. */
+public class ChangeDocument {
+  private final Change.Id id;
+  private final String sortKey;
+  private final long lastUpdated;
+  private final Map<ChangeField, Set<String>> fields =
+      new EnumMap<ChangeField, Set<String>>(ChangeField.class);
+
+  public ChangeDocument(Change change) {
+    this.id = change.getId();
+    this.sortKey = change.getSortKey();
+    this.lastUpdated = change.getLastUpdatedOn().getTime();
+  }
+
+  public Change.Id getId() {
+    return id;
+  }
+
+  public String getSortKey() {
+    return sortKey;
+  }
+
+  public long getLastUpdated() {
+    return lastUpdated;
+  }
+
+  public void put(ChangeField field, Iterable<String> terms) {
+    fields.put(field, ImmutableSet.copyOf(terms));
+  }
+
+  /** @return terms of the field; empty if the field has none. */
+  public Set<String> get(ChangeField field) {
+    Set<String> r = fields.get(field);
+    return r != null ? r : ImmutableSet.<String> of();
+  }
+}
@@ -0,0 +1,184 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.common.collect.Sets;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Provider;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+
+/** Fields of a change stored in the {@link ChangeIndex}. */
+public enum ChangeField {
+  /** Name of the project the change belongs to. */
+  PROJECT("project") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      return Collections.singleton(cd.change(args.db).getProject().get());
+    }
+  },
+
+  /** Full name of the destination reference. */
+  REF("ref") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      return Collections.singleton(cd.change(args.db).getDest().get());
+    }
+  },
+
+  /** Account id of the owner. */
+  OWNER("owner") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      return Collections.singleton(
+          String.valueOf(cd.change(args.db).getOwner().get()));
+    }
+  },
+
+  /** Account ids of users with an approval on any patch set. */
+  REVIEWER("reviewer") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      Set<String> r = Sets.newHashSet();
+      for (PatchSetApproval a : cd.approvals(args.db)) {
+        r.add(String.valueOf(a.getAccountId().get()));
+      }
+      return r;
+    }
+  },
+
+  /** Approvals on the current patch set, as {@code category=value}. */
+  LABEL("label") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      Set<String> r = Sets.newHashSet();
+      for (PatchSetApproval a : cd.currentApprovals(args.db)) {
+        r.add(label(a.getCategoryId().get(), a.getValue()));
+      }
+      return r;
+    }
+  },
+
+  /** Lower case name of the change status. */
+  STATUS("status") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      return Collections.singleton(status(cd.change(args.db).getStatus()));
+    }
+  },
+
+  /** Topic of the change, if any. */
+  TOPIC("topic") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      String topic = cd.change(args.db).getTopic();
+      return topic != null
+          ? Collections.singleton(topic)
+          : Collections.<String> emptySet();
+    }
+  },
+
+  /** Paths modified by the current patch set. */
+  FILE("file") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      String[] files = cd.currentFilePaths(args.db, args.patchListCache);
+      return files != null
+          ? Arrays.asList(files)
+          : Collections.<String> emptySet();
+    }
+  },
+
+  /** Words of the current patch set's commit message, in lower case. */
+  MESSAGE("message") {
+    @Override
+    Iterable<String> get(ChangeData cd, Args args) throws OrmException {
+      try {
+        String msg = cd.commitMessage(args.repoManager, args.db);
+        return msg != null ? words(msg) : Collections.<String> emptySet();
+      } catch (IOException e) {
+        throw new OrmException(
+            "Cannot read commit message of " + cd.getId(), e);
+      }
+    }
+  };
+
+  private final String name;
+
+  private ChangeField(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** @return terms of the change for this field. */
+  abstract Iterable<String> get(ChangeData cd, Args args) throws OrmException;
+
+  public static String label(String category, int value) {
+    return category + "=" + value;
+  }
+
+  public static String status(Change.Status status) {
+    return status.name().toLowerCase();
+  }
+
+  /**
+   * Split text into the words stored in the {@link #MESSAGE} field.
+   *
+   * @return distinct words of text, split at characters other than letters
+   *         and digits, in lower case.
+   */
+  public static Set<String> words(String text) {
+    Set<String> r = Sets.newHashSet();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (0 <= start) {
+        r.add(text.substring(start, i).toLowerCase(Locale.US));
+        start = -1;
+      }
+    }
+    return r;
+  }
+
+  /** Services needed to read the fields of a change. */
+  static class Args {
+    final Provider<ReviewDb> db;
+    final PatchListCache patchListCache;
+    final GitRepositoryManager repoManager;
+
+    Args(Provider<ReviewDb> db, PatchListCache patchListCache,
+        GitRepositoryManager repoManager) {
+      this.db = db;
+      this.patchListCache = patchListCache;
+      this.repoManager = repoManager;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Secondary index of changes, queried in place of ReviewDb scans.
+ * <p>
+ * Queries are trees of {@link IndexPredicate}s combined with AND, OR and NOT
+ * nodes. The index is kept current by the {@link ChangeIndexer}, which
+ * tracks its progress through the sort keys of the changes indexed.
+ */
+public interface ChangeIndex {
+  /** @return true once every change has been indexed. */
+  public boolean isReady();
+
+  /** @return sort key below which every change is indexed; "" if none. */
+  public String getIndexedThrough();
+
+  /**
+   * Record the progress of the indexer.
+   *
+   * @param sortKey every change with a lower sort key is indexed.
+   * @param ready true once the initial indexing is complete.
+   */
+  public void setIndexedThrough(String sortKey, boolean ready)
+      throws IOException;
+
+  /** @return true if the change is indexed as of its last update. */
+  public boolean isCurrent(Change.Id id, long lastUpdated);
+
+  /**
+   * Test a single change against a predicate.
+   *
+   * @param id change indexed as of its last update, see
+   *        {@link #isCurrent(Change.Id, long)}.
+   * @param p predicate made of {@link IndexPredicate}s.
+   * @return true if the indexed terms of the change match the predicate.
+   */
+  public boolean matches(Change.Id id, Predicate<ChangeData> p);
+
+  /** Insert or replace the document of a change. */
+  public void replace(ChangeDocument doc) throws IOException;
+
+  /** Remove a change from the index. */
+  public void delete(Change.Id id) throws IOException;
+
+  /** @return number of changes matching the predicate. */
+  public int count(Predicate<ChangeData> p);
+
+  /**
+   * Find changes matching a predicate.
+   *
+   * @param p predicate made of {@link IndexPredicate}s.
+   * @param before if not null, only return changes sorting before this key.
+   * @param after if not null, only return changes sorting after this key.
+   * @param limit maximum number of changes to return.
+   * @return matching changes nearest to the bound, by descending sort key,
+   *         or ascending sort key if {@code after} is set.
+   */
+  public List<Change.Id> query(Predicate<ChangeData> p, String before,
+      String after, int limit) throws OrmException;
+}
@@ -0,0 +1,225 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ChangeAccess;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.ChangeUtil;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.ResultSet;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.util.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link ChangeIndex} current with ReviewDb.
+ * <p>
+ * Every modification of a change raises its sort key, so {@link #catchUp()}
+ * finds the changes modified since the index was last brought up to date by
+ * scanning each status for sort keys above
+ * {@link ChangeIndex#getIndexedThrough()}, skipping changes already indexed
+ * as of their last update. The first scan
+ * builds the whole index. Modifications that keep the sort key, such as
+ * adding reviewers, are indexed directly through {@link #index(Change)}.
+ */
+@Singleton
+public class ChangeIndexer {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeIndexer.class);
+
+  private static final int BATCH = 500;
+
+  /** Allowance for clocks and transactions committing after the scan. */
+  private static final long SLOP = TimeUnit.MINUTES.toMillis(2);
+
+  private final ChangeIndex index;
+  private final SchemaFactory<ReviewDb> schema;
+  private final PatchListCache patchListCache;
+  private final GitRepositoryManager repoManager;
+  private final WorkQueue workQueue;
+
+  /** Serializes scans of ReviewDb. */
+  private final Object catchUpLock = new Object();
+
+  /** Serializes reading a change and writing its document. */
+  private final Object indexLock = new Object();
+
+  /** True while the index is first built. */
+  private volatile boolean building;
+
+  @Inject
+  ChangeIndexer(ChangeIndex index, SchemaFactory<ReviewDb> schema,
+      PatchListCache patchListCache, GitRepositoryManager repoManager,
+      WorkQueue workQueue) {
+    this.index = index;
+    this.schema = schema;
+    this.patchListCache = patchListCache;
+    this.repoManager = repoManager;
+    this.workQueue = workQueue;
+  }
+
+  /** Index every change modified since the last call. */
+  public void catchUp() throws OrmException {
+    synchronized (catchUpLock) {
+      long start = System.currentTimeMillis();
+      String from = index.getIndexedThrough();
+      building = !index.isReady();
+      ReviewDb db = schema.open();
+      try {
+        int n = scan(db, from, new Scan() {
+          @Override
+          ResultSet<Change> next(ChangeAccess a, String key)
+              throws OrmException {
+            return a.allOpenPrev(key, BATCH);
+          }
+        });
+        for (final Change.Status s : new Change.Status[] {
+            Change.Status.MERGED, Change.Status.ABANDONED}) {
+          n += scan(db, from, new Scan() {
+            @Override
+            ResultSet<Change> next(ChangeAccess a, String key)
+                throws OrmException {
+              return a.allClosedPrev(s.getCode(), key, BATCH);
+            }
+          });
+        }
+
+        String through = ChangeUtil.sortKey(start - SLOP, 0);
+        if (through.compareTo(from) < 0) {
+          through = from;
+        }
+        if (building || !through.equals(from)) {
+          index.setIndexedThrough(through, true);
+        }
+        if (building) {
+          log.info("Indexed " + n + " changes in "
+              + (System.currentTimeMillis() - start) / 1000 + " seconds");
+        }
+      } catch (IOException e) {
+        throw new OrmException("Cannot update change index", e);
+      } finally {
+        building = false;
+        db.close();
+      }
+    }
+  }
+
+  /** Index a change whose sort key was not changed by its modification. */
+  public void index(Change change) {
+    if (!building && !index.isReady()) {
+      return;
+    }
+    try {
+      ReviewDb db = schema.open();
+      try {
+        synchronized (indexLock) {
+          Change c = db.changes().get(change.getId());
+          if (c != null) {
+            index(db, c);
+          } else {
+            index.delete(change.getId());
+          }
+        }
+      } finally {
+        db.close();
+      }
+    } catch (OrmException e) {
+      log.error("Cannot index change " + change.getId(), e);
+    } catch (IOException e) {
+      log.error("Cannot index change " + change.getId(), e);
+    }
+  }
+
+  /**
+   * Index a change in the background after creating or modifying it.
+   * <p>
+   * Code updating a change, such as creating a patch set or changing its
+   * status, calls this once the update is committed, so queries answered
+   * from the index see the update without waiting for {@link #catchUp()}.
+   * A deleted change is removed from the index.
+   */
+  public void indexAsync(final Change change) {
+    if (!building && !index.isReady()) {
+      return;
+    }
+    workQueue.getDefaultQueue().execute(new Runnable() {
+      @Override
+      public void run() {
+        index(change);
+      }
+
+      @Override
+      public String toString() {
+        return "index change " + change.getId();
+      }
+    });
+  }
+
+  private int scan(ReviewDb db, String from, Scan scan)
+      throws OrmException, IOException {
+    String key = from;
+    int indexed = 0;
+    for (;;) {
+      List<Change> batch = scan.next(db.changes(), key).toList();
+      for (Change c : batch) {
+        key = c.getSortKey();
+        if (!index.isCurrent(c.getId(), c.getLastUpdatedOn().getTime())) {
+          synchronized (indexLock) {
+            index(db, c);
+          }
+          if (++indexed % 10000 == 0 && building) {
+            log.info("Indexed " + indexed + " changes");
+          }
+        }
+      }
+      if (batch.size() < BATCH) {
+        return indexed;
+      }
+    }
+  }
+
+  private void index(ReviewDb db, Change c) throws IOException {
+    ChangeData cd = new ChangeData(c);
+    ChangeField.Args args = new ChangeField.Args(
+        Providers.of(db), patchListCache, repoManager);
+    ChangeDocument doc = new ChangeDocument(c);
+    for (ChangeField f : ChangeField.values()) {
+      try {
+        doc.put(f, f.get(cd, args));
+      } catch (OrmException e) {
+        log.warn("Cannot index " + f.getName() + " of change " + c.getId(), e);
+      }
+    }
+    index.replace(doc);
+  }
+
+  private abstract static class Scan {
+    abstract ResultSet<Change> next(ChangeAccess a, String key)
+        throws OrmException;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.config.ConfigUtil;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Binds the {@link ChangeIndex} stored in the site's index directory. */
+public class IndexModule extends LifecycleModule {
+  @Override
+  protected void configure() {
+    bind(ChangeIndex.class).to(LocalChangeIndex.class);
+    bind(ChangeIndexer.class);
+    listener().to(Lifecycle.class);
+  }
+
+  static class Lifecycle implements LifecycleListener {
+    private static final Logger log = LoggerFactory.getLogger(Lifecycle.class);
+
+    private final LocalChangeIndex index;
+    private final ChangeIndexer indexer;
+    private final WorkQueue queue;
+    private final long interval;
+    private ScheduledFuture<?> task;
+
+    @Inject
+    Lifecycle(LocalChangeIndex index, ChangeIndexer indexer, WorkQueue queue,
+        @GerritServerConfig Config cfg) {
+      this.index = index;
+      this.indexer = indexer;
+      this.queue = queue;
+      this.interval = ConfigUtil.getTimeUnit(cfg, "index", null,
+          "catchUpInterval", TimeUnit.SECONDS.toMillis(10),
+          TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void start() {
+      if (!index.isEnabled()) {
+        return;
+      }
+      index.open();
+
+      // Queries read the index as it is, so changes modified since the
+      // snapshot was saved, or since the last run, are indexed here. Until
+      // the index is first built queries keep scanning ReviewDb.
+      task = queue.getDefaultQueue().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            indexer.catchUp();
+          } catch (OrmException e) {
+            log.error("Cannot update change index", e);
+          }
+        }
+
+        @Override
+        public String toString() {
+          return index.isReady() ? "update change index" : "build change index";
+        }
+      }, 0, Math.max(interval, 1), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+      if (task != null) {
+        task.cancel(false);
+        task = null;
+      }
+      index.close();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.NotPredicate;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.OrPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+
+/**
+ * Predicate that can be answered from a field of the {@link ChangeIndex}.
+ * <p>
+ * By default a predicate matches changes having a term equal to its value.
+ * Predicates matching a range of terms return null from {@link #getTerm()}
+ * and test each term starting with {@link #getTermPrefix()} instead.
+ * <p>
+ * Predicates whose terms only narrow down the changes they accept return
+ * false from {@link #isExact()}; changes returned by the index are then
+ * still checked with {@link #match(Object)}.
+ */
+public abstract class IndexPredicate extends OperatorPredicate<ChangeData> {
+  /**
+   * @return true if the whole predicate tree can be answered by the index.
+   *         A negation is only indexable if its operand is exact, as the
+   *         complement of a superset would drop changes that match.
+   */
+  public static boolean isIndexable(Predicate<ChangeData> p) {
+    if (p instanceof IndexPredicate) {
+      return true;
+    }
+    Class<?> c = p.getClass();
+    if (c != AndPredicate.class
+        && c != OrPredicate.class
+        && c != NotPredicate.class) {
+      return false;
+    }
+    if (c == NotPredicate.class && !isExact(p)) {
+      return false;
+    }
+    for (Predicate<ChangeData> child : p.getChildren()) {
+      if (!isIndexable(child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return true if the index alone decides the whole predicate tree. */
+  public static boolean isExact(Predicate<ChangeData> p) {
+    if (p instanceof IndexPredicate) {
+      return ((IndexPredicate) p).isExact();
+    }
+    for (Predicate<ChangeData> child : p.getChildren()) {
+      if (!isExact(child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private final ChangeField field;
+
+  protected IndexPredicate(ChangeField field, String name, String value) {
+    super(name, value);
+    this.field = field;
+  }
+
+  public ChangeField getField() {
+    return field;
+  }
+
+  /** @return the only term matched; null to test terms by prefix. */
+  public String getTerm() {
+    return getValue();
+  }
+
+  /** @return prefix shared by every term matched. */
+  public String getTermPrefix() {
+    return getTerm();
+  }
+
+  /** @return true if changes having the term may match the predicate. */
+  public boolean matchesTerm(String term) {
+    return term.equals(getTerm());
+  }
+
+  /**
+   * Find terms that cannot match, so the index can skip over them.
+   *
+   * @param term a term not accepted by {@link #matchesTerm(String)}.
+   * @return length of a prefix of term that no matching term starts with;
+   *         -1 if every term after it may match.
+   */
+  public int getDeadPrefixLength(String term) {
+    return -1;
+  }
+
+  /** @return true if changes match exactly when one of their terms does. */
+  public boolean isExact() {
+    return true;
+  }
+}
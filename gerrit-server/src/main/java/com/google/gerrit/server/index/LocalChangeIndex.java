@@ -0,0 +1,832 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt64;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt64;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.NotPredicate;
+import com.google.gerrit.server.query.OrPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link ChangeIndex} held in memory and saved under {@code $site_path/index}.
+ * <p>
+ * Every field maps its terms to the sorted ids of the changes having them,
+ * and queries combine these lists as bit sets. On disk the index is a
+ * snapshot of the lists plus a journal of the updates made since; the journal
+ * is replayed on startup and folded into a new snapshot once it grows long,
+ * and again on shutdown. If either file cannot be read the index starts out
+ * empty and is rebuilt by the {@link ChangeIndexer}.
+ */
+@Singleton
+class LocalChangeIndex implements ChangeIndex {
+  private static final Logger log =
+      LoggerFactory.getLogger(LocalChangeIndex.class);
+
+  private static final int MAGIC = 0x47434958;
+  private static final int VERSION = 2;
+
+  private static final int OP_REPLACE = 1;
+  private static final int OP_DELETE = 2;
+  private static final int OP_MARK = 3;
+
+  /** Journal records after which a new snapshot is written. */
+  private static final int COMPACT_AFTER = 10000;
+
+  private static final ChangeField[] FIELDS = ChangeField.values();
+
+  private final boolean enabled;
+  private final File dir;
+  private final File snapshotFile;
+  private final File journalFile;
+
+  /** Guards the in-memory state below. */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Serializes updates, so the journal is written in their order. */
+  private final Object writeLock = new Object();
+
+  private final List<TreeMap<String, IntList>> postings;
+  private final Map<Integer, Doc> docs = Maps.newHashMap();
+  private final BitSet all = new BitSet();
+  private String indexedThrough = "";
+  private boolean ready;
+
+  private OutputStream journal;
+  private int journalRecords;
+
+  @Inject
+  LocalChangeIndex(@GerritServerConfig Config cfg, SitePaths site) {
+    enabled = cfg.getBoolean("index", null, "enabled", false);
+    dir = site.index_dir;
+    snapshotFile = new File(dir, "changes.snapshot");
+    journalFile = new File(dir, "changes.journal");
+    postings = Lists.newArrayListWithCapacity(FIELDS.length);
+    for (int i = 0; i < FIELDS.length; i++) {
+      postings.add(new TreeMap<String, IntList>());
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Load the index from disk and start its journal. */
+  void open() {
+    if (!enabled) {
+      return;
+    }
+    synchronized (writeLock) {
+      lock.writeLock().lock();
+      try {
+        load();
+      } finally {
+        lock.writeLock().unlock();
+      }
+      try {
+        compact();
+      } catch (IOException e) {
+        log.error("Cannot write change index to " + dir, e);
+      }
+    }
+  }
+
+  /** Save the index as a snapshot and stop its journal. */
+  void close() {
+    synchronized (writeLock) {
+      if (journal == null) {
+        return;
+      }
+      try {
+        compact();
+        journal.close();
+      } catch (IOException e) {
+        log.error("Cannot write change index to " + dir, e);
+      } finally {
+        journal = null;
+      }
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    lock.readLock().lock();
+    try {
+      return ready;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public String getIndexedThrough() {
+    lock.readLock().lock();
+    try {
+      return indexedThrough;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void setIndexedThrough(String sortKey, boolean isReady)
+      throws IOException {
+    if (!enabled) {
+      return;
+    }
+    synchronized (writeLock) {
+      lock.writeLock().lock();
+      try {
+        indexedThrough = sortKey;
+        ready = isReady;
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      if (journal != null) {
+        journal.write(OP_MARK);
+        writeMark(journal, sortKey, isReady);
+        append();
+      }
+    }
+  }
+
+  @Override
+  public boolean isCurrent(Change.Id id, long lastUpdated) {
+    lock.readLock().lock();
+    try {
+      Doc d = docs.get(id.get());
+      return d != null && d.lastUpdated == lastUpdated;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean matches(Change.Id id, Predicate<ChangeData> p) {
+    lock.readLock().lock();
+    try {
+      Doc d = docs.get(id.get());
+      return d != null && matches(d, p);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void replace(ChangeDocument doc) throws IOException {
+    if (!enabled) {
+      return;
+    }
+    synchronized (writeLock) {
+      String[][] terms = new String[FIELDS.length][];
+      for (int f = 0; f < FIELDS.length; f++) {
+        Set<String> t = doc.get(FIELDS[f]);
+        terms[f] = t.toArray(new String[t.size()]);
+      }
+
+      lock.writeLock().lock();
+      try {
+        remove(doc.getId().get());
+        add(doc.getId().get(), doc.getSortKey(), doc.getLastUpdated(), terms);
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      if (journal != null) {
+        journal.write(OP_REPLACE);
+        writeDoc(journal, doc.getId().get(), doc.getSortKey(),
+            doc.getLastUpdated(), terms);
+        append();
+      }
+    }
+  }
+
+  @Override
+  public void delete(Change.Id id) throws IOException {
+    if (!enabled) {
+      return;
+    }
+    synchronized (writeLock) {
+      lock.writeLock().lock();
+      try {
+        remove(id.get());
+      } finally {
+        lock.writeLock().unlock();
+      }
+
+      if (journal != null) {
+        journal.write(OP_DELETE);
+        writeVarInt32(journal, id.get());
+        append();
+      }
+    }
+  }
+
+  @Override
+  public int count(Predicate<ChangeData> p) {
+    lock.readLock().lock();
+    try {
+      return eval(p).cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Change.Id> query(Predicate<ChangeData> p, String before,
+      String after, int limit) {
+    final boolean ascending = after != null;
+    Comparator<Doc> cmp = new Comparator<Doc>() {
+      @Override
+      public int compare(Doc a, Doc b) {
+        int c = a.sortKey.compareTo(b.sortKey);
+        return ascending ? -c : c;
+      }
+    };
+
+    // Keep the limit changes nearest to the bound; the head of the queue
+    // is the one furthest from it, replaced by anything nearer.
+    int max = 0 < limit ? limit : Integer.MAX_VALUE;
+    PriorityQueue<Doc> top = new PriorityQueue<Doc>(
+        Math.min(max, 1024), cmp);
+    lock.readLock().lock();
+    try {
+      BitSet r = eval(p);
+      for (int i = r.nextSetBit(0); 0 <= i; i = r.nextSetBit(i + 1)) {
+        Doc d = docs.get(i);
+        if ((before != null && d.sortKey.compareTo(before) >= 0)
+            || (after != null && d.sortKey.compareTo(after) <= 0)) {
+          continue;
+        }
+        if (top.size() < max) {
+          top.add(d);
+        } else if (cmp.compare(d, top.peek()) > 0) {
+          top.poll();
+          top.add(d);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Doc[] sorted = top.toArray(new Doc[top.size()]);
+    Arrays.sort(sorted, Collections.reverseOrder(cmp));
+    List<Change.Id> ids = Lists.newArrayListWithCapacity(sorted.length);
+    for (Doc d : sorted) {
+      ids.add(new Change.Id(d.id));
+    }
+    return ids;
+  }
+
+  private BitSet eval(Predicate<ChangeData> p) {
+    if (p instanceof IndexPredicate) {
+      return eval((IndexPredicate) p);
+
+    } else if (p instanceof AndPredicate) {
+      BitSet r = null;
+      List<Predicate<ChangeData>> negated = Lists.newArrayList();
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (c instanceof NotPredicate) {
+          negated.add(operand(c));
+        } else if (r == null) {
+          r = eval(c);
+        } else {
+          r.and(eval(c));
+        }
+        if (r != null && r.isEmpty()) {
+          return r;
+        }
+      }
+      if (r == null) {
+        r = (BitSet) all.clone();
+      }
+      for (Predicate<ChangeData> c : negated) {
+        r.andNot(eval(c));
+      }
+      return r;
+
+    } else if (p instanceof OrPredicate) {
+      BitSet r = new BitSet();
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        r.or(eval(c));
+      }
+      return r;
+
+    } else if (p instanceof NotPredicate) {
+      BitSet r = (BitSet) all.clone();
+      r.andNot(eval(operand(p)));
+      return r;
+
+    } else {
+      throw new IllegalArgumentException("Not indexable: " + p);
+    }
+  }
+
+  /** @return operand of a negation, which must be decided by the index. */
+  private static Predicate<ChangeData> operand(Predicate<ChangeData> not) {
+    Predicate<ChangeData> c = not.getChild(0);
+    if (!IndexPredicate.isExact(c)) {
+      throw new IllegalArgumentException("Not indexable: " + not);
+    }
+    return c;
+  }
+
+  private static boolean matches(Doc d, Predicate<ChangeData> p) {
+    if (p instanceof IndexPredicate) {
+      IndexPredicate ip = (IndexPredicate) p;
+      String term = ip.getTerm();
+      String prefix = ip.getTermPrefix();
+      for (String t : d.terms[ip.getField().ordinal()]) {
+        if (term != null
+            ? term.equals(t)
+            : (prefix == null || t.startsWith(prefix)) && ip.matchesTerm(t)) {
+          return true;
+        }
+      }
+      return false;
+
+    } else if (p instanceof AndPredicate) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (!matches(d, c)) {
+          return false;
+        }
+      }
+      return true;
+
+    } else if (p instanceof OrPredicate) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        if (matches(d, c)) {
+          return true;
+        }
+      }
+      return false;
+
+    } else if (p instanceof NotPredicate) {
+      return !matches(d, operand(p));
+
+    } else {
+      throw new IllegalArgumentException("Not indexable: " + p);
+    }
+  }
+
+  private BitSet eval(IndexPredicate p) {
+    TreeMap<String, IntList> terms = postings.get(p.getField().ordinal());
+    BitSet r = new BitSet();
+    String term = p.getTerm();
+    if (term != null) {
+      IntList ids = terms.get(term);
+      if (ids != null) {
+        ids.addTo(r);
+      }
+      return r;
+    }
+
+    String prefix = p.getTermPrefix();
+    if (prefix == null) {
+      prefix = "";
+    }
+    Map.Entry<String, IntList> e = terms.ceilingEntry(prefix);
+    while (e != null && e.getKey().startsWith(prefix)) {
+      String t = e.getKey();
+      if (p.matchesTerm(t)) {
+        e.getValue().addTo(r);
+        e = terms.higherEntry(t);
+        continue;
+      }
+
+      // Terms are sorted, so all terms sharing a prefix the predicate
+      // rejects are adjacent and can be skipped at once.
+      int dead = Math.min(p.getDeadPrefixLength(t), t.length());
+      if (dead < 0) {
+        e = terms.higherEntry(t);
+      } else {
+        String next = successor(t.substring(0, dead));
+        e = next != null ? terms.ceilingEntry(next) : null;
+      }
+    }
+    return r;
+  }
+
+  /** @return least string above those starting with prefix; null if none. */
+  private static String successor(String prefix) {
+    int n = prefix.length();
+    while (0 < n && prefix.charAt(n - 1) == Character.MAX_VALUE) {
+      n--;
+    }
+    if (n == 0) {
+      return null;
+    }
+    return prefix.substring(0, n - 1) + (char) (prefix.charAt(n - 1) + 1);
+  }
+
+  private void add(int id, String sortKey, long lastUpdated,
+      String[][] terms) {
+    for (int f = 0; f < FIELDS.length; f++) {
+      TreeMap<String, IntList> m = postings.get(f);
+      String[] t = terms[f];
+      for (int i = 0; i < t.length; i++) {
+        Map.Entry<String, IntList> e = m.ceilingEntry(t[i]);
+        if (e != null && e.getKey().equals(t[i])) {
+          t[i] = e.getKey(); // Share one copy of the term between changes.
+          e.getValue().add(id);
+        } else {
+          IntList ids = new IntList();
+          ids.add(id);
+          m.put(t[i], ids);
+        }
+      }
+    }
+    docs.put(id, new Doc(id, sortKey, lastUpdated, terms));
+    all.set(id);
+  }
+
+  private void remove(int id) {
+    Doc d = docs.remove(id);
+    if (d == null) {
+      return;
+    }
+    for (int f = 0; f < FIELDS.length; f++) {
+      TreeMap<String, IntList> m = postings.get(f);
+      for (String t : d.terms[f]) {
+        IntList ids = m.get(t);
+        if (ids != null) {
+          ids.remove(id);
+          if (ids.isEmpty()) {
+            m.remove(t);
+          }
+        }
+      }
+    }
+    all.clear(id);
+  }
+
+  private void clear() {
+    for (TreeMap<String, IntList> m : postings) {
+      m.clear();
+    }
+    docs.clear();
+    all.clear();
+    indexedThrough = "";
+    ready = false;
+  }
+
+  private void append() throws IOException {
+    journal.flush();
+    if (++journalRecords >= COMPACT_AFTER) {
+      compact();
+    }
+  }
+
+  /** Write a snapshot and start a new journal; caller holds writeLock. */
+  private void compact() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+
+    File tmp = new File(dir, snapshotFile.getName() + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+    try {
+      lock.readLock().lock();
+      try {
+        writeSnapshot(out);
+      } finally {
+        lock.readLock().unlock();
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(snapshotFile)
+        && !(snapshotFile.delete() && tmp.renameTo(snapshotFile))) {
+      throw new IOException("Cannot rename " + tmp + " to " + snapshotFile);
+    }
+
+    // Replaying the old journal over the new snapshot does no harm, so a
+    // failure between the rename and this point loses nothing.
+    journal = new BufferedOutputStream(new FileOutputStream(journalFile));
+    journalRecords = 0;
+  }
+
+  private void load() {
+    clear();
+    if (!snapshotFile.exists()) {
+      return;
+    }
+    try {
+      InputStream in =
+          new BufferedInputStream(new FileInputStream(snapshotFile));
+      try {
+        readSnapshot(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      log.warn("Cannot read " + snapshotFile + "; rebuilding change index", e);
+      clear();
+      return;
+    }
+
+    if (!journalFile.exists()) {
+      return;
+    }
+    int n = 0;
+    try {
+      InputStream in =
+          new BufferedInputStream(new FileInputStream(journalFile));
+      try {
+        while (replay(in)) {
+          n++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (EOFException e) {
+      log.warn("Ignoring incomplete record at the end of " + journalFile);
+    } catch (IOException e) {
+      log.warn("Cannot read " + journalFile + "; rebuilding change index", e);
+      clear();
+      return;
+    }
+    log.info("Loaded " + docs.size() + " changes into index, replayed "
+        + n + " updates");
+  }
+
+  private void writeSnapshot(OutputStream out) throws IOException {
+    writeFixInt32(out, MAGIC);
+    writeFixInt32(out, VERSION);
+    writeMark(out, indexedThrough, ready);
+
+    writeVarInt32(out, FIELDS.length);
+    for (ChangeField f : FIELDS) {
+      writeString(out, f.getName());
+    }
+
+    writeVarInt32(out, docs.size());
+    for (Doc d : docs.values()) {
+      writeVarInt32(out, d.id);
+      writeString(out, d.sortKey);
+      writeFixInt64(out, d.lastUpdated);
+    }
+
+    for (TreeMap<String, IntList> m : postings) {
+      writeVarInt32(out, m.size());
+      for (Map.Entry<String, IntList> e : m.entrySet()) {
+        writeString(out, e.getKey());
+        e.getValue().write(out);
+      }
+    }
+  }
+
+  private void readSnapshot(InputStream in) throws IOException {
+    if (readFixInt32(in) != MAGIC || readFixInt32(in) != VERSION) {
+      throw new IOException("Unsupported format");
+    }
+    readMark(in);
+
+    if (readVarInt32(in) != FIELDS.length) {
+      throw new IOException("Unsupported fields");
+    }
+    for (ChangeField f : FIELDS) {
+      if (!f.getName().equals(readString(in))) {
+        throw new IOException("Unsupported fields");
+      }
+    }
+
+    int n = readVarInt32(in);
+    Map<Integer, Doc> read = Maps.newHashMapWithExpectedSize(n);
+    Map<Integer, List<List<String>>> terms = Maps.newHashMapWithExpectedSize(n);
+    for (int i = 0; i < n; i++) {
+      int id = readVarInt32(in);
+      read.put(id, new Doc(id, str(in), readFixInt64(in), null));
+      List<List<String>> t = Lists.newArrayListWithCapacity(FIELDS.length);
+      for (int f = 0; f < FIELDS.length; f++) {
+        t.add(Lists.<String> newArrayListWithCapacity(2));
+      }
+      terms.put(id, t);
+    }
+
+    for (int f = 0; f < FIELDS.length; f++) {
+      TreeMap<String, IntList> m = postings.get(f);
+      for (int i = readVarInt32(in); 0 < i; i--) {
+        String term = str(in);
+        IntList ids = IntList.read(in);
+        for (int j = 0; j < ids.size; j++) {
+          List<List<String>> t = terms.get(ids.ids[j]);
+          if (t == null) {
+            throw new IOException("Unknown change " + ids.ids[j]);
+          }
+          t.get(f).add(term);
+        }
+        m.put(term, ids);
+      }
+    }
+
+    for (Doc d : read.values()) {
+      List<List<String>> t = terms.get(d.id);
+      String[][] a = new String[FIELDS.length][];
+      for (int f = 0; f < FIELDS.length; f++) {
+        a[f] = t.get(f).toArray(new String[t.get(f).size()]);
+      }
+      docs.put(d.id, new Doc(d.id, d.sortKey, d.lastUpdated, a));
+      all.set(d.id);
+    }
+  }
+
+  /** @return false at the end of the journal. */
+  private boolean replay(InputStream in) throws IOException {
+    int op = in.read();
+    if (op < 0) {
+      return false;
+    }
+    switch (op) {
+      case OP_REPLACE: {
+        int id = readVarInt32(in);
+        String sortKey = str(in);
+        long lastUpdated = readFixInt64(in);
+        String[][] terms = new String[FIELDS.length][];
+        for (int f = 0; f < FIELDS.length; f++) {
+          terms[f] = new String[readVarInt32(in)];
+          for (int i = 0; i < terms[f].length; i++) {
+            terms[f][i] = str(in);
+          }
+        }
+        remove(id);
+        add(id, sortKey, lastUpdated, terms);
+        return true;
+      }
+
+      case OP_DELETE:
+        remove(readVarInt32(in));
+        return true;
+
+      case OP_MARK:
+        readMark(in);
+        return true;
+
+      default:
+        throw new IOException("Unknown journal record " + op);
+    }
+  }
+
+  private static void writeDoc(OutputStream out, int id, String sortKey,
+      long lastUpdated, String[][] terms) throws IOException {
+    writeVarInt32(out, id);
+    writeString(out, sortKey);
+    writeFixInt64(out, lastUpdated);
+    for (String[] t : terms) {
+      writeVarInt32(out, t.length);
+      for (String s : t) {
+        writeString(out, s);
+      }
+    }
+  }
+
+  private static void writeMark(OutputStream out, String sortKey,
+      boolean isReady) throws IOException {
+    writeString(out, sortKey);
+    writeVarInt32(out, isReady ? 1 : 0);
+  }
+
+  private void readMark(InputStream in) throws IOException {
+    indexedThrough = str(in);
+    ready = readVarInt32(in) != 0;
+  }
+
+  private static String str(InputStream in) throws IOException {
+    String s = readString(in);
+    return s != null ? s : "";
+  }
+
+  private static class Doc {
+    final int id;
+    final String sortKey;
+    final long lastUpdated;
+
+    /** Terms of the change, indexed by field ordinal. */
+    final String[][] terms;
+
+    Doc(int id, String sortKey, long lastUpdated, String[][] terms) {
+      this.id = id;
+      this.sortKey = sortKey;
+      this.lastUpdated = lastUpdated;
+      this.terms = terms;
+    }
+  }
+
+  /** Sorted set of change ids having one term. */
+  private static class IntList {
+    int[] ids = new int[1];
+    int size;
+
+    void add(int id) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      if (0 <= i) {
+        return;
+      }
+      i = -(i + 1);
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      System.arraycopy(ids, i, ids, i + 1, size - i);
+      ids[i] = id;
+      size++;
+    }
+
+    void remove(int id) {
+      int i = Arrays.binarySearch(ids, 0, size, id);
+      if (0 <= i) {
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        size--;
+      }
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void addTo(BitSet r) {
+      for (int i = 0; i < size; i++) {
+        r.set(ids[i]);
+      }
+    }
+
+    /** Write the ids as differences from their predecessor. */
+    void write(OutputStream out) throws IOException {
+      writeVarInt32(out, size);
+      int last = 0;
+      for (int i = 0; i < size; i++) {
+        writeVarInt32(out, ids[i] - last);
+        last = ids[i];
+      }
+    }
+
+    static IntList read(InputStream in) throws IOException {
+      IntList r = new IntList();
+      r.size = readVarInt32(in);
+      r.ids = new int[Math.max(r.size, 1)];
+      int last = 0;
+      for (int i = 0; i < r.size; i++) {
+        last += readVarInt32(in);
+        r.ids[i] = last;
+      }
+      return r;
+    }
+  }
+}
@@ -30,6 +30,7 @@ import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.account.GroupCache;
 import com.google.gerrit.server.account.GroupMembers;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.mail.AddReviewerSender;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gwtorm.server.OrmException;
@@ -59,6 +60,7 @@ public class AddReviewer implements Callable<ReviewerResult> {
   private final GroupCache groupCache;
   private final GroupMembers.Factory groupMembersFactory;
   private final ChangeControl.Factory changeControlFactory;
+  private final ChangeIndexer indexer;
   private final ReviewDb db;
   private final IdentifiedUser currentUser;
   private final IdentifiedUser.GenericFactory identifiedUserFactory;
@@ -73,7 +75,8 @@ public class AddReviewer implements Callable<ReviewerResult> {
   AddReviewer(final AddReviewerSender.Factory addReviewerSenderFactory,
       final AccountResolver accountResolver, final GroupCache groupCache,
       final GroupMembers.Factory groupMembersFactory,
-      final ChangeControl.Factory changeControlFactory, final ReviewDb db,
+      final ChangeControl.Factory changeControlFactory,
+      final ChangeIndexer indexer, final ReviewDb db,
       final IdentifiedUser.GenericFactory identifiedUserFactory,
       final IdentifiedUser currentUser, final ApprovalTypes approvalTypes,
       final @GerritServerConfig Config cfg, @Assisted final Change.Id changeId,
@@ -85,6 +88,7 @@ public class AddReviewer implements Callable<ReviewerResult> {
     this.groupMembersFactory = groupMembersFactory;
     this.db = db;
     this.changeControlFactory = changeControlFactory;
+    this.indexer = indexer;
     this.identifiedUserFactory = identifiedUserFactory;
     this.currentUser = currentUser;
     this.cfg = cfg;
@@ -209,6 +213,9 @@ public class AddReviewer implements Callable<ReviewerResult> {
       }
     }
     db.patchSetApprovals().insert(toInsert);
+    if (!toInsert.isEmpty()) {
+      indexer.index(control.getChange());
+    }
 
     // Email the reviewers
     //
@@ -0,0 +1,224 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.collect.Sets;
+import com.google.gerrit.reviewdb.client.AccountDiffPreference.Whitespace;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Computes the differences of new patch sets before anyone asks for them.
+ * <p>
+ * Reviewers usually first look at a new patch set against its parent, or
+ * against the patch set it replaces. Both file lists, and the intraline
+ * differences of their modified files, are computed on the low priority
+ * {@code DiffPrefetch} queue and stored in the diff caches. A difference
+ * already waiting in the queue is not queued again, and once
+ * {@code cache.diff.prefetchLimit} differences are waiting, further ones
+ * are left to be computed on demand.
+ */
+@Singleton
+public class DiffPrefetcher {
+  private static final Logger log =
+      LoggerFactory.getLogger(DiffPrefetcher.class);
+
+  /** Patch sets modifying more files are not worth the intraline work. */
+  private static final int MAX_INTRALINE_FILES = 100;
+
+  private final PatchListCacheImpl patchListCache;
+  private final GitRepositoryManager repoManager;
+  private final WorkQueue.Executor executor;
+  private final int limit;
+  private final Set<PatchListKey> pending =
+      Sets.newSetFromMap(new ConcurrentHashMap<PatchListKey, Boolean>());
+
+  @Inject
+  DiffPrefetcher(PatchListCacheImpl patchListCache,
+      GitRepositoryManager repoManager, WorkQueue workQueue,
+      @GerritServerConfig Config cfg) {
+    this.patchListCache = patchListCache;
+    this.repoManager = repoManager;
+
+    int threads = cfg.getInt("cache", "diff", "prefetchThreads", 1);
+    this.executor = 0 < threads
+        ? workQueue.createQueue(threads, "DiffPrefetch", Thread.MIN_PRIORITY)
+        : null;
+    this.limit = cfg.getInt("cache", "diff", "prefetchLimit", 50);
+  }
+
+  /**
+   * Compute the differences of a new patch set in the background.
+   *
+   * @param project project of the change.
+   * @param commit commit of the new patch set.
+   * @param prior commit of the patch set it replaces; null for the first
+   *        patch set of a change.
+   */
+  public void prefetch(Project.NameKey project, ObjectId commit,
+      @Nullable ObjectId prior) {
+    if (executor == null) {
+      return;
+    }
+    enqueue(new PatchListKey(project, null, commit, Whitespace.IGNORE_NONE));
+    if (prior != null && !prior.equals(commit)) {
+      enqueue(new PatchListKey(project, prior, commit,
+          Whitespace.IGNORE_NONE));
+    }
+  }
+
+  private void enqueue(final PatchListKey key) {
+    if (limit <= pending.size() || !pending.add(key)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            load(key);
+          } finally {
+            pending.remove(key);
+          }
+        }
+
+        @Override
+        public String toString() {
+          return "prefetch diff " + key;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.remove(key);
+    }
+  }
+
+  private void load(PatchListKey key) {
+    PatchList list;
+    try {
+      list = patchListCache.get(key);
+    } catch (PatchListNotAvailableException e) {
+      // Already logged by the cache; viewing the change will retry.
+      return;
+    }
+    if (!patchListCache.isIntraLineEnabled()
+        || MAX_INTRALINE_FILES < list.getPatches().size()) {
+      return;
+    }
+
+    try {
+      Repository repo = repoManager.openRepository(key.projectKey);
+      try {
+        ObjectReader reader = repo.newObjectReader();
+        try {
+          for (PatchListEntry e : list.getPatches()) {
+            if (isIntraLineCandidate(e)) {
+              loadIntraLine(reader, key.projectKey, list, e);
+            }
+          }
+        } finally {
+          reader.release();
+        }
+      } finally {
+        repo.close();
+      }
+    } catch (IOException e) {
+      log.warn("Cannot prefetch intraline differences of " + key, e);
+    }
+  }
+
+  private void loadIntraLine(ObjectReader reader, Project.NameKey project,
+      PatchList list, PatchListEntry e) throws IOException {
+    String oldName = e.getChangeType() == Patch.ChangeType.MODIFIED
+        ? e.getNewName()
+        : e.getOldName();
+    ObjectId a = blob(reader, list.getOldId(), oldName);
+    ObjectId b = blob(reader, list.getNewId(), e.getNewName());
+    if (a == null || b == null) {
+      return;
+    }
+
+    IntraLineDiffKey key = new IntraLineDiffKey(a, null, b, null, null,
+        project, list.getNewId(), e.getNewName());
+    if (patchListCache.hasIntraLineDiff(key)) {
+      return;
+    }
+
+    Text aText;
+    Text bText;
+    try {
+      aText = new Text(reader.open(a, Constants.OBJ_BLOB));
+      bText = new Text(reader.open(b, Constants.OBJ_BLOB));
+    } catch (LargeObjectException err) {
+      return;
+    }
+    patchListCache.getIntraLineDiff(new IntraLineDiffKey(a, aText, b, bText,
+        new ArrayList<Edit>(e.getEdits()), project, list.getNewId(),
+        e.getNewName()));
+  }
+
+  private static boolean isIntraLineCandidate(PatchListEntry e) {
+    if (Patch.COMMIT_MSG.equals(e.getNewName())
+        || e.getPatchType() != Patch.PatchType.UNIFIED
+        || e.getEdits().isEmpty()) {
+      return false;
+    }
+    switch (e.getChangeType()) {
+      case MODIFIED:
+      case COPIED:
+      case RENAMED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static ObjectId blob(ObjectReader reader, ObjectId within,
+      String path) throws IOException {
+    if (within == null || path == null) {
+      return null;
+    }
+    RevWalk rw = new RevWalk(reader);
+    TreeWalk tw = TreeWalk.forPath(reader, path, rw.parseTree(within));
+    if (tw == null || tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) {
+      return null;
+    }
+    return tw.getObjectId(0);
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+
+import org.eclipse.jgit.diff.Edit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Compact encodings shared by the cached diff values.
+ * <p>
+ * Edit lists are sorted, so each edit is stored relative to the end of the
+ * previous one, keeping most varints to a single byte. Paths are stored
+ * relative to a previously written path, sharing its common prefix.
+ */
+final class EditSerialization {
+  /** Marker preceding versioned data; legacy encodings never start with it. */
+  static final int VERSIONED = 0;
+
+  static void writeEdits(OutputStream out, Iterable<Edit> edits, int size)
+      throws IOException {
+    writeVarInt32(out, size);
+    int endA = 0;
+    int endB = 0;
+    for (Edit e : edits) {
+      writeVarInt32(out, zigzag(e.getBeginA() - endA));
+      writeVarInt32(out, e.getEndA() - e.getBeginA());
+      writeVarInt32(out, zigzag(e.getBeginB() - endB));
+      writeVarInt32(out, e.getEndB() - e.getBeginB());
+      endA = e.getEndA();
+      endB = e.getEndB();
+    }
+  }
+
+  static Edit[] readEdits(InputStream in) throws IOException {
+    Edit[] edits = new Edit[readVarInt32(in)];
+    int endA = 0;
+    int endB = 0;
+    for (int i = 0; i < edits.length; i++) {
+      int beginA = endA + unzigzag(readVarInt32(in));
+      endA = beginA + readVarInt32(in);
+      int beginB = endB + unzigzag(readVarInt32(in));
+      endB = beginB + readVarInt32(in);
+      edits[i] = new Edit(beginA, endA, beginB, endB);
+    }
+    return edits;
+  }
+
+  /** Write a non-null path as its common prefix length with base, and the rest. */
+  static void writePath(OutputStream out, String path, String base)
+      throws IOException {
+    int common = 0;
+    if (base != null) {
+      int max = Math.min(path.length(), base.length());
+      while (common < max && path.charAt(common) == base.charAt(common)) {
+        common++;
+      }
+      if (0 < common && Character.isHighSurrogate(path.charAt(common - 1))) {
+        common--; // Do not split a surrogate pair across the UTF-8 encoding.
+      }
+    }
+    writeVarInt32(out, common);
+    writeBytes(out, utf8(path.substring(common)));
+  }
+
+  static String readPath(InputStream in, String base) throws IOException {
+    int common = readVarInt32(in);
+    String rest = new String(readBytes(in), "UTF-8");
+    if (common == 0) {
+      return rest;
+    }
+    if (base == null || base.length() < common) {
+      throw new IOException("Invalid path prefix " + common);
+    }
+    return base.substring(0, common) + rest;
+  }
+
+  private static byte[] utf8(String s) throws UnsupportedEncodingException {
+    return s.getBytes("UTF-8");
+  }
+
+  private static int zigzag(int v) {
+    return (v << 1) ^ (v >> 31);
+  }
+
+  private static int unzigzag(int v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  private EditSerialization() {
+  }
+}
@@ -15,9 +15,14 @@
 package com.google.gerrit.server.patch;
 
 import static com.google.gerrit.server.ioutil.BasicSerialization.readEnum;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static com.google.gerrit.server.patch.EditSerialization.VERSIONED;
+import static com.google.gerrit.server.patch.EditSerialization.readEdits;
+import static com.google.gerrit.server.patch.EditSerialization.writeEdits;
 
 import com.google.gerrit.reviewdb.client.CodedEnum;
 
@@ -28,7 +33,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
@@ -37,6 +41,9 @@ import java.util.List;
 public class IntraLineDiff implements Serializable {
   static final long serialVersionUID = IntraLineDiffKey.serialVersionUID;
 
+  /** Current encoding; {@link #readObject} also accepts older formats. */
+  private static final int FORMAT_VERSION = 3;
+
   public static enum Status implements CodedEnum {
     EDIT_LIST('e'), DISABLED('D'), TIMEOUT('T'), ERROR('E');
 
@@ -54,10 +61,16 @@ public class IntraLineDiff implements Serializable {
 
   private transient Status status;
   private transient List<Edit> edits;
+  private transient String reason;
 
   IntraLineDiff(Status status) {
+    this(status, null);
+  }
+
+  IntraLineDiff(Status status, String reason) {
     this.status = status;
     this.edits = Collections.emptyList();
+    this.reason = reason;
   }
 
   IntraLineDiff(List<Edit> edits) {
@@ -73,26 +86,63 @@ public class IntraLineDiff implements Serializable {
     return edits;
   }
 
+  /** @return why no edits were computed; null if unknown or not needed. */
+  public String getReason() {
+    return reason;
+  }
+
   private void writeObject(final ObjectOutputStream out) throws IOException {
+    writeVarInt32(out, VERSIONED);
+    writeVarInt32(out, FORMAT_VERSION);
     writeEnum(out, status);
-    writeVarInt32(out, edits.size());
+    writeEdits(out, edits, edits.size());
     for (Edit e : edits) {
-      writeEdit(out, e);
-
       if (e instanceof ReplaceEdit) {
-        ReplaceEdit r = (ReplaceEdit) e;
-        writeVarInt32(out, r.getInternalEdits().size());
-        for (Edit i : r.getInternalEdits()) {
-          writeEdit(out, i);
-        }
+        List<Edit> inner = ((ReplaceEdit) e).getInternalEdits();
+        writeEdits(out, inner, inner.size());
       } else {
         writeVarInt32(out, 0);
       }
     }
+    writeString(out, reason);
   }
 
   private void readObject(final ObjectInputStream in) throws IOException {
+    // The legacy format starts with the status code, which is never 0.
+    int code = readVarInt32(in);
+    if (code != VERSIONED) {
+      readLegacy(in, code);
+      return;
+    }
+
+    int version = readVarInt32(in);
+    if (version != 2 && version != FORMAT_VERSION) {
+      throw new IOException("Unsupported IntraLineDiff format " + version);
+    }
     status = readEnum(in, Status.values());
+    Edit[] editArray = readEdits(in);
+    for (int i = 0; i < editArray.length; i++) {
+      Edit[] inner = readEdits(in);
+      if (0 < inner.length) {
+        editArray[i] = new ReplaceEdit(editArray[i], toList(inner));
+      }
+    }
+    edits = toList(editArray);
+    if (version == FORMAT_VERSION) {
+      reason = readString(in);
+    }
+  }
+
+  private void readLegacy(InputStream in, int code) throws IOException {
+    status = null;
+    for (Status s : Status.values()) {
+      if (s.getCode() == code) {
+        status = s;
+      }
+    }
+    if (status == null) {
+      throw new IOException("Invalid enum " + code + " for " + Status.class);
+    }
     int editCount = readVarInt32(in);
     Edit[] editArray = new Edit[editCount];
     for (int i = 0; i < editCount; i++) {
@@ -110,13 +160,6 @@ public class IntraLineDiff implements Serializable {
     edits = toList(editArray);
   }
 
-  private static void writeEdit(OutputStream out, Edit e) throws IOException {
-    writeVarInt32(out, e.getBeginA());
-    writeVarInt32(out, e.getEndA());
-    writeVarInt32(out, e.getBeginB());
-    writeVarInt32(out, e.getEndB());
-  }
-
   private static Edit readEdit(InputStream in) throws IOException {
     int beginA = readVarInt32(in);
     int endA = readVarInt32(in);
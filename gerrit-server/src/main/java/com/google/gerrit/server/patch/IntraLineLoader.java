@@ -18,7 +18,9 @@ package com.google.gerrit.server.patch;
 import com.google.common.cache.CacheLoader;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.MyersDiff;
@@ -27,14 +29,29 @@ import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
+/**
+ * Computes intraline differences on a fixed pool of worker threads.
+ * <p>
+ * A caller waits at most {@code cache.diff_intraline.timeout} for its
+ * result. A difference still running at the timeout is canceled; the
+ * worker checks for cancellation between edits and while comparing their
+ * characters, so workers are always returned to the pool. Edits larger
+ * than {@link #MAX_REGION_COMPLEXITY} and files larger than
+ * {@code cache.diff_intraline.maxFileSize} are not compared at all. Both
+ * results are cached, with the reason, like any other difference.
+ */
 class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
   static final Logger log = LoggerFactory.getLogger(IntraLineLoader.class);
 
@@ -44,173 +61,95 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
   private static final Pattern CONTROL_BLOCK_START_RE = Pattern
       .compile("[{:][ \\t]*$");
 
-  private final BlockingQueue<Worker> workerPool;
+  /**
+   * Largest product of the lengths of both sides of an edit, in characters,
+   * compared character by character. Larger edits are shown as replacing
+   * whole lines.
+   */
+  private static final long MAX_REGION_COMPLEXITY = 10000L * 10000L;
+
+  private static final ThreadMXBean threads =
+      ManagementFactory.getThreadMXBean();
+
+  private final WorkQueue.Executor workers;
   private final long timeoutMillis;
+  private final int maxFileSize;
+  private final IntraLineStats stats;
 
   @Inject
-  IntraLineLoader(final @GerritServerConfig Config cfg) {
-    final int workers =
-        cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "maxIdleWorkers",
-            Runtime.getRuntime().availableProcessors() * 3 / 2);
-    workerPool = new ArrayBlockingQueue<Worker>(workers, true /* fair */);
-
+  IntraLineLoader(final @GerritServerConfig Config cfg,
+      final Workers workers, final IntraLineStats stats) {
+    this.workers = workers.executor;
     timeoutMillis =
         ConfigUtil.getTimeUnit(cfg, "cache", PatchListCacheImpl.INTRA_NAME,
             "timeout", TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
             TimeUnit.MILLISECONDS);
+    maxFileSize = cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME,
+        "maxFileSize", 1 << 20);
+    this.stats = stats;
   }
 
   @Override
-  public IntraLineDiff load(IntraLineDiffKey key) throws Exception {
-    Worker w = workerPool.poll();
-    if (w == null) {
-      w = new Worker();
+  public IntraLineDiff load(final IntraLineDiffKey key) throws Exception {
+    if (maxFileSize < key.getTextA().getContent().length
+        || maxFileSize < key.getTextB().getContent().length) {
+      stats.tooLarge.incrementAndGet();
+      return new IntraLineDiff(IntraLineDiff.Status.DISABLED,
+          "larger than " + maxFileSize + " bytes");
     }
 
-    Worker.Result r = w.computeWithTimeout(key, timeoutMillis);
-
-    if (r == Worker.Result.TIMEOUT) {
-      // Don't keep this thread. We have to murder it unsafely, which
-      // means its unable to be reused in the future. Return back a
-      // null result, indicating the cache cannot load this key.
-      //
-      return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT);
-    }
-
-    if (!workerPool.offer(w)) {
-      // If the idle worker pool is full, terminate this thread.
-      //
-      w.end();
-    }
-
-    if (r.error != null) {
+    final AtomicBoolean started = new AtomicBoolean();
+    Future<IntraLineDiff> result =
+        workers.submit(new Callable<IntraLineDiff>() {
+          @Override
+          public IntraLineDiff call() throws Exception {
+            started.set(true);
+            long start = cpuTime();
+            try {
+              return compute(key);
+            } finally {
+              stats.cpuNanos.addAndGet(cpuTime() - start);
+            }
+          }
+        });
+
+    try {
+      IntraLineDiff d = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      stats.computed.incrementAndGet();
+      return d;
+    } catch (TimeoutException e) {
+      if (!started.get()) {
+        // All workers were busy. Nothing is known about this file, so
+        // don't cache the failure.
+        stats.canceled.incrementAndGet();
+        throw e;
+      }
+      stats.timedOut.incrementAndGet();
+      log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
+          + " in project " + key.getProject().get() //
+          + " on commit " + key.getCommit().name() //
+          + " for path " + key.getPath() //
+          + " comparing " + key.getBlobA().name() //
+          + ".." + key.getBlobB().name());
+      return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT,
+          timeoutMillis + " ms timeout reached");
+    } catch (ExecutionException e) {
       // If there was an error computing the result, carry it
       // up to the caller so the cache knows this key is invalid.
       //
-      throw r.error;
-    }
-
-    return r.diff;
-  }
-
-  private static class Worker {
-    private static final AtomicInteger count = new AtomicInteger(1);
-
-    private final ArrayBlockingQueue<Input> input;
-    private final ArrayBlockingQueue<Result> result;
-    private final Thread thread;
-
-    Worker() {
-      input = new ArrayBlockingQueue<Input>(1);
-      result = new ArrayBlockingQueue<Result>(1);
-
-      thread = new Thread(new Runnable() {
-        public void run() {
-          workerLoop();
-        }
-      });
-      thread.setName("IntraLineDiff-" + count.getAndIncrement());
-      thread.setDaemon(true);
-      thread.start();
-    }
-
-    Result computeWithTimeout(IntraLineDiffKey key, long timeoutMillis)
-        throws Exception {
-      if (!input.offer(new Input(key))) {
-        log.error("Cannot enqueue task to thread " + thread.getName());
-        return Result.TIMEOUT;
-      }
-
-      Result r = result.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-      if (r != null) {
-        return r;
-      } else {
-        log.warn(timeoutMillis + " ms timeout reached for IntraLineDiff"
-            + " in project " + key.getProject().get() //
-            + " on commit " + key.getCommit().name() //
-            + " for path " + key.getPath() //
-            + " comparing " + key.getBlobA().name() //
-            + ".." + key.getBlobB().name() //
-            + ".  Killing " + thread.getName());
-        forcefullyKillThreadInAnUglyWay();
-        return Result.TIMEOUT;
-      }
-    }
-
-    @SuppressWarnings("deprecation")
-    private void forcefullyKillThreadInAnUglyWay() {
-      try {
-        thread.stop();
-      } catch (Throwable error) {
-        // Ignore any reason the thread won't stop.
-        log.error("Cannot stop runaway thread " + thread.getName(), error);
-      }
-    }
-
-    void end() {
-      if (!input.offer(Input.END_THREAD)) {
-        log.error("Cannot gracefully stop thread " + thread.getName());
-      }
-    }
-
-    private void workerLoop() {
-      try {
-        for (;;) {
-          Input in;
-          try {
-            in = input.take();
-          } catch (InterruptedException e) {
-            log.error("Unexpected interrupt on " + thread.getName());
-            continue;
-          }
-
-          if (in == Input.END_THREAD) {
-            return;
-          }
-
-          Result r;
-          try {
-            r = new Result(IntraLineLoader.compute(in.key));
-          } catch (Exception error) {
-            r = new Result(error);
-          }
-
-          if (!result.offer(r)) {
-            log.error("Cannot return result from " + thread.getName());
-          }
-        }
-      } catch (ThreadDeath iHaveBeenShot) {
-        // Handle thread death by gracefully returning to the caller,
-        // allowing the thread to be destroyed.
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
       }
+      throw e;
+    } finally {
+      result.cancel(true);
     }
+  }
 
-    private static class Input {
-      static final Input END_THREAD = new Input(null);
-
-      final IntraLineDiffKey key;
-
-      Input(IntraLineDiffKey key) {
-        this.key = key;
-      }
-    }
-
-    static class Result {
-      static final Result TIMEOUT = new Result((IntraLineDiff) null);
-
-      final IntraLineDiff diff;
-      final Exception error;
-
-      Result(IntraLineDiff diff) {
-        this.diff = diff;
-        this.error = null;
-      }
-
-      Result(Exception error) {
-        this.diff = null;
-        this.error = error;
-      }
-    }
+  private static long cpuTime() {
+    return threads.isCurrentThreadCpuTimeSupported()
+        ? threads.getCurrentThreadCpuTime()
+        : 0;
   }
 
   private static IntraLineDiff compute(IntraLineDiffKey key) throws Exception {
@@ -220,12 +159,18 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
     combineLineEdits(edits, aContent, bContent);
 
     for (int i = 0; i < edits.size(); i++) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException("Canceled after timeout");
+      }
       Edit e = edits.get(i);
 
       if (e.getType() == Edit.Type.REPLACE) {
         CharText a = new CharText(aContent, e.getBeginA(), e.getEndA());
         CharText b = new CharText(bContent, e.getBeginB(), e.getEndB());
-        CharTextComparator cmp = new CharTextComparator();
+        if (MAX_REGION_COMPLEXITY < (long) a.size() * b.size()) {
+          continue;
+        }
+        CharTextComparator cmp = new CancelableComparator();
 
         List<Edit> wordEdits = MyersDiff.INSTANCE.diff(cmp, a, b);
 
@@ -261,6 +206,9 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
         // to produce some crazy stuff.
         //
         for (int j = 0; j < wordEdits.size(); j++) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException("Canceled after timeout");
+          }
           Edit c = wordEdits.get(j);
           int ab = c.getBeginA();
           int ae = c.getEndA();
@@ -473,4 +421,47 @@ class IntraLineLoader extends CacheLoader<IntraLineDiffKey, IntraLineDiff> {
     }
     return b < e;
   }
+
+  /**
+   * Threads computing intraline differences, in the {@code IntraLineDiff}
+   * work queue, which is stopped with the server.
+   */
+  @Singleton
+  static class Workers {
+    final WorkQueue.Executor executor;
+
+    @Inject
+    Workers(final @GerritServerConfig Config cfg, final WorkQueue workQueue) {
+      final int poolSize =
+          cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME, "workers",
+              cfg.getInt("cache", PatchListCacheImpl.INTRA_NAME,
+                  "maxIdleWorkers",
+                  Runtime.getRuntime().availableProcessors() * 3 / 2));
+      executor = workQueue.createQueue(Math.max(poolSize, 1), "IntraLineDiff");
+    }
+  }
+
+  /**
+   * Compares characters, checking every few thousand comparisons whether
+   * the worker was canceled, as {@link MyersDiff} itself never does.
+   */
+  private static class CancelableComparator extends CharTextComparator {
+    private int calls;
+
+    @Override
+    public boolean equals(CharText a, int ai, CharText b, int bi) {
+      if ((++calls & 0xfff) == 0 && Thread.currentThread().isInterrupted()) {
+        throw new CanceledException();
+      }
+      return super.equals(a, ai, b, bi);
+    }
+  }
+
+  private static class CanceledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CanceledException() {
+      super("Canceled after timeout");
+    }
+  }
 }
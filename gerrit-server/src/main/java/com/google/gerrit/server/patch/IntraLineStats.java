@@ -0,0 +1,55 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters of the intraline differences computed by this server. */
+@Singleton
+public class IntraLineStats {
+  final AtomicLong computed = new AtomicLong();
+  final AtomicLong timedOut = new AtomicLong();
+  final AtomicLong canceled = new AtomicLong();
+  final AtomicLong tooLarge = new AtomicLong();
+  final AtomicLong cpuNanos = new AtomicLong();
+
+  /** @return number of differences computed within the timeout. */
+  public long getComputed() {
+    return computed.get();
+  }
+
+  /** @return number of differences abandoned after the timeout. */
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  /** @return number of requests that timed out before a worker was free. */
+  public long getCanceled() {
+    return canceled.get();
+  }
+
+  /** @return number of files skipped as larger than the size budget. */
+  public long getTooLarge() {
+    return tooLarge.get();
+  }
+
+  /** @return CPU time used by the workers, in milliseconds. */
+  public long getCpuTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(cpuNanos.get());
+  }
+}
@@ -19,6 +19,7 @@ import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static com.google.gerrit.server.patch.EditSerialization.VERSIONED;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readCanBeNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.writeCanBeNull;
@@ -29,6 +30,7 @@ import com.google.gerrit.reviewdb.client.PatchSet;
 
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.IO;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -48,6 +50,10 @@ import javax.annotation.Nullable;
 
 public class PatchList implements Serializable {
   private static final long serialVersionUID = PatchListKey.serialVersionUID;
+
+  /** Current encoding; {@link #readObject} also accepts the legacy format. */
+  private static final int FORMAT_VERSION = 2;
+
   private static final Comparator<PatchListEntry> PATCH_CMP =
       new Comparator<PatchListEntry>() {
         @Override
@@ -171,18 +177,39 @@ public class PatchList implements Serializable {
       writeVarInt32(out, insertions);
       writeVarInt32(out, deletions);
       writeVarInt32(out, patches.length);
+      String prev = null;
       for (PatchListEntry p : patches) {
-        p.writeTo(out);
+        p.writeTo(out, prev);
+        prev = p.getNewName();
       }
     } finally {
       out.close();
     }
+    writeVarInt32(output, VERSIONED);
+    writeVarInt32(output, FORMAT_VERSION);
     writeBytes(output, buf.toByteArray());
   }
 
   private void readObject(final ObjectInputStream input) throws IOException {
-    final ByteArrayInputStream buf = new ByteArrayInputStream(readBytes(input));
-    final InflaterInputStream in = new InflaterInputStream(buf);
+    // The legacy format starts with the length of its compressed data, which
+    // is never 0, where the current format starts with a version marker.
+    final int len = readVarInt32(input);
+    final int version;
+    final byte[] data;
+    if (len == VERSIONED) {
+      version = readVarInt32(input);
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported PatchList format " + version);
+      }
+      data = readBytes(input);
+    } else {
+      version = 1;
+      data = new byte[len];
+      IO.readFully(input, data, 0, len);
+    }
+
+    final InflaterInputStream in =
+        new InflaterInputStream(new ByteArrayInputStream(data));
     try {
       oldId = readCanBeNull(in);
       newId = readNotNull(in);
@@ -191,8 +218,14 @@ public class PatchList implements Serializable {
       deletions = readVarInt32(in);
       final int cnt = readVarInt32(in);
       final PatchListEntry[] all = new PatchListEntry[cnt];
+      String prev = null;
       for (int i = 0; i < all.length; i++) {
-        all[i] = PatchListEntry.readFrom(in);
+        if (version == 1) {
+          all[i] = PatchListEntry.readFrom(in);
+        } else {
+          all[i] = PatchListEntry.readFrom(in, prev);
+          prev = all[i].getNewName();
+        }
       }
       patches = all;
     } finally {
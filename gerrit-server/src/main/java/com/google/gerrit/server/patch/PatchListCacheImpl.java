@@ -31,6 +31,7 @@ import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /** Provides a cached list of {@link PatchListEntry}. */
 @Singleton
@@ -54,6 +55,8 @@ public class PatchListCacheImpl implements PatchListCache {
 
         bind(PatchListCacheImpl.class);
         bind(PatchListCache.class).to(PatchListCacheImpl.class);
+        bind(DiffPrefetcher.class);
+        bind(IntraLineStats.class);
       }
     };
   }
@@ -95,12 +98,26 @@ public class PatchListCacheImpl implements PatchListCache {
     return get(new PatchListKey(projectKey, a, b, ws));
   }
 
+  boolean isIntraLineEnabled() {
+    return computeIntraline;
+  }
+
+  /** @return true if the intraline difference of the key's blobs is cached. */
+  boolean hasIntraLineDiff(IntraLineDiffKey key) {
+    return intraCache.getIfPresent(key) != null;
+  }
+
   @Override
   public IntraLineDiff getIntraLineDiff(IntraLineDiffKey key) {
     if (computeIntraline) {
       try {
         return intraCache.get(key);
       } catch (ExecutionException e) {
+        if (e.getCause() instanceof TimeoutException) {
+          // No worker was free in time; the next request tries again.
+          return new IntraLineDiff(IntraLineDiff.Status.TIMEOUT,
+              "all workers busy");
+        }
         IntraLineLoader.log.warn("Error computing " + key, e);
         return new IntraLineDiff(IntraLineDiff.Status.ERROR);
       }
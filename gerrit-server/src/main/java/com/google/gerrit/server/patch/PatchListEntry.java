@@ -20,8 +20,11 @@ import static com.google.gerrit.server.ioutil.BasicSerialization.readString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
-import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static com.google.gerrit.server.patch.EditSerialization.readEdits;
+import static com.google.gerrit.server.patch.EditSerialization.readPath;
+import static com.google.gerrit.server.patch.EditSerialization.writeEdits;
+import static com.google.gerrit.server.patch.EditSerialization.writePath;
 
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.PatchSet;
@@ -187,24 +190,43 @@ public class PatchListEntry {
     return p;
   }
 
-  void writeTo(final OutputStream out) throws IOException {
+  /**
+   * Write this entry in the current format.
+   *
+   * @param prev name of the previously written entry, the path is stored
+   *        relative to it; null for the first entry.
+   */
+  void writeTo(final OutputStream out, final String prev) throws IOException {
     writeEnum(out, changeType);
     writeEnum(out, patchType);
-    writeString(out, oldName);
-    writeString(out, newName);
+    writePath(out, newName, prev);
+    if (oldName != null) {
+      writeVarInt32(out, 1);
+      writePath(out, oldName, newName);
+    } else {
+      writeVarInt32(out, 0);
+    }
     writeBytes(out, header);
     writeVarInt32(out, insertions);
     writeVarInt32(out, deletions);
+    writeEdits(out, edits, edits.size());
+  }
 
-    writeVarInt32(out, edits.size());
-    for (final Edit e : edits) {
-      writeVarInt32(out, e.getBeginA());
-      writeVarInt32(out, e.getEndA());
-      writeVarInt32(out, e.getBeginB());
-      writeVarInt32(out, e.getEndB());
-    }
+  static PatchListEntry readFrom(final InputStream in, final String prev)
+      throws IOException {
+    final ChangeType changeType = readEnum(in, ChangeType.values());
+    final PatchType patchType = readEnum(in, PatchType.values());
+    final String newName = readPath(in, prev);
+    final String oldName = readVarInt32(in) != 0 ? readPath(in, newName) : null;
+    final byte[] hdr = readBytes(in);
+    final int ins = readVarInt32(in);
+    final int del = readVarInt32(in);
+    final Edit[] editArray = readEdits(in);
+    return new PatchListEntry(changeType, patchType, oldName, newName, hdr,
+        toList(editArray), ins, del);
   }
 
+  /** Read an entry written before the current format. */
   static PatchListEntry readFrom(final InputStream in) throws IOException {
     final ChangeType changeType = readEnum(in, ChangeType.values());
     final PatchType patchType = readEnum(in, PatchType.values());
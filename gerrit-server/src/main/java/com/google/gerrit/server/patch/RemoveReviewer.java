@@ -22,6 +22,7 @@ import com.google.gerrit.reviewdb.client.PatchSetApproval;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.account.AccountCache;
 import com.google.gerrit.server.account.AccountState;
+import com.google.gerrit.server.index.ChangeIndexer;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
@@ -45,6 +46,7 @@ public class RemoveReviewer implements Callable<ReviewerResult> {
   }
 
   private final ChangeControl.Factory changeControlFactory;
+  private final ChangeIndexer indexer;
   private final ReviewDb db;
   private final AccountCache accountCache;
   private final Change.Id changeId;
@@ -52,10 +54,11 @@ public class RemoveReviewer implements Callable<ReviewerResult> {
 
   @Inject
   RemoveReviewer(ReviewDb db, ChangeControl.Factory changeControlFactory,
-      AccountCache accountCache, @Assisted Change.Id changeId,
-      @Assisted Set<Account.Id> ids) {
+      ChangeIndexer indexer, AccountCache accountCache,
+      @Assisted Change.Id changeId, @Assisted Set<Account.Id> ids) {
     this.db = db;
     this.changeControlFactory = changeControlFactory;
+    this.indexer = indexer;
     this.accountCache = accountCache;
     this.changeId = changeId;
     this.ids = ids;
@@ -87,6 +90,9 @@ public class RemoveReviewer implements Callable<ReviewerResult> {
 
     try {
       db.patchSetApprovals().delete(toDelete);
+      if (!toDelete.isEmpty()) {
+        indexer.index(ctl.getChange());
+      }
     } catch (OrmException err) {
       log.warn("Cannot remove reviewers from change "+changeId, err);
       Set<Account.Id> failed = new HashSet<Account.Id>();
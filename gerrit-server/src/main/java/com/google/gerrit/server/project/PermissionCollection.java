@@ -52,9 +52,8 @@ public class PermissionCollection {
     /**
      * Get all permissions that apply to a reference.
      *
-     * @param matcherList collection of sections that should be considered, in
-     *        priority order (project specific definitions must appear before
-     *        inherited ones).
+     * @param index sections that should be considered, in priority order
+     *        (project specific definitions must appear before inherited ones).
      * @param ref reference being accessed.
      * @param username if the reference is a per-user reference, access sections
      *        using the parameter variable "${username}" will first have {@code
@@ -64,37 +63,45 @@ public class PermissionCollection {
      * @return map of permissions that apply to this reference, keyed by
      *         permission name.
      */
-    PermissionCollection filter(Iterable<SectionMatcher> matcherList,
-        String ref, String username) {
+    PermissionCollection filter(SectionIndex index, String ref,
+        String username) {
+      String pattern = ref;
       if (isRE(ref)) {
         ref = RefControl.shortestExample(ref);
       } else if (ref.endsWith("/*")) {
         ref = ref.substring(0, ref.length() - 1);
       }
 
-      boolean perUser = false;
-      List<AccessSection> sections = new ArrayList<AccessSection>();
-      for (SectionMatcher matcher : matcherList) {
-        // If the matcher has to expand parameters and its prefix matches the
-        // reference there is a very good chance the reference is actually user
-        // specific, even if the matcher does not match the reference. Since its
-        // difficult to prove this is true all of the time, use an approximation
-        // to prevent reuse of collections across users accessing the same
-        // reference at the same time.
-        //
-        // This check usually gets caching right, as most per-user references
-        // use a common prefix like "refs/sandbox/" or "refs/heads/users/"
-        // that will never be shared with non-user references, and the per-user
-        // references are usually less frequent than the non-user references.
-        //
-        if (username != null && !perUser
-            && matcher instanceof SectionMatcher.ExpandParameters) {
-          perUser = ((SectionMatcher.ExpandParameters) matcher).matchPrefix(ref);
-        }
+      // If a section has to expand parameters and its prefix matches the
+      // reference there is a very good chance the reference is actually user
+      // specific, even if the section does not match the reference. Since its
+      // difficult to prove this is true all of the time, use an approximation
+      // to prevent reuse of collections across users accessing the same
+      // reference at the same time.
+      //
+      // This check usually gets caching right, as most per-user references
+      // use a common prefix like "refs/sandbox/" or "refs/heads/users/"
+      // that will never be shared with non-user references, and the per-user
+      // references are usually less frequent than the non-user references.
+      //
+      boolean perUser = username != null && index.isUserSpecific(ref);
+
+      // Without a matching "${username}" section the collection is the same
+      // for every user, and can be reused until the project is reloaded.
+      String owner = perUser ? username : null;
+      PermissionCollection pc = index.getCollection(pattern, owner);
+      if (pc == null) {
+        pc = compute(index, ref, username, owner);
+        index.putCollection(pattern, owner, pc);
+      }
+      return pc;
+    }
 
-        if (matcher.match(ref, username)) {
-          sections.add(matcher.section);
-        }
+    private PermissionCollection compute(SectionIndex index, String ref,
+        String username, String owner) {
+      List<AccessSection> sections = new ArrayList<AccessSection>();
+      for (SectionMatcher matcher : index.match(ref, username)) {
+        sections.add(matcher.section);
       }
       sorter.sort(ref, sections);
 
@@ -133,7 +140,7 @@ public class PermissionCollection {
         }
       }
 
-      return new PermissionCollection(permissions, perUser ? username : null);
+      return new PermissionCollection(permissions, owner);
     }
   }
 
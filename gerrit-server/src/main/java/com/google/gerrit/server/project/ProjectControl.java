@@ -119,7 +119,7 @@ public class ProjectControl {
   private final PermissionCollection.Factory permissionFilter;
   private final Collection<ContributorAgreement> contributorAgreements;
 
-  private List<SectionMatcher> allSections;
+  private SectionIndex allSections;
   private Map<String, RefControl> refControls;
   private Boolean declaredOwner;
 
@@ -161,7 +161,7 @@ public class ProjectControl {
     RefControl ctl = refControls.get(refName);
     if (ctl == null) {
       PermissionCollection relevant =
-          permissionFilter.filter(access(), refName, user.getUserName());
+          permissionFilter.filter(sections(), refName, user.getUserName());
       ctl = new RefControl(this, refName, relevant);
       refControls.put(refName, ctl);
     }
@@ -386,8 +386,12 @@ public class ProjectControl {
   }
 
   private List<SectionMatcher> access() {
+    return sections().getAll();
+  }
+
+  private SectionIndex sections() {
     if (allSections == null) {
-      allSections = state.getAllSections();
+      allSections = state.getSectionIndex();
     }
     return allSections;
   }
@@ -72,6 +72,9 @@ public class ProjectState {
   /** Local access sections, wrapped in SectionMatchers for faster evaluation. */
   private volatile List<SectionMatcher> localAccessSections;
 
+  /** Local and inherited access sections, with the projects they came from. */
+  private volatile InheritedSections inheritedSections;
+
   /** If this is all projects, the capabilities used by the server. */
   private final CapabilityCollection capabilities;
 
@@ -203,23 +206,38 @@ public class ProjectState {
   }
 
   /**
-   * Obtain all local and inherited sections. This collection is looked up
-   * dynamically and is not cached. Callers should try to cache this result
-   * per-request as much as possible.
+   * Obtain all local and inherited sections, indexed by reference pattern.
+   * The index is shared by all callers until this project or one of its
+   * parents is reloaded with a different configuration.
    */
-  List<SectionMatcher> getAllSections() {
+  SectionIndex getSectionIndex() {
+    List<ProjectState> chain = getInheritanceChain();
+    InheritedSections c = inheritedSections;
+    if (c == null || !c.isFor(chain)) {
+      List<SectionMatcher> all = new ArrayList<SectionMatcher>();
+      for (ProjectState s : chain) {
+        all.addAll(s.getLocalAccessSections());
+      }
+      c = new InheritedSections(chain, new SectionIndex(all));
+      inheritedSections = c;
+    }
+    return c.index;
+  }
+
+  /** @return this project, its parents and All-Projects, in that order. */
+  private List<ProjectState> getInheritanceChain() {
     if (isAllProjects) {
-      return getLocalAccessSections();
+      return Collections.singletonList(this);
     }
 
-    List<SectionMatcher> all = new ArrayList<SectionMatcher>();
+    List<ProjectState> chain = new ArrayList<ProjectState>();
     Set<Project.NameKey> seen = new HashSet<Project.NameKey>();
     ProjectState allProjects = projectCache.getAllProjects();
     seen.add(getProject().getNameKey());
 
     ProjectState s = this;
     do {
-      all.addAll(s.getLocalAccessSections());
+      chain.add(s);
 
       Project.NameKey parent = s.getProject().getParent();
       if (parent == null || !seen.add(parent)) {
@@ -228,9 +246,9 @@ public class ProjectState {
       s = projectCache.get(parent);
     } while (s != null);
     if (seen.add(allProjects.getProject().getNameKey())) {
-      all.addAll(allProjects.getLocalAccessSections());
+      chain.add(allProjects);
     }
-    return all;
+    return chain;
   }
 
   /**
@@ -295,4 +313,26 @@ public class ProjectState {
   public boolean isAllProjects() {
     return isAllProjects;
   }
-}
\ No newline at end of file
+
+  private static class InheritedSections {
+    final List<ProjectState> chain;
+    final SectionIndex index;
+
+    InheritedSections(List<ProjectState> chain, SectionIndex index) {
+      this.chain = chain;
+      this.index = index;
+    }
+
+    boolean isFor(List<ProjectState> other) {
+      if (chain.size() != other.size()) {
+        return false;
+      }
+      for (int i = 0; i < chain.size(); i++) {
+        if (chain.get(i) != other.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access sections of a project and its parents, indexed by reference pattern.
+ * <p>
+ * Most sections name a single reference or a {@code refs/.../*} namespace, so
+ * they are found with a hash lookup per path component of the reference,
+ * instead of testing every section. Regular expressions and parameterized
+ * patterns are only evaluated when the reference starts with the literal
+ * prefix of the pattern. Matching sections are returned in their original
+ * order.
+ * <p>
+ * The index is immutable and can be shared by all users of the project. It
+ * also holds the {@link PermissionCollection}s computed from it, which do not
+ * depend on the groups of the user, so later requests for the same reference
+ * skip matching and sorting the sections again.
+ */
+class SectionIndex {
+  /** Number of references whose permissions are kept per project. */
+  private static final int MAX_COLLECTIONS = 1024;
+
+  private final List<SectionMatcher> all;
+  private final Map<String, List<Integer>> exact;
+  private final Map<String, List<Integer>> prefix;
+  private final List<Integer> other;
+  private final List<SectionMatcher.ExpandParameters> perUser;
+  private final Cache<CollectionKey, PermissionCollection> collections;
+
+  SectionIndex(List<SectionMatcher> sections) {
+    all = Collections.unmodifiableList(
+        new ArrayList<SectionMatcher>(sections));
+    exact = Maps.newHashMap();
+    prefix = Maps.newHashMap();
+    other = Lists.newArrayList();
+    perUser = Lists.newArrayList();
+    collections = CacheBuilder.newBuilder()
+        .maximumSize(MAX_COLLECTIONS)
+        .build();
+
+    for (int i = 0; i < all.size(); i++) {
+      SectionMatcher m = all.get(i);
+      if (m instanceof SectionMatcher.Exact) {
+        add(exact, ((SectionMatcher.Exact) m).expect, i);
+      } else if (m instanceof SectionMatcher.Prefix) {
+        add(prefix, ((SectionMatcher.Prefix) m).prefix, i);
+      } else {
+        other.add(i);
+        if (m instanceof SectionMatcher.ExpandParameters) {
+          perUser.add((SectionMatcher.ExpandParameters) m);
+        }
+      }
+    }
+  }
+
+  /** @return all sections, in priority order. */
+  List<SectionMatcher> getAll() {
+    return all;
+  }
+
+  /**
+   * Find the sections matching a reference.
+   *
+   * @param ref name of the reference.
+   * @param username name of the user, for sections using "${username}".
+   * @return matching sections, in priority order.
+   */
+  List<SectionMatcher> match(String ref, String username) {
+    BitSet found = new BitSet(all.size());
+    mark(found, exact.get(ref));
+    if (!prefix.isEmpty()) {
+      for (int i = ref.indexOf('/'); 0 <= i; i = ref.indexOf('/', i + 1)) {
+        mark(found, prefix.get(ref.substring(0, i + 1)));
+      }
+    }
+    for (int i : other) {
+      SectionMatcher m = all.get(i);
+      if (mayMatch(m, ref) && m.match(ref, username)) {
+        found.set(i);
+      }
+    }
+
+    List<SectionMatcher> r =
+        new ArrayList<SectionMatcher>(found.cardinality());
+    for (int i = found.nextSetBit(0); 0 <= i; i = found.nextSetBit(i + 1)) {
+      r.add(all.get(i));
+    }
+    return r;
+  }
+
+  /**
+   * @return true if a section using "${username}" might apply to the
+   *         reference, so permissions on it may differ between users.
+   */
+  boolean isUserSpecific(String ref) {
+    for (SectionMatcher.ExpandParameters m : perUser) {
+      if (m.matchPrefix(ref)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param ref name of the reference, as given to the permission filter.
+   * @param username user the collection was computed for, if it is user
+   *        specific; null otherwise.
+   * @return permissions computed earlier; null if there are none.
+   */
+  PermissionCollection getCollection(String ref, String username) {
+    return collections.getIfPresent(new CollectionKey(ref, username));
+  }
+
+  void putCollection(String ref, String username, PermissionCollection pc) {
+    collections.put(new CollectionKey(ref, username), pc);
+  }
+
+  private static boolean mayMatch(SectionMatcher m, String ref) {
+    if (m instanceof SectionMatcher.Regexp) {
+      return ref.startsWith(((SectionMatcher.Regexp) m).prefix);
+    } else if (m instanceof SectionMatcher.ExpandParameters) {
+      return ((SectionMatcher.ExpandParameters) m).matchPrefix(ref);
+    }
+    return true;
+  }
+
+  private static void mark(BitSet found, List<Integer> idx) {
+    if (idx != null) {
+      for (int i : idx) {
+        found.set(i);
+      }
+    }
+  }
+
+  private static void add(Map<String, List<Integer>> map, String key, int i) {
+    List<Integer> idx = map.get(key);
+    if (idx == null) {
+      idx = Lists.newArrayListWithCapacity(1);
+      map.put(key, idx);
+    }
+    idx.add(i);
+  }
+
+  private static class CollectionKey {
+    final String ref;
+    final String username;
+
+    CollectionKey(String ref, String username) {
+      this.ref = ref;
+      this.username = username;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(ref, username);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof CollectionKey) {
+        CollectionKey k = (CollectionKey) other;
+        return ref.equals(k.ref) && Objects.equal(username, k.username);
+      }
+      return false;
+    }
+  }
+}
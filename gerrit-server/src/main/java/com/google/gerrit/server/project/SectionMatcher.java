@@ -63,8 +63,8 @@ abstract class SectionMatcher {
 
   abstract boolean match(String ref, String username);
 
-  private static class Exact extends SectionMatcher {
-    private final String expect;
+  static class Exact extends SectionMatcher {
+    final String expect;
 
     Exact(String name, AccessSection section) {
       super(section);
@@ -77,8 +77,8 @@ abstract class SectionMatcher {
     }
   }
 
-  private static class Prefix extends SectionMatcher {
-    private final String prefix;
+  static class Prefix extends SectionMatcher {
+    final String prefix;
 
     Prefix(String pfx, AccessSection section) {
       super(section);
@@ -91,12 +91,14 @@ abstract class SectionMatcher {
     }
   }
 
-  private static class Regexp extends SectionMatcher {
+  static class Regexp extends SectionMatcher {
     private final Pattern pattern;
+    final String prefix;
 
     Regexp(String re, AccessSection section) {
       super(section);
       pattern = Pattern.compile(re);
+      prefix = literalPrefix(re);
     }
 
     @Override
@@ -151,4 +153,55 @@ abstract class SectionMatcher {
      return ref.startsWith(prefix);
     }
   }
+
+  /**
+   * Find a prefix shared by all references matching a regular expression.
+   * <p>
+   * Only plain characters at the start of the expression are considered, so
+   * the result may be shorter than the longest common prefix, but it is never
+   * wrong.
+   *
+   * @param re regular expression, starting with {@code ^}.
+   * @return leading part of all matching references; may be empty.
+   */
+  static String literalPrefix(String re) {
+    int start = re.startsWith("^") ? 1 : 0;
+    int end = start;
+    while (end < re.length() && isLiteral(re.charAt(end))) {
+      end++;
+    }
+    if (end < re.length() && "?*{".indexOf(re.charAt(end)) >= 0) {
+      end--; // The last character is optional.
+    }
+    if (end <= start || hasTopLevelAlternative(re)) {
+      return "";
+    }
+    return re.substring(start, end);
+  }
+
+  private static boolean isLiteral(char c) {
+    return "\\.[]{}()*+?^$|".indexOf(c) < 0;
+  }
+
+  private static boolean hasTopLevelAlternative(String re) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < re.length(); i++) {
+      char c = re.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
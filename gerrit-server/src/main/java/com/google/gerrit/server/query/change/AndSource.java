@@ -27,50 +27,66 @@ import java.util.Comparator;
 import java.util.List;
 
 class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
-  private static final Comparator<Predicate<ChangeData>> CMP =
-      new Comparator<Predicate<ChangeData>>() {
-        @Override
-        public int compare(Predicate<ChangeData> a, Predicate<ChangeData> b) {
-          int ai = a instanceof ChangeDataSource ? 0 : 1;
-          int bi = b instanceof ChangeDataSource ? 0 : 1;
-          int cmp = ai - bi;
-
-          if (cmp == 0 //
-              && a instanceof ChangeDataSource //
-              && b instanceof ChangeDataSource) {
-            ai = ((ChangeDataSource) a).hasChange() ? 0 : 1;
-            bi = ((ChangeDataSource) b).hasChange() ? 0 : 1;
-            cmp = ai - bi;
-          }
+  private static Comparator<Predicate<ChangeData>> comparator(
+      final ChangeStatistics stats) {
+    return new Comparator<Predicate<ChangeData>>() {
+      @Override
+      public int compare(Predicate<ChangeData> a, Predicate<ChangeData> b) {
+        int ai = a instanceof ChangeDataSource ? 0 : 1;
+        int bi = b instanceof ChangeDataSource ? 0 : 1;
+        int cmp = ai - bi;
+
+        if (cmp == 0 //
+            && a instanceof ChangeDataSource //
+            && b instanceof ChangeDataSource) {
+          ai = ((ChangeDataSource) a).hasChange() ? 0 : 1;
+          bi = ((ChangeDataSource) b).hasChange() ? 0 : 1;
+          cmp = ai - bi;
+        }
 
-          if (cmp == 0) {
-            cmp = a.getCost() - b.getCost();
-          }
+        if (cmp == 0 && !(a instanceof ChangeDataSource)) {
+          // Check the filters most likely to reject a change per unit of
+          // cost first.
+          cmp = Double.compare(rank(a), rank(b));
+        }
 
-          if (cmp == 0 //
-              && a instanceof ChangeDataSource //
-              && b instanceof ChangeDataSource) {
-            ChangeDataSource as = (ChangeDataSource) a;
-            ChangeDataSource bs = (ChangeDataSource) b;
-            cmp = as.getCardinality() - bs.getCardinality();
-          }
+        if (cmp == 0) {
+          cmp = a.getCost() - b.getCost();
+        }
 
-          return cmp;
+        if (cmp == 0 //
+            && a instanceof ChangeDataSource //
+            && b instanceof ChangeDataSource) {
+          ChangeDataSource as = (ChangeDataSource) a;
+          ChangeDataSource bs = (ChangeDataSource) b;
+          cmp = as.getCardinality() - bs.getCardinality();
         }
-      };
+
+        return cmp;
+      }
+
+      private double rank(Predicate<ChangeData> p) {
+        double pass = Math.min(stats.selectivity(p), 0.99);
+        return Math.max(p.getCost(), 1) / (1 - pass);
+      }
+    };
+  }
 
   private static List<Predicate<ChangeData>> sort(
-      Collection<? extends Predicate<ChangeData>> that) {
+      Collection<? extends Predicate<ChangeData>> that,
+      ChangeStatistics stats) {
     ArrayList<Predicate<ChangeData>> r =
         new ArrayList<Predicate<ChangeData>>(that);
-    Collections.sort(r, CMP);
+    Collections.sort(r, comparator(stats));
     return r;
   }
 
   private int cardinality = -1;
+  private int rowsRead;
 
-  AndSource(final Collection<? extends Predicate<ChangeData>> that) {
-    super(sort(that));
+  AndSource(final Collection<? extends Predicate<ChangeData>> that,
+      ChangeStatistics stats) {
+    super(sort(that, stats));
   }
 
   @Override
@@ -92,6 +108,7 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     ChangeData last = null;
     boolean skipped = false;
     for (ChangeData data : source.read()) {
+      rowsRead++;
       if (match(data)) {
         r.add(data);
       } else {
@@ -111,6 +128,7 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
         skipped = false;
         last = null;
         for (ChangeData data : p.restart(lastBeforeRestart)) {
+          rowsRead++;
           if (match(data)) {
             r.add(data);
           } else {
@@ -124,6 +142,11 @@ class AndSource extends AndPredicate<ChangeData> implements ChangeDataSource {
     return new ListResultSet<ChangeData>(r);
   }
 
+  /** @return number of changes read from the source by {@link #read()}. */
+  int getRowsRead() {
+    return rowsRead;
+  }
+
   private ChangeDataSource source() {
     for (Predicate<ChangeData> p : getChildren()) {
       if (p instanceof ChangeDataSource) {
@@ -17,16 +17,17 @@ package com.google.gerrit.server.query.change;
 import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
-class BranchPredicate extends OperatorPredicate<ChangeData> {
+class BranchPredicate extends IndexPredicate {
   private final Provider<ReviewDb> dbProvider;
 
   BranchPredicate(Provider<ReviewDb> dbProvider, String branch) {
-    super(ChangeQueryBuilder.FIELD_BRANCH, branch.startsWith(Branch.R_HEADS)
-        ? branch : Branch.R_HEADS + branch);
+    super(ChangeField.REF, ChangeQueryBuilder.FIELD_BRANCH,
+        branch.startsWith(Branch.R_HEADS) ? branch : Branch.R_HEADS + branch);
     this.dbProvider = dbProvider;
   }
 
@@ -21,6 +21,9 @@ public class ChangeCosts {
   public static final int APPROVALS_SCAN = 30;
   public static final int PATCH_SETS_SCAN = 30;
 
+  /** Reading a commit message or modified files from the repository. */
+  public static final int REPOSITORY_READ = 5;
+
   /** Estimated matches for a Change-Id string. */
   public static final int CARD_KEY = 5;
 
@@ -103,6 +103,136 @@ public class ChangeData {
     }
   }
 
+  /** Rows of a change that {@link #ensureLoaded} reads for many changes. */
+  public abstract static class Rows<T> {
+    abstract boolean isLoaded(ChangeData cd);
+
+    abstract ResultSet<T> query(ReviewDb db, Change.Id id)
+        throws OrmException;
+
+    abstract void set(ChangeData cd, List<T> rows);
+  }
+
+  /** Every patch set of the change. */
+  public static final Rows<PatchSet> ALL_PATCH_SETS = new Rows<PatchSet>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.patches != null;
+    }
+
+    @Override
+    ResultSet<PatchSet> query(ReviewDb db, Change.Id id) throws OrmException {
+      return db.patchSets().byChange(id);
+    }
+
+    @Override
+    void set(ChangeData cd, List<PatchSet> rows) {
+      cd.patches = rows;
+    }
+  };
+
+  /** Approvals on every patch set of the change. */
+  public static final Rows<PatchSetApproval> ALL_APPROVALS =
+      new Rows<PatchSetApproval>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.approvals != null;
+    }
+
+    @Override
+    ResultSet<PatchSetApproval> query(ReviewDb db, Change.Id id)
+        throws OrmException {
+      return db.patchSetApprovals().byChange(id);
+    }
+
+    @Override
+    void set(ChangeData cd, List<PatchSetApproval> rows) {
+      cd.approvals = rows;
+    }
+  };
+
+  /** Messages posted on the change. */
+  public static final Rows<ChangeMessage> MESSAGES =
+      new Rows<ChangeMessage>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.messages != null;
+    }
+
+    @Override
+    ResultSet<ChangeMessage> query(ReviewDb db, Change.Id id)
+        throws OrmException {
+      return db.changeMessages().byChange(id);
+    }
+
+    @Override
+    void set(ChangeData cd, List<ChangeMessage> rows) {
+      cd.messages = rows;
+    }
+  };
+
+  /** Inline comments on every patch set of the change. */
+  public static final Rows<PatchLineComment> COMMENTS =
+      new Rows<PatchLineComment>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.comments != null;
+    }
+
+    @Override
+    ResultSet<PatchLineComment> query(ReviewDb db, Change.Id id)
+        throws OrmException {
+      return db.patchComments().byChange(id);
+    }
+
+    @Override
+    void set(ChangeData cd, List<PatchLineComment> rows) {
+      cd.comments = rows;
+    }
+  };
+
+  /** Tracking ids found in the commit messages of the change. */
+  public static final Rows<TrackingId> TRACKING_IDS =
+      new Rows<TrackingId>() {
+    @Override
+    boolean isLoaded(ChangeData cd) {
+      return cd.trackingIds != null;
+    }
+
+    @Override
+    ResultSet<TrackingId> query(ReviewDb db, Change.Id id)
+        throws OrmException {
+      return db.trackingIds().byChange(id);
+    }
+
+    @Override
+    void set(ChangeData cd, List<TrackingId> rows) {
+      cd.trackingIds = rows;
+    }
+  };
+
+  /**
+   * Load rows for every change not having them yet, starting all queries
+   * before waiting for the first result.
+   */
+  public static <T> void ensureLoaded(Provider<ReviewDb> db,
+      List<ChangeData> changes, Rows<T> rows) throws OrmException {
+    List<ResultSet<T>> pending = Lists.newArrayList();
+    for (ChangeData cd : changes) {
+      if (!rows.isLoaded(cd)) {
+        pending.add(rows.query(db.get(), cd.getId()));
+      }
+    }
+    if (!pending.isEmpty()) {
+      int idx = 0;
+      for (ChangeData cd : changes) {
+        if (!rows.isLoaded(cd)) {
+          rows.set(cd, pending.get(idx++).toList());
+        }
+      }
+    }
+  }
+
   private final Change.Id legacyId;
   private Change change;
   private String commitMessage;
@@ -247,8 +377,11 @@ public class ChangeData {
   public String commitMessage(GitRepositoryManager repoManager,
       Provider<ReviewDb> db) throws IOException, OrmException {
     if (commitMessage == null) {
-      PatchSet.Id psId = change(db).currentPatchSetId();
-      String sha1 = db.get().patchSets().get(psId).getRevision().get();
+      PatchSet ps = currentPatchSet(db);
+      if (ps == null) {
+        return null;
+      }
+      String sha1 = ps.getRevision().get();
       Project.NameKey name = change.getProject();
       Repository repo = repoManager.openRepository(name);
       try {
@@ -0,0 +1,178 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.util.RequestScopePropagator;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the per-change work of formatting a page of query results.
+ * <p>
+ * Callers first read what they need from the database for the whole page,
+ * using the batched {@code ChangeData.ensure*Loaded} methods. Work that can
+ * only be done one change at a time, such as evaluating submit rules or
+ * reading patch lists, is then passed to {@link #load(List, Step)}, which
+ * splits the page into parts and loads them concurrently on the
+ * {@link ChangeQueryExecutor}, sized by {@code query.threads}. The calling
+ * thread loads one of the parts itself; with a single thread it loads the
+ * whole page and no queue is created.
+ * <p>
+ * Each part runs in a copy of the caller's request scope, so it reads the
+ * database through its own connection. A change is only touched by the part
+ * it belongs to.
+ */
+public class ChangeDataLoader {
+  /** Smallest number of changes worth handing to another thread. */
+  private static final int MIN_PART = 10;
+
+  public static Module module() {
+    return new AbstractModule() {
+      @Override
+      protected void configure() {
+      }
+
+      @Provides
+      @Singleton
+      @ChangeQueryExecutor
+      ExecutorService createExecutor(@GerritServerConfig Config cfg,
+          WorkQueue queues) {
+        // The calling thread loads a part itself, so it counts as one.
+        int poolSize = threads(cfg) - 1;
+        if (poolSize < 1) {
+          return MoreExecutors.sameThreadExecutor();
+        }
+        return queues.createQueue(poolSize, "ChangeQuery");
+      }
+    };
+  }
+
+  /** Work done for a single change. */
+  public interface Step {
+    void load(ChangeData cd) throws OrmException;
+  }
+
+  private static int threads(Config cfg) {
+    return cfg.getInt("query", null, "threads", 1);
+  }
+
+  private final ExecutorService executor;
+  private final RequestScopePropagator requestScopePropagator;
+  private final int threads;
+  private final int pageSize;
+
+  @Inject
+  ChangeDataLoader(@ChangeQueryExecutor ExecutorService executor,
+      RequestScopePropagator requestScopePropagator,
+      @GerritServerConfig Config cfg) {
+    this.executor = executor;
+    this.requestScopePropagator = requestScopePropagator;
+    this.threads = threads(cfg);
+    this.pageSize = Math.max(cfg.getInt("query", null, "pageSize", 100), 1);
+  }
+
+  /**
+   * @return number of results loaded and written at once. Data loaded for a
+   *         page is dropped once the page was written, bounding the memory
+   *         used by a query returning many changes.
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /** Run step for each change, returning once all changes are done. */
+  public void load(List<ChangeData> changes, Step step) throws OrmException {
+    int parts = Math.min(threads, (changes.size() + MIN_PART - 1) / MIN_PART);
+    if (parts <= 1) {
+      run(changes, step);
+      return;
+    }
+
+    int size = (changes.size() + parts - 1) / parts;
+    List<Future<Void>> pending = Lists.newArrayListWithCapacity(parts - 1);
+    try {
+      for (int i = size; i < changes.size(); i += size) {
+        List<ChangeData> part =
+            changes.subList(i, Math.min(i + size, changes.size()));
+        try {
+          pending.add(executor.submit(
+              requestScopePropagator.wrap(task(part, step))));
+        } catch (RejectedExecutionException e) {
+          run(part, step);
+        }
+      }
+      run(changes.subList(0, size), step);
+
+      for (Future<Void> f : pending) {
+        try {
+          f.get();
+        } catch (InterruptedException e) {
+          throw new OrmException("Interrupted while loading changes", e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof OrmException) {
+            throw (OrmException) e.getCause();
+          } else if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new OrmException("Cannot load changes", e.getCause());
+        }
+      }
+    } finally {
+      for (Future<Void> f : pending) {
+        f.cancel(false);
+      }
+    }
+  }
+
+  private static Callable<Void> task(final List<ChangeData> part,
+      final Step step) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws OrmException {
+        run(part, step);
+        return null;
+      }
+
+      @Override
+      public String toString() {
+        return "load " + part.size() + " changes";
+      }
+    };
+  }
+
+  private static void run(List<ChangeData> part, Step step)
+      throws OrmException {
+    for (ChangeData cd : part) {
+      step.load(cd);
+    }
+  }
+}
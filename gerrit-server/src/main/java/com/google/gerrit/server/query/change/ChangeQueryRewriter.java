@@ -43,16 +43,18 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
                   null, null, null, null), null));
 
   private final Provider<ReviewDb> dbProvider;
+  private final ChangeStatistics stats;
 
   @Inject
-  ChangeQueryRewriter(Provider<ReviewDb> dbProvider) {
+  ChangeQueryRewriter(Provider<ReviewDb> dbProvider, ChangeStatistics stats) {
     super(mydef);
     this.dbProvider = dbProvider;
+    this.stats = stats;
   }
 
   @Override
   public Predicate<ChangeData> and(Collection<? extends Predicate<ChangeData>> l) {
-    return hasSource(l) ? new AndSource(l) : super.and(l);
+    return hasSource(l) ? new AndSource(l, stats) : super.and(l);
   }
 
   @Override
@@ -119,11 +121,16 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     return a.getValue().compareTo(b.getValue()) >= 0 ? a : b;
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:open P=(project:*) B=(branch:*)")
   public Predicate<ChangeData> r05_byBranchOpen(
       @Named("P") final ProjectPredicate p,
       @Named("B") final BranchPredicate b) {
-    return new ChangeSource(500) {
+    return new ChangeSource(stats.openCardinality(p.getValueKey(), 500)) {
+      {
+        init("r05_byBranchOpen", p, b);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a)
           throws OrmException {
@@ -140,13 +147,20 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:merged P=(project:*) B=(branch:*) S=(sortkey_after:*) L=(limit:*)")
   public Predicate<ChangeData> r05_byBranchMergedPrev(
       @Named("P") final ProjectPredicate p,
       @Named("B") final BranchPredicate b,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.MERGED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r05_byBranchMergedPrev", p, b, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -164,13 +178,20 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:merged P=(project:*) B=(branch:*) S=(sortkey_before:*) L=(limit:*)")
   public Predicate<ChangeData> r05_byBranchMergedNext(
       @Named("P") final ProjectPredicate p,
       @Named("B") final BranchPredicate b,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.MERGED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r05_byBranchMergedNext", p, b, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -188,12 +209,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:open P=(project:*) S=(sortkey_after:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectOpenPrev(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.openCardinality(p.getValueKey(), 500),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectOpenPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -209,12 +237,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:open P=(project:*) S=(sortkey_before:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectOpenNext(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(500, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.openCardinality(p.getValueKey(), 500),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectOpenNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -230,12 +265,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:merged P=(project:*) S=(sortkey_after:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectMergedPrev(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.MERGED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectMergedPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -252,12 +294,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:merged P=(project:*) S=(sortkey_before:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectMergedNext(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.MERGED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectMergedNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -274,12 +323,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:abandoned P=(project:*) S=(sortkey_after:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectAbandonedPrev(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.ABANDONED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectAbandonedPrev", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -296,12 +352,19 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:abandoned P=(project:*) S=(sortkey_before:*) L=(limit:*)")
   public Predicate<ChangeData> r10_byProjectAbandonedNext(
       @Named("P") final ProjectPredicate p,
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(40000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(p.getValueKey(), Change.Status.ABANDONED, 40000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r10_byProjectAbandonedNext", p, s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -318,11 +381,18 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:open S=(sortkey_after:*) L=(limit:*)")
   public Predicate<ChangeData> r20_byOpenPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.openCardinality(null, 2000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r20_byOpenPrev", s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -336,11 +406,18 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("status:open S=(sortkey_before:*) L=(limit:*)")
   public Predicate<ChangeData> r20_byOpenNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(2000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.openCardinality(null, 2000),
+        s.getValue(), l.intValue()) {
+      {
+        init("r20_byOpenNext", s, l);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a, String key, int limit)
           throws OrmException {
@@ -359,7 +436,9 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(null, Change.Status.MERGED, 50000),
+        s.getValue(), l.intValue()) {
       {
         init("r20_byMergedPrev", s, l);
       }
@@ -383,7 +462,9 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byMergedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(null, Change.Status.MERGED, 50000),
+        s.getValue(), l.intValue()) {
       {
         init("r20_byMergedNext", s, l);
       }
@@ -407,7 +488,9 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedPrev(
       @Named("S") final SortKeyPredicate.After s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(null, Change.Status.ABANDONED, 50000),
+        s.getValue(), l.intValue()) {
       {
         init("r20_byAbandonedPrev", s, l);
       }
@@ -431,7 +514,9 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
   public Predicate<ChangeData> r20_byAbandonedNext(
       @Named("S") final SortKeyPredicate.Before s,
       @Named("L") final IntPredicate<ChangeData> l) {
-    return new PaginatedSource(50000, s.getValue(), l.intValue()) {
+    return new PaginatedSource(
+        stats.cardinality(null, Change.Status.ABANDONED, 50000),
+        s.getValue(), l.intValue()) {
       {
         init("r20_byAbandonedNext", s, l);
       }
@@ -589,7 +674,12 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
 
   @Rewrite("status:submitted")
   public Predicate<ChangeData> r99_allSubmitted() {
-    return new ChangeSource(50) {
+    return new ChangeSource(
+        stats.cardinality(null, Change.Status.SUBMITTED, 50)) {
+      {
+        init("r99_allSubmitted");
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.allSubmitted();
@@ -602,10 +692,16 @@ public class ChangeQueryRewriter extends QueryRewriter<ChangeData> {
     };
   }
 
+  @SuppressWarnings("unchecked")
   @Rewrite("P=(project:*)")
   public Predicate<ChangeData> r99_byProject(
       @Named("P") final ProjectPredicate p) {
-    return new ChangeSource(1000000) {
+    return new ChangeSource(
+        stats.cardinality(p.getValueKey(), null, 1000000)) {
+      {
+        init("r99_byProject", p);
+      }
+
       @Override
       ResultSet<Change> scan(ChangeAccess a) throws OrmException {
         return a.byProject(p.getValueKey());
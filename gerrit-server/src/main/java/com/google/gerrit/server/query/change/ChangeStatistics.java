@@ -0,0 +1,269 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Maps;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.NotPredicate;
+import com.google.gerrit.server.query.OrPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of changes in each project, by status.
+ * <p>
+ * The counts are taken from the database when the server starts and again
+ * once a day, and kept current in between by the code that creates changes
+ * or updates their status. They are estimates used by
+ * {@link ChangeQueryRewriter} to pick the cheapest way to answer a query;
+ * until the first count completes the rewriter falls back to fixed guesses.
+ */
+@Singleton
+public class ChangeStatistics {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeStatistics.class);
+
+  /** Selectivity assumed for predicates the statistics cannot estimate. */
+  static final double UNKNOWN = 0.5;
+
+  private static final int STATUSES = Change.Status.values().length;
+
+  public static Module module() {
+    return new LifecycleModule() {
+      @Override
+      protected void configure() {
+        bind(ChangeStatistics.class);
+        listener().to(Lifecycle.class);
+      }
+    };
+  }
+
+  private final SchemaFactory<ReviewDb> schema;
+
+  /** Counts per project, indexed by status ordinal; guarded by this. */
+  private Map<Project.NameKey, long[]> byProject;
+  private long[] total;
+
+  @Inject
+  ChangeStatistics(SchemaFactory<ReviewDb> schema) {
+    this.schema = schema;
+  }
+
+  public synchronized boolean isReady() {
+    return total != null;
+  }
+
+  /**
+   * Estimate the number of changes.
+   *
+   * @param project project to count in; null to count in all projects.
+   * @param status status to count; null to count every status.
+   * @param guess value returned until the statistics are available.
+   */
+  public int cardinality(Project.NameKey project, Change.Status status,
+      int guess) {
+    return count(project, status, false, guess);
+  }
+
+  /** Estimate the number of open changes, as {@link #cardinality}. */
+  public int openCardinality(Project.NameKey project, int guess) {
+    return count(project, null, true, guess);
+  }
+
+  private synchronized int count(Project.NameKey project,
+      Change.Status status, boolean open, int guess) {
+    if (total == null) {
+      return guess;
+    }
+    long[] counts = project != null ? byProject.get(project) : total;
+    if (counts == null) {
+      return 0;
+    }
+    long n = 0;
+    for (Change.Status s : Change.Status.values()) {
+      if (open ? s.isOpen() : (status == null || s == status)) {
+        n += counts[s.ordinal()];
+      }
+    }
+    return (int) Math.min(n, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Estimate the fraction of all changes matching a predicate.
+   *
+   * @return a value between 0 and 1; {@link #UNKNOWN} if the predicate or
+   *         its children cannot be estimated.
+   */
+  public double selectivity(Predicate<ChangeData> p) {
+    if (p instanceof NotPredicate) {
+      return 1 - selectivity(p.getChild(0));
+    } else if (p instanceof AndPredicate) {
+      double r = 1;
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        r *= selectivity(c);
+      }
+      return r;
+    } else if (p instanceof OrPredicate) {
+      double r = 0;
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        r += selectivity(c);
+      }
+      return Math.min(r, 1);
+    } else if (p instanceof ProjectPredicate) {
+      return fraction(((ProjectPredicate) p).getValueKey(), null);
+    } else if (p instanceof ChangeStatusPredicate) {
+      return fraction(null, ((ChangeStatusPredicate) p).getStatus());
+    }
+    return UNKNOWN;
+  }
+
+  private synchronized double fraction(Project.NameKey project,
+      Change.Status status) {
+    if (total == null) {
+      return UNKNOWN;
+    }
+    long all = sum(total);
+    if (all == 0) {
+      return UNKNOWN;
+    }
+    long[] counts = project != null ? byProject.get(project) : total;
+    if (counts == null) {
+      return 0;
+    }
+    long n = status != null ? counts[status.ordinal()] : sum(counts);
+    return (double) n / all;
+  }
+
+  /** Record a new change. */
+  public synchronized void onChangeCreated(Change change) {
+    if (total != null) {
+      add(change.getProject(), change.getStatus(), 1);
+    }
+  }
+
+  /**
+   * Record a status change.
+   *
+   * @param from status the change had before the update.
+   * @param to status the change has after the update.
+   */
+  public synchronized void onStatusChanged(Project.NameKey project,
+      Change.Status from, Change.Status to) {
+    if (total == null || from == to) {
+      return;
+    }
+    add(project, from, -1);
+    add(project, to, 1);
+  }
+
+  /** Count all changes in the database, replacing the current counts. */
+  void recount() throws OrmException {
+    Map<Project.NameKey, long[]> p = Maps.newHashMap();
+    long[] t = new long[STATUSES];
+    ReviewDb db = schema.open();
+    try {
+      for (Change c : db.changes().all()) {
+        long[] counts = p.get(c.getProject());
+        if (counts == null) {
+          counts = new long[STATUSES];
+          p.put(c.getProject(), counts);
+        }
+        counts[c.getStatus().ordinal()]++;
+        t[c.getStatus().ordinal()]++;
+      }
+    } finally {
+      db.close();
+    }
+    synchronized (this) {
+      byProject = p;
+      total = t;
+    }
+  }
+
+  private void add(Project.NameKey project, Change.Status status, int delta) {
+    long[] counts = byProject.get(project);
+    if (counts == null) {
+      counts = new long[STATUSES];
+      byProject.put(project, counts);
+    }
+    int i = status.ordinal();
+    counts[i] = Math.max(counts[i] + delta, 0);
+    total[i] = Math.max(total[i] + delta, 0);
+  }
+
+  private static long sum(long[] counts) {
+    long n = 0;
+    for (long c : counts) {
+      n += c;
+    }
+    return n;
+  }
+
+  static class Lifecycle implements LifecycleListener {
+    private final ChangeStatistics stats;
+    private final WorkQueue queue;
+    private ScheduledFuture<?> task;
+
+    @Inject
+    Lifecycle(ChangeStatistics stats, WorkQueue queue) {
+      this.stats = stats;
+      this.queue = queue;
+    }
+
+    @Override
+    public void start() {
+      task = queue.getDefaultQueue().scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            stats.recount();
+          } catch (OrmException e) {
+            log.warn("Cannot count changes", e);
+          }
+        }
+
+        @Override
+        public String toString() {
+          return "count changes";
+        }
+      }, 0, 1, TimeUnit.DAYS);
+    }
+
+    @Override
+    public void stop() {
+      if (task != null) {
+        task.cancel(false);
+        task = null;
+      }
+    }
+  }
+}
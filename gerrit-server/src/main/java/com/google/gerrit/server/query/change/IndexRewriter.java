@@ -0,0 +1,108 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Lists;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.index.IndexPredicate;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.IntPredicate;
+import com.google.gerrit.server.query.Predicate;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import java.util.List;
+
+/**
+ * Adds an {@link IndexedChangeSource} to queries the index can answer.
+ * <p>
+ * The terms of the query the index can answer are moved into the source,
+ * along with the words of {@link MessagePredicate}s. Terms the index only
+ * narrows down, such as labels and message text, stay in the query so every
+ * change read is still checked against them; the source itself falls back to
+ * the original predicates for changes modified since they were indexed.
+ * <p>
+ * The index is used as it is. It is brought up to date in the background by
+ * {@link com.google.gerrit.server.index.ChangeIndexer}.
+ */
+class IndexRewriter {
+  private final ChangeIndex index;
+  private final Provider<ReviewDb> db;
+
+  @Inject
+  IndexRewriter(ChangeIndex index, Provider<ReviewDb> db) {
+    this.index = index;
+    this.db = db;
+  }
+
+  Predicate<ChangeData> rewrite(Predicate<ChangeData> q) {
+    if (!index.isReady()) {
+      return q;
+    }
+
+    List<Predicate<ChangeData>> all = Lists.newArrayList();
+    flatten(q, all);
+
+    List<Predicate<ChangeData>> indexed = Lists.newArrayList();
+    List<Predicate<ChangeData>> rest = Lists.newArrayList();
+    String before = null;
+    String after = null;
+    int limit = 0;
+    for (Predicate<ChangeData> p : all) {
+      if (IndexPredicate.isIndexable(p)) {
+        indexed.add(p);
+        if (!IndexPredicate.isExact(p)) {
+          rest.add(p);
+        }
+        continue;
+      }
+
+      rest.add(p);
+      if (p instanceof SortKeyPredicate.Before) {
+        before = ((SortKeyPredicate) p).getValue();
+      } else if (p instanceof SortKeyPredicate.After) {
+        after = ((SortKeyPredicate) p).getValue();
+      } else if (p instanceof IntPredicate
+          && ChangeQueryBuilder.FIELD_LIMIT.equals(
+              ((IntPredicate<ChangeData>) p).getOperator())) {
+        limit = ((IntPredicate<ChangeData>) p).intValue();
+      } else if (p instanceof MessagePredicate
+          && ((MessagePredicate) p).getWordPredicate() != null) {
+        indexed.add(((MessagePredicate) p).getWordPredicate());
+      }
+    }
+    if (indexed.isEmpty()) {
+      return q;
+    }
+
+    Predicate<ChangeData> pred = indexed.size() == 1
+        ? indexed.get(0)
+        : Predicate.and(indexed);
+    rest.add(new IndexedChangeSource(index, db, pred, before, after, limit));
+    return Predicate.and(rest);
+  }
+
+  private static void flatten(Predicate<ChangeData> p,
+      List<Predicate<ChangeData>> out) {
+    if (p.getClass() == AndPredicate.class) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        flatten(c, out);
+      }
+    } else {
+      out.add(p);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gwtorm.server.ListResultSet;
+import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.ResultSet;
+import com.google.inject.Provider;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/** Reads the changes matching a predicate from the {@link ChangeIndex}. */
+class IndexedChangeSource extends Predicate<ChangeData> implements
+    ChangeDataSource, Paginated {
+  private final ChangeIndex index;
+  private final Provider<ReviewDb> db;
+  private final Predicate<ChangeData> pred;
+  private final String before;
+  private final String after;
+  private final int limit;
+  private int cardinality = -1;
+
+  IndexedChangeSource(ChangeIndex index, Provider<ReviewDb> db,
+      Predicate<ChangeData> pred, String before, String after, int limit) {
+    this.index = index;
+    this.db = db;
+    this.pred = pred;
+    this.before = before;
+    this.after = after;
+    this.limit = limit;
+  }
+
+  @Override
+  public int limit() {
+    return limit;
+  }
+
+  @Override
+  public boolean hasChange() {
+    return true;
+  }
+
+  @Override
+  public int getCardinality() {
+    if (cardinality < 0) {
+      cardinality = index.count(pred);
+    }
+    return cardinality;
+  }
+
+  @Override
+  public ResultSet<ChangeData> read() throws OrmException {
+    return read(before, after);
+  }
+
+  @Override
+  public ResultSet<ChangeData> restart(ChangeData last) throws OrmException {
+    Change c = last.change(db);
+    if (c == null) {
+      return new ListResultSet<ChangeData>(Lists.<ChangeData> newArrayList());
+    }
+    return after != null
+        ? read(null, c.getSortKey())
+        : read(c.getSortKey(), null);
+  }
+
+  private ResultSet<ChangeData> read(String b, String a) throws OrmException {
+    List<Change.Id> ids = index.query(pred, b, a, limit);
+    Map<Change.Id, Change> changes =
+        Maps.newHashMapWithExpectedSize(ids.size());
+    for (Change c : db.get().changes().get(ids)) {
+      changes.put(c.getId(), c);
+    }
+
+    // Keep the order of the index; changes since deleted are skipped.
+    List<ChangeData> r = Lists.newArrayListWithCapacity(ids.size());
+    for (Change.Id id : ids) {
+      Change c = changes.get(id);
+      if (c != null) {
+        r.add(new ChangeData(c));
+      }
+    }
+    return new ListResultSet<ChangeData>(r);
+  }
+
+  @Override
+  public boolean match(ChangeData cd) throws OrmException {
+    // Only changes modified since the index was updated need the predicate
+    // itself, which may have to read the repository.
+    Change c = cd.change(db);
+    if (c != null
+        && index.isCurrent(c.getId(), c.getLastUpdatedOn().getTime())) {
+      return index.matches(c.getId(), pred);
+    }
+    return pred.match(cd);
+  }
+
+  @Override
+  public int getCost() {
+    int card = getCardinality();
+    return ChangeCosts.cost(ChangeCosts.IDS_MEMORY,
+        0 < limit ? Math.min(card, limit) : card);
+  }
+
+  @Override
+  public Predicate<ChangeData> copy(
+      Collection<? extends Predicate<ChangeData>> children) {
+    if (!children.isEmpty()) {
+      throw new IllegalArgumentException("Expected 0 children");
+    }
+    return this;
+  }
+
+  @Override
+  public int hashCode() {
+    return pred.hashCode() * 31 + limit;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof IndexedChangeSource) {
+      IndexedChangeSource o = (IndexedChangeSource) other;
+      return pred.equals(o.pred)
+          && Objects.equal(before, o.before)
+          && Objects.equal(after, o.after)
+          && limit == o.limit;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "index(" + pred + ")";
+  }
+}
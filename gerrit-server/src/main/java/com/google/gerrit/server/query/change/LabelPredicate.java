@@ -21,16 +21,17 @@ import com.google.gerrit.reviewdb.client.ApprovalCategory;
 import com.google.gerrit.reviewdb.client.PatchSetApproval;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
-import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-class LabelPredicate extends OperatorPredicate<ChangeData> {
+class LabelPredicate extends IndexPredicate {
   private static enum Test {
     EQ {
       @Override
@@ -117,7 +118,7 @@ class LabelPredicate extends OperatorPredicate<ChangeData> {
   LabelPredicate(ChangeControl.GenericFactory ccFactory,
       IdentifiedUser.GenericFactory userFactory, Provider<ReviewDb> dbProvider,
       ApprovalTypes types, String value) {
-    super(ChangeQueryBuilder.FIELD_LABEL, value);
+    super(ChangeField.LABEL, ChangeQueryBuilder.FIELD_LABEL, value);
     this.ccFactory = ccFactory;
     this.userFactory = userFactory;
     this.dbProvider = dbProvider;
@@ -143,6 +144,35 @@ class LabelPredicate extends OperatorPredicate<ChangeData> {
     this.permissionName = Permission.forLabel(category.getLabelName());
   }
 
+  @Override
+  public String getTerm() {
+    return test == Test.EQ
+        ? ChangeField.label(category.getId().get(), expVal)
+        : null;
+  }
+
+  @Override
+  public String getTermPrefix() {
+    return category.getId().get() + "=";
+  }
+
+  @Override
+  public boolean matchesTerm(String term) {
+    // match() requires the stored value to pass before squashing it.
+    try {
+      int psVal = Integer.parseInt(term.substring(getTermPrefix().length()));
+      return test.match(psVal, expVal);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean isExact() {
+    // Values are squashed into the range each reviewer may still use.
+    return false;
+  }
+
   @Override
   public boolean match(final ChangeData object) throws OrmException {
     for (PatchSetApproval p : object.currentApprovals(dbProvider)) {
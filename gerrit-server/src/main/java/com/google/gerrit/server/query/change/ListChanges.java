@@ -25,6 +25,7 @@ import static com.google.gerrit.common.changes.ListChangesOption.LABELS;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.gerrit.common.changes.ListChangesOption;
 import com.google.gerrit.common.data.ApprovalType;
 import com.google.gerrit.common.data.ApprovalTypes;
@@ -46,6 +47,7 @@ import com.google.gerrit.server.OutputFormat;
 import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.events.AccountAttribute;
+import com.google.gerrit.server.events.QueryStats;
 import com.google.gerrit.server.patch.PatchList;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListEntry;
@@ -56,7 +58,8 @@ import com.google.gerrit.server.project.ChangeControl;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.query.QueryParseException;
 import com.google.gerrit.server.ssh.SshInfo;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -78,6 +81,7 @@ import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ListChanges {
   private static final Logger log = LoggerFactory.getLogger(ListChanges.class);
@@ -112,9 +116,14 @@ public class ListChanges {
   private final SshInfo sshInfo;
   private final Provider<String> urlProvider;
   private final Urls urls;
+  private final ChangeDataLoader loader;
   private boolean reverse;
   private Map<Account.Id, AccountAttribute> accounts;
+  private Set<Account.Id> unnamedAccounts;
   private Map<Change.Id, ChangeControl> controls;
+  private Map<Change.Id, List<SubmitRecord>> submitRecords;
+  private Map<PatchSet.Id, PatchList> patchLists;
+  private Map<PatchSet.Id, PatchSetInfo> patchSetInfos;
   private EnumSet<ListChangesOption> options;
 
   @Option(name = "--format", metaVar = "FMT", usage = "Output display format")
@@ -166,7 +175,8 @@ public class ListChanges {
       PatchListCache plc,
       SshInfo sshInfo,
       @CanonicalWebUrl Provider<String> curl,
-      Urls urls) {
+      Urls urls,
+      ChangeDataLoader loader) {
     this.imp = qp;
     this.db = db;
     this.approvalTypes = at;
@@ -178,9 +188,14 @@ public class ListChanges {
     this.sshInfo = sshInfo;
     this.urlProvider = curl;
     this.urls = urls;
+    this.loader = loader;
 
     accounts = Maps.newHashMap();
+    unnamedAccounts = Sets.newHashSet();
     controls = Maps.newHashMap();
+    submitRecords = Maps.newConcurrentMap();
+    patchLists = Maps.newConcurrentMap();
+    patchSetInfos = Maps.newConcurrentMap();
     options = EnumSet.noneOf(ListChangesOption.class);
   }
 
@@ -214,57 +229,93 @@ public class ListChanges {
       throw new QueryParseException("limit of 10 queries");
     }
 
-    List<List<ChangeInfo>> res = Lists.newArrayListWithCapacity(queries.size());
+    // Run all queries before writing anything, so an invalid query is
+    // reported before any output reached the client.
+    List<Result> res = Lists.newArrayListWithCapacity(queries.size());
     for (String query : queries) {
-      List<ChangeData> changes = imp.queryChanges(query);
-      boolean moreChanges = imp.getLimit() > 0 && changes.size() > imp.getLimit();
-      if (moreChanges) {
+      Result r = new Result(query);
+      r.stats.runTimeMilliseconds = System.currentTimeMillis();
+      r.changes = imp.queryChanges(query);
+      r.stats.queryTimeMilliseconds =
+          System.currentTimeMillis() - r.stats.runTimeMilliseconds;
+      r.moreChanges =
+          imp.getLimit() > 0 && r.changes.size() > imp.getLimit();
+      if (r.moreChanges) {
         if (reverse) {
-          changes = changes.subList(1, changes.size());
+          r.changes = r.changes.subList(1, r.changes.size());
         } else {
-          changes = changes.subList(0, imp.getLimit());
+          r.changes = r.changes.subList(0, imp.getLimit());
         }
       }
-      ChangeData.ensureChangeLoaded(db, changes);
-      ChangeData.ensureCurrentPatchSetLoaded(db, changes);
-      ChangeData.ensureCurrentApprovalsLoaded(db, changes);
+      res.add(r);
+    }
 
-      List<ChangeInfo> info = Lists.newArrayListWithCapacity(changes.size());
-      for (ChangeData cd : changes) {
-        info.add(toChangeInfo(cd));
+    if (format.isJson()) {
+      Gson gson = format.newGson();
+      JsonWriter json = new JsonWriter(out);
+      if (format == OutputFormat.JSON) {
+        json.setIndent("  ");
       }
-      if (moreChanges && !info.isEmpty()) {
-        if (reverse) {
-          info.get(0)._moreChanges = true;
-        } else {
-          info.get(info.size() - 1)._moreChanges = true;
-        }
+      if (res.size() > 1) {
+        json.beginArray();
       }
-      res.add(info);
-    }
-
-    if (!accounts.isEmpty()) {
-      for (Account account : db.get().accounts().get(accounts.keySet())) {
-        AccountAttribute a = accounts.get(account.getId());
-        a.name = Strings.emptyToNull(account.getFullName());
+      for (Result r : res) {
+        json.beginArray();
+        write(r, gson, json, out);
+        json.endArray();
       }
-    }
-
-    if (format.isJson()) {
-      format.newGson().toJson(
-          res.size() == 1 ? res.get(0) : res,
-          new TypeToken<List<ChangeInfo>>() {}.getType(),
-          out);
+      if (res.size() > 1) {
+        json.endArray();
+      }
+      json.flush();
       out.write('\n');
     } else {
       boolean firstQuery = true;
-      for (List<ChangeInfo> info : res) {
+      for (Result r : res) {
         if (firstQuery) {
           firstQuery = false;
         } else {
           out.write('\n');
         }
-        for (ChangeInfo c : info) {
+        write(r, null, null, out);
+      }
+    }
+  }
+
+  /**
+   * Format and write the changes found by a query, a page at a time.
+   * <p>
+   * Each page is loaded, written and flushed to the client before the next
+   * page is loaded, and the data loaded for it is dropped once written, so
+   * the memory used does not grow with the number of results. If the client
+   * went away, writing fails and the remaining pages are never loaded.
+   */
+  private void write(Result r, Gson gson, JsonWriter json, Writer out)
+      throws OrmException, IOException {
+    List<ChangeData> changes = r.changes;
+    int pageSize = loader.getPageSize();
+    for (int i = 0; i < changes.size(); i += pageSize) {
+      List<ChangeData> page =
+          changes.subList(i, Math.min(i + pageSize, changes.size()));
+      prefetch(page, r.stats);
+
+      List<ChangeInfo> info = Lists.newArrayListWithCapacity(page.size());
+      for (ChangeData cd : page) {
+        info.add(toChangeInfo(cd));
+      }
+      loadAccountNames();
+      if (r.moreChanges) {
+        if (reverse && i == 0) {
+          info.get(0)._moreChanges = true;
+        } else if (!reverse && i + page.size() == changes.size()) {
+          info.get(info.size() - 1)._moreChanges = true;
+        }
+      }
+
+      for (ChangeInfo c : info) {
+        if (json != null) {
+          gson.toJson(c, ChangeInfo.class, json);
+        } else {
           String id = new Change.Key(c.id).abbreviate();
           String subject = c.subject;
           if (subject.length() + id.length() > 80) {
@@ -276,6 +327,131 @@ public class ListChanges {
           out.write('\n');
         }
       }
+      if (json != null) {
+        json.flush();
+      } else {
+        out.flush();
+      }
+
+      Collections.fill(page, null);
+      controls.clear();
+      submitRecords.clear();
+      patchLists.clear();
+      patchSetInfos.clear();
+    }
+
+    r.stats.rowCount = changes.size();
+    r.stats.runTimeMilliseconds =
+        System.currentTimeMillis() - r.stats.runTimeMilliseconds;
+    if (log.isDebugEnabled()) {
+      log.debug(String.format(
+          "Query %s: %d changes in %d ms"
+              + " (query %d ms, load %d ms, prefetch %d ms)",
+          r.query, r.stats.rowCount, r.stats.runTimeMilliseconds,
+          r.stats.queryTimeMilliseconds, r.stats.loadTimeMilliseconds,
+          r.stats.prefetchTimeMilliseconds));
+    }
+  }
+
+  /** Fill in the names of accounts first referenced since the last call. */
+  private void loadAccountNames() throws OrmException {
+    if (unnamedAccounts.isEmpty()) {
+      return;
+    }
+    for (Account account : db.get().accounts().get(unnamedAccounts)) {
+      AccountAttribute a = accounts.get(account.getId());
+      a.name = Strings.emptyToNull(account.getFullName());
+    }
+    unnamedAccounts.clear();
+  }
+
+  /**
+   * Load the data shown for a page of results before formatting any of them.
+   * <p>
+   * Database rows are read for the whole page at once. Submit rules, patch
+   * lists and commit details are then computed concurrently by the
+   * {@link ChangeDataLoader}, and picked up by {@link #toChangeInfo}.
+   */
+  private void prefetch(List<ChangeData> changes, QueryStats stats)
+      throws OrmException {
+    long start = System.currentTimeMillis();
+    ChangeData.ensureChangeLoaded(db, changes);
+    if (options.contains(ALL_REVISIONS)) {
+      ChangeData.ensureLoaded(db, changes, ChangeData.ALL_PATCH_SETS);
+    }
+    ChangeData.ensureCurrentPatchSetLoaded(db, changes);
+    ChangeData.ensureCurrentApprovalsLoaded(db, changes);
+    if (user instanceof IdentifiedUser) {
+      // Messages are only needed to tell whether open changes were reviewed.
+      List<ChangeData> open = Lists.newArrayListWithCapacity(changes.size());
+      for (ChangeData cd : changes) {
+        if (cd.change(db).getStatus().isOpen()) {
+          open.add(cd);
+        }
+      }
+      ChangeData.ensureLoaded(db, open, ChangeData.MESSAGES);
+    }
+
+    final boolean labels = options.contains(LABELS);
+    final boolean revisions = options.contains(ALL_REVISIONS)
+        || options.contains(CURRENT_REVISION);
+    final Map<Change.Id, ChangeControl> ctls = Maps.newHashMap();
+    if (labels || revisions) {
+      for (ChangeData cd : changes) {
+        ChangeControl ctl = control(cd);
+        if (ctl != null) {
+          ctls.put(cd.getId(), ctl);
+        }
+      }
+    }
+    long loaded = System.currentTimeMillis();
+    stats.loadTimeMilliseconds += loaded - start;
+
+    if (!ctls.isEmpty()) {
+      loader.load(changes, new ChangeDataLoader.Step() {
+        @Override
+        public void load(ChangeData cd) throws OrmException {
+          ChangeControl ctl = ctls.get(cd.getId());
+          PatchSet current = cd.currentPatchSet(db);
+          if (ctl == null || current == null) {
+            return;
+          }
+          if (labels) {
+            submitRecords.put(cd.getId(),
+                ctl.canSubmit(db.get(), current, cd, true, false));
+          }
+          if (revisions) {
+            Collection<PatchSet> src = options.contains(ALL_REVISIONS)
+                ? cd.patches(db)
+                : Collections.singletonList(current);
+            for (PatchSet ps : src) {
+              prefetchRevision(cd, ps, ps.getId().equals(current.getId()));
+            }
+          }
+        }
+      });
+    }
+    stats.prefetchTimeMilliseconds += System.currentTimeMillis() - loaded;
+  }
+
+  private void prefetchRevision(ChangeData cd, PatchSet ps, boolean isCurrent)
+      throws OrmException {
+    if (options.contains(ALL_COMMITS)
+        || (isCurrent && options.contains(CURRENT_COMMIT))) {
+      try {
+        patchSetInfos.put(ps.getId(),
+            patchSetInfoFactory.get(db.get(), ps.getId()));
+      } catch (PatchSetInfoNotAvailableException e) {
+        // Reported again when the revision is formatted.
+      }
+    }
+    if (options.contains(ALL_FILES)
+        || (isCurrent && options.contains(CURRENT_FILES))) {
+      try {
+        patchLists.put(ps.getId(), patchListCache.get(cd.change(db), ps));
+      } catch (PatchListNotAvailableException e) {
+        // Reported again when the revision is formatted.
+      }
     }
   }
 
@@ -318,6 +494,7 @@ public class ListChanges {
     if (a == null) {
       a = new AccountAttribute();
       accounts.put(user, a);
+      unnamedAccounts.add(user);
     }
     return a;
   }
@@ -353,8 +530,13 @@ public class ListChanges {
       return Collections.emptyMap();
     }
 
+    List<SubmitRecord> records = submitRecords.get(cd.getId());
+    if (records == null) {
+      records = ctl.canSubmit(db.get(), ps, cd, true, false);
+    }
+
     Map<String, LabelInfo> labels = Maps.newLinkedHashMap();
-    for (SubmitRecord rec : ctl.canSubmit(db.get(), ps, cd, true, false)) {
+    for (SubmitRecord rec : records) {
       if (rec.labels == null) {
         continue;
       }
@@ -423,8 +605,12 @@ public class ListChanges {
         return false;
       }
 
-      List<ChangeMessage> messages =
-          db.get().changeMessages().byPatchSet(currentPatchSet.getId()).toList();
+      List<ChangeMessage> messages = Lists.newArrayList();
+      for (ChangeMessage cm : cd.messages(db)) {
+        if (currentPatchSet.getId().equals(cm.getPatchSetId())) {
+          messages.add(cm);
+        }
+      }
 
       if (messages.isEmpty()) {
         return false;
@@ -483,7 +669,10 @@ public class ListChanges {
     if (options.contains(ALL_COMMITS)
         || (out.isCurrent && options.contains(CURRENT_COMMIT))) {
       try {
-        PatchSetInfo info = patchSetInfoFactory.get(db.get(), in.getId());
+        PatchSetInfo info = patchSetInfos.get(in.getId());
+        if (info == null) {
+          info = patchSetInfoFactory.get(db.get(), in.getId());
+        }
         out.commit = new CommitInfo();
         out.commit.parents = Lists.newArrayListWithCapacity(info.getParents().size());
         out.commit.author = toGitPerson(info.getAuthor());
@@ -504,12 +693,13 @@ public class ListChanges {
 
     if (options.contains(ALL_FILES)
         || (out.isCurrent && options.contains(CURRENT_FILES))) {
-      PatchList list;
-      try {
-        list = patchListCache.get(cd.change(db), in);
-      } catch (PatchListNotAvailableException e) {
-        log.warn("Cannot load PatchList " + in.getId(), e);
-        list = null;
+      PatchList list = patchLists.get(in.getId());
+      if (list == null) {
+        try {
+          list = patchListCache.get(cd.change(db), in);
+        } catch (PatchListNotAvailableException e) {
+          log.warn("Cannot load PatchList " + in.getId(), e);
+        }
       }
       if (list != null) {
         out.files = Maps.newTreeMap();
@@ -593,6 +783,17 @@ public class ListChanges {
     return p;
   }
 
+  private static class Result {
+    final String query;
+    final QueryStats stats = new QueryStats();
+    List<ChangeData> changes;
+    boolean moreChanges;
+
+    Result(String query) {
+      this.query = query;
+    }
+  }
+
   static class ChangeInfo {
     String project;
     String branch;
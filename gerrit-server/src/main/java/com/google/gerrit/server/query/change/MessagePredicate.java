@@ -20,7 +20,10 @@ import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RevId;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
@@ -37,10 +40,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Predicate to match changes that contains specified text in commit messages
  * body.
+ * <p>
+ * Matching reads the commit from the repository. When the text is plain words
+ * the predicate also offers {@link #getWordPredicate()}, which the change
+ * index answers from the words of indexed commit messages, so only changes
+ * containing those words need to be read.
  */
 public class MessagePredicate extends OperatorPredicate<ChangeData> {
 
@@ -50,6 +61,7 @@ public class MessagePredicate extends OperatorPredicate<ChangeData> {
   private final Provider<ReviewDb> db;
   private final GitRepositoryManager repoManager;
   private final RevFilter rFilter;
+  private final Predicate<ChangeData> words;
 
   public MessagePredicate(Provider<ReviewDb> db,
       GitRepositoryManager repoManager, String text) {
@@ -57,6 +69,16 @@ public class MessagePredicate extends OperatorPredicate<ChangeData> {
     this.db = db;
     this.repoManager = repoManager;
     this.rFilter = MessageRevFilter.create(text);
+    this.words = words(db, repoManager, text);
+  }
+
+  /**
+   * @return predicate on the words of the commit message, matching every
+   *         change this predicate matches; null if the text is not made of
+   *         plain words.
+   */
+  public Predicate<ChangeData> getWordPredicate() {
+    return words;
   }
 
   @Override
@@ -119,6 +141,110 @@ public class MessagePredicate extends OperatorPredicate<ChangeData> {
 
   @Override
   public int getCost() {
-    return 1;
+    return ChangeCosts.REPOSITORY_READ;
+  }
+
+  private static Predicate<ChangeData> words(Provider<ReviewDb> db,
+      GitRepositoryManager repoManager, String text) {
+    // The text is a case insensitive regular expression matched against the
+    // raw message; only plain ASCII text can be mapped onto indexed words.
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80 || "\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+        return null;
+      }
+    }
+
+    List<Predicate<ChangeData>> r = new ArrayList<Predicate<ChangeData>>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (0 <= start) {
+        // Words at either end of the text may continue in the message.
+        r.add(new WordPredicate(db, repoManager,
+            text.substring(start, i).toLowerCase(Locale.US),
+            start == 0, i == text.length()));
+        start = -1;
+      }
+    }
+    if (r.isEmpty()) {
+      return null;
+    }
+    return r.size() == 1 ? r.get(0) : and(r);
+  }
+
+  /** Matches changes whose commit message has a word containing the text. */
+  static class WordPredicate extends IndexPredicate {
+    private final Provider<ReviewDb> db;
+    private final GitRepositoryManager repoManager;
+    private final String word;
+    private final boolean openStart;
+    private final boolean openEnd;
+
+    WordPredicate(Provider<ReviewDb> db, GitRepositoryManager repoManager,
+        String word, boolean openStart, boolean openEnd) {
+      super(ChangeField.MESSAGE, "message_word",
+          (openStart ? "*" : "") + word + (openEnd ? "*" : ""));
+      this.db = db;
+      this.repoManager = repoManager;
+      this.word = word;
+      this.openStart = openStart;
+      this.openEnd = openEnd;
+    }
+
+    @Override
+    public String getTerm() {
+      return openStart || openEnd ? null : word;
+    }
+
+    @Override
+    public String getTermPrefix() {
+      return openStart ? "" : word;
+    }
+
+    @Override
+    public boolean matchesTerm(String term) {
+      if (openStart && openEnd) {
+        return term.contains(word);
+      } else if (openStart) {
+        return term.endsWith(word);
+      } else if (openEnd) {
+        return term.startsWith(word);
+      } else {
+        return term.equals(word);
+      }
+    }
+
+    @Override
+    public boolean match(ChangeData object) throws OrmException {
+      try {
+        String msg = object.commitMessage(repoManager, db);
+        if (msg == null) {
+          return false;
+        }
+        for (String term : ChangeField.words(msg)) {
+          if (matchesTerm(term)) {
+            return true;
+          }
+        }
+        return false;
+      } catch (IOException e) {
+        // Leave the decision to the message predicate itself.
+        return true;
+      }
+    }
+
+    @Override
+    public boolean isExact() {
+      return false;
+    }
+
+    @Override
+    public int getCost() {
+      return ChangeCosts.REPOSITORY_READ;
+    }
   }
 }
@@ -17,16 +17,17 @@ package com.google.gerrit.server.query.change;
 import com.google.gerrit.reviewdb.client.Account;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
-class OwnerPredicate extends OperatorPredicate<ChangeData> {
+class OwnerPredicate extends IndexPredicate {
   private final Provider<ReviewDb> dbProvider;
   private final Account.Id id;
 
   OwnerPredicate(Provider<ReviewDb> dbProvider, Account.Id id) {
-    super(ChangeQueryBuilder.FIELD_OWNER, id.toString());
+    super(ChangeField.OWNER, ChangeQueryBuilder.FIELD_OWNER, id.toString());
     this.dbProvider = dbProvider;
     this.id = id;
   }
@@ -35,6 +36,11 @@ class OwnerPredicate extends OperatorPredicate<ChangeData> {
     return id;
   }
 
+  @Override
+  public String getTerm() {
+    return String.valueOf(id.get());
+  }
+
   @Override
   public boolean match(final ChangeData object) throws OrmException {
     Change change = object.change(dbProvider);
@@ -17,15 +17,16 @@ package com.google.gerrit.server.query.change;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
-class ProjectPredicate extends OperatorPredicate<ChangeData> {
+class ProjectPredicate extends IndexPredicate {
   private final Provider<ReviewDb> dbProvider;
 
   ProjectPredicate(Provider<ReviewDb> dbProvider, String id) {
-    super(ChangeQueryBuilder.FIELD_PROJECT, id);
+    super(ChangeField.PROJECT, ChangeQueryBuilder.FIELD_PROJECT, id);
     this.dbProvider = dbProvider;
   }
 
@@ -24,6 +24,11 @@ import com.google.gerrit.server.events.EventFactory;
 import com.google.gerrit.server.events.PatchSetAttribute;
 import com.google.gerrit.server.events.QueryStats;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.patch.PatchListNotAvailableException;
+import com.google.gerrit.server.query.AndPredicate;
+import com.google.gerrit.server.query.NotPredicate;
+import com.google.gerrit.server.query.OrPredicate;
 import com.google.gerrit.server.query.Predicate;
 import com.google.gerrit.server.query.QueryParseException;
 import com.google.gson.Gson;
@@ -90,8 +95,11 @@ public class QueryProcessor {
   private final EventFactory eventFactory;
   private final ChangeQueryBuilder queryBuilder;
   private final ChangeQueryRewriter queryRewriter;
+  private final IndexRewriter indexRewriter;
   private final Provider<ReviewDb> db;
   private final GitRepositoryManager repoManager;
+  private final PatchListCache patchListCache;
+  private final ChangeDataLoader loader;
   private final int maxLimit;
 
   private OutputFormat outputFormat = OutputFormat.TEXT;
@@ -105,6 +113,9 @@ public class QueryProcessor {
   private boolean includeFiles;
   private boolean includeCommitMessage;
   private boolean includeDependencies;
+  private boolean explain;
+  private Predicate<ChangeData> plan;
+  private int planRowsRead;
 
   private OutputStream outputStream = DisabledOutputStream.INSTANCE;
   private PrintWriter out;
@@ -112,13 +123,17 @@ public class QueryProcessor {
   @Inject
   QueryProcessor(EventFactory eventFactory,
       ChangeQueryBuilder.Factory queryBuilder, CurrentUser currentUser,
-      ChangeQueryRewriter queryRewriter, Provider<ReviewDb> db,
-      GitRepositoryManager repoManager) {
+      ChangeQueryRewriter queryRewriter, IndexRewriter indexRewriter,
+      Provider<ReviewDb> db, GitRepositoryManager repoManager,
+      PatchListCache patchListCache, ChangeDataLoader loader) {
     this.eventFactory = eventFactory;
     this.queryBuilder = queryBuilder.create(currentUser);
     this.queryRewriter = queryRewriter;
+    this.indexRewriter = indexRewriter;
     this.db = db;
     this.repoManager = repoManager;
+    this.patchListCache = patchListCache;
+    this.loader = loader;
     this.maxLimit = currentUser.getCapabilities()
       .getRange(GlobalCapability.QUERY_LIMIT)
       .getMax();
@@ -180,6 +195,10 @@ public class QueryProcessor {
     return includeDependencies;
   }
 
+  public void setExplain(boolean on) {
+    explain = on;
+  }
+
   public void setIncludeCommitMessage(boolean on) {
     includeCommitMessage = on;
   }
@@ -203,7 +222,10 @@ public class QueryProcessor {
     Predicate<ChangeData> s = compileQuery(queryString, visibleToMe);
     List<ChangeData> results = new ArrayList<ChangeData>();
     HashSet<Change.Id> want = new HashSet<Change.Id>();
+    plan = s;
+    planRowsRead = 0;
     for (ChangeData d : ((ChangeDataSource) s).read()) {
+      planRowsRead++;
       if (d.hasChange()) {
         // Checking visibleToMe here should be unnecessary, the
         // query should have already performed it. But we don't
@@ -254,54 +276,28 @@ public class QueryProcessor {
         stats.runTimeMilliseconds = System.currentTimeMillis();
 
         List<ChangeData> results = queryChanges(queryString);
-        for (ChangeData d : results) {
-          ChangeAttribute c = eventFactory.asChangeAttribute(d.getChange());
-          eventFactory.extend(c, d.getChange());
-          eventFactory.addTrackingIds(c, d.trackingIds(db));
-
-          if (includeCommitMessage) {
-            eventFactory.addCommitMessage(c, d.commitMessage(repoManager, db));
-          }
-
-          if (includePatchSets) {
-            if (includeFiles) {
-              eventFactory.addPatchSets(c, d.patches(db),
-                includeApprovals ? d.approvalsMap(db) : null,
-                includeFiles, d.change(db));
-            } else {
-              eventFactory.addPatchSets(c, d.patches(db),
-                  includeApprovals ? d.approvalsMap(db) : null);
-            }
-          }
-
-          if (includeCurrentPatchSet) {
-            PatchSet current = d.currentPatchSet(db);
-            if (current != null) {
-              c.currentPatchSet = eventFactory.asPatchSetAttribute(current);
-              eventFactory.addApprovals(c.currentPatchSet, //
-                  d.currentApprovals(db));
-
-              if (includeFiles) {
-                eventFactory.addPatchSetFileNames(c.currentPatchSet,
-                    d.change(db), d.currentPatchSet(db));
-              }
-            }
-          }
-
-          if (includeComments) {
-            eventFactory.addComments(c, d.messages(db));
-            if (includePatchSets) {
-              for (PatchSetAttribute attribute : c.patchSets) {
-                eventFactory.addPatchSetComments(attribute,  d.comments(db));
-              }
-            }
+        stats.queryTimeMilliseconds =
+            System.currentTimeMillis() - stats.runTimeMilliseconds;
+        int pageSize = loader.getPageSize();
+        for (int i = 0; i < results.size(); i += pageSize) {
+          List<ChangeData> page =
+              results.subList(i, Math.min(i + pageSize, results.size()));
+          prefetch(page, stats);
+          for (ChangeData d : page) {
+            show(asChangeAttribute(d));
           }
 
-          if (includeDependencies) {
-            eventFactory.addDependencies(c, d.getChange());
+          // Drop the data loaded for this page before loading the next one.
+          Collections.fill(page, null);
+          if (out.checkError() || Thread.currentThread().isInterrupted()) {
+            // Flushing failed or the command was canceled; the client is
+            // gone, so stop loading results nobody will read.
+            return;
           }
+        }
 
-          show(c);
+        if (explain) {
+          show(explain(results.size()));
         }
 
         stats.rowCount = results.size();
@@ -329,6 +325,169 @@ public class QueryProcessor {
     }
   }
 
+  private ChangeAttribute asChangeAttribute(ChangeData d)
+      throws OrmException, IOException {
+    ChangeAttribute c = eventFactory.asChangeAttribute(d.getChange());
+    eventFactory.extend(c, d.getChange());
+    eventFactory.addTrackingIds(c, d.trackingIds(db));
+
+    if (includeCommitMessage) {
+      eventFactory.addCommitMessage(c, d.commitMessage(repoManager, db));
+    }
+
+    if (includePatchSets) {
+      if (includeFiles) {
+        eventFactory.addPatchSets(c, d.patches(db),
+          includeApprovals ? d.approvalsMap(db) : null,
+          includeFiles, d.change(db));
+      } else {
+        eventFactory.addPatchSets(c, d.patches(db),
+            includeApprovals ? d.approvalsMap(db) : null);
+      }
+    }
+
+    if (includeCurrentPatchSet) {
+      PatchSet current = d.currentPatchSet(db);
+      if (current != null) {
+        c.currentPatchSet = eventFactory.asPatchSetAttribute(current);
+        eventFactory.addApprovals(c.currentPatchSet, //
+            d.currentApprovals(db));
+
+        if (includeFiles) {
+          eventFactory.addPatchSetFileNames(c.currentPatchSet,
+              d.change(db), d.currentPatchSet(db));
+        }
+      }
+    }
+
+    if (includeComments) {
+      eventFactory.addComments(c, d.messages(db));
+      if (includePatchSets) {
+        for (PatchSetAttribute attribute : c.patchSets) {
+          eventFactory.addPatchSetComments(attribute,  d.comments(db));
+        }
+      }
+    }
+
+    if (includeDependencies) {
+      eventFactory.addDependencies(c, d.getChange());
+    }
+    return c;
+  }
+
+  /**
+   * Load the data shown for a page of results before formatting any of them.
+   * <p>
+   * Database rows are read for the whole page at once. Commit messages and
+   * file lists are read concurrently by the {@link ChangeDataLoader}; file
+   * lists end up in the {@link PatchListCache}, where formatting finds them.
+   */
+  private void prefetch(List<ChangeData> results, QueryStats stats)
+      throws OrmException {
+    long start = System.currentTimeMillis();
+    ChangeData.ensureChangeLoaded(db, results);
+    ChangeData.ensureLoaded(db, results, ChangeData.TRACKING_IDS);
+    if (includePatchSets) {
+      ChangeData.ensureLoaded(db, results, ChangeData.ALL_PATCH_SETS);
+      if (includeApprovals) {
+        ChangeData.ensureLoaded(db, results, ChangeData.ALL_APPROVALS);
+      }
+    }
+    if (includeCurrentPatchSet || includeCommitMessage) {
+      ChangeData.ensureCurrentPatchSetLoaded(db, results);
+    }
+    if (includeCurrentPatchSet) {
+      ChangeData.ensureCurrentApprovalsLoaded(db, results);
+    }
+    if (includeComments) {
+      ChangeData.ensureLoaded(db, results, ChangeData.MESSAGES);
+      if (includePatchSets) {
+        ChangeData.ensureLoaded(db, results, ChangeData.COMMENTS);
+      }
+    }
+    long loaded = System.currentTimeMillis();
+    stats.loadTimeMilliseconds += loaded - start;
+
+    final boolean allFiles = includeFiles && includePatchSets;
+    final boolean currentFiles = includeFiles && includeCurrentPatchSet;
+    if (includeCommitMessage || allFiles || currentFiles) {
+      loader.load(results, new ChangeDataLoader.Step() {
+        @Override
+        public void load(ChangeData cd) throws OrmException {
+          if (includeCommitMessage) {
+            try {
+              cd.commitMessage(repoManager, db);
+            } catch (IOException e) {
+              // Reported again when the message is formatted.
+            }
+          }
+          if (allFiles) {
+            for (PatchSet ps : cd.patches(db)) {
+              loadPatchList(cd, ps);
+            }
+          } else if (currentFiles) {
+            loadPatchList(cd, cd.currentPatchSet(db));
+          }
+        }
+      });
+    }
+    stats.prefetchTimeMilliseconds += System.currentTimeMillis() - loaded;
+  }
+
+  private void loadPatchList(ChangeData cd, PatchSet ps) throws OrmException {
+    if (ps != null) {
+      try {
+        patchListCache.get(cd.change(db), ps);
+      } catch (PatchListNotAvailableException e) {
+        // Reported again when the file names are formatted.
+      }
+    }
+  }
+
+  private PlanMessage explain(int rowCount) {
+    PlanMessage m = new PlanMessage();
+    StringBuilder r = new StringBuilder();
+    explain(r, plan, 0);
+    m.plan = r.toString();
+    m.estimatedRows = ((ChangeDataSource) plan).getCardinality();
+    m.actualRows = planRowsRead;
+    m.visibleRows = rowCount;
+    return m;
+  }
+
+  /** Describe each node of the plan, in the order it is evaluated. */
+  private static void explain(StringBuilder r, Predicate<ChangeData> p,
+      int depth) {
+    for (int i = 0; i < depth; i++) {
+      r.append("  ");
+    }
+    boolean tree = p instanceof AndPredicate
+        || p instanceof OrPredicate
+        || p instanceof NotPredicate;
+    if (p instanceof AndPredicate) {
+      r.append("AND");
+    } else if (p instanceof OrPredicate) {
+      r.append("OR");
+    } else if (p instanceof NotPredicate) {
+      r.append("NOT");
+    } else {
+      r.append(p);
+    }
+    r.append(" (cost=").append(p.getCost());
+    if (p instanceof ChangeDataSource) {
+      r.append(", rows=").append(((ChangeDataSource) p).getCardinality());
+    }
+    if (p instanceof AndSource) {
+      r.append(", read=").append(((AndSource) p).getRowsRead());
+    }
+    r.append(")\n");
+    if (tree) {
+      for (Predicate<ChangeData> c : p.getChildren()) {
+        explain(r, c, depth + 1);
+      }
+    }
+  }
+
   boolean isDisabled() {
     return maxLimit <= 0;
   }
@@ -356,7 +515,7 @@ public class QueryProcessor {
         queryBuilder.limit(limit > 0 ? Math.min(limit, maxLimit) + 1 : maxLimit),
         visibleToMe);
 
-    Predicate<ChangeData> s = queryRewriter.rewrite(q);
+    Predicate<ChangeData> s = queryRewriter.rewrite(indexRewriter.rewrite(q));
     if (!(s instanceof ChangeDataSource)) {
       s = queryRewriter.rewrite(Predicate.and(queryBuilder.status_open(), q));
     }
@@ -490,6 +649,14 @@ public class QueryProcessor {
     return r;
   }
 
+  static class PlanMessage {
+    public final String type = "plan";
+    public String plan;
+    public int estimatedRows;
+    public int actualRows;
+    public int visibleRows;
+  }
+
   static class ErrorMessage {
     public final String type = "error";
     public String message;
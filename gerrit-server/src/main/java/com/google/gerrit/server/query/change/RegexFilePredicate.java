@@ -15,8 +15,9 @@
 package com.google.gerrit.server.query.change;
 
 import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gerrit.server.patch.PatchListCache;
-import com.google.gerrit.server.query.OperatorPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
@@ -25,11 +26,13 @@ import dk.brics.automaton.RegExp;
 import dk.brics.automaton.RunAutomaton;
 
 import java.util.Arrays;
+import java.util.Set;
 
-class RegexFilePredicate extends OperatorPredicate<ChangeData> {
+class RegexFilePredicate extends IndexPredicate {
   private final Provider<ReviewDb> db;
   private final PatchListCache cache;
   private final RunAutomaton pattern;
+  private final String exact;
 
   private final String prefixBegin;
   private final String prefixEnd;
@@ -37,7 +40,7 @@ class RegexFilePredicate extends OperatorPredicate<ChangeData> {
   private final boolean prefixOnly;
 
   RegexFilePredicate(Provider<ReviewDb> db, PatchListCache plc, String re) {
-    super(ChangeQueryBuilder.FIELD_FILE, re);
+    super(ChangeField.FILE, ChangeQueryBuilder.FIELD_FILE, re);
     this.db = db;
     this.cache = plc;
 
@@ -63,6 +66,42 @@ class RegexFilePredicate extends OperatorPredicate<ChangeData> {
     }
 
     pattern = prefixOnly ? null : new RunAutomaton(automaton);
+
+    Set<String> paths = automaton.getFiniteStrings(1);
+    exact = paths != null && paths.size() == 1 ? paths.iterator().next() : null;
+  }
+
+  @Override
+  public String getTerm() {
+    return exact;
+  }
+
+  @Override
+  public String getTermPrefix() {
+    return prefixBegin;
+  }
+
+  @Override
+  public boolean matchesTerm(String path) {
+    return prefixOnly ? path.startsWith(prefixBegin) : pattern.run(path);
+  }
+
+  @Override
+  public int getDeadPrefixLength(String path) {
+    if (pattern == null) {
+      return -1;
+    }
+    // Walking the automaton along the path finds the first character no
+    // accepted path can continue with; every path sharing the characters
+    // up to it is rejected as well.
+    int s = pattern.getInitialState();
+    for (int i = 0; i < path.length(); i++) {
+      s = pattern.step(s, path.charAt(i));
+      if (s < 0) {
+        return i + 1;
+      }
+    }
+    return -1;
   }
 
   @Override
@@ -92,11 +131,10 @@ class RegexFilePredicate extends OperatorPredicate<ChangeData> {
       return false;
 
     } else {
-      // The ChangeData can't do expensive lookups right now. Bypass
-      // them and include the result anyway. We might be able to do
-      // a narrow later on to a smaller set.
+      // The change or its current patch set no longer exists, so it has
+      // no files; the index stores no file terms for it either.
       //
-      return true;
+      return false;
     }
   }
 
@@ -107,6 +145,6 @@ class RegexFilePredicate extends OperatorPredicate<ChangeData> {
 
   @Override
   public int getCost() {
-    return 1;
+    return ChangeCosts.REPOSITORY_READ;
   }
 }
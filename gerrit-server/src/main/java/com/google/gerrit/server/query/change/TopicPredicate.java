@@ -16,15 +16,16 @@ package com.google.gerrit.server.query.change;
 
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.IndexPredicate;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
 
-class TopicPredicate extends OperatorPredicate<ChangeData> {
+class TopicPredicate extends IndexPredicate {
   private final Provider<ReviewDb> dbProvider;
 
   TopicPredicate(Provider<ReviewDb> dbProvider, String topic) {
-    super(ChangeQueryBuilder.FIELD_TOPIC, topic);
+    super(ChangeField.TOPIC, ChangeQueryBuilder.FIELD_TOPIC, topic);
     this.dbProvider = dbProvider;
   }
 
@@ -0,0 +1,325 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes an access log file from a background thread.
+ * <p>
+ * Request threads hand their entries to a bounded ring of pre-allocated slots
+ * without taking a lock, and never wait for the disk. A single writer thread
+ * formats the entries in batches, writes them through a buffer and flushes
+ * once per batch. If the writer falls behind and the ring is full, entries
+ * are dropped and counted instead of stalling the request.
+ * <p>
+ * The file is rolled over daily, renaming it to {@code name.yyyy-MM-dd}.
+ */
+public class AccessLogWriter implements Runnable {
+  private static final Logger log =
+      LoggerFactory.getLogger(AccessLogWriter.class);
+
+  /** Longest time the writer sleeps before checking for entries again. */
+  private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** Shortest time between two warnings about dropped entries. */
+  private static final long DROP_WARNING_INTERVAL =
+      TimeUnit.MINUTES.toMillis(1);
+
+  /** Writers not closed yet, for reporting by {@link #getOpenWriters()}. */
+  private static final Collection<AccessLogWriter> open =
+      new CopyOnWriteArrayList<AccessLogWriter>();
+
+  /** @return writers of this server that are still open. */
+  public static Collection<AccessLogWriter> getOpenWriters() {
+    return Collections.unmodifiableCollection(open);
+  }
+
+  /** Formats entries of a log; only called by the writer thread. */
+  public interface Layout {
+    /**
+     * Format one entry.
+     *
+     * @param when time the entry was appended, in milliseconds.
+     * @param fields values given to {@link AccessLogWriter#append}.
+     * @param buf buffer receiving the line, including its line terminator.
+     */
+    void format(long when, String[] fields, StringBuilder buf);
+  }
+
+  private static final class Slot {
+    /** Sequence number of the entry held; written last to publish it. */
+    volatile long sequence = -1;
+    long when;
+    String[] fields;
+  }
+
+  private final File file;
+  private final Layout layout;
+  private final Slot[] slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writer;
+
+  /** Sequence of the next entry the writer will consume. */
+  private volatile long consumed;
+  private volatile boolean idle;
+  private volatile boolean closed;
+
+  // State below is only used by the writer thread, once started.
+  private Writer out;
+  private long nextRollover;
+  private String period;
+  private long reportedDrops;
+  private long lastDropWarning;
+  private boolean failing;
+
+  /**
+   * Open the log file and start its writer thread.
+   *
+   * @param file log file, appended to if it exists.
+   * @param layout formats the entries.
+   * @param bufferSize number of entries that may wait for the writer; rounded
+   *        up to a power of two.
+   * @throws IllegalStateException the log file cannot be opened.
+   */
+  public AccessLogWriter(File file, Layout layout, int bufferSize) {
+    this.file = file;
+    this.layout = layout;
+
+    int n = 1;
+    while (n < bufferSize) {
+      n <<= 1;
+    }
+    slots = new Slot[n];
+    for (int i = 0; i < n; i++) {
+      slots[i] = new Slot();
+    }
+    mask = n - 1;
+
+    try {
+      open(file.exists() ? file.lastModified() : System.currentTimeMillis());
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open log file: " + file, e);
+    }
+
+    writer = new Thread(this, file.getName() + "-writer");
+    writer.setDaemon(true);
+    writer.start();
+    open.add(this);
+  }
+
+  /**
+   * Queue an entry for the log file.
+   * <p>
+   * The fields array is kept until the entry is written, and must not be
+   * modified by the caller.
+   *
+   * @param when time of the entry, in milliseconds.
+   * @param fields values passed to the layout.
+   * @return true if the entry was queued; false if it was dropped.
+   */
+  public boolean append(long when, String... fields) {
+    if (closed) {
+      return false;
+    }
+
+    long seq;
+    do {
+      seq = head.get();
+      if (seq - consumed >= slots.length) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    } while (!head.compareAndSet(seq, seq + 1));
+
+    Slot s = slots[(int) (seq & mask)];
+    s.when = when;
+    s.fields = fields;
+    s.sequence = seq;
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+    return true;
+  }
+
+  /** @return name of the log file. */
+  public String getName() {
+    return file.getName();
+  }
+
+  /** @return number of entries dropped because the buffer was full. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /** Write the remaining entries, close the file and stop the writer. */
+  public void close() {
+    closed = true;
+    open.remove(this);
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    StringBuilder buf = new StringBuilder(256);
+    long next = 0;
+    for (;;) {
+      Slot s = slots[(int) (next & mask)];
+      if (s.sequence == next) {
+        do {
+          write(s, buf);
+          consumed = ++next;
+          s = slots[(int) (next & mask)];
+        } while (s.sequence == next);
+        flush();
+        reportDrops();
+        continue;
+      }
+
+      if (closed && head.get() == next) {
+        break;
+      }
+      idle = true;
+      if (s.sequence != next) {
+        LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+      }
+      idle = false;
+    }
+    reportDrops();
+    closeFile();
+  }
+
+  private void write(Slot s, StringBuilder buf) {
+    long when = s.when;
+    String[] fields = s.fields;
+    s.fields = null;
+
+    buf.setLength(0);
+    try {
+      layout.format(when, fields, buf);
+    } catch (RuntimeException e) {
+      log.error("Cannot format entry of " + file, e);
+      return;
+    }
+
+    try {
+      if (nextRollover <= when) {
+        rollOver(when);
+      }
+      if (out == null) {
+        open(when);
+      }
+      out.append(buf);
+    } catch (IOException e) {
+      writeFailed(e);
+    }
+  }
+
+  private void flush() {
+    if (out != null) {
+      try {
+        out.flush();
+        failing = false;
+      } catch (IOException e) {
+        writeFailed(e);
+      }
+    }
+  }
+
+  private void writeFailed(IOException e) {
+    // Report only the first of a series of errors, e.g. while the disk is
+    // full, instead of one per entry.
+    if (!failing) {
+      log.error("Cannot write " + file, e);
+      failing = true;
+    }
+    closeFile();
+  }
+
+  private void open(long when) throws IOException {
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(when);
+    c.set(Calendar.HOUR_OF_DAY, 0);
+    c.set(Calendar.MINUTE, 0);
+    c.set(Calendar.SECOND, 0);
+    c.set(Calendar.MILLISECOND, 0);
+    period = new SimpleDateFormat("yyyy-MM-dd").format(c.getTime());
+    c.add(Calendar.DAY_OF_MONTH, 1);
+    nextRollover = c.getTimeInMillis();
+
+    out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file, true), "UTF-8"), 8192);
+  }
+
+  private void rollOver(long when) throws IOException {
+    closeFile();
+    File dst = new File(file.getPath() + "." + period);
+    if (dst.exists() && !dst.delete()) {
+      log.warn("Cannot delete " + dst);
+    }
+    if (file.exists() && !file.renameTo(dst)) {
+      log.warn("Cannot rename " + file + " to " + dst);
+    }
+    open(when);
+  }
+
+  private void closeFile() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (!failing) {
+          log.warn("Cannot close " + file, e);
+        }
+      }
+      out = null;
+    }
+  }
+
+  private void reportDrops() {
+    long n = dropped.get();
+    long now = System.currentTimeMillis();
+    if (reportedDrops < n
+        && (closed || lastDropWarning + DROP_WARNING_INTERVAL <= now)) {
+      log.warn(String.format("Dropped %d entries of %s, writer is behind",
+          n - reportedDrops, file.getName()));
+      reportedDrops = n;
+      lastDropWarning = now;
+    }
+  }
+}
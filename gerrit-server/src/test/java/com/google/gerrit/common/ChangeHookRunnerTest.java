@@ -0,0 +1,59 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.common;
+
+import static com.google.gerrit.common.ChangeHookRunner.replayFrom;
+
+import junit.framework.TestCase;
+
+public class ChangeHookRunnerTest extends TestCase {
+  private static final long FIRST = 1000;
+
+  public void testReplayWithinWindow() {
+    assertEquals(1006, replayFrom(FIRST, 1010, 1024, 1005));
+  }
+
+  public void testReplayCaughtUp() {
+    // Nothing to replay, and nothing was lost.
+    assertEquals(1011, replayFrom(FIRST, 1010, 1024, 1010));
+  }
+
+  public void testReplayOlderThanLog() {
+    long oldest = 5000 - 1024 + 1;
+    assertEquals(oldest, replayFrom(FIRST, 5000, 1024, 2000));
+    assertEquals(oldest, replayFrom(FIRST, 5000, 1024, oldest - 1));
+    assertEquals(oldest, replayFrom(FIRST, 5000, 1024, oldest - 2));
+  }
+
+  public void testReplayBeforeServerStarted() {
+    assertEquals(FIRST, replayFrom(FIRST, 1010, 1024, FIRST - 1));
+    assertEquals(FIRST, replayFrom(FIRST, 1010, 1024, 10));
+  }
+
+  public void testReplayInFuture() {
+    assertEquals(FIRST, replayFrom(FIRST, 1010, 1024, 1011));
+    assertEquals(FIRST, replayFrom(FIRST, 1010, 1024, Long.MAX_VALUE));
+  }
+
+  public void testReplayBeforeFirstEvent() {
+    assertEquals(FIRST, replayFrom(FIRST, FIRST - 1, 1024, FIRST - 1));
+    assertEquals(FIRST, replayFrom(FIRST, FIRST - 1, 1024, 10));
+  }
+
+  public void testReplayDisabled() {
+    assertEquals(1011, replayFrom(FIRST, 1010, 0, 1010));
+    assertEquals(1011, replayFrom(FIRST, 1010, 0, 1009));
+  }
+}
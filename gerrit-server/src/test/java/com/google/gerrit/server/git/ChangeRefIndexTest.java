@@ -0,0 +1,75 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+public class ChangeRefIndexTest extends TestCase {
+  private static final ObjectId A =
+      ObjectId.fromString("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final ObjectId B =
+      ObjectId.fromString("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+
+  private ChangeRefIndex.ChangeRefs refs;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    refs = new ChangeRefIndex.ChangeRefs();
+    refs.loaded();
+  }
+
+  public void testUpdateAndDelete() {
+    refs.update("refs/changes/01/1/1", A);
+    assertTrue(refs.contains(A));
+    assertEquals("refs/changes/01/1/1", refs.get(A));
+    assertNull(refs.get(B));
+
+    refs.update("refs/changes/01/1/1", B);
+    assertFalse(refs.contains(A));
+    assertEquals("refs/changes/01/1/1", refs.get(B));
+
+    refs.update("refs/changes/01/1/1", null);
+    assertFalse(refs.contains(B));
+    assertTrue(refs.commits().isEmpty());
+  }
+
+  public void testCommitOfSeveralRefs() {
+    refs.update("refs/changes/01/1/1", A);
+    refs.update("refs/changes/02/2/1", A);
+    assertEquals(1, refs.commits().size());
+
+    refs.update("refs/changes/02/2/1", null);
+    assertTrue(refs.contains(A));
+    assertEquals("refs/changes/01/1/1", refs.get(A));
+
+    refs.update("refs/changes/01/1/1", B);
+    assertFalse(refs.contains(A));
+    assertTrue(refs.contains(B));
+  }
+
+  public void testEventDuringLoadWins() {
+    ChangeRefIndex.ChangeRefs loading = new ChangeRefIndex.ChangeRefs();
+    loading.update("refs/changes/01/1/1", null);
+    loading.load("refs/changes/01/1/1", A);
+    loading.load("refs/changes/02/2/1", B);
+    loading.loaded();
+
+    assertFalse(loading.contains(A));
+    assertEquals("refs/changes/02/2/1", loading.get(B));
+  }
+}
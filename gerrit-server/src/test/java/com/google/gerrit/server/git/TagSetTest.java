@@ -0,0 +1,195 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.reviewdb.client.Project;
+
+import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TagSetTest extends LocalDiskRepositoryTestCase {
+  private final Project.NameKey project = new Project.NameKey("test");
+
+  private Repository db;
+  private TestRepository<Repository> util;
+  private TagCache cache;
+  private TagSetHolder holder;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    db = createBareRepository();
+    util = new TestRepository<Repository>(db);
+    cache = new TagCache(CacheBuilder.newBuilder()
+        .<String, TagCache.EntryVal> build());
+    holder = new TagSetHolder(project);
+  }
+
+  @Test
+  public void testNewTagOnOldCommit() throws Exception {
+    RevCommit a = util.commit();
+    RevCommit b = util.commit(a);
+    RevCommit c = util.commit(b);
+    util.update("master", c);
+    util.update("stable", a);
+    util.update("refs/tags/v1", util.tag("v1", c));
+    assertReachable("refs/tags/v1", "master");
+
+    util.update("refs/tags/v0", util.tag("v0", a));
+    util.update("refs/tags/v0.5", b);
+    assertReachable("refs/tags/v0", "master");
+    assertReachable("refs/tags/v0", "stable");
+    assertReachable("refs/tags/v0.5", "master");
+    assertNotReachable("refs/tags/v0.5", "stable");
+    assertNotReachable("refs/tags/v1", "stable");
+  }
+
+  @Test
+  public void testNewBranchFromTip() throws Exception {
+    RevCommit a = util.commit();
+    RevCommit b = util.commit(a);
+    util.update("master", b);
+    util.update("refs/tags/v1", util.tag("v1", a));
+    assertReachable("refs/tags/v1", "master");
+
+    util.update("copy", b);
+    assertReachable("refs/tags/v1", "copy");
+  }
+
+  @Test
+  public void testNewBranchWithNewCommits() throws Exception {
+    RevCommit a = util.commit();
+    RevCommit b = util.commit(a);
+    RevCommit c = util.commit(b);
+    util.update("master", c);
+    util.update("old", a);
+    util.update("refs/tags/v1", util.tag("v1", a));
+    util.update("refs/tags/v2", util.tag("v2", c));
+    assertReachable("refs/tags/v1", "master");
+
+    // Branch from the tip of a known branch, with commits of its own.
+    util.update("topic", util.commit(util.commit(a)));
+    assertReachable("refs/tags/v1", "topic");
+    assertNotReachable("refs/tags/v2", "topic");
+
+    // Branch from the middle of the history forces a full rebuild.
+    util.update("fix", util.commit(b));
+    assertReachable("refs/tags/v1", "fix");
+    assertNotReachable("refs/tags/v2", "fix");
+  }
+
+  @Test
+  public void testRefreshLeavesOldSetUnchanged() throws Exception {
+    RevCommit a = util.commit();
+    util.update("master", a);
+    util.update("refs/tags/v1", util.tag("v1", a));
+    assertReachable("refs/tags/v1", "master");
+    TagSet old = holder.getTagSet();
+    assertNotNull(old);
+
+    util.update("copy", a);
+    assertReachable("refs/tags/v1", "copy");
+    assertNotSame(old, holder.getTagSet());
+
+    // The old set does not know the new branch, so its flag must not
+    // have been set in the flags shared with the new set.
+    TagMatcher m = matcher("copy");
+    TagSet.Tag tag = old.lookupTag(a);
+    assertNotNull(tag);
+    assertFalse(tag.has(m.mask));
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    RevCommit a = util.commit();
+    RevCommit b = util.commit(a);
+    util.update("master", b);
+    util.update("stable", a);
+    util.update("refs/tags/v1", util.tag("v1", a));
+    util.update("refs/tags/v2", util.tag("v2", b));
+    assertReachable("refs/tags/v1", "stable");
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(buf);
+    holder.getTagSet().writeObject(out);
+    out.close();
+
+    TagSet copy = new TagSet(project);
+    ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(buf.toByteArray()));
+    copy.readObject(in);
+    holder.setTagSet(copy);
+
+    assertReachable("refs/tags/v1", "stable");
+    assertReachable("refs/tags/v2", "master");
+    assertNotReachable("refs/tags/v2", "stable");
+    assertSame("no rebuild after reading", copy, holder.getTagSet());
+  }
+
+  @Test
+  public void testRewoundBranch() throws Exception {
+    RevCommit a = util.commit();
+    RevCommit b = util.commit(a);
+    util.update("master", b);
+    util.update("refs/tags/v1", util.tag("v1", b));
+    assertReachable("refs/tags/v1", "master");
+
+    RefUpdate u = db.updateRef("refs/heads/master");
+    u.setNewObjectId(a);
+    u.forceUpdate();
+    assertNotReachable("refs/tags/v1", "master");
+  }
+
+  private void assertReachable(String tag, String branch) throws Exception {
+    assertTrue(tag + " reachable from " + branch, isReachable(tag, branch));
+  }
+
+  private void assertNotReachable(String tag, String branch)
+      throws Exception {
+    assertFalse(tag + " not reachable from " + branch,
+        isReachable(tag, branch));
+  }
+
+  private boolean isReachable(String tag, String branch) throws Exception {
+    return matcher(branch).isReachable(db.getRef(tag));
+  }
+
+  private TagMatcher matcher(String branch) throws Exception {
+    List<Ref> include = new ArrayList<Ref>();
+    include.add(db.getRef("refs/heads/" + branch));
+    return holder.matcher(cache, db, include);
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class WorkQueueTest extends TestCase {
+  private CountDownLatch started;
+  private CountDownLatch release;
+  private WorkQueue.Executor queue;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    if (queue != null) {
+      queue.shutdownNow();
+      queue.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    super.tearDown();
+  }
+
+  public void testCallableRejectedPastMaxDepth() throws Exception {
+    queue = createQueue("ABORT");
+    Future<String> running = queue.submit(blocking());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    Future<String> waiting = queue.submit(value("waiting"));
+    assertEquals(1, queue.getDepth());
+
+    try {
+      queue.submit(value("rejected"));
+      fail("expected RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(2, queue.getSubmittedCount());
+    assertEquals(1, queue.getRejectedCount());
+
+    release.countDown();
+    assertEquals("blocking", running.get(10, TimeUnit.SECONDS));
+    assertEquals("waiting", waiting.get(10, TimeUnit.SECONDS));
+  }
+
+  public void testCallableRunByCallerPastMaxDepth() throws Exception {
+    queue = createQueue("CALLER_RUNS");
+    queue.submit(blocking());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    queue.submit(value("waiting"));
+
+    Future<String> f = queue.submit(value("caller"));
+    assertTrue(f.isDone());
+    assertEquals("caller", f.get());
+    assertEquals(2, queue.getSubmittedCount());
+    assertEquals(1, queue.getRejectedCount());
+  }
+
+  public void testCallableShownByName() throws Exception {
+    queue = createQueue("ABORT");
+    queue.submit(blocking());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    queue.submit(value("waiting"));
+
+    boolean found = false;
+    for (WorkQueue.Task<?> t : queue.getQueue().toArray(
+        new WorkQueue.Task<?>[0])) {
+      found |= "value waiting".equals(t.toString());
+    }
+    assertTrue(found);
+  }
+
+  private WorkQueue.Executor createQueue(String rejectPolicy) {
+    final Config cfg = new Config();
+    cfg.setInt("queue", "Test", "maxDepth", 1);
+    cfg.setString("queue", "Test", "rejectPolicy", rejectPolicy);
+    WorkQueue workQueue = Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Config.class).annotatedWith(GerritServerConfig.class)
+            .toInstance(cfg);
+      }
+    }).getInstance(WorkQueue.class);
+    return workQueue.createQueue(1, "Test");
+  }
+
+  private Callable<String> blocking() {
+    return new Callable<String>() {
+      @Override
+      public String call() throws InterruptedException {
+        started.countDown();
+        release.await();
+        return "blocking";
+      }
+    };
+  }
+
+  private static Callable<String> value(final String value) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        return value;
+      }
+
+      @Override
+      public String toString() {
+        return "value " + value;
+      }
+    };
+  }
+}
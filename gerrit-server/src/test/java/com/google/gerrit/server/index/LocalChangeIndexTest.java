@@ -0,0 +1,287 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.MessagePredicate;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+public class LocalChangeIndexTest extends TestCase {
+  private File root;
+  private LocalChangeIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    root = new File(new File("target"), "index_" + UUID.randomUUID());
+    index = open();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    index.close();
+    delete(root);
+    super.tearDown();
+  }
+
+  public void testQueryByTerm() throws IOException {
+    add(1, "0001", "foo", "new");
+    add(2, "0002", "bar", "new");
+    add(3, "0003", "foo", "merged");
+
+    assertEquals(ids(3, 1), index.query(project("foo"), null, null, 0));
+    assertEquals(ids(2), index.query(project("bar"), null, null, 0));
+    assertEquals(2, index.count(project("foo")));
+    assertEquals(0, index.count(project("baz")));
+  }
+
+  public void testAndOrNot() throws IOException {
+    add(1, "0001", "foo", "new");
+    add(2, "0002", "bar", "new");
+    add(3, "0003", "foo", "merged");
+
+    assertEquals(ids(1), index.query(
+        Predicate.and(project("foo"), status("new")), null, null, 0));
+    assertEquals(ids(3, 2), index.query(
+        Predicate.or(project("bar"), status("merged")), null, null, 0));
+    assertEquals(ids(3), index.query(
+        Predicate.and(project("foo"), Predicate.not(status("new"))),
+        null, null, 0));
+    assertEquals(ids(2), index.query(
+        Predicate.not(project("foo")), null, null, 0));
+  }
+
+  public void testSortKeyBoundsAndLimit() throws IOException {
+    for (int i = 1; i <= 5; i++) {
+      add(i, "000" + i, "foo", "new");
+    }
+
+    assertEquals(ids(5, 4), index.query(project("foo"), null, null, 2));
+    assertEquals(ids(2, 1), index.query(project("foo"), "0003", null, 0));
+    assertEquals(ids(4, 5), index.query(project("foo"), null, "0003", 0));
+    assertEquals(ids(2), index.query(project("foo"), "0003", null, 1));
+  }
+
+  public void testReplaceAndDelete() throws IOException {
+    add(1, "0001", "foo", "new");
+    add(1, "0002", "bar", "new");
+    assertEquals(0, index.count(project("foo")));
+    assertEquals(ids(1), index.query(project("bar"), null, null, 0));
+
+    index.delete(new Change.Id(1));
+    assertEquals(0, index.count(project("bar")));
+    assertEquals(0, index.count(Predicate.not(project("bar"))));
+  }
+
+  public void testMatches() throws IOException {
+    long updated = add(1, "0001", "foo", "new");
+
+    Change.Id id = new Change.Id(1);
+    assertTrue(index.isCurrent(id, updated));
+    assertFalse(index.isCurrent(id, updated + 1));
+    assertTrue(index.matches(id, project("foo")));
+    assertFalse(index.matches(id, project("bar")));
+    assertTrue(index.matches(id, Predicate.not(project("bar"))));
+    assertFalse(index.matches(new Change.Id(2), project("foo")));
+  }
+
+  public void testNegatingInexactPredicateIsRejected() throws IOException {
+    add(1, "0001", "foo", "new");
+    Predicate<ChangeData> p = Predicate.not(inexact("foo"));
+
+    assertFalse(IndexPredicate.isIndexable(p));
+    assertFalse(IndexPredicate.isIndexable(
+        Predicate.and(status("new"), p)));
+    assertTrue(IndexPredicate.isIndexable(
+        Predicate.and(status("new"), inexact("foo"))));
+    try {
+      index.query(p, null, null, 0);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      index.matches(new Change.Id(1), p);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testMessageSingleWordMatchesInsideWords() throws IOException {
+    assertTrue(matchesMessage("Crash", "Fix crashes on startup"));
+    assertTrue(matchesMessage("Crash", "Avoid NPE-crash"));
+    assertFalse(matchesMessage("Crash", "Fix startup"));
+  }
+
+  public void testMessageInnerWordsMatchWholeWords() throws IOException {
+    String text = "null pointer exception";
+    assertTrue(matchesMessage(text,
+        "Avoid NullPointer: null pointer exceptional"));
+    assertTrue(matchesMessage(text, "anull pointer exception"));
+    assertFalse(matchesMessage(text, "null pointers exception"));
+    assertFalse(matchesMessage(text, "null exception"));
+  }
+
+  public void testMessageOuterWordsMatchPartially() throws IOException {
+    assertTrue(matchesMessage("ull point", "null pointer"));
+    assertFalse(matchesMessage("ull point", "ullage appoint"));
+  }
+
+  public void testMessageBoundedWordsMatchExactly() throws IOException {
+    assertTrue(matchesMessage(" crash ", "a crash here"));
+    assertFalse(matchesMessage(" crash ", "crashes"));
+  }
+
+  public void testReopenReplaysJournal() throws IOException {
+    add(1, "0001", "foo", "new");
+    add(2, "0002", "bar", "new");
+    index.setIndexedThrough("0002", true);
+
+    // Reading the same files from a second instance sees the journal
+    // written since the snapshot of the first one.
+    LocalChangeIndex other = open();
+    try {
+      assertTrue(other.isReady());
+      assertEquals("0002", other.getIndexedThrough());
+      assertEquals(ids(1), other.query(project("foo"), null, null, 0));
+    } finally {
+      other.close();
+    }
+
+    index.delete(new Change.Id(1));
+    index.close();
+    index = open();
+    assertTrue(index.isReady());
+    assertEquals(0, index.count(project("foo")));
+    assertEquals(ids(2), index.query(project("bar"), null, null, 0));
+  }
+
+  private LocalChangeIndex open() throws IOException {
+    Config cfg = new Config();
+    cfg.setBoolean("index", null, "enabled", true);
+    LocalChangeIndex i = new LocalChangeIndex(cfg, new SitePaths(root));
+    i.open();
+    return i;
+  }
+
+  /** @return last update time of the indexed change. */
+  private long add(int id, String sortKey, String project, String status)
+      throws IOException {
+    Change c = new Change(new Change.Key("I" + id), new Change.Id(id),
+        new Account.Id(1), new Branch.NameKey(new Project.NameKey(project),
+            "refs/heads/master"));
+    c.setSortKey(sortKey);
+    ChangeDocument doc = new ChangeDocument(c);
+    doc.put(ChangeField.PROJECT, Collections.singleton(project));
+    doc.put(ChangeField.STATUS, Collections.singleton(status));
+    index.replace(doc);
+    return doc.getLastUpdated();
+  }
+
+  /**
+   * Index a change with the commit message and test it against the word
+   * predicate of a {@code message:} search, through both the single change
+   * and the posting list paths of the index.
+   */
+  private boolean matchesMessage(String text, String message)
+      throws IOException {
+    Change c = new Change(new Change.Key("I1"), new Change.Id(1),
+        new Account.Id(1), new Branch.NameKey(new Project.NameKey("foo"),
+            "refs/heads/master"));
+    c.setSortKey("0001");
+    ChangeDocument doc = new ChangeDocument(c);
+    doc.put(ChangeField.MESSAGE, ChangeField.words(message));
+    index.replace(doc);
+
+    Predicate<ChangeData> p =
+        new MessagePredicate(null, null, text).getWordPredicate();
+    assertNotNull(p);
+    assertTrue(IndexPredicate.isIndexable(p));
+    boolean matches = index.matches(c.getId(), p);
+    assertEquals(matches ? 1 : 0, index.count(p));
+    return matches;
+  }
+
+  private static List<Change.Id> ids(int... ids) {
+    Change.Id[] r = new Change.Id[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      r[i] = new Change.Id(ids[i]);
+    }
+    return Arrays.asList(r);
+  }
+
+  private static Predicate<ChangeData> project(String name) {
+    return new TestPredicate(ChangeField.PROJECT, name, true);
+  }
+
+  private static Predicate<ChangeData> status(String name) {
+    return new TestPredicate(ChangeField.STATUS, name, true);
+  }
+
+  private static Predicate<ChangeData> inexact(String name) {
+    return new TestPredicate(ChangeField.PROJECT, name, false);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  private static class TestPredicate extends IndexPredicate {
+    private final boolean exact;
+
+    TestPredicate(ChangeField field, String value, boolean exact) {
+      super(field, field.getName(), value);
+      this.exact = exact;
+    }
+
+    @Override
+    public boolean isExact() {
+      return exact;
+    }
+
+    @Override
+    public boolean match(ChangeData cd) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getCost() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeString;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+
+import com.google.gerrit.reviewdb.client.Patch.ChangeType;
+import com.google.gerrit.reviewdb.client.Patch.PatchType;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.ReplaceEdit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class EditSerializationTest extends TestCase {
+  public void testEditsRoundTrip() throws IOException {
+    List<Edit> edits = Arrays.asList(
+        new Edit(0, 1, 0, 0),
+        new Edit(5, 5, 4, 9),
+        new Edit(10, 1000, 14, 20),
+        new Edit(2000, 2001, 30, 30));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EditSerialization.writeEdits(out, edits, edits.size());
+
+    // Relative positions keep small gaps in one byte each.
+    assertEquals(1 + 4 * 4 + 2, out.size());
+    Edit[] read = EditSerialization.readEdits(in(out));
+    assertEquals(edits, Arrays.asList(read));
+  }
+
+  public void testEmptyEdits() throws IOException {
+    List<Edit> edits = Arrays.asList();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EditSerialization.writeEdits(out, edits, 0);
+    assertEquals(0, EditSerialization.readEdits(in(out)).length);
+  }
+
+  public void testPathRoundTrip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EditSerialization.writePath(out, "src/main/A.java", null);
+    EditSerialization.writePath(out, "src/main/B.java", "src/main/A.java");
+    EditSerialization.writePath(out, "other", "src/main/B.java");
+    // Shares the high surrogate, which must not be split from its pair.
+    EditSerialization.writePath(out, "\uD83D\uDE00b", "\uD83D\uDE01a");
+
+    InputStream in = in(out);
+    assertEquals("src/main/A.java", EditSerialization.readPath(in, null));
+    assertEquals("src/main/B.java",
+        EditSerialization.readPath(in, "src/main/A.java"));
+    assertEquals("other", EditSerialization.readPath(in, "src/main/B.java"));
+    assertEquals("\uD83D\uDE00b",
+        EditSerialization.readPath(in, "\uD83D\uDE01a"));
+    assertEquals(-1, in.read());
+  }
+
+  public void testInvalidPathPrefix() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    EditSerialization.writePath(out, "abcdef", "abcxyz");
+    try {
+      EditSerialization.readPath(in(out), "ab");
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("Invalid path prefix 3", e.getMessage());
+    }
+  }
+
+  public void testPatchListEntryLegacyFormat() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEnum(out, ChangeType.RENAMED);
+    writeEnum(out, PatchType.UNIFIED);
+    writeString(out, "src/Old.java");
+    writeString(out, "src/New.java");
+    writeBytes(out, new byte[0]);
+    writeVarInt32(out, 3);
+    writeVarInt32(out, 1);
+    writeVarInt32(out, 2);
+    for (int v : new int[] {1, 2, 1, 3, 7, 7, 8, 10}) {
+      writeVarInt32(out, v);
+    }
+
+    PatchListEntry e = PatchListEntry.readFrom(in(out));
+    assertSame(ChangeType.RENAMED, e.getChangeType());
+    assertSame(PatchType.UNIFIED, e.getPatchType());
+    assertEquals("src/Old.java", e.getOldName());
+    assertEquals("src/New.java", e.getNewName());
+    assertEquals(3, e.getInsertions());
+    assertEquals(1, e.getDeletions());
+    assertEquals(Arrays.asList(new Edit(1, 2, 1, 3), new Edit(7, 7, 8, 10)),
+        e.getEdits());
+
+    // Reading the current format gives back the same entry.
+    out = new ByteArrayOutputStream();
+    e.writeTo(out, "src/Main.java");
+    PatchListEntry r = PatchListEntry.readFrom(in(out), "src/Main.java");
+    assertSame(e.getChangeType(), r.getChangeType());
+    assertSame(e.getPatchType(), r.getPatchType());
+    assertEquals(e.getOldName(), r.getOldName());
+    assertEquals(e.getNewName(), r.getNewName());
+    assertEquals(e.getInsertions(), r.getInsertions());
+    assertEquals(e.getDeletions(), r.getDeletions());
+    assertEquals(e.getEdits(), r.getEdits());
+  }
+
+  public void testIntraLineDiffRoundTrip() throws Exception {
+    List<Edit> inner = Arrays.asList(new Edit(0, 3, 0, 4));
+    IntraLineDiff d = new IntraLineDiff(Arrays.<Edit> asList(
+        new ReplaceEdit(2, 3, 2, 3, inner),
+        new Edit(9, 10, 9, 9)));
+
+    IntraLineDiff r = roundTrip(d);
+    assertSame(IntraLineDiff.Status.EDIT_LIST, r.getStatus());
+    assertEquals(d.getEdits(), r.getEdits());
+    assertTrue(r.getEdits().get(0) instanceof ReplaceEdit);
+    assertEquals(inner,
+        ((ReplaceEdit) r.getEdits().get(0)).getInternalEdits());
+    assertFalse(r.getEdits().get(1) instanceof ReplaceEdit);
+  }
+
+  public void testIntraLineDiffReasonRoundTrip() throws Exception {
+    IntraLineDiff r = roundTrip(
+        new IntraLineDiff(IntraLineDiff.Status.ERROR, "too slow"));
+    assertSame(IntraLineDiff.Status.ERROR, r.getStatus());
+    assertTrue(r.getEdits().isEmpty());
+    assertEquals("too slow", r.getReason());
+  }
+
+  private static IntraLineDiff roundTrip(IntraLineDiff d) throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(buf);
+    out.writeObject(d);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(buf.toByteArray()));
+    return (IntraLineDiff) in.readObject();
+  }
+
+  private static InputStream in(ByteArrayOutputStream out) {
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.Collections;
+import java.util.Random;
+
+public class IntraLineLoaderTest extends TestCase {
+  private WorkQueue workQueue;
+  private IntraLineLoader.Workers workers;
+  private IntraLineStats stats;
+  private IntraLineLoader loader;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final Config cfg = new Config();
+    cfg.setInt("cache", PatchListCacheImpl.INTRA_NAME, "workers", 1);
+    cfg.setString("cache", PatchListCacheImpl.INTRA_NAME, "timeout", "50 ms");
+    workQueue = Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Config.class).annotatedWith(GerritServerConfig.class)
+            .toInstance(cfg);
+      }
+    }).getInstance(WorkQueue.class);
+    workers = new IntraLineLoader.Workers(cfg, workQueue);
+    stats = new IntraLineStats();
+    loader = new IntraLineLoader(cfg, workers, stats);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    workers.executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testComputesEdits() throws Exception {
+    IntraLineDiff d = loader.load(key("a hello\n", "a world\n"));
+    assertSame(IntraLineDiff.Status.EDIT_LIST, d.getStatus());
+    assertEquals(1, d.getEdits().size());
+    assertEquals(1, stats.getComputed());
+  }
+
+  public void testTimeoutReturnsWorkerToPool() throws Exception {
+    IntraLineDiff slow = loader.load(key(random(1), random(2)));
+    assertSame(IntraLineDiff.Status.TIMEOUT, slow.getStatus());
+    assertEquals("50 ms timeout reached", slow.getReason());
+    assertEquals(1, stats.getTimedOut());
+
+    // The only worker was canceled inside the character difference, so it
+    // is free again well before the next timeout.
+    IntraLineDiff d = loader.load(key("a hello\n", "a world\n"));
+    assertSame(IntraLineDiff.Status.EDIT_LIST, d.getStatus());
+    assertEquals(0, stats.getCanceled());
+  }
+
+  public void testWorkersRunInWorkQueue() {
+    assertEquals("IntraLineDiff", workers.executor.getName());
+    assertTrue(workQueue.getQueues().contains(workers.executor));
+  }
+
+  private static IntraLineDiffKey key(String a, String b) {
+    Text ta = new Text(a.getBytes());
+    Text tb = new Text(b.getBytes());
+    Edit e = new Edit(0, ta.size(), 0, tb.size());
+    return new IntraLineDiffKey(ObjectId.zeroId(), ta, ObjectId.zeroId(), tb,
+        Collections.singletonList(e), new Project.NameKey("p"),
+        ObjectId.zeroId(), "f");
+  }
+
+  /** @return text of about 10000 characters with few common runs. */
+  private static String random(long seed) {
+    Random r = new Random(seed);
+    StringBuilder s = new StringBuilder();
+    for (int line = 0; line < 160; line++) {
+      for (int c = 0; c < 60; c++) {
+        s.append((char) ('a' + r.nextInt(4)));
+      }
+      s.append('\n');
+    }
+    return s.toString();
+  }
+}
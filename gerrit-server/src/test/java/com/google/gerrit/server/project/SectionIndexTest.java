@@ -0,0 +1,185 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import static com.google.gerrit.server.project.SectionMatcher.literalPrefix;
+
+import com.google.gerrit.common.data.AccessSection;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SectionIndexTest extends TestCase {
+  private static final String[] PATTERNS = {
+      "refs/*",
+      "refs/heads/*",
+      "refs/heads/master",
+      "refs/heads/master-next",
+      "refs/heads/master/*",
+      "refs/heads/mast",
+      "^refs/heads/rel-[0-9]+",
+      "^refs/heads/(master|stable)",
+      "^refs/heads/a|^refs/tags/b",
+      "^refs/tags/v?1\\..*",
+      "refs/heads/users/${username}/*",
+      "refs/heads/users/${username}",
+      "^refs/heads/u/${username}-[a-z]+",
+      "refs/tags/*",
+      "refs/heads/master",
+  };
+
+  private static final String[] REFS = {
+      "refs/heads/master",
+      "refs/heads/master-next",
+      "refs/heads/master/topic",
+      "refs/heads/mast",
+      "refs/heads/maste",
+      "refs/heads/rel-12",
+      "refs/heads/rel-x",
+      "refs/heads/stable",
+      "refs/heads/a",
+      "refs/tags/b",
+      "refs/tags/1.0",
+      "refs/tags/v1.0",
+      "refs/tags/v2.0",
+      "refs/heads/users/bob/x",
+      "refs/heads/users/bob",
+      "refs/heads/users/alice/x",
+      "refs/heads/u/bob-topic",
+      "refs/heads/u/j.doe-topic",
+      "refs/heads/u/jxdoe-topic",
+      "refs/meta/config",
+  };
+
+  private static final String[] USERS = {"bob", "j.doe", null};
+
+  public void testLiteralPrefix() {
+    assertEquals("refs/heads/", literalPrefix("^refs/heads/.*"));
+    assertEquals("refs/heads/rel-", literalPrefix("^refs/heads/rel-[0-9]+"));
+    assertEquals("refs/heads/", literalPrefix("^refs/heads/(a|b)"));
+    assertEquals("refs/heads/ab", literalPrefix("^refs/heads/ab+"));
+  }
+
+  public void testLiteralPrefixDropsOptionalCharacter() {
+    assertEquals("refs/tags/", literalPrefix("^refs/tags/v?1"));
+    assertEquals("refs/tags/", literalPrefix("^refs/tags/v*"));
+    assertEquals("refs/tags/v", literalPrefix("^refs/tags/vx{0,1}"));
+  }
+
+  public void testLiteralPrefixStopsAtEscape() {
+    assertEquals("refs/tags/v1", literalPrefix("^refs/tags/v1\\.0"));
+  }
+
+  public void testLiteralPrefixOfAlternatives() {
+    assertEquals("", literalPrefix("^refs/heads/a|^refs/tags/b"));
+    assertEquals("refs/", literalPrefix("^refs/(heads|tags)/x"));
+    assertEquals("", literalPrefix("^.*"));
+  }
+
+  public void testExactAndNamespace() {
+    SectionIndex index = index(PATTERNS);
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*", "refs/heads/master",
+        "^refs/heads/(master|stable)", "refs/heads/master"),
+        names(index.match("refs/heads/master", null)));
+  }
+
+  public void testLiteralRefsSharingPrefix() {
+    SectionIndex index = index(PATTERNS);
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "refs/heads/master-next"),
+        names(index.match("refs/heads/master-next", null)));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "refs/heads/master/*"),
+        names(index.match("refs/heads/master/topic", null)));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*", "refs/heads/mast"),
+        names(index.match("refs/heads/mast", null)));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*"),
+        names(index.match("refs/heads/maste", null)));
+  }
+
+  public void testRegexp() {
+    SectionIndex index = index(PATTERNS);
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "^refs/heads/rel-[0-9]+"),
+        names(index.match("refs/heads/rel-12", null)));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "^refs/heads/a|^refs/tags/b"),
+        names(index.match("refs/heads/a", null)));
+    assertEquals(Arrays.asList("refs/*", "^refs/heads/a|^refs/tags/b",
+        "refs/tags/*"),
+        names(index.match("refs/tags/b", null)));
+    assertEquals(Arrays.asList("refs/*", "^refs/tags/v?1\\..*",
+        "refs/tags/*"),
+        names(index.match("refs/tags/1.0", null)));
+  }
+
+  public void testUsername() {
+    SectionIndex index = index(PATTERNS);
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "refs/heads/users/${username}/*"),
+        names(index.match("refs/heads/users/bob/x", "bob")));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*"),
+        names(index.match("refs/heads/users/bob/x", "alice")));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*"),
+        names(index.match("refs/heads/users/bob/x", null)));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*",
+        "^refs/heads/u/${username}-[a-z]+"),
+        names(index.match("refs/heads/u/j.doe-topic", "j.doe")));
+    assertEquals(Arrays.asList("refs/*", "refs/heads/*"),
+        names(index.match("refs/heads/u/jxdoe-topic", "j.doe")));
+  }
+
+  public void testIsUserSpecific() {
+    SectionIndex index = index(PATTERNS);
+    assertTrue(index.isUserSpecific("refs/heads/users/bob/x"));
+    assertTrue(index.isUserSpecific("refs/heads/u/x"));
+    assertFalse(index.isUserSpecific("refs/heads/master"));
+    assertFalse(index.isUserSpecific("refs/tags/v1.0"));
+  }
+
+  public void testSameAsTestingEverySection() {
+    SectionIndex index = index(PATTERNS);
+    for (String ref : REFS) {
+      for (String user : USERS) {
+        List<SectionMatcher> expect = new ArrayList<SectionMatcher>();
+        for (SectionMatcher m : index.getAll()) {
+          if (m.match(ref, user)) {
+            expect.add(m);
+          }
+        }
+        assertEquals(ref + " for " + user, expect, index.match(ref, user));
+      }
+    }
+  }
+
+  private static SectionIndex index(String... patterns) {
+    List<SectionMatcher> sections = new ArrayList<SectionMatcher>();
+    for (String p : patterns) {
+      sections.add(SectionMatcher.wrap(new AccessSection(p)));
+    }
+    return new SectionIndex(sections);
+  }
+
+  private static List<String> names(List<SectionMatcher> sections) {
+    List<String> r = new ArrayList<String>(sections.size());
+    for (SectionMatcher m : sections) {
+      r.add(m.section.getName());
+    }
+    return r;
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.util.RequestScopePropagator;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Guice;
+import com.google.inject.Scopes;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ChangeDataLoaderTest extends TestCase {
+  private ThreadPoolExecutor executor;
+  private Map<Change.Id, Thread> loadedBy;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.MINUTES,
+        new LinkedBlockingQueue<Runnable>());
+    loadedBy = Maps.newConcurrentMap();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testSingleThreadLoadsInCaller() throws OrmException {
+    List<ChangeData> changes = changes(50);
+    loader(1).load(changes, record());
+
+    assertEquals(50, loadedBy.size());
+    for (Thread t : loadedBy.values()) {
+      assertSame(Thread.currentThread(), t);
+    }
+    assertEquals(0, executor.getTaskCount());
+  }
+
+  public void testSmallPageIsNotSplit() throws OrmException {
+    List<ChangeData> changes = changes(9);
+    loader(3).load(changes, record());
+
+    assertEquals(9, loadedBy.size());
+    for (Thread t : loadedBy.values()) {
+      assertSame(Thread.currentThread(), t);
+    }
+    assertEquals(0, executor.getTaskCount());
+  }
+
+  public void testPageIsSplitAcrossThreads() throws OrmException {
+    List<ChangeData> changes = changes(30);
+    final Map<Change.Id, Integer> count = Maps.newConcurrentMap();
+    loader(3).load(changes, new ChangeDataLoader.Step() {
+      @Override
+      public void load(ChangeData cd) {
+        loadedBy.put(cd.getId(), Thread.currentThread());
+        Integer n = count.get(cd.getId());
+        count.put(cd.getId(), n != null ? n + 1 : 1);
+      }
+    });
+
+    assertEquals(30, count.size());
+    for (Integer n : count.values()) {
+      assertEquals(1, n.intValue());
+    }
+    assertEquals(2, executor.getTaskCount());
+    for (int i = 0; i < 30; i++) {
+      Thread t = loadedBy.get(changes.get(i).getId());
+      if (i < 10) {
+        assertSame("caller loads the first part", Thread.currentThread(), t);
+      } else {
+        assertNotSame(Thread.currentThread(), t);
+      }
+    }
+  }
+
+  public void testRejectedPartsLoadInCaller() throws OrmException {
+    executor.shutdown();
+    List<ChangeData> changes = changes(30);
+    loader(3).load(changes, record());
+
+    assertEquals(30, loadedBy.size());
+    for (Thread t : loadedBy.values()) {
+      assertSame(Thread.currentThread(), t);
+    }
+  }
+
+  public void testErrorOfOtherThreadIsThrown() {
+    final List<ChangeData> changes = changes(30);
+    try {
+      loader(3).load(changes, new ChangeDataLoader.Step() {
+        @Override
+        public void load(ChangeData cd) throws OrmException {
+          if (cd == changes.get(25)) {
+            throw new OrmException("cannot load " + cd.getId());
+          }
+        }
+      });
+      fail("expected OrmException");
+    } catch (OrmException e) {
+      assertEquals("cannot load " + changes.get(25).getId(), e.getMessage());
+    }
+  }
+
+  public void testPageSize() {
+    assertEquals(100, loader(1).getPageSize());
+
+    Config cfg = new Config();
+    cfg.setInt("query", null, "pageSize", 0);
+    assertEquals(1,
+        new ChangeDataLoader(executor, propagator(), cfg).getPageSize());
+  }
+
+  private ChangeDataLoader loader(int threads) {
+    Config cfg = new Config();
+    cfg.setInt("query", null, "threads", threads);
+    return new ChangeDataLoader(executor, propagator(), cfg);
+  }
+
+  private ChangeDataLoader.Step record() {
+    return new ChangeDataLoader.Step() {
+      @Override
+      public void load(ChangeData cd) {
+        loadedBy.put(cd.getId(), Thread.currentThread());
+      }
+    };
+  }
+
+  private static List<ChangeData> changes(int n) {
+    List<ChangeData> r = Lists.newArrayListWithCapacity(n);
+    for (int i = 1; i <= n; i++) {
+      r.add(new ChangeData(new Change.Id(i)));
+    }
+    return r;
+  }
+
+  private static RequestScopePropagator propagator() {
+    ThreadLocalRequestContext local =
+        Guice.createInjector().getInstance(ThreadLocalRequestContext.class);
+    return new RequestScopePropagator(Scopes.NO_SCOPE, local) {
+      @Override
+      protected <T> Callable<T> wrapImpl(Callable<T> callable) {
+        return callable;
+      }
+    };
+  }
+}
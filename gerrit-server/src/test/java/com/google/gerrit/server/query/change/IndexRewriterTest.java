@@ -0,0 +1,219 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.index.ChangeDocument;
+import com.google.gerrit.server.index.ChangeField;
+import com.google.gerrit.server.index.ChangeIndex;
+import com.google.gerrit.server.index.IndexPredicate;
+import com.google.gerrit.server.query.IntPredicate;
+import com.google.gerrit.server.query.OperatorPredicate;
+import com.google.gerrit.server.query.Predicate;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+public class IndexRewriterTest extends TestCase {
+  private TestIndex index;
+  private IndexRewriter rewriter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    index = new TestIndex();
+    rewriter = new IndexRewriter(index, null);
+  }
+
+  public void testIndexNotReady() {
+    index.ready = false;
+    Predicate<ChangeData> q = Predicate.and(project("foo"), starred());
+    assertSame(q, rewriter.rewrite(q));
+  }
+
+  public void testNothingIndexable() {
+    Predicate<ChangeData> q = Predicate.and(starred(), starred());
+    assertSame(q, rewriter.rewrite(q));
+  }
+
+  public void testExactTermsMoveIntoSource() {
+    Predicate<ChangeData> foo = project("foo");
+    Predicate<ChangeData> open = status("new");
+    Predicate<ChangeData> starred = starred();
+    Predicate<ChangeData> r =
+        rewriter.rewrite(Predicate.and(foo, starred, open));
+
+    assertEquals(2, r.getChildCount());
+    assertSame(starred, r.getChild(0));
+    assertEquals("index(" + Predicate.and(foo, open) + ")",
+        source(r).toString());
+  }
+
+  public void testInexactTermsStayInQuery() {
+    Predicate<ChangeData> foo = project("foo");
+    Predicate<ChangeData> label = label("Code-Review=2");
+    Predicate<ChangeData> r = rewriter.rewrite(Predicate.and(foo, label));
+
+    assertEquals(2, r.getChildCount());
+    assertSame(label, r.getChild(0));
+    assertEquals("index(" + Predicate.and(foo, label) + ")",
+        source(r).toString());
+  }
+
+  public void testNegatedInexactTermIsNotIndexed() {
+    Predicate<ChangeData> foo = project("foo");
+    Predicate<ChangeData> notLabel = Predicate.not(label("Code-Review=2"));
+    Predicate<ChangeData> r = rewriter.rewrite(Predicate.and(foo, notLabel));
+
+    assertEquals(2, r.getChildCount());
+    assertSame(notLabel, r.getChild(0));
+    assertEquals("index(" + foo + ")", source(r).toString());
+
+    Predicate<ChangeData> q = Predicate.and(notLabel, starred());
+    assertSame(q, rewriter.rewrite(q));
+  }
+
+  public void testNegatedExactTermIsIndexed() {
+    Predicate<ChangeData> notFoo = Predicate.not(project("foo"));
+    Predicate<ChangeData> starred = starred();
+    Predicate<ChangeData> r = rewriter.rewrite(Predicate.and(notFoo, starred));
+
+    assertEquals(2, r.getChildCount());
+    assertSame(starred, r.getChild(0));
+    assertEquals("index(" + notFoo + ")", source(r).toString());
+  }
+
+  public void testSortKeyAndLimitAreKept() {
+    Predicate<ChangeData> before = new SortKeyPredicate.Before(null, "0042");
+    Predicate<ChangeData> limit = limit(5);
+    Predicate<ChangeData> r =
+        rewriter.rewrite(Predicate.and(project("foo"), before, limit));
+
+    assertEquals(3, r.getChildCount());
+    assertSame(before, r.getChild(0));
+    assertSame(limit, r.getChild(1));
+    assertEquals(5, source(r).limit());
+  }
+
+  private static IndexedChangeSource source(Predicate<ChangeData> r) {
+    Predicate<ChangeData> last = r.getChild(r.getChildCount() - 1);
+    assertTrue(last instanceof IndexedChangeSource);
+    return (IndexedChangeSource) last;
+  }
+
+  private static Predicate<ChangeData> project(String name) {
+    return new ProjectPredicate(null, name);
+  }
+
+  private static Predicate<ChangeData> status(String name) {
+    return new ChangeStatusPredicate(null, name);
+  }
+
+  private static Predicate<ChangeData> label(String value) {
+    return new IndexPredicate(ChangeField.LABEL, "label", value) {
+      @Override
+      public boolean isExact() {
+        return false;
+      }
+
+      @Override
+      public boolean match(ChangeData cd) {
+        return true;
+      }
+
+      @Override
+      public int getCost() {
+        return 1;
+      }
+    };
+  }
+
+  private static Predicate<ChangeData> starred() {
+    return new OperatorPredicate<ChangeData>("is", "starred") {
+      @Override
+      public boolean match(ChangeData cd) {
+        return true;
+      }
+
+      @Override
+      public int getCost() {
+        return 0;
+      }
+    };
+  }
+
+  private static Predicate<ChangeData> limit(int n) {
+    return new IntPredicate<ChangeData>(ChangeQueryBuilder.FIELD_LIMIT, n) {
+      @Override
+      public boolean match(ChangeData cd) {
+        return true;
+      }
+
+      @Override
+      public int getCost() {
+        return 0;
+      }
+    };
+  }
+
+  private static class TestIndex implements ChangeIndex {
+    boolean ready = true;
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public String getIndexedThrough() {
+      return "";
+    }
+
+    @Override
+    public void setIndexedThrough(String sortKey, boolean ready) {
+    }
+
+    @Override
+    public boolean isCurrent(Change.Id id, long lastUpdated) {
+      return false;
+    }
+
+    @Override
+    public boolean matches(Change.Id id, Predicate<ChangeData> p) {
+      return false;
+    }
+
+    @Override
+    public void replace(ChangeDocument doc) {
+    }
+
+    @Override
+    public void delete(Change.Id id) {
+    }
+
+    @Override
+    public int count(Predicate<ChangeData> p) {
+      return 0;
+    }
+
+    @Override
+    public List<Change.Id> query(Predicate<ChangeData> p, String before,
+        String after, int limit) {
+      return Collections.emptyList();
+    }
+  }
+}
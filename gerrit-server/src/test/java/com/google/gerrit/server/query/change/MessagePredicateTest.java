@@ -0,0 +1,36 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.gerrit.server.query.Predicate;
+
+import junit.framework.TestCase;
+
+public class MessagePredicateTest extends TestCase {
+  public void testRegularExpressionIsNotIndexed() {
+    assertNull(words("fix.*crash"));
+    assertNull(words("colou?r"));
+    assertNull(words("^Revert"));
+    assertNull(words("café"));
+  }
+
+  public void testPunctuationOnlyIsNotIndexed() {
+    assertNull(words(" - "));
+  }
+
+  private static Predicate<ChangeData> words(String text) {
+    return new MessagePredicate(null, null, text).getWordPredicate();
+  }
+}
@@ -69,6 +69,23 @@ public class RegexFilePredicateTest extends TestCase {
     assertFalse(p.match(change("bar.c")));
   }
 
+  public void testIndexTerms() {
+    assertEquals("a/b/c.txt", predicate("^a/b/c\\.txt").getTerm());
+    assertNull(predicate("^a/b/.*").getTerm());
+    assertEquals("a/b/", predicate("^a/b/.*").getTermPrefix());
+
+    RegexFilePredicate p = predicate("^a/.*\\.[ch]");
+    assertTrue(p.matchesTerm("a/b/source.c"));
+    assertFalse(p.matchesTerm("a/b/source.res"));
+  }
+
+  public void testDeadPrefixSkipsRejectedPaths() {
+    RegexFilePredicate p = predicate("^src/(main|test)/.*\\.java");
+    assertEquals(5, p.getDeadPrefixLength("src/site/index.html"));
+    assertEquals(-1, p.getDeadPrefixLength("src/main/Foo.c"));
+    assertEquals(-1, predicate("^src/.*").getDeadPrefixLength("src/a"));
+  }
+
   private static RegexFilePredicate predicate(String pattern) {
     return new RegexFilePredicate(null, null, pattern);
   }
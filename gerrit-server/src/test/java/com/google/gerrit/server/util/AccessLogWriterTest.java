@@ -0,0 +1,171 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.util;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AccessLogWriterTest extends TestCase {
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private File dir;
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = File.createTempFile("access_log", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    file = new File(dir, "test_log");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+    super.tearDown();
+  }
+
+  public void testWrapsAround() throws Exception {
+    AccessLogWriter w = new AccessLogWriter(file, new Plain(), 4);
+    long now = System.currentTimeMillis();
+    List<String> expect = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      String v = "entry " + i;
+      while (!w.append(now, v)) {
+        Thread.yield();
+      }
+      expect.add(v);
+    }
+    w.close();
+    assertEquals(expect, read(file));
+  }
+
+  public void testDropsWhenFull() throws Exception {
+    Blocking layout = new Blocking();
+    AccessLogWriter w = new AccessLogWriter(file, layout, 4);
+    long now = System.currentTimeMillis();
+
+    assertTrue(w.append(now, "a"));
+    layout.formatting.await();
+
+    // The writer is stuck on "a", which still holds its slot.
+    assertTrue(w.append(now, "b"));
+    assertTrue(w.append(now, "c"));
+    assertTrue(w.append(now, "d"));
+    assertFalse(w.append(now, "e"));
+    assertFalse(w.append(now, "f"));
+    assertEquals(2, w.getDroppedCount());
+
+    layout.release.countDown();
+    w.close();
+    assertEquals(Arrays.asList("a", "b", "c", "d"), read(file));
+  }
+
+  public void testCloseDrainsEntries() throws Exception {
+    Blocking layout = new Blocking();
+    final AccessLogWriter w = new AccessLogWriter(file, layout, 16);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(w.append(now, "entry " + i));
+    }
+    layout.formatting.await();
+
+    // Close while the writer is still busy with the first entry.
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        w.close();
+      }
+    };
+    t.start();
+    while (AccessLogWriter.getOpenWriters().contains(w)) {
+      Thread.yield();
+    }
+    assertFalse(w.append(now, "late"));
+    layout.release.countDown();
+    t.join();
+
+    assertEquals(10, read(file).size());
+  }
+
+  public void testRollsOverDaily() throws Exception {
+    long now = System.currentTimeMillis();
+    AccessLogWriter w = new AccessLogWriter(file, new Plain(), 16);
+    assertTrue(AccessLogWriter.getOpenWriters().contains(w));
+    assertTrue(w.append(now, "today"));
+    assertTrue(w.append(now + DAY, "tomorrow"));
+    w.close();
+
+    String period = new SimpleDateFormat("yyyy-MM-dd").format(new Date(now));
+    File old = new File(dir, file.getName() + "." + period);
+    assertEquals(Arrays.asList("today"), read(old));
+    assertEquals(Arrays.asList("tomorrow"), read(file));
+  }
+
+  private static List<String> read(File f) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader r = new BufferedReader(
+        new InputStreamReader(new FileInputStream(f), "UTF-8"));
+    try {
+      String line;
+      while ((line = r.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      r.close();
+    }
+    return lines;
+  }
+
+  private static class Plain implements AccessLogWriter.Layout {
+    @Override
+    public void format(long when, String[] fields, StringBuilder buf) {
+      buf.append(fields[0]).append('\n');
+    }
+  }
+
+  /** Holds the writer in its first entry until released. */
+  private static class Blocking extends Plain {
+    final CountDownLatch formatting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void format(long when, String[] fields, StringBuilder buf) {
+      formatting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      super.format(when, fields, buf);
+    }
+  }
+}
@@ -22,20 +22,13 @@ import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.PeerDaemonUser;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.util.AccessLogWriter;
 import com.google.gerrit.server.util.IdGenerator;
 import com.google.gerrit.sshd.SshScope.Context;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
-import org.apache.log4j.Appender;
-import org.apache.log4j.AsyncAppender;
-import org.apache.log4j.DailyRollingFileAppender;
-import org.apache.log4j.Layout;
-import org.apache.log4j.Level;
-import org.apache.log4j.Logger;
-import org.apache.log4j.spi.ErrorHandler;
-import org.apache.log4j.spi.LoggingEvent;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.util.QuotedString;
 
@@ -49,18 +42,21 @@ import java.util.TimeZone;
 
 @Singleton
 class SshLog implements LifecycleListener {
-  private static final Logger log = Logger.getLogger(SshLog.class);
   private static final String LOG_NAME = "sshd_log";
-  private static final String P_SESSION = "session";
-  private static final String P_USER_NAME = "userName";
-  private static final String P_ACCOUNT_ID = "accountId";
-  private static final String P_WAIT = "queueWaitTime";
-  private static final String P_EXEC = "executionTime";
-  private static final String P_STATUS = "status";
+
+  // Positions of the values in an entry.
+  private static final int P_SESSION = 0;
+  private static final int P_USER_NAME = 1;
+  private static final int P_ACCOUNT_ID = 2;
+  private static final int P_MESSAGE = 3;
+  private static final int P_WAIT = 4;
+  private static final int P_EXEC = 5;
+  private static final int P_STATUS = 6;
+  private static final int FIELDS = 7;
 
   private final Provider<SshSession> session;
   private final Provider<Context> context;
-  private final AsyncAppender async;
+  private final AccessLogWriter writer;
   private final AuditService auditService;
 
   @Inject
@@ -70,24 +66,10 @@ class SshLog implements LifecycleListener {
     this.context = context;
     this.auditService = auditService;
 
-    final DailyRollingFileAppender dst = new DailyRollingFileAppender();
-    dst.setName(LOG_NAME);
-    dst.setLayout(new MyLayout());
-    dst.setEncoding("UTF-8");
-    dst.setFile(new File(resolve(site.logs_dir), LOG_NAME).getPath());
-    dst.setImmediateFlush(true);
-    dst.setAppend(true);
-    dst.setThreshold(Level.INFO);
-    dst.setErrorHandler(new DieErrorHandler());
-    dst.activateOptions();
-    dst.setErrorHandler(new LogLogHandler());
-
-    async = new AsyncAppender();
-    async.setBlocking(true);
-    async.setBufferSize(config.getInt("core", "asyncLoggingBufferSize", 64));
-    async.setLocationInfo(false);
-    async.addAppender(dst);
-    async.activateOptions();
+    writer = new AccessLogWriter(
+        new File(resolve(site.logs_dir), LOG_NAME),
+        new MyLayout(),
+        config.getInt("core", "asyncLoggingBufferSize", 8192));
   }
 
   @Override
@@ -96,37 +78,22 @@ class SshLog implements LifecycleListener {
 
   @Override
   public void stop() {
-    async.close();
+    writer.close();
   }
 
   void onLogin() {
-    async.append(log("LOGIN FROM " + session.get().getRemoteAddressAsString()));
+    append(log("LOGIN FROM " + session.get().getRemoteAddressAsString()));
     audit("0", "LOGIN", new String[] {});
   }
 
   void onAuthFail(final SshSession sd) {
-    final LoggingEvent event = new LoggingEvent( //
-        Logger.class.getName(), // fqnOfCategoryClass
-        log, // logger
-        System.currentTimeMillis(), // when
-        Level.INFO, // level
-        "AUTH FAILURE FROM " + sd.getRemoteAddressAsString(), // message text
-        "SSHD", // thread name
-        null, // exception information
-        null, // current NDC string
-        null, // caller location
-        null // MDC properties
-        );
-
-    event.setProperty(P_SESSION, id(sd.getSessionId()));
-    event.setProperty(P_USER_NAME, sd.getUsername());
-
-    final String error = sd.getAuthenticationError();
-    if (error != null) {
-      event.setProperty(P_STATUS, error);
-    }
+    final String[] event = new String[FIELDS];
+    event[P_MESSAGE] = "AUTH FAILURE FROM " + sd.getRemoteAddressAsString();
+    event[P_SESSION] = id(sd.getSessionId());
+    event[P_USER_NAME] = sd.getUsername();
+    event[P_STATUS] = sd.getAuthenticationError();
 
-    async.append(event);
+    append(event);
     audit("FAIL", "AUTH", new String[] {sd.getRemoteAddressAsString()});
   }
 
@@ -140,9 +107,9 @@ class SshLog implements LifecycleListener {
       cmd = "'" + commandLine + "'";
     }
 
-    final LoggingEvent event = log(cmd);
-    event.setProperty(P_WAIT, (ctx.started - ctx.created) + "ms");
-    event.setProperty(P_EXEC, (ctx.finished - ctx.started) + "ms");
+    final String[] event = log(cmd);
+    event[P_WAIT] = (ctx.started - ctx.created) + "ms";
+    event[P_EXEC] = (ctx.finished - ctx.started) + "ms";
 
     final String status;
     switch (exitValue) {
@@ -162,9 +129,9 @@ class SshLog implements LifecycleListener {
         status = String.valueOf(exitValue);
         break;
     }
-    event.setProperty(P_STATUS, status);
+    event[P_STATUS] = status;
 
-    async.append(event);
+    append(event);
     audit(status, getCommand(commandLine), CommandFactoryProvider.split(commandLine));
   }
 
@@ -175,28 +142,21 @@ class SshLog implements LifecycleListener {
   }
 
   void onLogout() {
-    async.append(log("LOGOUT"));
+    append(log("LOGOUT"));
     audit("0", "LOGOUT", new String[] {});
   }
 
-  private LoggingEvent log(final String msg) {
+  private void append(String[] event) {
+    writer.append(System.currentTimeMillis(), event);
+  }
+
+  private String[] log(final String msg) {
     final SshSession sd = session.get();
     final CurrentUser user = sd.getCurrentUser();
 
-    final LoggingEvent event = new LoggingEvent( //
-        Logger.class.getName(), // fqnOfCategoryClass
-        log, // logger
-        System.currentTimeMillis(), // when
-        Level.INFO, // level
-        msg, // message text
-        "SSHD", // thread name
-        null, // exception information
-        null, // current NDC string
-        null, // caller location
-        null // MDC properties
-        );
-
-    event.setProperty(P_SESSION, id(sd.getSessionId()));
+    final String[] event = new String[FIELDS];
+    event[P_MESSAGE] = msg;
+    event[P_SESSION] = id(sd.getSessionId());
 
     String userName = "-", accountId = "-";
 
@@ -209,8 +169,8 @@ class SshLog implements LifecycleListener {
       userName = PeerDaemonUser.USER_NAME;
     }
 
-    event.setProperty(P_USER_NAME, userName);
-    event.setProperty(P_ACCOUNT_ID, accountId);
+    event[P_USER_NAME] = userName;
+    event[P_ACCOUNT_ID] = accountId;
 
     return event;
   }
@@ -227,7 +187,8 @@ class SshLog implements LifecycleListener {
     }
   }
 
-  private static final class MyLayout extends Layout {
+  /** Formats entries; only used by the writer thread, so needs no locking. */
+  private static final class MyLayout implements AccessLogWriter.Layout {
     private final Calendar calendar;
     private long lastTimeMillis;
     private final char[] lastTimeString = new char[20];
@@ -243,11 +204,9 @@ class SshLog implements LifecycleListener {
     }
 
     @Override
-    public String format(LoggingEvent event) {
-      final StringBuffer buf = new StringBuffer(128);
-
+    public void format(long when, String[] event, StringBuilder buf) {
       buf.append('[');
-      formatDate(event.getTimeStamp(), buf);
+      formatDate(when, buf);
       buf.append(' ');
       buf.append(timeZone);
       buf.append(']');
@@ -257,51 +216,48 @@ class SshLog implements LifecycleListener {
       req(P_ACCOUNT_ID, buf, event);
 
       buf.append(' ');
-      buf.append(event.getMessage());
+      buf.append(event[P_MESSAGE]);
 
       opt(P_WAIT, buf, event);
       opt(P_EXEC, buf, event);
       opt(P_STATUS, buf, event);
 
       buf.append('\n');
-      return buf.toString();
     }
 
-    private void formatDate(final long now, final StringBuffer sbuf) {
+    private void formatDate(final long now, final StringBuilder sbuf) {
       final int millis = (int) (now % 1000);
       final long rounded = now - millis;
       if (rounded != lastTimeMillis) {
-        synchronized (calendar) {
-          final int start = sbuf.length();
-
-          calendar.setTimeInMillis(rounded);
-          sbuf.append(calendar.get(Calendar.YEAR));
-          sbuf.append('-');
-          final int month = calendar.get(Calendar.MONTH) + 1;
-          if (month < 10) sbuf.append('0');
-          sbuf.append(month);
-          sbuf.append('-');
-          final int day = calendar.get(Calendar.DAY_OF_MONTH);
-          if (day < 10) sbuf.append('0');
-          sbuf.append(day);
-
-          sbuf.append(' ');
-          final int hour = calendar.get(Calendar.HOUR_OF_DAY);
-          if (hour < 10) sbuf.append('0');
-          sbuf.append(hour);
-          sbuf.append(':');
-          final int mins = calendar.get(Calendar.MINUTE);
-          if (mins < 10) sbuf.append('0');
-          sbuf.append(mins);
-          sbuf.append(':');
-          final int secs = calendar.get(Calendar.SECOND);
-          if (secs < 10) sbuf.append('0');
-          sbuf.append(secs);
-
-          sbuf.append(',');
-          sbuf.getChars(start, sbuf.length(), lastTimeString, 0);
-          lastTimeMillis = rounded;
-        }
+        final int start = sbuf.length();
+
+        calendar.setTimeInMillis(rounded);
+        sbuf.append(calendar.get(Calendar.YEAR));
+        sbuf.append('-');
+        final int month = calendar.get(Calendar.MONTH) + 1;
+        if (month < 10) sbuf.append('0');
+        sbuf.append(month);
+        sbuf.append('-');
+        final int day = calendar.get(Calendar.DAY_OF_MONTH);
+        if (day < 10) sbuf.append('0');
+        sbuf.append(day);
+
+        sbuf.append(' ');
+        final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        if (hour < 10) sbuf.append('0');
+        sbuf.append(hour);
+        sbuf.append(':');
+        final int mins = calendar.get(Calendar.MINUTE);
+        if (mins < 10) sbuf.append('0');
+        sbuf.append(mins);
+        sbuf.append(':');
+        final int secs = calendar.get(Calendar.SECOND);
+        if (secs < 10) sbuf.append('0');
+        sbuf.append(secs);
+
+        sbuf.append(',');
+        sbuf.getChars(start, sbuf.length(), lastTimeString, 0);
+        lastTimeMillis = rounded;
       } else {
         sbuf.append(lastTimeString);
       }
@@ -314,13 +270,12 @@ class SshLog implements LifecycleListener {
       sbuf.append(millis);
     }
 
-    private void req(String key, StringBuffer buf, LoggingEvent event) {
-      Object val = event.getMDC(key);
+    private void req(int key, StringBuilder buf, String[] event) {
+      String val = event[key];
       buf.append(' ');
       if (val != null) {
-        String s = val.toString();
-        if (0 <= s.indexOf(' ')) {
-          buf.append(QuotedString.BOURNE.quote(s));
+        if (0 <= val.indexOf(' ')) {
+          buf.append(QuotedString.BOURNE.quote(val));
         } else {
           buf.append(val);
         }
@@ -329,90 +284,13 @@ class SshLog implements LifecycleListener {
       }
     }
 
-    private void opt(String key, StringBuffer buf, LoggingEvent event) {
-      Object val = event.getMDC(key);
+    private void opt(int key, StringBuilder buf, String[] event) {
+      String val = event[key];
       if (val != null) {
         buf.append(' ');
         buf.append(val);
       }
     }
-
-    @Override
-    public boolean ignoresThrowable() {
-      return true;
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-  }
-
-  private static final class DieErrorHandler implements ErrorHandler {
-    @Override
-    public void error(String message, Exception e, int errorCode,
-        LoggingEvent event) {
-      error(e != null ? e.getMessage() : message);
-    }
-
-    @Override
-    public void error(String message, Exception e, int errorCode) {
-      error(e != null ? e.getMessage() : message);
-    }
-
-    @Override
-    public void error(String message) {
-      throw new RuntimeException("Cannot open log file: " + message);
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-
-    @Override
-    public void setAppender(Appender appender) {
-    }
-
-    @Override
-    public void setBackupAppender(Appender appender) {
-    }
-
-    @Override
-    public void setLogger(Logger logger) {
-    }
-  }
-
-  private static final class LogLogHandler implements ErrorHandler {
-    @Override
-    public void error(String message, Exception e, int errorCode,
-        LoggingEvent event) {
-      log.error(message, e);
-    }
-
-    @Override
-    public void error(String message, Exception e, int errorCode) {
-      log.error(message, e);
-    }
-
-    @Override
-    public void error(String message) {
-      log.error(message);
-    }
-
-    @Override
-    public void activateOptions() {
-    }
-
-    @Override
-    public void setAppender(Appender appender) {
-    }
-
-    @Override
-    public void setBackupAppender(Appender appender) {
-    }
-
-    @Override
-    public void setLogger(Logger logger) {
-    }
   }
 
   void audit(Object result, String commandName, String[] args) {
@@ -70,6 +70,11 @@ class Query extends SshCommand {
     processor.setIncludeDependencies(on);
   }
 
+  @Option(name = "--explain", usage = "Describe how the query was answered")
+  void setExplain(boolean on) {
+    processor.setExplain(on);
+  }
+
   @Argument(index = 0, required = true, multiValued = true, metaVar = "QUERY", usage = "Query to execute")
   private List<String> query;
 
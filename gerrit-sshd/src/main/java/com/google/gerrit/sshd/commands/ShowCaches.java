@@ -25,6 +25,8 @@ import com.google.gerrit.server.cache.h2.H2CacheImpl;
 import com.google.gerrit.server.config.SitePath;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.Task;
+import com.google.gerrit.server.patch.IntraLineStats;
+import com.google.gerrit.server.util.AccessLogWriter;
 import com.google.gerrit.sshd.SshDaemon;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -76,6 +78,9 @@ final class ShowCaches extends CacheCommand {
   @Inject
   private SshDaemon daemon;
 
+  @Inject
+  private IntraLineStats intraLineStats;
+
   @Inject
   @SitePath
   private File sitePath;
@@ -164,6 +169,8 @@ final class ShowCaches extends CacheCommand {
 
     sshSummary();
     taskSummary();
+    intraLineSummary();
+    logSummary();
     memSummary();
 
     if (showJVM) {
@@ -260,6 +267,32 @@ final class ShowCaches extends CacheCommand {
         tasksSleeping);
   }
 
+  private void intraLineSummary() {
+    IntraLineStats s = intraLineStats;
+    stdout.format(
+        "Intraline: %4d computed, %4d timed out, %4d canceled,"
+            + " %4d too large, %s cpu\n",
+        s.getComputed(),
+        s.getTimedOut(),
+        s.getCanceled(),
+        s.getTooLarge(),
+        uptime(s.getCpuTimeMillis()));
+  }
+
+  private void logSummary() {
+    StringBuilder b = new StringBuilder();
+    for (AccessLogWriter w : AccessLogWriter.getOpenWriters()) {
+      if (0 < b.length()) {
+        b.append(", ");
+      }
+      b.append(String.format("%4d dropped from %s",
+          w.getDroppedCount(), w.getName()));
+    }
+    if (0 < b.length()) {
+      stdout.format("Logs:  %s\n", b);
+    }
+  }
+
   private void sshSummary() {
     IoAcceptor acceptor = daemon.getIoAcceptor();
     if (acceptor == null) {
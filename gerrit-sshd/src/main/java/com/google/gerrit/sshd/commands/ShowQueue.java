@@ -14,8 +14,10 @@
 
 package com.google.gerrit.sshd.commands;
 
+import com.google.gerrit.reviewdb.client.Branch;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.git.ChangeMergeQueue;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.ProjectTask;
 import com.google.gerrit.server.git.WorkQueue.Task;
@@ -35,6 +37,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /** Display the current work queue. */
@@ -43,9 +47,15 @@ final class ShowQueue extends SshCommand {
   @Option(name = "-w", usage = "display without line width truncation")
   private boolean wide;
 
+  @Option(name = "--queues", aliases = {"-q"}, usage = "display statistics of each queue")
+  private boolean showQueues;
+
   @Inject
   private WorkQueue workQueue;
 
+  @Inject
+  private ChangeMergeQueue mergeQueue;
+
   @Inject
   private ProjectCache projectCache;
 
@@ -69,7 +79,15 @@ final class ShowQueue extends SshCommand {
   }
 
   @Override
-  protected void run() {
+  protected void run() throws UnloggedFailure {
+    if (showQueues) {
+      if (!currentUser.getCapabilities().canViewQueue()) {
+        throw new UnloggedFailure(1, "fatal: Not permitted to view queue statistics");
+      }
+      showQueues();
+      return;
+    }
+
     final List<Task<?>> pending = workQueue.getTasks();
     Collections.sort(pending, new Comparator<Task<?>>() {
       public int compare(Task<?> a, Task<?> b) {
@@ -172,6 +190,61 @@ final class ShowQueue extends SshCommand {
     stdout.print("  " + numberOfPendingTasks + " tasks\n");
   }
 
+  private void showQueues() {
+    stdout.print(String.format("%-24s %7s %7s %7s %9s %8s %15s %15s\n", //
+        "Queue", "Threads", "Depth", "Max", "Limit", "Rejected",
+        "Wait ms 50/99%", "Run ms 50/99%"));
+    stdout.print("----------------------------------------------"
+        + "------------------------------------------------------\n");
+    for (WorkQueue.Executor q : workQueue.getQueues()) {
+      String limit = 0 < q.getMaxDepth()
+          ? String.valueOf(q.getMaxDepth())
+          : "-";
+      stdout.print(String.format("%-24s %7d %7d %7d %9s %8d %15s %15s\n", //
+          q.getName(),
+          q.getPoolSize(),
+          q.getDepth(),
+          q.getHighWaterMark(),
+          limit,
+          q.getRejectedCount(),
+          percentiles(q.getWaitTime()),
+          percentiles(q.getRunTime())));
+    }
+    stdout.print("----------------------------------------------"
+        + "------------------------------------------------------\n");
+
+    Map<String, ChangeMergeQueue.BranchStats> merges =
+        new TreeMap<String, ChangeMergeQueue.BranchStats>();
+    for (Map.Entry<Branch.NameKey, ChangeMergeQueue.BranchStats> e
+        : mergeQueue.getBranchStats().entrySet()) {
+      Branch.NameKey b = e.getKey();
+      merges.put(b.getParentKey().get() + " " + b.getShortName(), e.getValue());
+    }
+    if (merges.isEmpty()) {
+      return;
+    }
+
+    stdout.print("\n");
+    stdout.print(String.format("%-52s %8s %15s %15s\n", //
+        "Merged branch", "Merges", "Wait ms 50/99%", "Merge ms 50/99%"));
+    stdout.print("----------------------------------------------"
+        + "------------------------------------------------------\n");
+    for (Map.Entry<String, ChangeMergeQueue.BranchStats> e
+        : merges.entrySet()) {
+      stdout.print(String.format("%-52s %8d %15s %15s\n", //
+          e.getKey(),
+          e.getValue().getMergeTime().getCount(),
+          percentiles(e.getValue().getWaitTime()),
+          percentiles(e.getValue().getMergeTime())));
+    }
+    stdout.print("----------------------------------------------"
+        + "------------------------------------------------------\n");
+  }
+
+  private static String percentiles(WorkQueue.Histogram h) {
+    return h.getPercentile(50) + "/" + h.getPercentile(99);
+  }
+
   private static String id(final int id) {
     return IdGenerator.format(id);
   }
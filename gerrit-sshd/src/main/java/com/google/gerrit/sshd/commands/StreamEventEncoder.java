@@ -0,0 +1,128 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import com.google.inject.Singleton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes events for {@link StreamEvents}.
+ * <p>
+ * The same event object is handed to every connection allowed to see it, so
+ * its encodings are kept while the event is referenced and shared by all
+ * connections, instead of being computed again for each of them.
+ */
+@Singleton
+class StreamEventEncoder {
+  /** Frame flag of an event encoded as JSON. */
+  static final int FLAG_JSON = 0;
+
+  /** Frame flag of an event encoded as JSON and compressed with deflate. */
+  static final int FLAG_DEFLATED_JSON = 1;
+
+  private final Gson gson = new Gson();
+
+  // Weak keys compare events by identity, and drop the encodings once no
+  // connection still needs to write the event.
+  private final Cache<Object, byte[]> json =
+      CacheBuilder.newBuilder().weakKeys().build();
+  private final Cache<Object, byte[]> deflated =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  /** @return the event as JSON, in UTF-8. */
+  byte[] json(final Object event) {
+    return get(json, event, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws UnsupportedEncodingException {
+        return gson.toJson(event).getBytes("UTF-8");
+      }
+    });
+  }
+
+  /** @return the event as JSON, in UTF-8, compressed with deflate. */
+  byte[] deflated(final Object event) {
+    return get(deflated, event, new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return deflate(json(event));
+      }
+    });
+  }
+
+  /**
+   * Write the event as a frame of the binary format.
+   * <p>
+   * Each frame is the length of the rest of the frame, the sequence number
+   * of the event, its flag and the encoded event.
+   *
+   * @param out stream to write to.
+   * @param sequence sequence number of the event; 0 if it has none.
+   * @param event event to write.
+   * @param compress true to deflate the encoded event.
+   * @throws IOException the frame could not be written.
+   */
+  void writeFrame(DataOutput out, long sequence, Object event,
+      boolean compress) throws IOException {
+    byte[] data;
+    int flag;
+    if (compress) {
+      data = deflated(event);
+      flag = FLAG_DEFLATED_JSON;
+    } else {
+      data = json(event);
+      flag = FLAG_JSON;
+    }
+    out.writeInt(8 + 1 + data.length);
+    out.writeLong(sequence);
+    out.writeByte(flag);
+    out.write(data);
+  }
+
+  private static byte[] get(Cache<Object, byte[]> cache, Object event,
+      Callable<byte[]> loader) {
+    try {
+      return cache.get(event, loader);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Cannot encode event", e.getCause());
+    }
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater d = new Deflater();
+    try {
+      d.setInput(data);
+      d.finish();
+      ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2);
+      byte[] tmp = new byte[1024];
+      while (!d.finished()) {
+        int n = d.deflate(tmp);
+        buf.write(tmp, 0, n);
+      }
+      return buf.toByteArray();
+    } finally {
+      d.end();
+    }
+  }
+}
@@ -15,20 +15,21 @@
 package com.google.gerrit.sshd.commands;
 
 import com.google.gerrit.common.ChangeHooks;
-import com.google.gerrit.common.ChangeListener;
+import com.google.gerrit.common.SequencedChangeListener;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.events.ChangeEvent;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
 import com.google.gerrit.sshd.BaseCommand;
 import com.google.gerrit.sshd.StreamCommandExecutor;
-import com.google.gson.Gson;
 import com.google.inject.Inject;
 
 import org.apache.sshd.server.Environment;
+import org.kohsuke.args4j.Option;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -39,6 +40,29 @@ final class StreamEvents extends BaseCommand {
   /** Number of events to write before yielding off the thread. */
   private static final int BATCH_SIZE = 32;
 
+  /** Special event to notify clients they missed other events. */
+  private static final Object DROPPED_OUTPUT = new DroppedOutputEvent();
+
+  static enum Format {
+    /** One JSON object per line. */
+    JSON,
+
+    /** Length prefixed frames, carrying the sequence number of each event. */
+    BINARY
+  }
+
+  @Option(name = "--format", metaVar = "FMT",
+      usage = "output format: JSON or BINARY")
+  private Format format = Format.JSON;
+
+  @Option(name = "--compress",
+      usage = "compress events with deflate; requires --format BINARY")
+  private boolean compress;
+
+  @Option(name = "--resume-after", metaVar = "SEQ",
+      usage = "first replay the events after this sequence number")
+  private Long resumeAfter;
+
   @Inject
   private IdentifiedUser currentUser;
 
@@ -49,22 +73,28 @@ final class StreamEvents extends BaseCommand {
   @StreamCommandExecutor
   private WorkQueue.Executor pool;
 
+  @Inject
+  private StreamEventEncoder encoder;
+
   /** Queue of events to stream to the connected user. */
-  private final LinkedBlockingQueue<ChangeEvent> queue =
-      new LinkedBlockingQueue<ChangeEvent>(MAX_EVENTS);
+  private final LinkedBlockingQueue<QueuedEvent> queue =
+      new LinkedBlockingQueue<QueuedEvent>(MAX_EVENTS);
 
-  private final Gson gson = new Gson();
+  private final SequencedChangeListener listener =
+      new SequencedChangeListener() {
+    @Override
+    public void onChangeEvent(final ChangeEvent event) {
+      offer(new QueuedEvent(0, event));
+    }
 
-  /** Special event to notify clients they missed other events. */
-  private final Object droppedOutputEvent = new Object() {
-    @SuppressWarnings("unused")
-    final String type = "dropped-output";
-  };
+    @Override
+    public void onChangeEvent(long sequence, ChangeEvent event) {
+      offer(new QueuedEvent(sequence, event));
+    }
 
-  private final ChangeListener listener = new ChangeListener() {
     @Override
-    public void onChangeEvent(final ChangeEvent event) {
-      offer(event);
+    public void onEventsLost() {
+      offer(null);
     }
   };
 
@@ -80,7 +110,7 @@ final class StreamEvents extends BaseCommand {
     }
   };
 
-  /** True if {@link #droppedOutputEvent} needs to be sent. */
+  /** True if {@link #DROPPED_OUTPUT} needs to be sent. */
   private volatile boolean dropped;
 
   /** Lock to protect {@link #queue}, {@link #task}, {@link #done}. */
@@ -98,7 +128,10 @@ final class StreamEvents extends BaseCommand {
    */
   private Future<?> task;
 
-  private PrintWriter stdout;
+  private DataOutputStream stdout;
+
+  /** True if writing to the client failed. */
+  private volatile boolean failed;
 
   @Override
   public void start(final Environment env) throws IOException {
@@ -114,9 +147,20 @@ final class StreamEvents extends BaseCommand {
       onExit(1);
       return;
     }
+    if (compress && format != Format.BINARY) {
+      String msg = "fatal: --compress requires --format BINARY\n";
+      err.write(msg.getBytes("UTF-8"));
+      err.flush();
+      onExit(1);
+      return;
+    }
 
-    stdout = toPrintWriter(out);
-    hooks.addChangeListener(listener, currentUser);
+    stdout = new DataOutputStream(new BufferedOutputStream(out));
+    if (resumeAfter != null) {
+      hooks.addChangeListener(listener, currentUser, resumeAfter);
+    } else {
+      hooks.addChangeListener(listener, currentUser);
+    }
   }
 
   @Override
@@ -149,9 +193,10 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private void offer(final ChangeEvent event) {
+  /** Queue an event to be written; null only reports lost events. */
+  private void offer(final QueuedEvent event) {
     synchronized (taskLock) {
-      if (!queue.offer(event)) {
+      if (event == null || !queue.offer(event)) {
         dropped = true;
       }
 
@@ -161,9 +206,9 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private ChangeEvent poll() {
+  private QueuedEvent poll() {
     synchronized (taskLock) {
-      ChangeEvent event = queue.poll();
+      QueuedEvent event = queue.poll();
       if (event == null) {
         task = null;
       }
@@ -175,7 +220,7 @@ final class StreamEvents extends BaseCommand {
     int processed = 0;
 
     while (processed < BATCH_SIZE) {
-      if (Thread.interrupted() || stdout.checkError()) {
+      if (Thread.interrupted() || failed) {
         // The other side either requested a shutdown by calling our
         // destroy() above, or it closed the stream and is no longer
         // accepting output. Either way terminate this instance.
@@ -187,16 +232,16 @@ final class StreamEvents extends BaseCommand {
       }
 
       if (dropped) {
-        write(droppedOutputEvent);
+        write(0, DROPPED_OUTPUT);
         dropped = false;
       }
 
-      final ChangeEvent event = poll();
+      final QueuedEvent event = poll();
       if (event == null) {
         break;
       }
 
-      write(event);
+      write(event.sequence, event.event);
       processed++;
     }
 
@@ -213,16 +258,43 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private void write(final Object message) {
-    final String msg = gson.toJson(message) + "\n";
+  private void write(long sequence, Object message) {
     synchronized (stdout) {
-      stdout.print(msg);
+      try {
+        if (format == Format.BINARY) {
+          encoder.writeFrame(stdout, sequence, message, compress);
+        } else {
+          stdout.write(encoder.json(message));
+          stdout.write('\n');
+        }
+      } catch (IOException e) {
+        failed = true;
+      }
     }
   }
 
   private void flush() {
     synchronized (stdout) {
-      stdout.flush();
+      try {
+        stdout.flush();
+      } catch (IOException e) {
+        failed = true;
+      }
+    }
+  }
+
+  private static class QueuedEvent {
+    final long sequence;
+    final ChangeEvent event;
+
+    QueuedEvent(long sequence, ChangeEvent event) {
+      this.sequence = sequence;
+      this.event = event;
     }
   }
+
+  private static class DroppedOutputEvent {
+    @SuppressWarnings("unused")
+    final String type = "dropped-output";
+  }
 }
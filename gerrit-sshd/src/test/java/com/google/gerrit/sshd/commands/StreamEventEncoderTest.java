@@ -0,0 +1,93 @@
+// Copyright (C) 2012 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+public class StreamEventEncoderTest extends TestCase {
+  private StreamEventEncoder encoder;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    encoder = new StreamEventEncoder();
+  }
+
+  public void testJsonIsShared() throws Exception {
+    Event e = new Event();
+    byte[] json = encoder.json(e);
+    assertEquals("{\"type\":\"test\",\"value\":\"café\"}",
+        new String(json, "UTF-8"));
+    assertSame(json, encoder.json(e));
+    assertSame(encoder.deflated(e), encoder.deflated(e));
+  }
+
+  public void testFrame() throws Exception {
+    Event e = new Event();
+    byte[] json = encoder.json(e);
+    DataInputStream in = write(e, 42L, false);
+
+    assertEquals(8 + 1 + json.length, in.readInt());
+    assertEquals(42L, in.readLong());
+    assertEquals(StreamEventEncoder.FLAG_JSON, in.readByte());
+    byte[] data = new byte[json.length];
+    in.readFully(data);
+    assertTrue(Arrays.equals(json, data));
+    assertEquals(-1, in.read());
+  }
+
+  public void testCompressedFrame() throws Exception {
+    Event e = new Event();
+    DataInputStream in = write(e, 7L, true);
+
+    int length = in.readInt();
+    assertEquals(7L, in.readLong());
+    assertEquals(StreamEventEncoder.FLAG_DEFLATED_JSON, in.readByte());
+    byte[] data = new byte[length - 8 - 1];
+    in.readFully(data);
+    assertEquals(-1, in.read());
+
+    Inflater inflater = new Inflater();
+    inflater.setInput(data);
+    byte[] json = new byte[1024];
+    int n = inflater.inflate(json);
+    assertTrue(inflater.finished());
+    inflater.end();
+    assertTrue(Arrays.equals(encoder.json(e), Arrays.copyOf(json, n)));
+  }
+
+  private DataInputStream write(Object event, long sequence,
+      boolean compress) throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    encoder.writeFrame(out, sequence, event, compress);
+    out.flush();
+    return new DataInputStream(new ByteArrayInputStream(buf.toByteArray()));
+  }
+
+  private static class Event {
+    @SuppressWarnings("unused")
+    final String type = "test";
+    @SuppressWarnings("unused")
+    final String value = "café";
+  }
+}